@@ -9,13 +9,11 @@ import android.content.pm.ActivityInfo;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.Rect;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.SystemClock;
-import android.text.TextUtils;
 import android.view.View;
 import android.view.WindowManager;
 import android.widget.TextView;
@@ -24,15 +22,19 @@ import android.widget.Toast;
 import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
 
-import com.arcsoft.imageutil.ArcSoftImageFormat;
-import com.arcsoft.imageutil.ArcSoftImageUtil;
-import com.arcsoft.imageutil.ArcSoftImageUtilError;
+import com.rokid.simpleplayer.face.faceserver.BatchRegisterPipeline;
+import com.rokid.simpleplayer.face.faceserver.DuplicateDetector;
 import com.rokid.simpleplayer.face.faceserver.FaceServer;
+import com.rokid.simpleplayer.face.faceserver.RegisterManifest;
+import com.rokid.simpleplayer.face.faceserver.TrackFeatureSidecar;
+import com.rokid.simpleplayer.face.utils.AppearanceIndex;
+import com.rokid.simpleplayer.face.utils.IdentityTimeline;
+import com.rokid.simpleplayer.face.utils.ResultCache;
+import com.rokid.simpleplayer.face.utils.ResultLogger;
 import com.rokid.simpleplayer.face.widget.ProgressDialog;
 import com.rokid.simpleplayer.gl.Logger;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -48,14 +50,65 @@ public abstract class BaseActivity extends Activity {
     protected static final String ROOT_DIR = Environment.getExternalStorageDirectory().getAbsolutePath();
     protected static final String REGISTER_DIR = ROOT_DIR + File.separator + "faceid";
     protected static final String REGISTER_FAILED_DIR = REGISTER_DIR + File.separator + "failed";
+    private static final String DUPLICATE_REPORT_NAME = "duplicates.txt";
+    /**
+     * 批量注册后检测重复身份的相似度阈值
+     */
+    private static final float DUPLICATE_THRESHOLD = 0.85F;
     protected ExecutorService executorService;
     protected ProgressDialog progressDialog = null;
+    /**
+     * 批量注册的清单，只在注册线程中使用
+     */
+    private RegisterManifest registerManifest;
     protected TextView tvNotificationRegisterResult;
 
 
     protected final static String VIDEO_PATH = "/sdcard/videoTest/";
     protected final static String VIDEO_LOG_PATH = "/sdcard/videoLog/";
-    protected FileWriter writer;
+    /**
+     * 出现区间索引的目录，开始检测时不会被清空，可以跨视频查询
+     */
+    protected final static String VIDEO_INDEX_PATH = "/sdcard/videoIndex/";
+    /**
+     * 分析结果缓存的目录，按视频内容的指纹保存，视频及人脸库都没有变化时不再重新解码
+     */
+    protected final static String VIDEO_CACHE_PATH = "/sdcard/videoCache/";
+    /**
+     * 查询时同一视频中间隔不超过这个时长（ms）的出现区间合并为一段
+     */
+    private static final long APPEARANCE_MERGE_GAP_MILLIS = 1000;
+    /**
+     * 识别结果日志的格式
+     */
+    protected static final ResultLogger.Format RESULT_LOG_FORMAT = ResultLogger.Format.JSONL;
+    protected final ResultLogger resultLogger = new ResultLogger.Builder()
+            .format(RESULT_LOG_FORMAT)
+            .build();
+    /**
+     * 是否逐帧记录每个人脸的识别结果，默认只输出按事件压缩的身份时间线
+     */
+    protected static final boolean PER_FRAME_RESULT_LOG = false;
+    /**
+     * 身份时间线中人脸连续漏检超过这个帧数视为离开
+     */
+    protected static final int TIMELINE_MAX_GAP_FRAMES = 5;
+    protected final ResultCache resultCache = new ResultCache(new File(VIDEO_CACHE_PATH),
+            IdentityTimeline.EVENTS_EXTENSION, IdentityTimeline.SUMMARY_EXTENSION, TrackFeatureSidecar.EXTENSION);
+    /**
+     * 每个人脸质量最好的特征，人脸库变化后据此重新比对
+     */
+    protected final TrackFeatureSidecar trackFeatureSidecar = new TrackFeatureSidecar();
+    protected final AppearanceIndex appearanceIndex = new AppearanceIndex(new File(VIDEO_INDEX_PATH), APPEARANCE_MERGE_GAP_MILLIS);
+    protected final IdentityTimeline identityTimeline = new IdentityTimeline.Builder()
+            .maxGapFrames(TIMELINE_MAX_GAP_FRAMES)
+            .intervalClosedListener(new IdentityTimeline.OnIntervalClosedListener() {
+                @Override
+                public void onIntervalClosed(IdentityTimeline.Interval interval) {
+                    indexInterval(interval);
+                }
+            })
+            .build();
 
     protected boolean libraryExists = true;
     // Demo 所需的动态库文件
@@ -177,20 +230,28 @@ public abstract class BaseActivity extends Activity {
     }
 
 
-    protected void writeLog(String name, int trackId) {
+    /**
+     * 识别出身份的区间结束时写入出现区间索引
+     */
+    protected void indexInterval(IdentityTimeline.Interval interval) {
+        if (interval.getIdentity() == null || !appearanceIndex.isOpen()) {
+            return;
+        }
         try {
-            StringBuffer buffer = new StringBuffer();
-            String recgname = TextUtils.isEmpty(name) ? "null": name;
-            buffer.append("timeStamp:").append(System.currentTimeMillis())
-                    .append(" trackId:").append(trackId)
-                    .append(" name:").append(recgname)
-                    .append("\n");
-            writer.write(buffer.toString());
+            appearanceIndex.add(interval.getIdentity(), interval.getFirstPts(), interval.getLastPts(),
+                    interval.getFrameCount(), interval.getBestScore());
         } catch (IOException e) {
-            e.printStackTrace();
+            Logger.e("indexInterval: " + e.getMessage());
         }
     }
 
+    /**
+     * 记录一条识别结果，只写入内存中的环形缓冲区，由后台线程批量写入当前视频的日志文件
+     */
+    protected void writeLog(long pts, int trackId, int status, Rect box, String name, String identity) {
+        resultLogger.log(System.currentTimeMillis(), pts, trackId, status, box, name, identity);
+    }
+
     protected void doRegister() {
         File dir = new File(REGISTER_DIR);
         if (!dir.exists()) {
@@ -216,9 +277,17 @@ public abstract class BaseActivity extends Activity {
         executorService.execute(new Runnable() {
             @Override
             public void run() {
-                final int totalCount = jpgFiles.length;
-
-                int successCount = 0;
+                // 先加载其他进程对人脸库的修改
+                FaceServer.getInstance().reloadGallery(BaseActivity.this.getApplicationContext(), false);
+                // 与清单对比，只注册新增或内容变化的图片，删除已不存在的图片对应的人
+                final File manifestFile = new File(FaceServer.getInstance().getStoreDir(BaseActivity.this), RegisterManifest.FILE_NAME);
+                registerManifest = RegisterManifest.load(manifestFile);
+                RegisterManifest.Diff diff = registerManifest.diff(jpgFiles);
+                int removedCount = FaceServer.getInstance().removeFaces(BaseActivity.this.getApplicationContext(), diff.toRemove);
+                Logger.d("doRegister: unchanged " + diff.unchangedCount + ", changed " + diff.changedCount
+                        + ", new " + (diff.toRegister.size() - diff.changedCount) + ", removed " + removedCount);
+                final File[] toRegister = diff.toRegister.toArray(new File[0]);
+                final int totalCount = toRegister.length;
                 runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
@@ -228,72 +297,77 @@ public abstract class BaseActivity extends Activity {
                         tvNotificationRegisterResult.append(getString(R.string.batch_process_processing_please_wait));
                     }
                 });
-                for (int i = 0; i < totalCount; i++) {
-                    final int finalI = i;
-                    runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (progressDialog != null) {
-                                progressDialog.refreshProgress(finalI);
-                            }
-                        }
-                    });
-                    final File jpgFile = jpgFiles[i];
-                    Bitmap bitmap = BitmapFactory.decodeFile(jpgFile.getAbsolutePath());
-                    if (bitmap == null) {
-                        File failedFile = new File(REGISTER_FAILED_DIR + File.separator + jpgFile.getName());
-                        if (!failedFile.getParentFile().exists()) {
-                            failedFile.getParentFile().mkdirs();
-                        }
-                        jpgFile.renameTo(failedFile);
-                        continue;
-                    }
-                    bitmap = ArcSoftImageUtil.getAlignedBitmap(bitmap, true);
-                    if (bitmap == null) {
-                        File failedFile = new File(REGISTER_FAILED_DIR + File.separator + jpgFile.getName());
-                        if (!failedFile.getParentFile().exists()) {
-                            failedFile.getParentFile().mkdirs();
-                        }
-                        jpgFile.renameTo(failedFile);
-                        continue;
-                    }
-                    byte[] bgr24 = ArcSoftImageUtil.createImageData(bitmap.getWidth(), bitmap.getHeight(), ArcSoftImageFormat.BGR24);
-                    int transformCode = ArcSoftImageUtil.bitmapToImageData(bitmap, bgr24, ArcSoftImageFormat.BGR24);
-                    if (transformCode != ArcSoftImageUtilError.CODE_SUCCESS) {
-                        runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                progressDialog.dismiss();
-                                tvNotificationRegisterResult.append("");
-                            }
-                        });
-                        return;
-                    }
-                    boolean success = FaceServer.getInstance().registerBgr24(BaseActivity.this.getApplicationContext(), bgr24, bitmap.getWidth(), bitmap.getHeight(),
-                            jpgFile.getName().substring(0, jpgFile.getName().lastIndexOf(".")));
-                    if (!success) {
-                        File failedFile = new File(REGISTER_FAILED_DIR + File.separator + jpgFile.getName());
-                        if (!failedFile.getParentFile().exists()) {
-                            failedFile.getParentFile().mkdirs();
-                        }
-                        jpgFile.renameTo(failedFile);
-                    } else {
-                        successCount++;
-                    }
+                BatchRegisterPipeline pipeline = new BatchRegisterPipeline.Builder()
+                        .context(BaseActivity.this.getApplicationContext())
+                        .progressListener(registerProgressListener)
+                        .build();
+                // 批量注册时拒绝与人脸库中其他人重复的身份，失败的图片移到失败目录；其他注册入口默认不检测
+                float oldThreshold = FaceServer.getInstance().getDuplicateThreshold();
+                FaceServer.getInstance().setDuplicateThreshold(DUPLICATE_THRESHOLD);
+                try {
+                    pipeline.run(toRegister);
+                } finally {
+                    FaceServer.getInstance().setDuplicateThreshold(oldThreshold);
                 }
-                final int finalSuccessCount = successCount;
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        progressDialog.dismiss();
-                        tvNotificationRegisterResult.append(getString(R.string.batch_process_finished_info, totalCount, finalSuccessCount, totalCount - finalSuccessCount, REGISTER_FAILED_DIR));
+                try {
+                    registerManifest.save();
+                } catch (IOException e) {
+                    Logger.e("doRegister: save manifest failed, " + e.getMessage());
+                }
+                Logger.d("doRegister: " + pipeline.getStats() + ", " + FaceServer.getInstance().getHeadImageStats());
+                // 只生成合并报告，由用户确认后再调用mergeDuplicates删除
+                DuplicateDetector.Report report = FaceServer.getInstance().findDuplicates(DUPLICATE_THRESHOLD);
+                if (report != null) {
+                    try {
+                        report.writeTo(new File(REGISTER_DIR, DUPLICATE_REPORT_NAME));
+                    } catch (IOException e) {
+                        Logger.e("doRegister: write duplicate report failed, " + e.getMessage());
                     }
-                });
-                Logger.d("run: " + executorService.isShutdown());
+                    Logger.d("doRegister: duplicates " + report);
+                }
             }
         });
     }
 
+    private final BatchRegisterPipeline.OnRegisterProgressListener registerProgressListener = new BatchRegisterPipeline.OnRegisterProgressListener() {
+        @Override
+        public void onProgress(final int processed, int total) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (progressDialog != null) {
+                        progressDialog.refreshProgress(processed);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onRegistered(File file, String name) {
+            registerManifest.put(file, name);
+        }
+
+        @Override
+        public void onFailed(File file) {
+            File failedFile = new File(REGISTER_FAILED_DIR + File.separator + file.getName());
+            if (!failedFile.getParentFile().exists()) {
+                failedFile.getParentFile().mkdirs();
+            }
+            file.renameTo(failedFile);
+        }
+
+        @Override
+        public void onFinished(final int total, final int successCount, long costMillis) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    progressDialog.dismiss();
+                    tvNotificationRegisterResult.append(getString(R.string.batch_process_finished_info, total, successCount, total - successCount, REGISTER_FAILED_DIR));
+                }
+            });
+        }
+    };
+
     protected void doCleanRegister() {
         int faceNum = FaceServer.getInstance().getFaceNumber(this);
         if (faceNum == 0) {
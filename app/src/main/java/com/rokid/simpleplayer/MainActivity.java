@@ -1,10 +1,13 @@
 package com.rokid.simpleplayer;
 
+import android.graphics.Rect;
 import android.opengl.GLSurfaceView;
 import android.os.Bundle;
 
 import android.text.TextUtils;
 import android.util.DisplayMetrics;
+import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
 
 import androidx.core.app.ActivityCompat;
@@ -23,42 +26,39 @@ import com.arcsoft.face.VersionInfo;
 import com.arcsoft.face.enums.DetectMode;
 import com.rokid.simpleplayer.face.FaceConstants;
 import com.rokid.simpleplayer.face.faceserver.CompareResult;
+import com.rokid.simpleplayer.face.faceserver.FaceSearchExecutor;
 import com.rokid.simpleplayer.face.faceserver.FaceServer;
+import com.rokid.simpleplayer.face.faceserver.ReIdCache;
+import com.rokid.simpleplayer.face.faceserver.TrackFeatureSidecar;
+import com.rokid.simpleplayer.face.faceserver.VisitorClusterer;
 import com.rokid.simpleplayer.face.model.DrawInfo;
 import com.rokid.simpleplayer.face.model.FacePreviewInfo;
+import com.rokid.simpleplayer.face.utils.BestShotSelector;
 import com.rokid.simpleplayer.face.utils.ConfigUtil;
 import com.rokid.simpleplayer.face.utils.DrawHelper;
 import com.rokid.simpleplayer.face.utils.FaceHelper;
 import com.rokid.simpleplayer.face.utils.FaceListener;
 import com.rokid.simpleplayer.face.utils.FileUtils;
+import com.rokid.simpleplayer.face.utils.IdentityTimeline;
 import com.rokid.simpleplayer.face.utils.RecognizeColor;
 import com.rokid.simpleplayer.face.utils.RequestFeatureStatus;
+import com.rokid.simpleplayer.face.utils.ResultCache;
+import com.rokid.simpleplayer.face.utils.RetryTimerWheel;
+import com.rokid.simpleplayer.face.utils.TrackStateTable;
 import com.rokid.simpleplayer.face.widget.FaceRectView;
 import com.rokid.simpleplayer.face.widget.FaceSearchResultAdapter;
 import com.rokid.simpleplayer.gl.Logger;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.List;
-import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.TimeUnit;
 
-import io.reactivex.Observable;
-import io.reactivex.ObservableEmitter;
-import io.reactivex.ObservableOnSubscribe;
-import io.reactivex.Observer;
-import io.reactivex.android.schedulers.AndroidSchedulers;
-import io.reactivex.disposables.CompositeDisposable;
-import io.reactivex.disposables.Disposable;
-import io.reactivex.schedulers.Schedulers;
 
 import static com.arcsoft.face.enums.DetectFaceOrientPriority.ASF_OP_ALL_OUT;
 
@@ -79,6 +79,15 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
      * 失败重试间隔时间（ms）
      */
     private static final long FAIL_RETRY_INTERVAL = 1000;
+    /**
+     * 失败重试间隔按次数指数增长的上限（ms）
+     */
+    private static final long MAX_FAIL_RETRY_INTERVAL = 8000;
+    /**
+     * 重试时间轮每个tick的时长（ms）及槽数
+     */
+    private static final long RETRY_WHEEL_TICK = 50;
+    private static final int RETRY_WHEEL_SIZE = 64;
     /**
      * 出错重试最大次数
      */
@@ -102,16 +111,71 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
 //    private FaceSearchResultAdapter mFaceSearchAdapter;
 
     /**
-     * 用于记录人脸识别相关状态
+     * 用于记录人脸识别状态、特征提取出错重试次数、姓名等
+     */
+    private final TrackStateTable trackStateTable = new TrackStateTable(MAX_DETECT_NUM);
+
+    /**
+     * 每个人脸在短窗口内选出质量最好的一帧再提取特征
+     */
+    private BestShotSelector bestShotSelector = new BestShotSelector();
+
+    /**
+     * 人脸搜索线程池及线程数，FaceServer的搜索读取人脸库快照，可以并发进行
+     */
+    private FaceSearchExecutor faceSearchExecutor;
+    private static final int SEARCH_THREAD_COUNT = 2;
+    /**
+     * 主线程批量处理搜索结果的间隔（ms），约为一帧的时长
      */
-    private ConcurrentHashMap<Integer, Integer> requestFeatureStatusMap = new ConcurrentHashMap<>();
+    private static final long SEARCH_DISPATCH_INTERVAL = 33;
     /**
-     * 用于记录人脸特征提取出错重试次数
+     * KEY为人员名称，VALUE为识别成功时显示的名称
      */
-    private ConcurrentHashMap<Integer, Integer> extractErrorRetryMap = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> successNameCache = new ConcurrentHashMap<>();
+    private String notRegisteredName;
 
-    private CompositeDisposable getFeatureDelayedDisposables = new CompositeDisposable();
-    private CompositeDisposable delayFaceTaskCompositeDisposable = new CompositeDisposable();
+    /**
+     * 重识别缓存：最近识别成功的人数、离开后保留的时长（ms），以及人脸框重叠时的识别阈值
+     */
+    private static final int REID_CACHE_SIZE = 16;
+    private static final long REID_CACHE_TTL = 10000;
+    private static final float REID_PROXIMITY_THRESHOLD = 0.6F;
+    private final ReIdCache reIdCache = new ReIdCache(REID_CACHE_SIZE, REID_CACHE_TTL, SIMILAR_THRESHOLD, REID_PROXIMITY_THRESHOLD);
+    /**
+     * 未识别访客的聚类：并入簇的相似度阈值、人脸库最高相似度低于该值才视为访客、导出为注册候选的最少出现次数
+     */
+    private static final float VISITOR_JOIN_THRESHOLD = 0.75F;
+    private static final float VISITOR_MAX_GALLERY_SIMILAR = 0.5F;
+    private static final int VISITOR_CANDIDATE_MIN_SIGHTINGS = 3;
+    private static final String VISITOR_CANDIDATE_DIR = REGISTER_DIR + File.separator + "visitors";
+    private VisitorClusterer visitorClusterer;
+    /**
+     * 人脸离开时读取人脸框用，只在解码线程中使用
+     */
+    private final Rect evictedBox = new Rect();
+    /**
+     * 特征提取及搜索线程读取人脸框用，每个线程一个，ReIdCache会复制人脸框
+     */
+    private final ThreadLocal<Rect> threadBox = new ThreadLocal<Rect>() {
+        @Override
+        protected Rect initialValue() {
+            return new Rect();
+        }
+    };
+
+    /**
+     * 所有人脸的识别重试共用一个时间轮
+     */
+    private RetryTimerWheel retryTimerWheel = new RetryTimerWheel(RETRY_WHEEL_TICK, RETRY_WHEEL_SIZE,
+            FAIL_RETRY_INTERVAL, MAX_FAIL_RETRY_INTERVAL, new RetryTimerWheel.OnRetryListener() {
+        @Override
+        public void onRetry(int trackId) {
+            // 将该人脸特征提取状态置为TO_RETRY，帧回调处理时会重新进行识别
+            trackStateTable.setName(trackId, Integer.toString(trackId));
+            trackStateTable.setStatus(trackId, RequestFeatureStatus.TO_RETRY);
+        }
+    });
     /**
      * 绘制人脸框的控件
      */
@@ -122,11 +186,25 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
      * 识别阈值
      */
     private static final float SIMILAR_THRESHOLD = 0.8F;
+    /**
+     * 影响分析结果的配置，任何一项变化后缓存的结果都不再复用
+     */
+    private static final String PIPELINE_CONFIG_KEY = "similar=" + SIMILAR_THRESHOLD
+            + ";maxDetect=" + MAX_DETECT_NUM
+            + ";reid=" + REID_CACHE_SIZE + "/" + REID_CACHE_TTL + "/" + REID_PROXIMITY_THRESHOLD
+            + ";visitor=" + VISITOR_JOIN_THRESHOLD + "/" + VISITOR_MAX_GALLERY_SIMILAR
+            + ";timelineGap=" + TIMELINE_MAX_GAP_FRAMES;
+    /**
+     * 正在解码的视频的缓存项、视频名及开始时人脸库的指纹，解码完成后保存结果
+     */
+    private ResultCache.Entry currentCacheEntry;
+    private String currentVideoName;
+    private String currentGalleryKey;
 
 
     // 用于遍历视频文件
     private ArrayDeque<String> videoPaths = new ArrayDeque<>();
-    private boolean stopped = false;
+    private volatile boolean stopped = false;
     private Timer timer;
     private TimerTask task;
 
@@ -191,6 +269,7 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
 
         //RecyclerView recyclerShowFaceInfo = findViewById(R.id.single_camera_recycler_view_person);
         compareResultList = new ArrayList<>();
+        notRegisteredName = getString(R.string.recognize_failed_notice, "NOT_REGISTERED");
         //mFaceSearchAdapter = new FaceSearchResultAdapter(compareResultList, this);
         //recyclerShowFaceInfo.setAdapter(mFaceSearchAdapter);
 //        DisplayMetrics dm = getResources().getDisplayMetrics();
@@ -205,6 +284,15 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
     private void initEngine() {
         //本地人脸库初始化
         FaceServer.getInstance().init(MainActivity.this.getApplicationContext());
+        visitorClusterer = new VisitorClusterer(new File(FaceServer.getInstance().getStoreDir(this), VisitorClusterer.FILE_NAME),
+                VISITOR_JOIN_THRESHOLD, SIMILAR_THRESHOLD);
+        visitorClusterer.load();
+        try {
+            appearanceIndex.open();
+        } catch (IOException e) {
+            Logger.e("出现区间索引打开失败, " + e.getMessage());
+        }
+        faceSearchExecutor = new FaceSearchExecutor(SEARCH_THREAD_COUNT, MAX_DETECT_NUM, SEARCH_DISPATCH_INTERVAL, searchResultListener);
 
         ftEngine = new FaceEngine();
         ftInitCode = ftEngine.init(this, DetectMode.ASF_DETECT_MODE_VIDEO, ASF_OP_ALL_OUT,
@@ -297,11 +385,12 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
             faceHelper.release();
             faceHelper = null;
         }
-        if (getFeatureDelayedDisposables != null) {
-            getFeatureDelayedDisposables.clear();
+        if (retryTimerWheel != null) {
+            retryTimerWheel.stop();
         }
-        if (delayFaceTaskCompositeDisposable != null) {
-            delayFaceTaskCompositeDisposable.clear();
+        if (faceSearchExecutor != null) {
+            faceSearchExecutor.release();
+            faceSearchExecutor = null;
         }
 
         if (executorService != null && !executorService.isShutdown()) {
@@ -311,6 +400,17 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
             progressDialog.dismiss();
         }
 
+        identityTimeline.close();
+        trackFeatureSidecar.close();
+        appearanceIndex.close();
+        resultLogger.shutdown();
+        if (visitorClusterer != null) {
+            try {
+                visitorClusterer.save();
+            } catch (IOException e) {
+                Logger.e("onDestroy: save visitors failed, " + e.getMessage());
+            }
+        }
         FaceServer.getInstance().unInit();
     }
 
@@ -341,6 +441,9 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
             faceHelper.release();
             faceHelper = null;
         }
+        trackStateTable.clear();
+        retryTimerWheel.cancelAll();
+        reIdCache.clear();
         faceHelper = new FaceHelper.Builder()
                 .ftEngine(ftEngine)
                 .frEngine(frEngine)
@@ -348,6 +451,8 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
                 .flQueueSize(MAX_DETECT_NUM)
                 .previewSize(mWidth, mHeight)
                 .faceListener(faceListener)
+                .trackStateTable(trackStateTable)
+                .trackEvictListener(trackEvictListener)
                 .trackedFaceCount(trackedFaceCount == null ? ConfigUtil.getTrackedFaceCount(MainActivity.this.getApplicationContext()) : trackedFaceCount)
                 .build();
     }
@@ -377,20 +482,28 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
                 faceRectView.clearFaceInfo();
             }
             // 输入人脸nv21数据，得到人脸数据并绘制
-            final List<FacePreviewInfo> facePreviewInfoList = faceHelper.onPreviewFrame(bytes);
+            final List<FacePreviewInfo> facePreviewInfoList = faceHelper.onPreviewFrame(bytes, time);
             if (facePreviewInfoList != null && faceRectView != null && drawHelper != null) {
                 drawPreviewInfo(facePreviewInfoList);
             }
+            updateTimeline(facePreviewInfoList, time);
 
             clearLeftFace(facePreviewInfoList);
             if (facePreviewInfoList != null && facePreviewInfoList.size() > 0) {
                 for (int i = 0; i < facePreviewInfoList.size(); i++) {
-                    Integer status = requestFeatureStatusMap.get(facePreviewInfoList.get(i).getTrackId());
-                    if (status == null
+                    int trackId = facePreviewInfoList.get(i).getTrackId();
+                    int status = trackStateTable.getStatus(trackId);
+                    if (status == TrackStateTable.STATUS_NONE
                             || status == RequestFeatureStatus.TO_RETRY) {
-                        requestFeatureStatusMap.put(facePreviewInfoList.get(i).getTrackId(), RequestFeatureStatus.SEARCHING);
+                        // 窗口内选出最佳帧后才请求特征值
+                        BestShotSelector.Candidate candidate = bestShotSelector.offer(trackId, bytes, mWidth, mHeight, facePreviewInfoList.get(i).getFaceInfo());
+                        if (candidate == null) {
+                            continue;
+                        }
+                        trackStateTable.setStatus(trackId, RequestFeatureStatus.SEARCHING);
+                        trackFeatureSidecar.prepare(trackId, time, facePreviewInfoList.get(i).getFaceInfo().getRect(), candidate.getScore());
                         // 请求特征值，这里会回调FaceListener，表示提取完成特征值
-                        faceHelper.requestFaceFeature(bytes, facePreviewInfoList.get(i).getFaceInfo(), mWidth, mHeight, FaceEngine.CP_PAF_NV21, facePreviewInfoList.get(i).getTrackId());
+                        faceHelper.requestFaceFeature(candidate.getImageData(), candidate.getFaceInfo(), candidate.getWidth(), candidate.getHeight(), FaceEngine.CP_PAF_NV21, trackId);
 //                            Log.i(TAG, "onPreview: fr start = " + System.currentTimeMillis() + " trackId = " + facePreviewInfoList.get(i).getTrackedFaceCount());
                     }
                 }
@@ -405,6 +518,30 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
     public void onStopped() {
         this.stopped = true;
         Logger.d("完成解码");
+        Logger.d("最佳帧选择: " + bestShotSelector.getStats());
+        Logger.d("重识别缓存: 查找" + reIdCache.getLookupCount() + "次, 命中率" + reIdCache.getHitRate()
+                + ", 省去人脸库搜索" + reIdCache.getHitCount() + "次");
+        Logger.d("人脸库搜索: " + FaceServer.getInstance().getSearchStats());
+        Logger.d("访客聚类: " + visitorClusterer.getStats());
+        identityTimeline.close();
+        Logger.d("身份时间线: " + identityTimeline.getStats());
+        trackFeatureSidecar.close();
+        Logger.d("人脸特征旁路: " + trackFeatureSidecar.getStats());
+        storeResultCache();
+        Logger.d("出现区间索引: " + appearanceIndex.getStats());
+        if (PER_FRAME_RESULT_LOG) {
+            resultLogger.close();
+            Logger.d("识别结果日志: " + resultLogger.getStats());
+        }
+        try {
+            visitorClusterer.save();
+            int exported = visitorClusterer.exportCandidates(new File(VISITOR_CANDIDATE_DIR), VISITOR_CANDIDATE_MIN_SIGHTINGS);
+            Logger.d("访客聚类: 导出注册候选" + exported + "个到" + VISITOR_CANDIDATE_DIR);
+        } catch (IOException e) {
+            Logger.e("访客聚类: 保存失败, " + e.getMessage());
+        }
+        Logger.d("重试时间轮: 等待中" + retryTimerWheel.getPendingCount() + "个, 单次tick最大耗时"
+                + retryTimerWheel.getMaxTickCostNanos() / 1000 + "us");
     }
 
     /**
@@ -412,7 +549,8 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
      * @param view
      */
     public void onPlayClick(View view) {
-        if (mMediaDecodeHelper.isPlaying()) {
+        // 定时器存在时还有视频没有检测完，可能正在查询结果缓存
+        if (mMediaDecodeHelper.isPlaying() || timer != null) {
             showToast("已经在播放了！！！");
             return;
         }
@@ -433,7 +571,8 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
             videoPaths.add(VIDEO_PATH+videoPath);
         }
         if(videoPaths.size() > 0) {
-            startDetect(videoPaths.poll());
+            // 第一个视频也由定时器线程开始，查询结果缓存及重新比对要读文件、搜索人脸库，不能在UI线程中执行
+            stopped = true;
             listenNextVideo();
         }
         else {
@@ -441,6 +580,9 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
         }
     }
 
+    /**
+     * 开始检测一个视频，结果已缓存的视频直接复用或重新比对，在定时器线程中调用
+     */
     private void startDetect(String videoPath){
         File dir = null;
         try {
@@ -451,19 +593,163 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
         if(!dir.exists()){
             dir.mkdirs();
         }
+        // 已分析过且视频、人脸库及配置都没有变化的视频直接复用结果，不再解码
+        String galleryKey = FaceServer.getInstance().getGalleryFingerprint();
+        ResultCache.Entry cacheEntry = null;
+        for (; videoPath != null; videoPath = videoPaths.poll()) {
+            cacheEntry = lookupResultCache(new File(videoPath), galleryKey);
+            if (cacheEntry == null || cacheEntry.getStatus() == ResultCache.Status.MISS) {
+                break;
+            }
+            if (cacheEntry.getStatus() == ResultCache.Status.HIT) {
+                restoreResultCache(cacheEntry, dir, getVideoName(new File(videoPath)));
+            } else if (!rematchResultCache(cacheEntry, dir, getVideoName(new File(videoPath)), galleryKey)) {
+                // 只有人脸库变化，但缓存中没有保存特征，重新解码
+                break;
+            }
+        }
+        if (videoPath == null) {
+            stopped = true;
+            return;
+        }
         File video = new File(videoPath);
+        String videoName = getVideoName(video);
+        currentCacheEntry = cacheEntry;
+        currentVideoName = videoName;
+        currentGalleryKey = galleryKey;
         try {
-            writer = new FileWriter(dir+File.separator+video.getName().split("\\.")[0]+".log");
+            // 上一个视频的日志在这里写完并关闭
+            identityTimeline.open(dir, videoName);
+            trackFeatureSidecar.open(dir, videoName);
+            if (appearanceIndex.isOpen()) {
+                appearanceIndex.beginVideo(videoName);
+            }
+            if (PER_FRAME_RESULT_LOG) {
+                resultLogger.open(new File(dir, videoName + RESULT_LOG_FORMAT.extension));
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
         Logger.d("开始解码 startDetect:"+videoPath);
-        // 开始解码
+        // 开始解码，解码结束回调onStopped前定时器不再开始下一个视频
+        stopped = false;
         mMediaDecodeHelper.destroy();
         mMediaDecodeHelper.setVideoFilePath(videoPath);
         mMediaDecodeHelper.play();
     }
 
+    private static String getVideoName(File video) {
+        return video.getName().split("\\.")[0];
+    }
+
+    private ResultCache.Entry lookupResultCache(File video, String galleryKey) {
+        try {
+            ResultCache.Entry entry = resultCache.lookup(video, galleryKey, PIPELINE_CONFIG_KEY);
+            Logger.d("结果缓存: " + video.getName() + " " + entry.getStatus());
+            return entry;
+        } catch (IOException e) {
+            Logger.e("结果缓存: 计算指纹失败, " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 复制缓存的结果文件，出现区间索引中没有这个视频时从时间线重建
+     */
+    private void restoreResultCache(ResultCache.Entry entry, File dir, String videoName) {
+        int restored = resultCache.restore(entry, dir, videoName);
+        if (appearanceIndex.isOpen() && !appearanceIndex.containsVideo(videoName)) {
+            try {
+                appearanceIndex.beginVideo(videoName);
+                for (IdentityTimeline.Interval interval : IdentityTimeline.read(new File(dir, videoName + IdentityTimeline.EVENTS_EXTENSION))) {
+                    indexInterval(interval);
+                }
+            } catch (IOException e) {
+                Logger.e("结果缓存: 重建出现区间索引失败, " + e.getMessage());
+            }
+        }
+        Logger.d("结果缓存: 复用" + videoName + "的" + restored + "个结果文件");
+    }
+
+    /**
+     * 人脸库变化后用缓存中每个人脸的特征重新搜索人脸库，按新的身份重写时间线并更新出现区间索引，不需要解码
+     *
+     * @return 是否完成，缓存中没有特征时返回false
+     */
+    private boolean rematchResultCache(ResultCache.Entry entry, File dir, String videoName, String galleryKey) {
+        resultCache.restore(entry, dir, videoName);
+        File sidecarFile = new File(dir, videoName + TrackFeatureSidecar.EXTENSION);
+        if (!sidecarFile.exists()) {
+            return false;
+        }
+        long startTime = System.currentTimeMillis();
+        try {
+            // 同一个人脸有多条记录时取评分最高的
+            final SparseArray<TrackFeatureSidecar.Record> records = new SparseArray<>();
+            for (TrackFeatureSidecar.Record record : TrackFeatureSidecar.read(sidecarFile)) {
+                TrackFeatureSidecar.Record current = records.get(record.getTrackId());
+                if (current == null || record.getQuality() > current.getQuality()) {
+                    records.put(record.getTrackId(), record);
+                }
+            }
+            int galleryVersion = FaceServer.getInstance().getGalleryVersion();
+            final SparseArray<CompareResult> matches = new SparseArray<>();
+            for (int i = 0; i < records.size(); i++) {
+                TrackFeatureSidecar.Record record = records.valueAt(i);
+                CompareResult compareResult = FaceServer.getInstance().getTopOfFaceLib(new FaceFeature(record.getFeatureData()));
+                if (compareResult != null && compareResult.getUserName() != null && compareResult.getSimilar() > SIMILAR_THRESHOLD) {
+                    matches.put(record.getTrackId(), compareResult);
+                } else if (compareResult == null || compareResult.getSimilar() < VISITOR_MAX_GALLERY_SIMILAR) {
+                    // 解码时已经计过出现次数
+                    String visitorId = visitorClusterer.assign(record.getFeatureData(), false, galleryVersion);
+                    matches.put(record.getTrackId(), new CompareResult(visitorId, 0));
+                } else {
+                    matches.put(record.getTrackId(), null);
+                }
+            }
+            if (appearanceIndex.isOpen()) {
+                appearanceIndex.beginVideo(videoName);
+            }
+            identityTimeline.rewrite(dir, videoName, new IdentityTimeline.Relabeler() {
+                @Override
+                public void relabel(IdentityTimeline.Interval interval) {
+                    // 没有特征的人脸保持原来的结果
+                    if (matches.indexOfKey(interval.getTrackId()) < 0) {
+                        return;
+                    }
+                    CompareResult compareResult = matches.get(interval.getTrackId());
+                    interval.relabel(compareResult == null ? null : compareResult.getUserName(),
+                            compareResult == null ? 0 : compareResult.getSimilar());
+                }
+            });
+            resultCache.store(entry, galleryKey, PIPELINE_CONFIG_KEY, dir, videoName);
+            Logger.d("重新比对: " + videoName + " " + records.size() + "个人脸, 耗时"
+                    + (System.currentTimeMillis() - startTime) + "ms, " + identityTimeline.getStats());
+            return true;
+        } catch (IOException e) {
+            Logger.e("重新比对: " + videoName + "失败, " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 完整解码且期间人脸库没有变化时保存结果
+     */
+    private void storeResultCache() {
+        ResultCache.Entry entry = currentCacheEntry;
+        currentCacheEntry = null;
+        if (entry == null || !mMediaDecodeHelper.isCompleted()
+                || !currentGalleryKey.equals(FaceServer.getInstance().getGalleryFingerprint())) {
+            return;
+        }
+        try {
+            resultCache.store(entry, currentGalleryKey, PIPELINE_CONFIG_KEY, new File(VIDEO_LOG_PATH), currentVideoName);
+        } catch (IOException e) {
+            Logger.e("结果缓存: 保存失败, " + e.getMessage());
+        }
+        Logger.d("结果缓存: " + resultCache.getStats());
+    }
+
     /**
      * 每隔10s检测一次
      */
@@ -503,11 +789,7 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
      * @param view
      */
     public void onExtractFaceFeature(View view) {
-        if (mMediaDecodeHelper.isPlaying()) {
-            showToast("正在播放视频，无法提取特征值！！！");
-            return;
-        }
-        // 开始提取特征值
+        // 注册在后台进行，完成后人脸库一次替换，播放时也可以提取
         doRegister();
     }
 
@@ -534,14 +816,16 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
         //请求FR的回调
         @Override
         public void onFaceFeatureInfoGet(final FaceFeature faceFeature, final Integer requestId, final Integer errorCode) {
+            bestShotSelector.onExtracted(requestId, faceFeature != null);
             //FR成功
             if (faceFeature != null) {
+                trackFeatureSidecar.offer(requestId, faceFeature.getFeatureData());
                 searchFace(faceFeature, requestId);
             }
             //特征提取失败
             else {
-                if (increaseAndGetValue(extractErrorRetryMap, requestId) > MAX_RETRY_TIME) {
-                    extractErrorRetryMap.put(requestId, 0);
+                if (trackStateTable.increaseAndGetRetryCount(requestId) > MAX_RETRY_TIME) {
+                    trackStateTable.resetRetryCount(requestId);
 
                     String msg;
                     // 传入的FaceInfo在指定的图像上无法解析人脸，此处使用的是RGB人脸数据，一般是人脸模糊
@@ -550,12 +834,12 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
                     } else {
                         msg = "ExtractCode:" + errorCode;
                     }
-                    faceHelper.setName(requestId, getString(R.string.recognize_failed_notice, msg));
+                    trackStateTable.setName(requestId, getString(R.string.recognize_failed_notice, msg));
                     // 在尝试最大次数后，特征提取仍然失败，则认为识别未通过
-                    requestFeatureStatusMap.put(requestId, RequestFeatureStatus.FAILED);
+                    trackStateTable.setStatus(requestId, RequestFeatureStatus.FAILED);
                     retryRecognizeDelayed(requestId);
                 } else {
-                    requestFeatureStatusMap.put(requestId, RequestFeatureStatus.TO_RETRY);
+                    trackStateTable.setStatus(requestId, RequestFeatureStatus.TO_RETRY);
                 }
             }
         }
@@ -567,21 +851,24 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
         for (int i = 0; i < facePreviewInfoList.size(); i++) {
             int trackId = facePreviewInfoList.get(i).getTrackId();
             String name = faceHelper.getName(trackId);
-            Integer recognizeStatus = requestFeatureStatusMap.get(trackId);
+            int recognizeStatus = trackStateTable.getStatus(trackId);
             //Logger.d("drawPreviewInfo trackId="+trackId+", name="+name+", recognizeStatus="+recognizeStatus);
 
             // 根据识别结果和活体结果设置颜色
             int color = RecognizeColor.COLOR_UNKNOWN;
-            if (recognizeStatus != null) {
-                if (recognizeStatus == RequestFeatureStatus.FAILED) {
-                    color = RecognizeColor.COLOR_FAILED;
-                }
-                if (recognizeStatus == RequestFeatureStatus.SUCCEED) {
-                    color = RecognizeColor.COLOR_SUCCESS;
-                    Logger.d("Rokid-Face: 找到人脸="+name+", trackId="+trackId);
+            if (recognizeStatus == RequestFeatureStatus.FAILED) {
+                color = RecognizeColor.COLOR_FAILED;
+            }
+            if (recognizeStatus == RequestFeatureStatus.SUCCEED) {
+                color = RecognizeColor.COLOR_SUCCESS;
+                if (Logger.isLoggable(Log.DEBUG)) {
+                    Logger.d("Rokid-Face: 找到人脸=%s, trackId=%d", name, trackId);
                 }
             }
-            writeLog(name, trackId);
+            if (PER_FRAME_RESULT_LOG) {
+                writeLog(trackStateTable.getLastSeenPts(trackId), trackId, recognizeStatus,
+                        facePreviewInfoList.get(i).getFaceInfo().getRect(), name, trackStateTable.getIdentity(trackId));
+            }
 
             drawInfoList.add(new DrawInfo(drawHelper.adjustRect(facePreviewInfoList.get(i).getFaceInfo().getRect()),
                     GenderInfo.UNKNOWN, AgeInfo.UNKNOWN_AGE, LivenessInfo.UNKNOWN, color,
@@ -591,179 +878,198 @@ public class MainActivity extends BaseActivity implements MediaDecodeListener {
     }
 
     /**
-     * 删除已经离开的人脸
-     *
-     * @param facePreviewInfoList 人脸和trackId列表
+     * 本帧的人脸及其当前身份加入时间线，只有出现、识别出身份及离开时才写入事件
      */
-    private void clearLeftFace(List<FacePreviewInfo> facePreviewInfoList) {
-        if (compareResultList != null) { //compareResultList 存放找到的人脸信息
-            for (int i = compareResultList.size() - 1; i >= 0; i--) {
-                if (!requestFeatureStatusMap.containsKey(compareResultList.get(i).getTrackId())) {
-                    compareResultList.remove(i);
-//                    final int removeId = i;
-//                    runOnUiThread(new Runnable() {
-//                        @Override
-//                        public void run() {
-//                            mFaceSearchAdapter.notifyItemRemoved(removeId);
-//                        }
-//                    });
-                }
-            }
-        }
-        if (facePreviewInfoList == null || facePreviewInfoList.size() == 0) {
-            requestFeatureStatusMap.clear();
-            extractErrorRetryMap.clear();
-            if (getFeatureDelayedDisposables != null) {
-                getFeatureDelayedDisposables.clear();
+    private void updateTimeline(List<FacePreviewInfo> facePreviewInfoList, long time) {
+        identityTimeline.beginFrame(time);
+        if (facePreviewInfoList != null) {
+            for (int i = 0; i < facePreviewInfoList.size(); i++) {
+                int trackId = facePreviewInfoList.get(i).getTrackId();
+                identityTimeline.onFace(trackId, trackStateTable.getIdentity(trackId), trackStateTable.getScore(trackId));
             }
-            return;
         }
-        Enumeration<Integer> keys = requestFeatureStatusMap.keys();
-        while (keys.hasMoreElements()) {
-            int key = keys.nextElement();
-            boolean contained = false;
-            for (FacePreviewInfo facePreviewInfo : facePreviewInfoList) {
-                if (facePreviewInfo.getTrackId() == key) {
-                    contained = true;
-                    break;
+        identityTimeline.endFrame();
+    }
+
+    /**
+     * 人脸离开时，删除对应的识别结果和待选帧，状态表中的记录由{@link FaceHelper}在刷新trackId时统一删除
+     */
+    private final TrackStateTable.OnTrackEvictListener trackEvictListener = new TrackStateTable.OnTrackEvictListener() {
+        @Override
+        public void onTrackEvicted(int trackId, int status) {
+            if (compareResultList != null) { //compareResultList 存放找到的人脸信息
+                synchronized (compareResultList) {
+                    for (int i = compareResultList.size() - 1; i >= 0; i--) {
+                        if (compareResultList.get(i).getTrackId() == trackId) {
+                            compareResultList.remove(i);
+                        }
+                    }
                 }
             }
-            if (!contained) {
-                requestFeatureStatusMap.remove(key);
-                extractErrorRetryMap.remove(key);
+            bestShotSelector.remove(trackId);
+            retryTimerWheel.cancel(trackId);
+            trackFeatureSidecar.flush(trackId);
+            if (status == RequestFeatureStatus.SUCCEED && trackStateTable.getLastBox(trackId, evictedBox)) {
+                reIdCache.touch(trackStateTable.getIdentity(trackId), evictedBox, trackStateTable.getLastSeenPts(trackId));
             }
         }
+    };
+
+    /**
+     * 所有人脸都离开时，取消等待中的任务
+     *
+     * @param facePreviewInfoList 人脸和trackId列表
+     */
+    private void clearLeftFace(List<FacePreviewInfo> facePreviewInfoList) {
+        if (facePreviewInfoList == null || facePreviewInfoList.size() == 0) {
+            bestShotSelector.clear();
+        }
     }
 
     private void searchFace(final FaceFeature frFace, final Integer requestId) {
-        Observable
-                .create(new ObservableOnSubscribe<CompareResult>() {
-                    @Override
-                    public void subscribe(ObservableEmitter<CompareResult> emitter) {
-//                        Log.i(TAG, "subscribe: fr search start = " + System.currentTimeMillis() + " trackId = " + requestId);
-                        CompareResult compareResult = FaceServer.getInstance().getTopOfFaceLib(frFace);
-//                        Log.i(TAG, "subscribe: fr search end = " + System.currentTimeMillis() + " trackId = " + requestId);
-                        emitter.onNext(compareResult);
-
-                    }
-                })
-                .subscribeOn(Schedulers.computation())
-                .observeOn(AndroidSchedulers.mainThread())
-                .subscribe(new Observer<CompareResult>() {
-                    @Override
-                    public void onSubscribe(Disposable d) {
+        FaceSearchExecutor executor = faceSearchExecutor;
+        if (executor == null) {
+            return;
+        }
+        // 先在最近识别过的人中查找，未命中时再搜索完整的人脸库
+        Rect box = threadBox.get();
+        if (!trackStateTable.getLastBox(requestId, box)) {
+            box = null;
+        }
+        CompareResult cachedResult = reIdCache.match(frFace, box, trackStateTable.getLastSeenPts(requestId));
+        if (cachedResult != null) {
+            executor.publish(frFace, requestId, cachedResult);
+            return;
+        }
+        // 新出现的人脸是已确认不在当前人脸库中的访客时不搜索人脸库，仍按失败延迟重试；
+        // 同一人脸的重试总是完整搜索，第一帧画质不好被归为访客的人之后还能识别出来
+        if (trackStateTable.getIdentity(requestId) == null) {
+            String visitorId = visitorClusterer.match(frFace.getFeatureData(), true, FaceServer.getInstance().getGalleryVersion());
+            if (visitorId != null) {
+                trackStateTable.setIdentity(requestId, visitorId);
+                trackStateTable.setName(requestId, "VISITOR " + visitorId);
+                retryRecognizeDelayed(requestId);
+                return;
+            }
+        }
+        executor.search(frFace, requestId);
+    }
 
-                    }
+    /**
+     * 人脸库中搜索不到的特征加入访客聚类，与人脸库中的人较相似时可能只是角度或画质不好，不加入
+     *
+     * @return 访客ID，不加入时返回null
+     */
+    private String assignVisitor(int trackId, FaceFeature faceFeature, CompareResult compareResult, int galleryVersion) {
+        if (compareResult != null && compareResult.getSimilar() >= VISITOR_MAX_GALLERY_SIMILAR) {
+            return null;
+        }
+        String visitorId = visitorClusterer.assign(faceFeature.getFeatureData(), trackStateTable.getIdentity(trackId) == null, galleryVersion);
+        trackStateTable.setIdentity(trackId, visitorId);
+        return visitorId;
+    }
 
-                    @Override
-                    public void onNext(CompareResult compareResult) {
-                        if (compareResult == null || compareResult.getUserName() == null) {
-                            requestFeatureStatusMap.put(requestId, RequestFeatureStatus.FAILED);
-                            faceHelper.setName(requestId, "VISITOR " + requestId);
-                            return;
-                        }
+    /**
+     * 搜索结果直接在搜索线程中更新追踪状态，只有识别成功的列表在主线程中批量更新
+     */
+    private final FaceSearchExecutor.OnSearchResultListener searchResultListener = new FaceSearchExecutor.OnSearchResultListener() {
+        @Override
+        public void onSearchResult(int trackId, FaceFeature faceFeature, CompareResult compareResult) {
+            int galleryVersion = FaceServer.getInstance().getGalleryVersion();
+            if (compareResult == null || compareResult.getUserName() == null) {
+                String visitorId = assignVisitor(trackId, faceFeature, null, galleryVersion);
+                trackStateTable.setStatus(trackId, RequestFeatureStatus.FAILED);
+                trackStateTable.setName(trackId, "VISITOR " + visitorId);
+                return;
+            }
+//            Log.i(TAG, "onSearchResult: fr search get result  = " + System.currentTimeMillis() + " trackId = " + trackId + "  similar = " + compareResult.getSimilar());
+            if (isRecognized(compareResult)) {
+                trackStateTable.setStatus(trackId, RequestFeatureStatus.SUCCEED);
+                trackStateTable.setIdentity(trackId, compareResult.getUserName());
+                trackStateTable.setScore(trackId, compareResult.getSimilar());
+                trackStateTable.setName(trackId, getSuccessName(compareResult.getUserName()));
+                // 缓存命中时条目已在match中刷新，不用相似度可能较低的新特征替换缓存的特征
+                if (!compareResult.isReIdentified()) {
+                    Rect box = threadBox.get();
+                    reIdCache.put(compareResult.getUserName(), faceFeature,
+                            trackStateTable.getLastBox(trackId, box) ? box : null, trackStateTable.getLastSeenPts(trackId));
+                }
+            } else {
+                assignVisitor(trackId, faceFeature, compareResult, galleryVersion);
+                trackStateTable.setName(trackId, notRegisteredName);
+                retryRecognizeDelayed(trackId);
+            }
+        }
 
-//                        Log.i(TAG, "onNext: fr search get result  = " + System.currentTimeMillis() + " trackId = " + requestId + "  similar = " + compareResult.getSimilar());
-                        if (compareResult.getSimilar() > SIMILAR_THRESHOLD) {
-                            boolean isAdded = false;
-                            if (compareResultList == null) {
-                                requestFeatureStatusMap.put(requestId, RequestFeatureStatus.FAILED);
-                                faceHelper.setName(requestId, "VISITOR " + requestId);
-                                return;
-                            }
-                            for (CompareResult compareResult1 : compareResultList) {
-                                if (compareResult1.getTrackId() == requestId) {
-                                    isAdded = true;
-                                    break;
-                                }
-                            }
-                            if (!isAdded) {
-                                //对于多人脸搜索，假如最大显示数量为 MAX_DETECT_NUM 且有新的人脸进入，则以队列的形式移除
-                                if (compareResultList.size() >= MAX_DETECT_NUM) {
-                                    compareResultList.remove(0);
-//                                    mFaceSearchAdapter.notifyItemRemoved(0);
-                                }
-                                //添加显示人员时，保存其trackId
-                                compareResult.setTrackId(requestId);
-                                compareResultList.add(compareResult);
-//                                mFaceSearchAdapter.notifyItemInserted(compareResultList.size() - 1);
-                            }
-                            requestFeatureStatusMap.put(requestId, RequestFeatureStatus.SUCCEED);
-                            faceHelper.setName(requestId, getString(R.string.recognize_success_notice, compareResult.getUserName()));
+        @Override
+        public void onSearchRejected(int trackId) {
+            trackStateTable.setStatus(trackId, RequestFeatureStatus.TO_RETRY);
+        }
 
-                        } else {
-                            faceHelper.setName(requestId, getString(R.string.recognize_failed_notice, "NOT_REGISTERED"));
-                            retryRecognizeDelayed(requestId);
+        @Override
+        public void onSearchResultsDispatched(int[] trackIds, CompareResult[] results, int count) {
+            if (compareResultList == null) {
+                return;
+            }
+            synchronized (compareResultList) {
+                for (int i = 0; i < count; i++) {
+                    CompareResult compareResult = results[i];
+                    int trackId = trackIds[i];
+                    if (compareResult == null || compareResult.getUserName() == null
+                            || !isRecognized(compareResult)
+                            || !trackStateTable.contains(trackId)) {
+                        continue;
+                    }
+                    boolean isAdded = false;
+                    for (int j = 0; j < compareResultList.size(); j++) {
+                        if (compareResultList.get(j).getTrackId() == trackId) {
+                            isAdded = true;
+                            break;
                         }
                     }
-
-                    @Override
-                    public void onError(Throwable e) {
-                        faceHelper.setName(requestId, getString(R.string.recognize_failed_notice, "NOT_REGISTERED"));
-                        retryRecognizeDelayed(requestId);
+                    if (!isAdded) {
+                        //对于多人脸搜索，假如最大显示数量为 MAX_DETECT_NUM 且有新的人脸进入，则以队列的形式移除
+                        if (compareResultList.size() >= MAX_DETECT_NUM) {
+                            compareResultList.remove(0);
+//                            mFaceSearchAdapter.notifyItemRemoved(0);
+                        }
+                        //添加显示人员时，保存其trackId
+                        compareResult.setTrackId(trackId);
+                        compareResultList.add(compareResult);
+//                        mFaceSearchAdapter.notifyItemInserted(compareResultList.size() - 1);
                     }
+                }
+            }
+        }
+    };
 
-                    @Override
-                    public void onComplete() {
-
-                    }
-                });
+    /**
+     * 人脸库搜索结果超过 SIMILAR_THRESHOLD，或重识别缓存已按人脸框重叠接受的结果视为识别成功
+     */
+    private static boolean isRecognized(CompareResult compareResult) {
+        return compareResult.isReIdentified() || compareResult.getSimilar() > SIMILAR_THRESHOLD;
     }
 
     /**
-     * 将map中key对应的value增1回传
-     *
-     * @param countMap map
-     * @param key      key
-     * @return 增1后的value
+     * 识别成功时显示的名称，按人员缓存，避免每次识别都格式化字符串
      */
-    public int increaseAndGetValue(Map<Integer, Integer> countMap, int key) {
-        if (countMap == null) {
-            return 0;
-        }
-        Integer value = countMap.get(key);
-        if (value == null) {
-            value = 0;
+    private String getSuccessName(String userName) {
+        String name = successNameCache.get(userName);
+        if (name == null) {
+            name = getString(R.string.recognize_success_notice, userName);
+            successNameCache.put(userName, name);
         }
-        countMap.put(key, ++value);
-        return value;
+        return name;
     }
 
     /**
-     * 延迟 FAIL_RETRY_INTERVAL 重新进行人脸识别
+     * 延迟重新进行人脸识别，间隔从 FAIL_RETRY_INTERVAL 开始指数增长，不超过 MAX_FAIL_RETRY_INTERVAL
      *
      * @param requestId 人脸ID
      */
     private void retryRecognizeDelayed(final Integer requestId) {
-        requestFeatureStatusMap.put(requestId, RequestFeatureStatus.FAILED);
-        Observable.timer(FAIL_RETRY_INTERVAL, TimeUnit.MILLISECONDS)
-                .subscribe(new Observer<Long>() {
-                    Disposable disposable;
-
-                    @Override
-                    public void onSubscribe(Disposable d) {
-                        disposable = d;
-                        delayFaceTaskCompositeDisposable.add(disposable);
-                    }
-
-                    @Override
-                    public void onNext(Long aLong) {
-
-                    }
-
-                    @Override
-                    public void onError(Throwable e) {
-                        e.printStackTrace();
-                    }
-
-                    @Override
-                    public void onComplete() {
-                        // 将该人脸特征提取状态置为FAILED，帧回调处理时会重新进行活体检测
-                        faceHelper.setName(requestId, Integer.toString(requestId));
-                        requestFeatureStatusMap.put(requestId, RequestFeatureStatus.TO_RETRY);
-                        delayFaceTaskCompositeDisposable.remove(disposable);
-                    }
-                });
+        trackStateTable.setStatus(requestId, RequestFeatureStatus.FAILED);
+        retryTimerWheel.schedule(requestId);
     }
 
 
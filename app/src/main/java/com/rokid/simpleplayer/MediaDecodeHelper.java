@@ -7,6 +7,7 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.util.Log;
 
 import com.rokid.simpleplayer.gl.Logger;
 import com.rokid.simpleplayer.gl.YUVHelper;
@@ -17,6 +18,10 @@ import java.nio.ByteBuffer;
 public class MediaDecodeHelper {
 
     private static final long TIMEOUT_US = 10000;
+    /**
+     * 解码器没有输出时每次出队都会返回INFO_TRY_AGAIN_LATER，限流输出
+     */
+    private static final Logger.RateLimit TRY_AGAIN_LATER_LOG = new Logger.RateLimit(Log.DEBUG, 1000);
 
     private MediaDecodeListener mMediaDecodeListener;
     private VideoDecodeThread mVideoDecodeThread;
@@ -29,6 +34,8 @@ public class MediaDecodeHelper {
 
     // 是否取消播放线程
     private boolean cancel = false;
+    // 最近一次播放是否解码到了视频结尾
+    private volatile boolean completed = false;
 
     private final int decodeColorFormat = MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible;
 
@@ -65,11 +72,20 @@ public class MediaDecodeHelper {
     public void play() {
         isPlaying = true;
         if (mVideoDecodeThread == null) {
+            completed = false;
             mVideoDecodeThread = new VideoDecodeThread();
             mVideoDecodeThread.start();
         }
     }
 
+    /**
+     * 最近一次播放是否完整解码到视频结尾，被中断或出错时为false
+     * @return
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+
     /**
      * 暂停
      */
@@ -241,7 +257,7 @@ public class MediaDecodeHelper {
                             Logger.d("INFO_OUTPUT_FORMAT_CHANGED");
                             break;
                         case MediaCodec.INFO_TRY_AGAIN_LATER:
-                            Logger.d("INFO_TRY_AGAIN_LATER");
+                            TRY_AGAIN_LATER_LOG.log("INFO_TRY_AGAIN_LATER");
                             break;
                         case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
                             Logger.d("INFO_OUTPUT_BUFFERS_CHANGED");
@@ -256,7 +272,7 @@ public class MediaDecodeHelper {
                                 byte[] data = getDataFromImage(image);
 //                                byte[] data = getDataFromImageNative(image, videoWidth, videoHeight);
                                 if (mMediaDecodeListener != null && data!=null) {
-                                    mMediaDecodeListener.onPreviewCallback(data, startMs);
+                                    mMediaDecodeListener.onPreviewCallback(data, videoBufferInfo.presentationTimeUs / 1000);
                                 }
                             }
 
@@ -267,6 +283,7 @@ public class MediaDecodeHelper {
                     // 结尾
                     if ((videoBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                         Logger.d("buffer stream end");
+                        completed = true;
                         break;
                     }
                 }
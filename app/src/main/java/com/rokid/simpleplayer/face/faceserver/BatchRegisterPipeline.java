@@ -0,0 +1,443 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.arcsoft.face.ErrorInfo;
+import com.arcsoft.face.FaceEngine;
+import com.arcsoft.face.FaceFeature;
+import com.arcsoft.face.FaceInfo;
+import com.arcsoft.imageutil.ArcSoftImageFormat;
+import com.arcsoft.imageutil.ArcSoftImageUtil;
+import com.arcsoft.imageutil.ArcSoftImageUtilError;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多级流水线的批量注册
+ * <p>
+ * 解码线程按检测需要的尺寸用inSampleSize缩小解码并转为BGR24，多个引擎线程各自持有一个图片模式引擎做检测和特征提取，
+ * 单个写入线程保存特征，注册头像交给{@link HeadImageWriter}异步写入。各级之间为有界队列，下游处理不过来时上游阻塞，内存占用与图片数量无关
+ */
+public class BatchRegisterPipeline {
+    private static final String TAG = "BatchRegisterPipeline";
+
+    /**
+     * 注册进度回调，在流水线线程中回调
+     */
+    public interface OnRegisterProgressListener {
+        /**
+         * 一张图片处理完成
+         *
+         * @param processed 已处理的数量
+         * @param total     总数量
+         */
+        void onProgress(int processed, int total);
+
+        /**
+         * 一张图片注册成功，在写入线程中回调
+         *
+         * @param file 注册图
+         * @param name 注册的名字
+         */
+        void onRegistered(File file, String name);
+
+        /**
+         * 注册失败的图片
+         */
+        void onFailed(File file);
+
+        /**
+         * 全部处理完成
+         *
+         * @param total        总数量
+         * @param successCount 成功数量
+         * @param costMillis   总耗时
+         */
+        void onFinished(int total, int successCount, long costMillis);
+    }
+
+    private final Context context;
+    private final int decodeThreadCount;
+    private final int engineCount;
+    private final int queueCapacity;
+    private final int maxImageSide;
+    private final String partition;
+    private final OnRegisterProgressListener listener;
+
+    private final AtomicInteger processedCount = new AtomicInteger();
+    private final AtomicInteger successCount = new AtomicInteger();
+    private final AtomicLong decodeNanos = new AtomicLong();
+    private final AtomicLong extractNanos = new AtomicLong();
+    private final AtomicLong writeNanos = new AtomicLong();
+    private volatile boolean cancelled = false;
+    private long costMillis;
+    private int total;
+
+    /**
+     * 解码后的图片
+     */
+    private static class DecodedImage {
+        final File file;
+        final byte[] bgr24;
+        final int width;
+        final int height;
+
+        DecodedImage(File file, byte[] bgr24, int width, int height) {
+            this.file = file;
+            this.bgr24 = bgr24;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * 提取出的特征及头像
+     */
+    private static class ExtractedFace {
+        final File file;
+        final byte[] featureData;
+        final HeadImageWriter.Crop headImage;
+
+        ExtractedFace(File file, byte[] featureData, HeadImageWriter.Crop headImage) {
+            this.file = file;
+            this.featureData = featureData;
+            this.headImage = headImage;
+        }
+    }
+
+    private static final DecodedImage END_OF_DECODE = new DecodedImage(null, null, 0, 0);
+    private static final ExtractedFace END_OF_EXTRACT = new ExtractedFace(null, null, null);
+
+    private BatchRegisterPipeline(Builder builder) {
+        context = builder.context;
+        int processors = Runtime.getRuntime().availableProcessors();
+        decodeThreadCount = builder.decodeThreadCount > 0 ? builder.decodeThreadCount : Math.max(1, processors / 2);
+        engineCount = builder.engineCount > 0 ? builder.engineCount : Math.max(1, processors / 2);
+        queueCapacity = builder.queueCapacity > 0 ? builder.queueCapacity : 8;
+        maxImageSide = builder.maxImageSide > 0 ? builder.maxImageSide : 1280;
+        partition = builder.partition;
+        listener = builder.listener;
+    }
+
+    /**
+     * 处理所有图片，阻塞到全部完成
+     *
+     * @param files 注册图片，文件名（不含后缀）作为注册的名字
+     * @return 成功数量
+     */
+    public int run(final File[] files) {
+        processedCount.set(0);
+        successCount.set(0);
+        total = files.length;
+        long startTime = System.currentTimeMillis();
+        final BlockingQueue<DecodedImage> decodedQueue = new ArrayBlockingQueue<>(queueCapacity);
+        final BlockingQueue<ExtractedFace> extractedQueue = new ArrayBlockingQueue<>(queueCapacity);
+        final AtomicInteger nextFile = new AtomicInteger();
+
+        List<Thread> decoders = new ArrayList<>();
+        for (int i = 0; i < decodeThreadCount; i++) {
+            decoders.add(start("RegisterDecode-" + i, new Runnable() {
+                @Override
+                public void run() {
+                    int index;
+                    while (!cancelled && (index = nextFile.getAndIncrement()) < files.length) {
+                        DecodedImage image = decode(files[index]);
+                        if (image == null) {
+                            fail(files[index]);
+                        } else if (!put(decodedQueue, image)) {
+                            return;
+                        }
+                    }
+                }
+            }));
+        }
+        List<Thread> extractors = new ArrayList<>();
+        for (int i = 0; i < engineCount; i++) {
+            extractors.add(start("RegisterExtract-" + i, new Runnable() {
+                @Override
+                public void run() {
+                    extractLoop(decodedQueue, extractedQueue);
+                }
+            }));
+        }
+        Thread writer = start("RegisterWrite", new Runnable() {
+            @Override
+            public void run() {
+                writeLoop(extractedQueue);
+            }
+        });
+
+        join(decoders);
+        for (int i = 0; i < engineCount; i++) {
+            put(decodedQueue, END_OF_DECODE);
+        }
+        join(extractors);
+        put(extractedQueue, END_OF_EXTRACT);
+        List<Thread> writers = new ArrayList<>();
+        writers.add(writer);
+        join(writers);
+
+        costMillis = System.currentTimeMillis() - startTime;
+        Log.i(TAG, "run: " + getStats());
+        if (listener != null) {
+            listener.onFinished(total, successCount.get(), costMillis);
+        }
+        return successCount.get();
+    }
+
+    /**
+     * 取消注册，已提交的图片会处理完
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * 按检测需要的尺寸缩小解码，再转为4字节对齐的BGR24
+     */
+    private DecodedImage decode(File file) {
+        long startTime = System.nanoTime();
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            int sampleSize = 1;
+            while (Math.max(options.outWidth, options.outHeight) / (sampleSize * 2) >= maxImageSide) {
+                sampleSize *= 2;
+            }
+            options.inJustDecodeBounds = false;
+            options.inSampleSize = sampleSize;
+            Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+            if (bitmap == null) {
+                return null;
+            }
+            Bitmap aligned = ArcSoftImageUtil.getAlignedBitmap(bitmap, true);
+            if (aligned != bitmap) {
+                bitmap.recycle();
+            }
+            if (aligned == null) {
+                return null;
+            }
+            byte[] bgr24 = ArcSoftImageUtil.createImageData(aligned.getWidth(), aligned.getHeight(), ArcSoftImageFormat.BGR24);
+            int code = ArcSoftImageUtil.bitmapToImageData(aligned, bgr24, ArcSoftImageFormat.BGR24);
+            DecodedImage image = code == ArcSoftImageUtilError.CODE_SUCCESS
+                    ? new DecodedImage(file, bgr24, aligned.getWidth(), aligned.getHeight()) : null;
+            aligned.recycle();
+            return image;
+        } finally {
+            decodeNanos.addAndGet(System.nanoTime() - startTime);
+        }
+    }
+
+    private void extractLoop(BlockingQueue<DecodedImage> decodedQueue, BlockingQueue<ExtractedFace> extractedQueue) {
+        FaceEngine engine = FaceServer.createImageEngine(context);
+        List<FaceInfo> faceInfoList = new ArrayList<>();
+        try {
+            while (true) {
+                DecodedImage image = take(decodedQueue);
+                if (image == null || image == END_OF_DECODE) {
+                    return;
+                }
+                if (engine == null) {
+                    fail(image.file);
+                    continue;
+                }
+                long startTime = System.nanoTime();
+                ExtractedFace face = null;
+                faceInfoList.clear();
+                int code = engine.detectFaces(image.bgr24, image.width, image.height, FaceEngine.CP_PAF_BGR24, faceInfoList);
+                if (code == ErrorInfo.MOK && faceInfoList.size() > 0) {
+                    FaceFeature faceFeature = new FaceFeature();
+                    code = engine.extractFaceFeature(image.bgr24, image.width, image.height, FaceEngine.CP_PAF_BGR24, faceInfoList.get(0), faceFeature);
+                    if (code == ErrorInfo.MOK) {
+                        HeadImageWriter.Crop headImage = FaceServer.getInstance().cropHeadImage(image.bgr24, image.width, image.height,
+                                faceInfoList.get(0), ArcSoftImageFormat.BGR24);
+                        face = new ExtractedFace(image.file, faceFeature.getFeatureData(), headImage);
+                    }
+                }
+                extractNanos.addAndGet(System.nanoTime() - startTime);
+                if (face == null) {
+                    Log.e(TAG, "extract: failed, file = " + image.file.getName() + ", code = " + code);
+                    fail(image.file);
+                } else if (!put(extractedQueue, face)) {
+                    return;
+                }
+            }
+        } finally {
+            if (engine != null) {
+                engine.unInit();
+            }
+        }
+    }
+
+    private void writeLoop(BlockingQueue<ExtractedFace> extractedQueue) {
+        while (true) {
+            ExtractedFace face = take(extractedQueue);
+            if (face == null || face == END_OF_EXTRACT) {
+                return;
+            }
+            long startTime = System.nanoTime();
+            String fileName = face.file.getName();
+            int dot = fileName.lastIndexOf('.');
+            String name = dot > 0 ? fileName.substring(0, dot) : fileName;
+            boolean success = FaceServer.getInstance().registerFeature(context, face.featureData, name, partition);
+            if (success) {
+                FaceServer.getInstance().submitHeadImage(name, face.headImage);
+            }
+            writeNanos.addAndGet(System.nanoTime() - startTime);
+            if (success) {
+                successCount.incrementAndGet();
+                if (listener != null) {
+                    listener.onRegistered(face.file, name);
+                }
+                progress();
+            } else {
+                fail(face.file);
+            }
+        }
+    }
+
+    private void fail(File file) {
+        if (listener != null) {
+            listener.onFailed(file);
+        }
+        progress();
+    }
+
+    private void progress() {
+        int processed = processedCount.incrementAndGet();
+        if (listener != null) {
+            listener.onProgress(processed, total);
+        }
+    }
+
+    /**
+     * 吞吐量及各级的平均耗时
+     */
+    public String getStats() {
+        int processed = Math.max(1, processedCount.get());
+        return "processed=" + processedCount.get() + "/" + total
+                + " success=" + successCount.get()
+                + " cost=" + costMillis + "ms"
+                + " throughput=" + (costMillis == 0 ? 0 : processedCount.get() * 1000 / costMillis) + "/s"
+                + " decode=" + decodeNanos.get() / processed / 1000000 + "ms"
+                + " extract=" + extractNanos.get() / processed / 1000000 + "ms"
+                + " write=" + writeNanos.get() / processed / 1000000 + "ms"
+                + " threads=" + decodeThreadCount + "/" + engineCount + "/1";
+    }
+
+    private static Thread start(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.start();
+        return thread;
+    }
+
+    private static void join(List<Thread> threads) {
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static <T> boolean put(BlockingQueue<T> queue, T item) {
+        try {
+            queue.put(item);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static <T> T take(BlockingQueue<T> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    public static final class Builder {
+        private Context context;
+        private int decodeThreadCount;
+        private int engineCount;
+        private int queueCapacity;
+        private int maxImageSide;
+        private String partition;
+        private OnRegisterProgressListener listener;
+
+        public Builder() {
+        }
+
+        public Builder context(Context val) {
+            context = val;
+            return this;
+        }
+
+        public Builder decodeThreadCount(int val) {
+            decodeThreadCount = val;
+            return this;
+        }
+
+        /**
+         * 检测及特征提取引擎的数量，每个引擎一个线程
+         */
+        public Builder engineCount(int val) {
+            engineCount = val;
+            return this;
+        }
+
+        /**
+         * 各级之间队列的容量
+         */
+        public Builder queueCapacity(int val) {
+            queueCapacity = val;
+            return this;
+        }
+
+        /**
+         * 解码后图片长边的最大值，大图按2的幂缩小解码
+         */
+        public Builder maxImageSide(int val) {
+            maxImageSide = val;
+            return this;
+        }
+
+        /**
+         * 注册的人所在的分区，不设置时不分区
+         */
+        public Builder partition(String val) {
+            partition = val;
+            return this;
+        }
+
+        public Builder progressListener(OnRegisterProgressListener val) {
+            listener = val;
+            return this;
+        }
+
+        public BatchRegisterPipeline build() {
+            if (context == null) {
+                throw new IllegalArgumentException("context must not be null");
+            }
+            return new BatchRegisterPipeline(this);
+        }
+    }
+}
@@ -6,6 +6,10 @@ public class CompareResult {
     private String userName;
     private float similar;
     private int trackId;
+    /**
+     * 是否由重识别缓存命中得到，人脸框重叠时缓存以较低的相似度阈值接受结果
+     */
+    private boolean reIdentified;
 
     public CompareResult(String userName, float similar) {
         this.userName = userName;
@@ -36,4 +40,12 @@ public class CompareResult {
     public void setTrackId(int trackId) {
         this.trackId = trackId;
     }
+
+    public boolean isReIdentified() {
+        return reIdentified;
+    }
+
+    public void setReIdentified(boolean reIdentified) {
+        this.reIdentified = reIdentified;
+    }
 }
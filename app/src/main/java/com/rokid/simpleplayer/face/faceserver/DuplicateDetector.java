@@ -0,0 +1,317 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 人脸库重复身份检测
+ * <p>
+ * 人脸库较大时先用k-means把特征分块，每个特征放入最近的{@link #BLOCKS_PER_ROW}个块，只在块内两两比较，
+ * 比较次数约为全部两两比较的{@code BLOCKS_PER_ROW^2/sqrt(n)}；各行的比较在线程池中并行执行，
+ * 相似度超过阈值的两人合并为一组，每组保留最早注册的人，生成合并报告。
+ * 重新注册的人在人脸库中有多行同名的特征，同名的两行不是重复身份，不比较也不放入同一组
+ */
+public class DuplicateDetector {
+    /**
+     * 人脸库不超过该数量时不分块，直接两两比较
+     */
+    private static final int BRUTE_FORCE_LIMIT = 2048;
+    /**
+     * 每个特征放入的块数，减少块边界附近的漏检
+     */
+    private static final int BLOCKS_PER_ROW = 2;
+
+    /**
+     * 一组重复的身份
+     */
+    public static class Group {
+        /**
+         * 保留的人，即组内最早注册的人
+         */
+        public final String keep;
+        public final List<String> duplicates = new ArrayList<>();
+        public float maxSimilar;
+
+        Group(String keep) {
+            this.keep = keep;
+        }
+    }
+
+    /**
+     * 合并报告
+     */
+    public static class Report {
+        public final List<Group> groups = new ArrayList<>();
+        public int gallerySize;
+        public long comparisons;
+        public long costMillis;
+        public float threshold;
+
+        /**
+         * @return 合并后可以删除的人数
+         */
+        public int getRemovableCount() {
+            int count = 0;
+            for (Group group : groups) {
+                count += group.duplicates.size();
+            }
+            return count;
+        }
+
+        /**
+         * @return 合并后可以删除的名字
+         */
+        public List<String> getRemovableNames() {
+            List<String> names = new ArrayList<>();
+            for (Group group : groups) {
+                names.addAll(group.duplicates);
+            }
+            return names;
+        }
+
+        /**
+         * 每组一行：保留的人、重复的人、组内最高相似度
+         */
+        public void writeTo(File file) throws IOException {
+            FileWriter writer = new FileWriter(file);
+            try {
+                writer.write("# " + this + "\n");
+                for (Group group : groups) {
+                    writer.write(group.keep + "\t" + group.duplicates + "\t" + group.maxSimilar + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            long bruteForce = (long) gallerySize * (gallerySize - 1) / 2;
+            return "gallery=" + gallerySize
+                    + " groups=" + groups.size()
+                    + " removable=" + getRemovableCount()
+                    + " afterMerge=" + (gallerySize - getRemovableCount())
+                    + " threshold=" + threshold
+                    + " comparisons=" + comparisons + "/" + bruteForce
+                    + " cost=" + costMillis + "ms";
+        }
+    }
+
+    private DuplicateDetector() {
+    }
+
+    /**
+     * 检测人脸库中的重复身份
+     *
+     * @param matrix      人脸库快照
+     * @param threshold   相似度超过该值视为同一个人
+     * @param parallelism 并行线程数
+     * @return 合并报告
+     */
+    public static Report detect(final FeatureMatrix matrix, final float threshold, int parallelism) {
+        long startTime = System.currentTimeMillis();
+        Report report = new Report();
+        report.threshold = threshold;
+        final int size = matrix.size();
+        report.gallerySize = size;
+        if (size < 2) {
+            return report;
+        }
+        final int[][] blocks = buildBlocks(matrix);
+        // 每行所在的块
+        final int[][] rowBlocks = new int[size][];
+        for (int b = 0; b < blocks.length; b++) {
+            for (int row : blocks[b]) {
+                int[] old = rowBlocks[row];
+                rowBlocks[row] = old == null ? new int[]{b} : appendInt(old, b);
+            }
+        }
+
+        final int threadCount = Math.max(1, parallelism);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<long[]>> futures = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            final int first = t;
+            futures.add(executor.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() {
+                    return comparePairs(matrix, blocks, rowBlocks, threshold, first, threadCount);
+                }
+            }));
+        }
+        int[] parent = new int[size];
+        for (int i = 0; i < size; i++) {
+            parent[i] = i;
+        }
+        float[] bestSimilar = new float[size];
+        try {
+            for (Future<long[]> future : futures) {
+                long[] result = future.get();
+                // 最后一个元素为比较次数，其余每两个元素为一对：行号对与相似度
+                int pairCount = (result.length - 1) / 2;
+                for (int p = 0; p < pairCount; p++) {
+                    long pair = result[p * 2];
+                    float similar = Float.intBitsToFloat((int) result[p * 2 + 1]);
+                    int a = (int) (pair >>> 32);
+                    int b = (int) pair;
+                    union(parent, bestSimilar, a, b, similar);
+                }
+                report.comparisons += result[result.length - 1];
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Group[] groupOfRoot = new Group[size];
+        for (int row = 0; row < size; row++) {
+            int root = find(parent, row);
+            if (root == row) {
+                continue;
+            }
+            Group group = groupOfRoot[root];
+            String name = matrix.getName(row);
+            // 经其他人间接连到同一组的同名行，删除时会把保留的人也删掉
+            if (group == null ? name.equals(matrix.getName(root))
+                    : name.equals(group.keep) || group.duplicates.contains(name)) {
+                continue;
+            }
+            if (group == null) {
+                // 根节点是组内最小的行号，即最早注册的人
+                group = new Group(matrix.getName(root));
+                groupOfRoot[root] = group;
+                report.groups.add(group);
+            }
+            group.duplicates.add(name);
+        }
+        for (int root = 0; root < size; root++) {
+            if (groupOfRoot[root] != null) {
+                groupOfRoot[root].maxSimilar = bestSimilar[root];
+            }
+        }
+        report.costMillis = System.currentTimeMillis() - startTime;
+        return report;
+    }
+
+    /**
+     * 分块，人脸库较小时只有一块
+     */
+    private static int[][] buildBlocks(FeatureMatrix matrix) {
+        int size = matrix.size();
+        IvfIndex index = size > BRUTE_FORCE_LIMIT ? IvfIndex.train(matrix, (int) Math.sqrt(size)) : null;
+        if (index == null) {
+            int[] all = new int[size];
+            for (int i = 0; i < size; i++) {
+                all[i] = i;
+            }
+            return new int[][]{all};
+        }
+        int listCount = index.getListCount();
+        int[][] blocks = new int[listCount][8];
+        int[] blockSizes = new int[listCount];
+        float[] vector = new float[FeatureMatrix.FEATURE_DIM];
+        for (int row = 0; row < size; row++) {
+            matrix.copyRow(row, vector, 0);
+            for (int list : index.nearestLists(vector, BLOCKS_PER_ROW)) {
+                if (blockSizes[list] == blocks[list].length) {
+                    blocks[list] = Arrays.copyOf(blocks[list], blocks[list].length * 2);
+                }
+                blocks[list][blockSizes[list]++] = row;
+            }
+        }
+        for (int b = 0; b < listCount; b++) {
+            blocks[b] = Arrays.copyOf(blocks[b], blockSizes[b]);
+        }
+        return blocks;
+    }
+
+    /**
+     * 比较第first, first+step, ...行与同块中行号更大的行
+     *
+     * @return 超过阈值的行号对及相似度，最后一个元素为比较次数
+     */
+    private static long[] comparePairs(FeatureMatrix matrix, int[][] blocks, int[][] rowBlocks, float threshold, int first, int step) {
+        long[] pairs = new long[16];
+        int pairCount = 0;
+        long comparisons = 0;
+        float[] query = new float[FeatureMatrix.FEATURE_DIM];
+        for (int row = first; row < matrix.size(); row += step) {
+            if (rowBlocks[row] == null) {
+                continue;
+            }
+            matrix.copyRow(row, query, 0);
+            int[] myBlocks = rowBlocks[row];
+            for (int bi = 0; bi < myBlocks.length; bi++) {
+                int[] block = blocks[myBlocks[bi]];
+                for (int other : block) {
+                    // 与前面的块共有的行已经比较过
+                    if (other <= row || sharesEarlierBlock(rowBlocks[other], myBlocks, bi)
+                            || matrix.getName(row).equals(matrix.getName(other))) {
+                        continue;
+                    }
+                    comparisons++;
+                    float similar = matrix.score(query, other);
+                    if (similar > threshold) {
+                        if (pairCount * 2 + 2 > pairs.length - 1) {
+                            pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                        }
+                        pairs[pairCount * 2] = ((long) row << 32) | other;
+                        pairs[pairCount * 2 + 1] = Float.floatToIntBits(similar);
+                        pairCount++;
+                    }
+                }
+            }
+        }
+        long[] result = Arrays.copyOf(pairs, pairCount * 2 + 1);
+        result[pairCount * 2] = comparisons;
+        return result;
+    }
+
+    private static boolean sharesEarlierBlock(int[] otherBlocks, int[] myBlocks, int current) {
+        for (int i = 0; i < current; i++) {
+            for (int b : otherBlocks) {
+                if (b == myBlocks[i]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int[] appendInt(int[] array, int value) {
+        int[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = value;
+        return result;
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * 合并两组，以较小的行号为根，同时记录组内的最高相似度
+     */
+    private static void union(int[] parent, float[] bestSimilar, int a, int b, float similar) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        int root = Math.min(rootA, rootB);
+        bestSimilar[root] = Math.max(similar, Math.max(bestSimilar[rootA], bestSimilar[rootB]));
+        parent[Math.max(rootA, rootB)] = root;
+    }
+}
@@ -0,0 +1,197 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.arcsoft.face.FaceFeature;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 人脸搜索线程池
+ * <p>
+ * 特征提取成功后在独立的有界线程池中搜索人脸库，搜索结果直接在搜索线程中回调以更新追踪状态，
+ * 不再经过主线程；需要在主线程处理的结果按帧间隔合并，一个间隔内只切换一次主线程
+ */
+public class FaceSearchExecutor {
+    private static final String THREAD_NAME_PREFIX = "FaceSearch-";
+
+    /**
+     * 搜索结果回调
+     */
+    public interface OnSearchResultListener {
+        /**
+         * 搜索完成，在搜索线程中回调
+         *
+         * @param trackId     人脸trackId
+         * @param faceFeature 搜索使用的人脸特征
+         * @param result      搜索结果，人脸库为空或搜索失败时为null
+         */
+        void onSearchResult(int trackId, FaceFeature faceFeature, CompareResult result);
+
+        /**
+         * 线程池已满，本次搜索被丢弃，在调用线程中回调
+         *
+         * @param trackId 人脸trackId
+         */
+        void onSearchRejected(int trackId);
+
+        /**
+         * 一个间隔内的搜索结果，在主线程中批量回调，数组在回调结束后会被复用
+         *
+         * @param trackIds 人脸trackId
+         * @param results  搜索结果，与trackIds一一对应
+         * @param count    有效的结果数量
+         */
+        void onSearchResultsDispatched(int[] trackIds, CompareResult[] results, int count);
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final LinkedBlockingQueue<Runnable> queue;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final long dispatchIntervalMillis;
+    private volatile OnSearchResultListener listener;
+
+    /**
+     * 双缓冲，搜索线程写入pending，主线程处理dispatching
+     */
+    private int[] pendingTrackIds;
+    private CompareResult[] pendingResults;
+    private int pendingCount;
+    private int[] dispatchingTrackIds;
+    private CompareResult[] dispatchingResults;
+    private boolean dispatchScheduled;
+
+    private final Runnable dispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            int count;
+            int[] trackIds;
+            CompareResult[] results;
+            synchronized (FaceSearchExecutor.this) {
+                trackIds = pendingTrackIds;
+                results = pendingResults;
+                pendingTrackIds = dispatchingTrackIds;
+                pendingResults = dispatchingResults;
+                dispatchingTrackIds = trackIds;
+                dispatchingResults = results;
+                count = pendingCount;
+                pendingCount = 0;
+                dispatchScheduled = false;
+            }
+            OnSearchResultListener l = listener;
+            if (l != null && count > 0) {
+                l.onSearchResultsDispatched(trackIds, results, count);
+            }
+            for (int i = 0; i < count; i++) {
+                results[i] = null;
+            }
+        }
+    };
+
+    /**
+     * @param threadCount            搜索线程数
+     * @param queueSize              等待队列大小，超出时丢弃
+     * @param dispatchIntervalMillis 主线程批量回调的间隔，一般为一帧的时长
+     * @param listener               结果回调
+     */
+    public FaceSearchExecutor(int threadCount, int queueSize, long dispatchIntervalMillis, OnSearchResultListener listener) {
+        if (threadCount <= 0 || queueSize <= 0) {
+            throw new IllegalArgumentException("threadCount and queueSize must > 0");
+        }
+        this.listener = listener;
+        this.dispatchIntervalMillis = dispatchIntervalMillis;
+        int bufferSize = threadCount + queueSize;
+        pendingTrackIds = new int[bufferSize];
+        pendingResults = new CompareResult[bufferSize];
+        dispatchingTrackIds = new int[bufferSize];
+        dispatchingResults = new CompareResult[bufferSize];
+        queue = new LinkedBlockingQueue<>(queueSize);
+        final AtomicInteger threadIndex = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS, queue, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, THREAD_NAME_PREFIX + threadIndex.getAndIncrement());
+            }
+        });
+    }
+
+    /**
+     * 提交一次人脸搜索
+     *
+     * @param faceFeature 人脸特征
+     * @param trackId     人脸trackId
+     */
+    public void search(final FaceFeature faceFeature, final int trackId) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    CompareResult result = null;
+                    try {
+                        result = FaceServer.getInstance().getTopOfFaceLib(faceFeature);
+                    } finally {
+                        publish(faceFeature, trackId, result);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            OnSearchResultListener l = listener;
+            if (l != null) {
+                l.onSearchRejected(trackId);
+            }
+        }
+    }
+
+    /**
+     * 不经过人脸库搜索，直接发布一个结果（例如来自重识别缓存），在调用线程中回调
+     *
+     * @param faceFeature 人脸特征
+     * @param trackId     人脸trackId
+     * @param result      比对结果
+     */
+    public void publish(FaceFeature faceFeature, int trackId, CompareResult result) {
+        OnSearchResultListener l = listener;
+        if (l == null) {
+            return;
+        }
+        l.onSearchResult(trackId, faceFeature, result);
+        enqueueDispatch(trackId, result);
+    }
+
+    private synchronized void enqueueDispatch(int trackId, CompareResult result) {
+        if (pendingCount == pendingTrackIds.length) {
+            int newSize = pendingCount * 2;
+            int[] trackIds = new int[newSize];
+            CompareResult[] results = new CompareResult[newSize];
+            System.arraycopy(pendingTrackIds, 0, trackIds, 0, pendingCount);
+            System.arraycopy(pendingResults, 0, results, 0, pendingCount);
+            pendingTrackIds = trackIds;
+            pendingResults = results;
+            dispatchingTrackIds = new int[newSize];
+            dispatchingResults = new CompareResult[newSize];
+        }
+        pendingTrackIds[pendingCount] = trackId;
+        pendingResults[pendingCount] = result;
+        pendingCount++;
+        if (!dispatchScheduled) {
+            dispatchScheduled = true;
+            mainHandler.postDelayed(dispatchRunnable, dispatchIntervalMillis);
+        }
+    }
+
+    /**
+     * 释放线程池，取消未执行的回调
+     */
+    public void release() {
+        listener = null;
+        executor.shutdownNow();
+        queue.clear();
+        mainHandler.removeCallbacks(dispatchRunnable);
+    }
+}
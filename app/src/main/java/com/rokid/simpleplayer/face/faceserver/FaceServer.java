@@ -1,7 +1,6 @@
 package com.rokid.simpleplayer.face.faceserver;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.Rect;
 import android.util.Log;
 
@@ -13,17 +12,23 @@ import com.arcsoft.face.FaceSimilar;
 import com.arcsoft.face.enums.DetectFaceOrientPriority;
 import com.arcsoft.face.enums.DetectMode;
 import com.arcsoft.imageutil.ArcSoftImageFormat;
-import com.arcsoft.imageutil.ArcSoftImageUtil;
-import com.arcsoft.imageutil.ArcSoftImageUtilError;
-import com.arcsoft.imageutil.ArcSoftRotateDegree;
-import com.rokid.simpleplayer.face.model.FaceRegisterInfo;
+import com.rokid.simpleplayer.face.utils.LatencyRecorder;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * 人脸库操作类，包含注册和搜索
@@ -33,21 +38,122 @@ public class FaceServer {
     public static final String IMG_SUFFIX = ".jpg";
     private static FaceEngine faceEngine = null;
     private static FaceServer faceServer = null;
-    private static List<FaceRegisterInfo> faceRegisterInfoList; // 存放所有特征值信息
+    /**
+     * 存放所有特征值信息的不可变快照及对应的索引、搜索线程池，搜索时只读取一次，注册时发布新的快照
+     */
+    private volatile Gallery gallery = new Gallery(FeatureMatrix.EMPTY, null, null);
     public static String ROOT_PATH;
     /**
      * 存放注册图的目录
      */
     public static final String SAVE_IMG_DIR = "register" + File.separator + "imgs";
     /**
-     * 存放特征的目录
+     * 旧版本每人一个文件存放特征的目录，打开特征存储时迁移
      */
     private static final String SAVE_FEATURE_DIR = "register" + File.separator + "features";
+    /**
+     * 特征存储的目录
+     */
+    private static final String SAVE_STORE_DIR = "register";
+    /**
+     * 近似最近邻索引文件，与特征目录放在一起
+     */
+    private static final String SAVE_ANN_INDEX_FILE = "register" + File.separator + "ivf.index";
+
+    /**
+     * 引擎比对的锁，纯Java相似度未启用时搜索退化为逐条调用引擎比对
+     */
+    private final Object compareLock = new Object();
+
+    /**
+     * 参与纯Java相似度校验的特征数量
+     */
+    private static final int KERNEL_VALIDATE_SAMPLES = 8;
+    /**
+     * 纯Java得分与引擎得分允许的最大误差
+     */
+    private static final float KERNEL_VALIDATE_TOLERANCE = 0.01F;
+    /**
+     * 纯Java相似度是否已通过校验，通过后搜索不再调用JNI比对
+     */
+    private volatile boolean javaKernelEnabled = false;
+    /**
+     * 纯Java相似度校验失败后不再重试，一直使用引擎比对
+     */
+    private boolean javaKernelRejected = false;
+
+    /**
+     * 最近若干次搜索的耗时
+     */
+    private final LatencyRecorder searchLatency = new LatencyRecorder(1024);
+
+    private FeatureStore featureStore;
+    /**
+     * 人脸库的内存预算，0表示不限制，超出预算时使用分层人脸库
+     */
+    private volatile long memoryBudgetBytes = 0;
+    /**
+     * 分层人脸库中计为一次匹配的相似度
+     */
+    private static final float TIER_MATCH_THRESHOLD = 0.8F;
+    private volatile TieredGallery tieredGallery;
+    /**
+     * 最近一次启动加载人脸库的耗时
+     */
+    private long lastLoadMillis;
+
+    /**
+     * 人脸库达到该数量后才建立近似最近邻索引
+     */
+    private static final int ANN_MIN_GALLERY_SIZE = 20000;
+    /**
+     * 人脸库增长到训练时的该倍数后重新训练簇中心
+     */
+    private static final int ANN_RETRAIN_GROWTH = 4;
+    private static final int DEFAULT_ANN_PROBE_COUNT = 8;
+    /**
+     * 是否使用近似最近邻索引搜索，默认关闭
+     */
+    private volatile boolean annEnabled = false;
+    /**
+     * 搜索时扫描的簇数量，越大召回越高、耗时越长
+     */
+    private volatile int annProbeCount = DEFAULT_ANN_PROBE_COUNT;
+    private boolean annBuilding = false;
+    /**
+     * 人脸库被清空或重新加载时增加，用于丢弃基于旧人脸库训练的索引
+     */
+    private volatile int galleryGeneration = 0;
+    /**
+     * 是否使用int8量化存储人脸库
+     */
+    private volatile boolean quantizedGallery = false;
+    /**
+     * 注册时与人脸库中已有的人相似度超过该值视为重复身份并拒绝注册，0表示不检测（默认），批量注册时开启
+     */
+    private volatile float duplicateThreshold = 0;
+    /**
+     * 人脸库分区，第一次使用分区时打开
+     */
+    private volatile GalleryPartitions partitions;
+    /**
+     * 每次注册增加，热加载据此判断构建期间人脸库是否被修改
+     */
+    private volatile int modificationCount = 0;
+    private final Object headImageLock = new Object();
+    private HeadImageWriter headImageWriter;
+    /**
+     * 热加载在后台构建时人脸库被修改的最多重试次数，超过后在锁内构建
+     */
+    private static final int RELOAD_MAX_RETRY = 3;
+    private long lastReloadBuildMillis;
+    private long lastReloadSwapMicros;
+    private int reloadCount;
 
     /**
-     * 是否正在搜索人脸，保证搜索操作单线程进行
+     * 后台训练近似最近邻索引的线程，第一次需要训练时创建，{@link #unInit()}时关闭
      */
-    private boolean isProcessing = false;
+    private ExecutorService annExecutor;
 
     public static FaceServer getInstance() {
         if (faceServer == null) {
@@ -70,8 +176,12 @@ public class FaceServer {
         synchronized (this) {
             if (faceEngine == null && context != null) {
                 faceEngine = new FaceEngine();
-                int engineCode = faceEngine.init(context, DetectMode.ASF_DETECT_MODE_IMAGE, DetectFaceOrientPriority.ASF_OP_0_ONLY, 16, 1, FaceEngine.ASF_FACE_RECOGNITION | FaceEngine.ASF_FACE_DETECT);
+                int engineCode = initImageEngine(faceEngine, context);
                 if (engineCode == ErrorInfo.MOK) {
+                    if (gallery.searcher == null) {
+                        gallery = new Gallery(gallery.matrix, gallery.index,
+                                new ParallelGallerySearcher(Runtime.getRuntime().availableProcessors()));
+                    }
                     initFaceList(context);
                     return true;
                 } else {
@@ -84,20 +194,62 @@ public class FaceServer {
         }
     }
 
+    /**
+     * 不创建引擎，直接启用纯Java相似度及给定的并行搜索线程池。引擎依赖的动态库只能在设备上加载，
+     * 供JVM单元测试注册及搜索使用，人脸库保存在{@link #ROOT_PATH}中，用完后调用{@link #unInit()}
+     */
+    void initWithoutEngine(ParallelGallerySearcher searcher) {
+        synchronized (this) {
+            gallery = new Gallery(gallery.matrix, gallery.index, searcher);
+            javaKernelEnabled = true;
+        }
+    }
+
     /**
      * 销毁
      */
     public void unInit() {
         synchronized (this) {
-            if (faceRegisterInfoList != null) {
-                faceRegisterInfoList.clear();
-                faceRegisterInfoList = null;
+            saveAnnIndex();
+            tieredGallery = null;
+            galleryGeneration++;
+            // 先替换再关闭线程池，之后的搜索不会再用到它
+            ParallelGallerySearcher searcher = gallery.searcher;
+            gallery = new Gallery(emptyMatrix(null), null, null);
+            // 重新初始化后引擎可能不同，需要重新校验纯Java相似度
+            javaKernelEnabled = false;
+            javaKernelRejected = false;
+            if (searcher != null) {
+                searcher.shutdown();
+            }
+            // 正在训练的索引完成后因人脸库代数变化被丢弃
+            if (annExecutor != null) {
+                annExecutor.shutdownNow();
+                annExecutor = null;
+            }
+            annBuilding = false;
+            if (partitions != null) {
+                partitions.close();
+                partitions = null;
+            }
+            if (featureStore != null) {
+                featureStore.close();
+                featureStore = null;
             }
             if (faceEngine != null) {
                 faceEngine.unInit();
                 faceEngine = null;
             }
         }
+        // 写完已提交的注册头像后结束写入线程，不持有人脸库的锁等待
+        HeadImageWriter writer;
+        synchronized (headImageLock) {
+            writer = headImageWriter;
+            headImageWriter = null;
+        }
+        if (writer != null) {
+            writer.shutdown();
+        }
     }
 
     /**
@@ -110,26 +262,35 @@ public class FaceServer {
             if (ROOT_PATH == null) {
                 ROOT_PATH = context.getFilesDir().getAbsolutePath();
             }
-            File featureDir = new File(ROOT_PATH + File.separator + SAVE_FEATURE_DIR);
-            if (!featureDir.exists() || !featureDir.isDirectory()) {
+            FeatureStore store = openFeatureStore();
+            if (store == null || store.size() == 0) {
                 return;
             }
-            File[] featureFiles = featureDir.listFiles();
-            if (featureFiles == null || featureFiles.length == 0) {
+            long startTime = System.currentTimeMillis();
+            if (openTieredGallery(store)) {
+                lastLoadMillis = System.currentTimeMillis() - startTime;
+                Log.i(TAG, "initFaceList: tiered gallery of " + store.size() + " features opened in " + lastLoadMillis + "ms");
                 return;
             }
-            faceRegisterInfoList = new ArrayList<>();
-            for (File featureFile : featureFiles) {
-                try {
-                    FileInputStream fis = new FileInputStream(featureFile);
-                    byte[] feature = new byte[FaceFeature.FEATURE_SIZE];
-                    fis.read(feature);
-                    fis.close();
-                    faceRegisterInfoList.add(new FaceRegisterInfo(feature, featureFile.getName()));
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            final FeatureMatrix[] loading = {emptyMatrix(store)};
+            try {
+                store.load(new FeatureStore.OnRecordLoadedListener() {
+                    @Override
+                    public void onRecordLoaded(String name, byte[] featureData) {
+                        loading[0] = loading[0].append(featureData, name);
+                    }
+                });
+            } catch (IOException e) {
+                Log.e(TAG, "initFaceList: load feature store failed, " + e.getMessage());
             }
+            FeatureMatrix matrix = loading[0].compact();
+            lastLoadMillis = System.currentTimeMillis() - startTime;
+            Log.i(TAG, "initFaceList: loaded " + matrix.size() + " features in " + lastLoadMillis + "ms, corrupt " + store.getCorruptCount());
+            publishGallery(matrix, null);
+            galleryGeneration++;
+            validateJavaKernel(matrix);
+            loadAnnIndex();
+            buildAnnIndexIfNeeded();
         }
     }
 
@@ -142,20 +303,73 @@ public class FaceServer {
                 ROOT_PATH = context.getFilesDir().getAbsolutePath();
             }
 
-            File featureFileDir = new File(ROOT_PATH + File.separator + SAVE_FEATURE_DIR);
-            int featureCount = 0;
-            if (featureFileDir.exists() && featureFileDir.isDirectory()) {
-                String[] featureFiles = featureFileDir.list();
-                featureCount = featureFiles == null ? 0 : featureFiles.length;
+            FeatureStore store = openFeatureStore();
+            return store == null ? 0 : store.size();
+        }
+    }
+
+    /**
+     * 设置人脸库的内存预算，在{@link #init(Context)}之前调用。人脸库全部放入堆内会超出预算时，
+     * 只有经常匹配的人放在堆内，其余的人在特征存储的内存映射上搜索。分层模式下不使用近似最近邻索引及量化
+     *
+     * @param bytes 内存预算，0表示不限制
+     */
+    public void setMemoryBudget(long bytes) {
+        memoryBudgetBytes = Math.max(0, bytes);
+    }
+
+    /**
+     * 人脸库超出内存预算且纯Java相似度校验通过时打开分层人脸库，需持有锁调用
+     *
+     * @return 是否使用分层人脸库
+     */
+    private boolean openTieredGallery(FeatureStore store) {
+        long budget = memoryBudgetBytes;
+        long required = (long) store.size() * (FeatureMatrix.FEATURE_DIM * 4 + FaceFeature.FEATURE_SIZE);
+        if (budget <= 0 || required <= budget) {
+            return false;
+        }
+        try {
+            TieredGallery tiered = new TieredGallery(store, budget, TIER_MATCH_THRESHOLD);
+            // 冷层只能用纯Java相似度扫描
+            validateJavaKernel(tiered.sample(KERNEL_VALIDATE_SAMPLES));
+            if (!javaKernelEnabled) {
+                return false;
             }
-            int imageCount = 0;
-            File imgFileDir = new File(ROOT_PATH + File.separator + SAVE_IMG_DIR);
-            if (imgFileDir.exists() && imgFileDir.isDirectory()) {
-                String[] imageFiles = imgFileDir.list();
-                imageCount = imageFiles == null ? 0 : imageFiles.length;
+            tieredGallery = tiered;
+            galleryGeneration++;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "openTieredGallery: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 打开特征存储，首次打开时从每人一个文件的旧目录迁移，需持有锁调用
+     *
+     * @return 特征存储，打开失败时返回null
+     */
+    private FeatureStore openFeatureStore() {
+        if (featureStore != null && featureStore.isOpen()) {
+            return featureStore;
+        }
+        FeatureStore store = new FeatureStore(new File(ROOT_PATH + File.separator + SAVE_STORE_DIR));
+        try {
+            store.open();
+            File legacyDir = new File(ROOT_PATH + File.separator + SAVE_FEATURE_DIR);
+            if (FeatureStore.hasLegacyFiles(legacyDir)) {
+                long startTime = System.currentTimeMillis();
+                int migrated = store.migrateFrom(legacyDir);
+                Log.i(TAG, "openFeatureStore: migrated " + migrated + " features in " + (System.currentTimeMillis() - startTime) + "ms");
             }
-            return featureCount > imageCount ? imageCount : featureCount;
+        } catch (IOException e) {
+            Log.e(TAG, "openFeatureStore: " + e.getMessage());
+            store.close();
+            return null;
         }
+        featureStore = store;
+        return store;
     }
 
     public int clearAllFaces(Context context) {
@@ -166,22 +380,27 @@ public class FaceServer {
             if (ROOT_PATH == null) {
                 ROOT_PATH = context.getFilesDir().getAbsolutePath();
             }
-            if (faceRegisterInfoList != null) {
-                faceRegisterInfoList.clear();
-            }
-            File featureFileDir = new File(ROOT_PATH + File.separator + SAVE_FEATURE_DIR);
+            publishGallery(emptyMatrix(featureStore), null);
+            tieredGallery = null;
+            galleryGeneration++;
+            new File(ROOT_PATH + File.separator + SAVE_ANN_INDEX_FILE).delete();
+            new File(getStoreDir(context), RegisterManifest.FILE_NAME).delete();
             int deletedFeatureCount = 0;
-            if (featureFileDir.exists() && featureFileDir.isDirectory()) {
-                File[] featureFiles = featureFileDir.listFiles();
-                if (featureFiles != null && featureFiles.length > 0) {
-                    for (File featureFile : featureFiles) {
-                        if (featureFile.delete()) {
-                            deletedFeatureCount++;
-                        }
+            FeatureStore store = openFeatureStore();
+            if (store != null) {
+                try {
+                    deletedFeatureCount = store.clear();
+                    if (partitions != null) {
+                        partitions.clear();
+                    } else {
+                        new File(getStoreDir(context), GalleryPartitions.FILE_NAME).delete();
                     }
+                } catch (IOException e) {
+                    Log.e(TAG, "clearAllFaces: " + e.getMessage());
                 }
             }
             int deletedImageCount = 0;
+            flushHeadImages();
             File imgFileDir = new File(ROOT_PATH + File.separator + SAVE_IMG_DIR);
             if (imgFileDir.exists() && imgFileDir.isDirectory()) {
                 File[] imgFiles = imgFileDir.listFiles();
@@ -198,7 +417,295 @@ public class FaceServer {
     }
 
     /**
-     * 用于预览时注册人脸
+     * 从人脸库中删除若干个人，删除后重建内存中的人脸库，近似最近邻索引需要重新训练
+     *
+     * @param context 上下文对象
+     * @param names   需要删除的名字
+     * @return 删除的数量
+     */
+    public int removeFaces(Context context, Collection<String> names) {
+        synchronized (this) {
+            if (context == null || names == null || names.isEmpty()) {
+                return 0;
+            }
+            if (ROOT_PATH == null) {
+                ROOT_PATH = context.getFilesDir().getAbsolutePath();
+            }
+            FeatureStore store = openFeatureStore();
+            if (store == null) {
+                return 0;
+            }
+            Set<String> removed = new HashSet<>();
+            flushHeadImages();
+            for (String name : names) {
+                try {
+                    if (store.delete(name)) {
+                        removed.add(name);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "removeFaces: " + e.getMessage());
+                }
+                new File(ROOT_PATH + File.separator + SAVE_IMG_DIR, name + IMG_SUFFIX).delete();
+            }
+            if (removed.isEmpty()) {
+                return 0;
+            }
+            GalleryPartitions galleryPartitions = openPartitions(store);
+            if (galleryPartitions != null) {
+                try {
+                    galleryPartitions.remove(removed);
+                } catch (IOException e) {
+                    Log.e(TAG, "removeFaces: " + e.getMessage());
+                }
+            }
+            if (tieredGallery != null) {
+                try {
+                    tieredGallery = new TieredGallery(store, memoryBudgetBytes, TIER_MATCH_THRESHOLD);
+                } catch (IOException e) {
+                    Log.e(TAG, "removeFaces: reopen tiered gallery failed, " + e.getMessage());
+                }
+            } else {
+                FeatureMatrix old = gallery.matrix;
+                FeatureMatrix matrix = emptyMatrix(store);
+                for (int row = 0; row < old.size(); row++) {
+                    if (!removed.contains(old.getName(row))) {
+                        matrix = matrix.append(old.getFeatureData(row), old.getName(row));
+                    }
+                }
+                publishGallery(matrix.compact(), null);
+            }
+            galleryGeneration++;
+            new File(ROOT_PATH + File.separator + SAVE_ANN_INDEX_FILE).delete();
+            buildAnnIndexIfNeeded();
+            return removed.size();
+        }
+    }
+
+    /**
+     * 热加载人脸库：其他进程写入的特征存储、新放入旧目录的特征文件等外部修改，在调用线程中重新打开存储并构建人脸库及索引，
+     * 构建期间识别照常进行，构建完成后在锁内一次替换，不需要停止播放。耗时较长，不要在主线程调用
+     *
+     * @param context 上下文对象
+     * @param force   为false时没有外部修改则直接返回
+     * @return 是否重新加载
+     */
+    public boolean reloadGallery(Context context, boolean force) {
+        if (context == null) {
+            return false;
+        }
+        File storeDir = getStoreDir(context);
+        File legacyDir = new File(ROOT_PATH + File.separator + SAVE_FEATURE_DIR);
+        synchronized (this) {
+            FeatureStore store = featureStore;
+            boolean changed = store == null || !store.isOpen() || store.isModifiedExternally()
+                    || FeatureStore.hasLegacyFiles(legacyDir);
+            if (!changed && !force) {
+                return false;
+            }
+        }
+        long buildStartTime = System.currentTimeMillis();
+        for (int attempt = 0; ; attempt++) {
+            int version;
+            synchronized (this) {
+                version = getGalleryVersion();
+                if (attempt >= RELOAD_MAX_RETRY) {
+                    // 注册过于频繁，在锁内构建
+                    GalleryBuild build = buildGallery(storeDir, legacyDir);
+                    return build != null && swapGallery(build, buildStartTime);
+                }
+            }
+            GalleryBuild build = buildGallery(storeDir, legacyDir);
+            if (build == null) {
+                return false;
+            }
+            synchronized (this) {
+                if (version == getGalleryVersion()) {
+                    return swapGallery(build, buildStartTime);
+                }
+            }
+            build.store.close();
+            Log.w(TAG, "reloadGallery: gallery modified while building, retry " + (attempt + 1));
+        }
+    }
+
+    /**
+     * 搜索使用的人脸库：特征矩阵、与之对应的近似最近邻索引（可以为null）及大人脸库的分片并行搜索线程池，
+     * 三者作为一个不可变对象一起发布，搜索不会把新的矩阵与旧的索引配对
+     */
+    private static final class Gallery {
+        final FeatureMatrix matrix;
+        final IvfIndex index;
+        final ParallelGallerySearcher searcher;
+
+        Gallery(FeatureMatrix matrix, IvfIndex index, ParallelGallerySearcher searcher) {
+            this.matrix = matrix;
+            this.index = index;
+            this.searcher = searcher;
+        }
+    }
+
+    /**
+     * 发布新的特征矩阵及与之对应的索引，线程池不变，需持有锁调用
+     */
+    private void publishGallery(FeatureMatrix matrix, IvfIndex index) {
+        gallery = new Gallery(matrix, index, gallery.searcher);
+    }
+
+    /**
+     * 后台构建的人脸库
+     */
+    private static class GalleryBuild {
+        FeatureStore store;
+        FeatureMatrix matrix;
+        IvfIndex index;
+        TieredGallery tiered;
+    }
+
+    /**
+     * 打开新的特征存储并构建人脸库及近似最近邻索引，不需要持有锁
+     *
+     * @return 构建结果，打开存储失败时返回null
+     */
+    private GalleryBuild buildGallery(File storeDir, File legacyDir) {
+        GalleryBuild build = new GalleryBuild();
+        build.store = new FeatureStore(storeDir);
+        try {
+            FeatureStore current = featureStore;
+            // 打开时会截掉数据文件末尾不完整的记录，不能与当前存储正在进行的写入交叉
+            synchronized (current != null ? current : build.store) {
+                build.store.open();
+                if (FeatureStore.hasLegacyFiles(legacyDir)) {
+                    int migrated = build.store.migrateFrom(legacyDir);
+                    Log.i(TAG, "buildGallery: migrated " + migrated + " features");
+                }
+            }
+            long budget = memoryBudgetBytes;
+            long required = (long) build.store.size() * (FeatureMatrix.FEATURE_DIM * 4 + FaceFeature.FEATURE_SIZE);
+            if (budget > 0 && required > budget && javaKernelEnabled) {
+                build.tiered = new TieredGallery(build.store, budget, TIER_MATCH_THRESHOLD);
+                return build;
+            }
+            final FeatureMatrix[] loading = {emptyMatrix(build.store)};
+            build.store.load(new FeatureStore.OnRecordLoadedListener() {
+                @Override
+                public void onRecordLoaded(String name, byte[] featureData) {
+                    loading[0] = loading[0].append(featureData, name);
+                }
+            });
+            build.matrix = loading[0].compact();
+        } catch (IOException e) {
+            Log.e(TAG, "buildGallery: " + e.getMessage());
+            build.store.close();
+            return null;
+        }
+        if (annEnabled && build.matrix.size() >= ANN_MIN_GALLERY_SIZE) {
+            build.index = IvfIndex.train(build.matrix, (int) Math.sqrt(build.matrix.size()));
+        }
+        return build;
+    }
+
+    /**
+     * 用构建好的人脸库替换当前人脸库，需持有锁调用
+     */
+    private boolean swapGallery(GalleryBuild build, long buildStartTime) {
+        long swapStartTime = System.nanoTime();
+        FeatureStore oldStore = featureStore;
+        featureStore = build.store;
+        tieredGallery = build.tiered;
+        publishGallery(build.matrix == null ? emptyMatrix(build.store) : build.matrix, build.index);
+        galleryGeneration++;
+        GalleryPartitions oldPartitions = partitions;
+        partitions = null;
+        lastReloadSwapMicros = (System.nanoTime() - swapStartTime) / 1000;
+        lastReloadBuildMillis = System.currentTimeMillis() - buildStartTime;
+        reloadCount++;
+        // 旧的存储及分区在替换后关闭，正在进行的搜索只读取内存中的快照
+        if (oldPartitions != null) {
+            oldPartitions.close();
+        }
+        if (oldStore != null && oldStore != build.store) {
+            oldStore.close();
+        }
+        validateJavaKernel(build.tiered != null ? build.tiered.sample(KERNEL_VALIDATE_SAMPLES) : gallery.matrix);
+        if (gallery.index != null) {
+            saveAnnIndex();
+        } else {
+            new File(ROOT_PATH + File.separator + SAVE_ANN_INDEX_FILE).delete();
+            buildAnnIndexIfNeeded();
+        }
+        Log.i(TAG, "reloadGallery: " + (build.tiered != null ? build.tiered.size() : gallery.matrix.size())
+                + " features, build " + lastReloadBuildMillis + "ms, swap " + lastReloadSwapMicros + "us");
+        return true;
+    }
+
+    /**
+     * 人脸库版本，注册、删除、清空及重新加载后都会变化，可以据此判断之前的搜索结果是否仍然有效
+     */
+    public int getGalleryVersion() {
+        return modificationCount + galleryGeneration;
+    }
+
+    /**
+     * 人脸库内容的指纹：人数及所有有效记录的名字、存储偏移与特征CRC32的SHA-256。
+     * 清空后偏移从头开始，只有特征也相同时指纹才会相同。
+     * 与{@link #getGalleryVersion()}不同，重启后不变，可以用于判断保存下来的分析结果是否基于当前人脸库
+     */
+    public String getGalleryFingerprint() {
+        FeatureStore store = featureStore;
+        if (store == null) {
+            return "empty";
+        }
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final Charset utf8 = Charset.forName("UTF-8");
+        try {
+            store.forEachChecksum(new FeatureStore.OnChecksumListener() {
+                @Override
+                public void onChecksum(String name, long offset, int checksum) {
+                    byte[] nameBytes = name.getBytes(utf8);
+                    updateInt(digest, nameBytes.length);
+                    digest.update(nameBytes);
+                    updateInt(digest, (int) (offset >>> 32));
+                    updateInt(digest, (int) offset);
+                    updateInt(digest, checksum);
+                }
+            });
+        } catch (IOException e) {
+            // 读不到记录头部时返回不会与任何已保存结果相同的指纹
+            Log.e(TAG, "getGalleryFingerprint: " + e.getMessage());
+            return "error-" + System.nanoTime();
+        }
+        StringBuilder builder = new StringBuilder();
+        builder.append(store.size()).append('-');
+        for (byte b : digest.digest()) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private static void updateInt(MessageDigest digest, int value) {
+        digest.update((byte) (value >>> 24));
+        digest.update((byte) (value >>> 16));
+        digest.update((byte) (value >>> 8));
+        digest.update((byte) value);
+    }
+
+    /**
+     * 特征存储所在的目录，注册清单等与人脸库一起保存的文件也放在这里
+     */
+    public File getStoreDir(Context context) {
+        if (ROOT_PATH == null) {
+            ROOT_PATH = context.getFilesDir().getAbsolutePath();
+        }
+        return new File(ROOT_PATH + File.separator + SAVE_STORE_DIR);
+    }
+
+    /**
+     * 用于预览时注册人脸，特征写入后即可被搜索，注册图在锁外截取并异步写入
      *
      * @param context  上下文对象
      * @param nv21     NV21数据
@@ -209,6 +716,7 @@ public class FaceServer {
      * @return 是否注册成功
      */
     public boolean registerNv21(Context context, byte[] nv21, int width, int height, FaceInfo faceInfo, String name) {
+        String userName;
         synchronized (this) {
             if (faceEngine == null || context == null || nv21 == null || width % 4 != 0 || nv21.length != width * height * 3 / 2) {
                 Log.e(TAG, "registerNv21: invalid params");
@@ -218,16 +726,10 @@ public class FaceServer {
             if (ROOT_PATH == null) {
                 ROOT_PATH = context.getFilesDir().getAbsolutePath();
             }
-            //特征存储的文件夹
-            File featureDir = new File(ROOT_PATH + File.separator + SAVE_FEATURE_DIR);
-            if (!featureDir.exists() && !featureDir.mkdirs()) {
-                Log.e(TAG, "registerNv21: can not create feature directory");
-                return false;
-            }
-            //图片存储的文件夹
-            File imgDir = new File(ROOT_PATH + File.separator + SAVE_IMG_DIR);
-            if (!imgDir.exists() && !imgDir.mkdirs()) {
-                Log.e(TAG, "registerNv21: can not create image directory");
+            //特征存储
+            FeatureStore store = openFeatureStore();
+            if (store == null) {
+                Log.e(TAG, "registerNv21: can not open feature store");
                 return false;
             }
             FaceFeature faceFeature = new FaceFeature();
@@ -236,55 +738,26 @@ public class FaceServer {
             if (code != ErrorInfo.MOK) {
                 Log.e(TAG, "registerNv21: extractFaceFeature failed , code is " + code);
                 return false;
-            } else {
-
-                String userName = name == null ? String.valueOf(System.currentTimeMillis()) : name;
-                try {
-                    // 保存注册结果（注册图、特征数据）
-                    // 为了美观，扩大rect截取注册图
-                    Rect cropRect = getBestRect(width, height, faceInfo.getRect());
-                    if (cropRect == null) {
-                        Log.e(TAG, "registerNv21: cropRect is null!");
-                        return false;
-                    }
-
-                    cropRect.left &= ~3;
-                    cropRect.top &= ~3;
-                    cropRect.right &= ~3;
-                    cropRect.bottom &= ~3;
-
-                    File file = new File(imgDir + File.separator + userName + IMG_SUFFIX);
-
-
-                    // 创建一个头像的Bitmap，存放旋转结果图
-                    Bitmap headBmp = getHeadImage(nv21, width, height, faceInfo.getOrient(), cropRect, ArcSoftImageFormat.NV21);
-
-                    FileOutputStream fosImage = new FileOutputStream(file);
-                    headBmp.compress(Bitmap.CompressFormat.JPEG, 100, fosImage);
-                    fosImage.close();
-
-
-                    FileOutputStream fosFeature = new FileOutputStream(featureDir + File.separator + userName);
-                    fosFeature.write(faceFeature.getFeatureData());
-                    fosFeature.close();
-
-                    //内存中的数据同步
-                    if (faceRegisterInfoList == null) {
-                        faceRegisterInfoList = new ArrayList<>();
-                    }
-                    faceRegisterInfoList.add(new FaceRegisterInfo(faceFeature.getFeatureData(), userName));
-                    return true;
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return false;
-                }
             }
+            userName = name == null ? String.valueOf(System.currentTimeMillis()) : name;
+            if (isDuplicate(faceFeature.getFeatureData(), userName)) {
+                return false;
+            }
+            try {
+                store.append(userName, faceFeature.getFeatureData());
+            } catch (IOException e) {
+                Log.e(TAG, "registerNv21: " + e.getMessage());
+                return false;
+            }
+            //内存中的数据同步
+            onFeatureAppended(store, faceFeature.getFeatureData(), userName, null);
         }
-
+        submitHeadImage(userName, cropHeadImage(nv21, width, height, faceInfo, ArcSoftImageFormat.NV21));
+        return true;
     }
 
     /**
-     * 用于注册照片人脸
+     * 用于注册照片人脸，特征写入后即可被搜索，注册图在锁外截取并异步写入
      *
      * @param context 上下文对象
      * @param bgr24   bgr24数据
@@ -294,6 +767,8 @@ public class FaceServer {
      * @return 是否注册成功
      */
     public boolean registerBgr24(Context context, byte[] bgr24, int width, int height, String name) {
+        String userName;
+        FaceInfo faceInfo;
         synchronized (this) {
             if (faceEngine == null || context == null || bgr24 == null || width % 4 != 0 || bgr24.length != width * height * 3) {
                 Log.e(TAG, "registerBgr24:  invalid params");
@@ -303,173 +778,824 @@ public class FaceServer {
             if (ROOT_PATH == null) {
                 ROOT_PATH = context.getFilesDir().getAbsolutePath();
             }
-            //特征存储的文件夹
-            File featureDir = new File(ROOT_PATH + File.separator + SAVE_FEATURE_DIR);
-            if (!featureDir.exists() && !featureDir.mkdirs()) {
-                Log.e(TAG, "registerBgr24: can not create feature directory");
-                return false;
-            }
-            //人脸抠图存储的文件夹
-            File imgDir = new File(ROOT_PATH + File.separator + SAVE_IMG_DIR);
-            if (!imgDir.exists() && !imgDir.mkdirs()) {
-                Log.e(TAG, "registerBgr24: can not create image directory");
+            //特征存储
+            FeatureStore store = openFeatureStore();
+            if (store == null) {
+                Log.e(TAG, "registerBgr24: can not open feature store");
                 return false;
             }
             //人脸检测
             List<FaceInfo> faceInfoList = new ArrayList<>();
             // 传入图片，得到人脸信息faceInfoList
             int code = faceEngine.detectFaces(bgr24, width, height, FaceEngine.CP_PAF_BGR24, faceInfoList);
-            if (code == ErrorInfo.MOK && faceInfoList.size() > 0) {
-                FaceFeature faceFeature = new FaceFeature();
-
-                //特征提取，提取第一张人脸(最大人脸)?
-                code = faceEngine.extractFaceFeature(bgr24, width, height, FaceEngine.CP_PAF_BGR24, faceInfoList.get(0), faceFeature);
-                String userName = name == null ? String.valueOf(System.currentTimeMillis()) : name;
-                try {
-                    //保存注册结果（注册图、特征数据）
-                    if (code == ErrorInfo.MOK) {
-                        //为了美观，扩大rect截取注册图
-                        Rect cropRect = getBestRect(width, height, faceInfoList.get(0).getRect());
-                        if (cropRect == null) {
-                            Log.e(TAG, "registerBgr24: cropRect is null");
-                            return false;
-                        }
-
-                        cropRect.left &= ~3;
-                        cropRect.top &= ~3;
-                        cropRect.right &= ~3;
-                        cropRect.bottom &= ~3;
-
-                        File file = new File(imgDir + File.separator + userName + IMG_SUFFIX);
-                        FileOutputStream fosImage = new FileOutputStream(file);
-
-
-                        // 创建一个头像的Bitmap，存放旋转结果图
-                        Bitmap headBmp = getHeadImage(bgr24, width, height, faceInfoList.get(0).getOrient(), cropRect, ArcSoftImageFormat.BGR24);
-                        // 保存到本地
-                        headBmp.compress(Bitmap.CompressFormat.JPEG, 70, fosImage);
-                        fosImage.close();
-
-                        // 保存特征数据
-                        FileOutputStream fosFeature = new FileOutputStream(featureDir + File.separator + userName);
-                        fosFeature.write(faceFeature.getFeatureData());
-                        fosFeature.close();
-
-                        // 内存中的数据同步
-                        if (faceRegisterInfoList == null) {
-                            faceRegisterInfoList = new ArrayList<>();
-                        }
-                        faceRegisterInfoList.add(new FaceRegisterInfo(faceFeature.getFeatureData(), userName));
-                        return true;
-                    } else {
-                        Log.e(TAG, "registerBgr24: extract face feature failed, code is " + code);
-                        return false;
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    return false;
-                }
-            } else {
+            if (code != ErrorInfo.MOK || faceInfoList.size() == 0) {
                 Log.e(TAG, "registerBgr24: no face detected, code is " + code);
                 return false;
             }
+            faceInfo = faceInfoList.get(0);
+            FaceFeature faceFeature = new FaceFeature();
+            //特征提取，提取第一张人脸(最大人脸)?
+            code = faceEngine.extractFaceFeature(bgr24, width, height, FaceEngine.CP_PAF_BGR24, faceInfo, faceFeature);
+            if (code != ErrorInfo.MOK) {
+                Log.e(TAG, "registerBgr24: extract face feature failed, code is " + code);
+                return false;
+            }
+            userName = name == null ? String.valueOf(System.currentTimeMillis()) : name;
+            if (isDuplicate(faceFeature.getFeatureData(), userName)) {
+                return false;
+            }
+            try {
+                // 保存特征数据
+                store.append(userName, faceFeature.getFeatureData());
+            } catch (IOException e) {
+                Log.e(TAG, "registerBgr24: " + e.getMessage());
+                return false;
+            }
+            // 内存中的数据同步
+            onFeatureAppended(store, faceFeature.getFeatureData(), userName, null);
         }
+        submitHeadImage(userName, cropHeadImage(bgr24, width, height, faceInfo, ArcSoftImageFormat.BGR24));
+        return true;
+    }
 
+    private static int initImageEngine(FaceEngine engine, Context context) {
+        return engine.init(context, DetectMode.ASF_DETECT_MODE_IMAGE, DetectFaceOrientPriority.ASF_OP_0_ONLY, 16, 1, FaceEngine.ASF_FACE_RECOGNITION | FaceEngine.ASF_FACE_DETECT);
     }
 
     /**
-     * 截取合适的头像并旋转，保存为注册头像
+     * 创建一个与人脸库引擎配置相同的图片模式引擎，供批量注册的线程各自独立使用，使用完后需调用{@link FaceEngine#unInit()}
      *
-     * @param originImageData 原始的BGR24数据
-     * @param width           BGR24图像宽度
-     * @param height          BGR24图像高度
-     * @param orient          人脸角度
-     * @param cropRect        裁剪的位置
-     * @param imageFormat     图像格式
-     * @return 头像的图像数据
-     */
-    private Bitmap getHeadImage(byte[] originImageData, int width, int height, int orient, Rect cropRect, ArcSoftImageFormat imageFormat) {
-        byte[] headImageData = ArcSoftImageUtil.createImageData(cropRect.width(), cropRect.height(), imageFormat);
-        int cropCode = ArcSoftImageUtil.cropImage(originImageData, headImageData, width, height, cropRect, imageFormat);
-        if (cropCode != ArcSoftImageUtilError.CODE_SUCCESS) {
-            throw new RuntimeException("crop image failed, code is " + cropCode);
-        }
-
-        //判断人脸旋转角度，若不为0度则旋转注册图
-        byte[] rotateHeadImageData = null;
-        int rotateCode;
-        int cropImageWidth;
-        int cropImageHeight;
-        // 90度或270度的情况，需要宽高互换
-        if (orient == FaceEngine.ASF_OC_90 || orient == FaceEngine.ASF_OC_270) {
-            cropImageWidth = cropRect.height();
-            cropImageHeight = cropRect.width();
-        } else {
-            cropImageWidth = cropRect.width();
-            cropImageHeight = cropRect.height();
-        }
-        ArcSoftRotateDegree rotateDegree = null;
-        switch (orient) {
-            case FaceEngine.ASF_OC_90:
-                rotateDegree = ArcSoftRotateDegree.DEGREE_270;
-                break;
-            case FaceEngine.ASF_OC_180:
-                rotateDegree = ArcSoftRotateDegree.DEGREE_180;
-                break;
-            case FaceEngine.ASF_OC_270:
-                rotateDegree = ArcSoftRotateDegree.DEGREE_90;
-                break;
-            case FaceEngine.ASF_OC_0:
-            default:
-                rotateHeadImageData = headImageData;
-                break;
-        }
-        // 非0度的情况，旋转图像
-        if (rotateDegree != null){
-            rotateHeadImageData = new byte[headImageData.length];
-            rotateCode = ArcSoftImageUtil.rotateImage(headImageData, rotateHeadImageData, cropRect.width(), cropRect.height(), rotateDegree, imageFormat);
-            if (rotateCode != ArcSoftImageUtilError.CODE_SUCCESS) {
-                throw new RuntimeException("rotate image failed, code is " + rotateCode);
-            }
-        }
-        // 将创建一个Bitmap，并将图像数据存放到Bitmap中
-        Bitmap headBmp = Bitmap.createBitmap(cropImageWidth, cropImageHeight, Bitmap.Config.RGB_565);
-        if (ArcSoftImageUtil.imageDataToBitmap(rotateHeadImageData, headBmp, imageFormat) != ArcSoftImageUtilError.CODE_SUCCESS) {
-            throw new RuntimeException("failed to transform image data to bitmap");
-        }
-        return headBmp;
-    }
-
-    /**
-     * 在特征库中搜索
-     *
-     * @param faceFeature 传入特征数据
-     * @return 比对结果
+     * @param context 上下文对象
+     * @return 引擎，初始化失败时返回null
+     */
+    public static FaceEngine createImageEngine(Context context) {
+        FaceEngine engine = new FaceEngine();
+        int code = initImageEngine(engine, context);
+        if (code != ErrorInfo.MOK) {
+            Log.e(TAG, "createImageEngine: failed! code = " + code);
+            return null;
+        }
+        return engine;
+    }
+
+    /**
+     * 设置注册头像的尺寸、质量及队列长度，之前提交的头像会先写完
+     */
+    public void setHeadImageWriter(HeadImageWriter.Builder builder) {
+        HeadImageWriter old;
+        synchronized (headImageLock) {
+            old = headImageWriter;
+            headImageWriter = builder.build();
+        }
+        if (old != null) {
+            old.shutdown();
+        }
+    }
+
+    private HeadImageWriter getHeadImageWriter() {
+        synchronized (headImageLock) {
+            if (headImageWriter == null) {
+                headImageWriter = new HeadImageWriter.Builder().build();
+            }
+            return headImageWriter;
+        }
+    }
+
+    /**
+     * 等待已提交的注册头像写完，需在删除头像文件前调用
+     */
+    private void flushHeadImages() {
+        HeadImageWriter writer;
+        synchronized (headImageLock) {
+            writer = headImageWriter;
+        }
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * 注册头像的统计信息
+     */
+    public String getHeadImageStats() {
+        return getHeadImageWriter().getStats();
+    }
+
+    /**
+     * 截取注册头像区域，为了美观扩大人脸框，不需要持有人脸库的锁
+     *
+     * @param imageData 图像数据
+     * @param width     图像宽度
+     * @param height    图像高度
+     * @param faceInfo  人脸信息
+     * @param format    图像格式
+     * @return 截取结果，失败时返回null
+     */
+    public HeadImageWriter.Crop cropHeadImage(byte[] imageData, int width, int height, FaceInfo faceInfo, ArcSoftImageFormat format) {
+        Rect cropRect = getBestRect(width, height, faceInfo.getRect());
+        if (cropRect == null) {
+            Log.e(TAG, "cropHeadImage: cropRect is null");
+            return null;
+        }
+        cropRect.left &= ~3;
+        cropRect.top &= ~3;
+        cropRect.right &= ~3;
+        cropRect.bottom &= ~3;
+        return HeadImageWriter.crop(imageData, width, height, cropRect, faceInfo.getOrient(), format);
+    }
+
+    /**
+     * 提交注册头像，由写入线程旋转、缩放及压缩，队列满时阻塞，不要持有人脸库的锁调用
+     *
+     * @param name 注册的名字
+     * @param crop {@link #cropHeadImage}的结果，为null时忽略
+     * @return 是否提交
+     */
+    public boolean submitHeadImage(String name, HeadImageWriter.Crop crop) {
+        if (crop == null || ROOT_PATH == null) {
+            return false;
+        }
+        File imgDir = new File(ROOT_PATH + File.separator + SAVE_IMG_DIR);
+        if (!imgDir.exists() && !imgDir.mkdirs()) {
+            Log.e(TAG, "submitHeadImage: can not create image directory");
+            return false;
+        }
+        getHeadImageWriter().submit(new File(imgDir, name + IMG_SUFFIX), crop);
+        return true;
+    }
+
+    /**
+     * 保存已提取的特征并加入人脸库，锁内只写入特征存储及发布新的快照
+     *
+     * @param context     上下文对象
+     * @param featureData 特征数据
+     * @param name        注册的名字
+     * @return 是否注册成功
+     */
+    public boolean registerFeature(Context context, byte[] featureData, String name) {
+        return registerFeature(context, featureData, name, null);
+    }
+
+    /**
+     * 保存已提取的特征并加入人脸库及指定的分区
+     *
+     * @param context     上下文对象
+     * @param featureData 特征数据
+     * @param name        注册的名字
+     * @param partition   分区，为null时不分区
+     * @return 是否注册成功
+     */
+    public boolean registerFeature(Context context, byte[] featureData, String name, String partition) {
+        synchronized (this) {
+            if (context == null || featureData == null || name == null) {
+                Log.e(TAG, "registerFeature: invalid params");
+                return false;
+            }
+            if (ROOT_PATH == null) {
+                ROOT_PATH = context.getFilesDir().getAbsolutePath();
+            }
+            FeatureStore store = openFeatureStore();
+            if (store == null) {
+                Log.e(TAG, "registerFeature: can not open feature store");
+                return false;
+            }
+            if (isDuplicate(featureData, name)) {
+                return false;
+            }
+            try {
+                store.append(name, featureData);
+            } catch (IOException e) {
+                Log.e(TAG, "registerFeature: " + e.getMessage());
+                return false;
+            }
+            onFeatureAppended(store, featureData, name, partition);
+            return true;
+        }
+    }
+
+    /**
+     * 特征写入存储后同步内存中的人脸库及分区，所有注册入口共用，需持有锁调用
+     *
+     * @param partition 分区，为null时只刷新已加载分区中该名字的旧特征
+     */
+    private void onFeatureAppended(FeatureStore store, byte[] featureData, String name, String partition) {
+        addToFaceList(featureData, name);
+        validateJavaKernel(gallery.matrix);
+        if (partition != null) {
+            tagPartition(store, name, partition);
+        } else if (partitions != null) {
+            // 重新注册时已加载的分区中还是旧的特征
+            try {
+                partitions.refresh(name);
+            } catch (IOException e) {
+                Log.e(TAG, "onFeatureAppended: refresh partition failed, " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 打开人脸库分区，需持有锁调用
+     *
+     * @return 分区，打开失败时返回null
+     */
+    private GalleryPartitions openPartitions(FeatureStore store) {
+        if (partitions != null) {
+            return partitions;
+        }
+        GalleryPartitions galleryPartitions = new GalleryPartitions(new File(ROOT_PATH + File.separator + SAVE_STORE_DIR), store, quantizedGallery);
+        try {
+            galleryPartitions.open();
+        } catch (IOException e) {
+            Log.e(TAG, "openPartitions: " + e.getMessage());
+            return null;
+        }
+        partitions = galleryPartitions;
+        return galleryPartitions;
+    }
+
+    private boolean tagPartition(FeatureStore store, String name, String partition) {
+        GalleryPartitions galleryPartitions = openPartitions(store);
+        if (galleryPartitions == null) {
+            return false;
+        }
+        try {
+            galleryPartitions.tag(name, partition);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "tagPartition: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 修改已注册的人所在的分区
+     *
+     * @param context   上下文对象
+     * @param name      注册的名字
+     * @param partition 分区，为null时取消分区
+     * @return 是否修改成功
+     */
+    public boolean setFacePartition(Context context, String name, String partition) {
+        synchronized (this) {
+            if (context == null || name == null) {
+                return false;
+            }
+            if (ROOT_PATH == null) {
+                ROOT_PATH = context.getFilesDir().getAbsolutePath();
+            }
+            FeatureStore store = openFeatureStore();
+            if (store == null || !store.contains(name)) {
+                return false;
+            }
+            return tagPartition(store, name, partition);
+        }
+    }
+
+    /**
+     * 加载一个分区，只在分区内搜索前调用可以避免第一次搜索时加载
+     *
+     * @param context   上下文对象
+     * @param partition 分区
+     * @return 分区的人数，加载失败时返回-1
+     */
+    public int loadPartition(Context context, String partition) {
+        synchronized (this) {
+            if (context == null || partition == null) {
+                return -1;
+            }
+            if (ROOT_PATH == null) {
+                ROOT_PATH = context.getFilesDir().getAbsolutePath();
+            }
+            return loadPartition(partition);
+        }
+    }
+
+    private int loadPartition(String partition) {
+        synchronized (this) {
+            if (ROOT_PATH == null) {
+                return -1;
+            }
+            FeatureStore store = openFeatureStore();
+            GalleryPartitions galleryPartitions = store == null ? null : openPartitions(store);
+            if (galleryPartitions == null) {
+                return -1;
+            }
+            try {
+                return galleryPartitions.load(partition);
+            } catch (IOException e) {
+                Log.e(TAG, "loadPartition: " + e.getMessage());
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * 卸载一个分区，释放其占用的内存，不影响整个人脸库的搜索
+     */
+    public void unloadPartition(String partition) {
+        GalleryPartitions galleryPartitions = partitions;
+        if (galleryPartitions != null) {
+            galleryPartitions.unload(partition);
+        }
+    }
+
+    /**
+     * 分区统计信息
+     */
+    public String getPartitionStats() {
+        GalleryPartitions galleryPartitions = partitions;
+        return galleryPartitions == null ? "partitions=closed" : galleryPartitions.getStats();
+    }
+
+    /**
+     * 设置注册时的重复身份检测阈值
+     *
+     * @param threshold 相似度超过该值视为同一个人，0表示不检测
+     */
+    public void setDuplicateThreshold(float threshold) {
+        duplicateThreshold = threshold;
+    }
+
+    public float getDuplicateThreshold() {
+        return duplicateThreshold;
+    }
+
+    /**
+     * 注册前检查人脸库中是否已有同一个人，同名的记录会被覆盖，不算重复；分层人脸库不检测
+     *
+     * @return 是否重复
+     */
+    private boolean isDuplicate(byte[] featureData, String name) {
+        float threshold = duplicateThreshold;
+        Gallery current = gallery;
+        FeatureMatrix matrix = current.matrix;
+        if (threshold <= 0 || tieredGallery != null || matrix.size() == 0) {
+            return false;
+        }
+        float[] query = FeatureMatrix.toVector(featureData, null);
+        IvfIndex index = current.index;
+        FeatureMatrix.TopK topK;
+        if (annEnabled && index != null) {
+            topK = index.search(matrix, query, annProbeCount, 2);
+        } else {
+            topK = new FeatureMatrix.TopK(2);
+            matrix.search(query, topK);
+        }
+        for (int i = 0; i < topK.getCount(); i++) {
+            String other = matrix.getName(topK.getRow(i));
+            if (!other.equals(name) && topK.getScore(i) > threshold) {
+                Log.w(TAG, "isDuplicate: " + name + " is a duplicate of " + other + ", similar " + topK.getScore(i));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 检测人脸库中已有的重复身份，比较次数随人脸库大小近似线性增长，耗时较长，不要在主线程调用
+     *
+     * @param threshold 相似度超过该值视为同一个人
+     * @return 合并报告，分层人脸库不支持时返回null
+     */
+    public DuplicateDetector.Report findDuplicates(float threshold) {
+        if (tieredGallery != null) {
+            return null;
+        }
+        return DuplicateDetector.detect(gallery.matrix, threshold, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 按合并报告删除重复的人，每组只保留最早注册的人
+     *
+     * @param context 上下文对象
+     * @param report  {@link #findDuplicates(float)}的结果
+     * @return 删除的数量
+     */
+    public int mergeDuplicates(Context context, DuplicateDetector.Report report) {
+        return removeFaces(context, report.getRemovableNames());
+    }
+
+    /**
+     * 内存中的人脸库添加一条特征并发布新的快照，需持有锁调用
+     */
+    private void addToFaceList(byte[] featureData, String name) {
+        modificationCount++;
+        TieredGallery tiered = tieredGallery;
+        if (tiered != null) {
+            try {
+                tiered.append(name);
+            } catch (IOException e) {
+                Log.e(TAG, "addToFaceList: " + e.getMessage());
+            }
+            return;
+        }
+        Gallery current = gallery;
+        FeatureMatrix matrix = current.matrix.append(featureData, name);
+        IvfIndex index = current.index;
+        if (index != null) {
+            // 索引只追加，搜索时忽略超出矩阵行数的行，旧快照仍可使用
+            index.addRange(matrix, matrix.size() - 1, matrix.size());
+        }
+        publishGallery(matrix, index);
+        buildAnnIndexIfNeeded();
+    }
+
+    /**
+     * @param store 量化模式下原始特征所在的存储
+     */
+    private FeatureMatrix emptyMatrix(FeatureStore store) {
+        return quantizedGallery ? FeatureMatrix.emptyQuantized(store) : FeatureMatrix.EMPTY;
+    }
+
+    /**
+     * 切换人脸库的存储方式，量化后打分数组缩小为1/4，得分最高的候选用特征存储内存映射中的全精度特征重排
+     *
+     * @param quantized 是否使用int8量化存储
+     */
+    public void setQuantizedGallery(boolean quantized) {
+        synchronized (this) {
+            quantizedGallery = quantized;
+            // 行号不变，索引仍然有效
+            publishGallery(gallery.matrix.convert(quantized, featureStore), gallery.index);
+            if (partitions != null) {
+                // 分区下次使用时按新的存储方式重新打开并加载
+                partitions.close();
+                partitions = null;
+            }
+        }
+    }
+
+    /**
+     * 比较全精度与量化两种人脸库：每个人的内存占用、搜索吞吐量及top-1结果的一致率，
+     * 查询为人脸库中的随机特征加扰动，耗时较长，不要在主线程调用
+     *
+     * @param queryCount 查询数量
+     * @return 评估报告
+     */
+    public String evaluateQuantization(int queryCount) {
+        FeatureMatrix matrix = gallery.matrix;
+        int size = matrix.size();
+        if (size == 0 || queryCount <= 0) {
+            return "empty gallery";
+        }
+        FeatureMatrix full = matrix.convert(false);
+        FeatureMatrix quantized = matrix.convert(true, featureStore);
+        float[][] queries = new float[queryCount][];
+        Random random = new Random(queryCount);
+        for (int q = 0; q < queryCount; q++) {
+            queries[q] = FeatureMatrix.toVector(matrix.getFeatureData(random.nextInt(size)), null);
+            for (int d = 0; d < FeatureMatrix.FEATURE_DIM; d++) {
+                queries[q][d] += (float) random.nextGaussian() * 0.03F;
+            }
+        }
+        int[] fullTop1 = new int[queryCount];
+        FeatureMatrix.TopK topK = new FeatureMatrix.TopK(1);
+        long fullStart = System.nanoTime();
+        for (int q = 0; q < queryCount; q++) {
+            topK.reset();
+            full.search(queries[q], topK);
+            fullTop1[q] = topK.getRow(0);
+        }
+        long fullNanos = System.nanoTime() - fullStart;
+        int agree = 0;
+        long quantizedStart = System.nanoTime();
+        for (int q = 0; q < queryCount; q++) {
+            topK.reset();
+            quantized.search(queries[q], topK);
+            if (topK.getRow(0) == fullTop1[q]) {
+                agree++;
+            }
+        }
+        long quantizedNanos = System.nanoTime() - quantizedStart;
+        return "gallery=" + size
+                + " bytes/identity full=" + full.getMemoryBytes() / size + " int8=" + quantized.getMemoryBytes() / size
+                + " searches/s full=" + queryCount * 1000000000L / Math.max(1, fullNanos)
+                + " int8=" + queryCount * 1000000000L / Math.max(1, quantizedNanos)
+                + " top1 agreement=" + agree / (float) queryCount;
+    }
+
+    /**
+     * 开启或关闭近似最近邻索引，开启后人脸库达到{@link #ANN_MIN_GALLERY_SIZE}时在后台训练索引
+     */
+    public void setAnnEnabled(boolean enabled) {
+        synchronized (this) {
+            annEnabled = enabled;
+            if (enabled) {
+                if (gallery.index == null) {
+                    loadAnnIndex();
+                }
+                buildAnnIndexIfNeeded();
+            }
+        }
+    }
+
+    /**
+     * 设置搜索时扫描的簇数量，用于在召回率与耗时之间取舍
+     */
+    public void setAnnProbeCount(int probeCount) {
+        annProbeCount = Math.max(1, probeCount);
+    }
+
+    /**
+     * 在后台基于当前快照训练索引，训练期间新注册的特征在发布前补充进索引，需持有锁调用
+     */
+    private void buildAnnIndexIfNeeded() {
+        final FeatureMatrix matrix = gallery.matrix;
+        IvfIndex index = gallery.index;
+        if (!annEnabled || annBuilding || matrix.size() < ANN_MIN_GALLERY_SIZE
+                || (index != null && matrix.size() < index.getTrainedRows() * ANN_RETRAIN_GROWTH)) {
+            return;
+        }
+        annBuilding = true;
+        final int generation = galleryGeneration;
+        if (annExecutor == null) {
+            annExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "FaceAnnIndex");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        annExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                IvfIndex index = IvfIndex.train(matrix, (int) Math.sqrt(matrix.size()));
+                synchronized (FaceServer.this) {
+                    annBuilding = false;
+                    if (index == null || generation != galleryGeneration) {
+                        return;
+                    }
+                    FeatureMatrix current = gallery.matrix;
+                    index.addRange(current, index.getIndexedRows(), current.size());
+                    publishGallery(current, index);
+                    Log.i(TAG, "buildAnnIndex: " + index.getIndexedRows() + " features, " + index.getListCount()
+                            + " lists, cost " + (System.currentTimeMillis() - startTime) + "ms");
+                    saveAnnIndex();
+                }
+            }
+        });
+    }
+
+    /**
+     * 需持有锁调用
+     */
+    private void loadAnnIndex() {
+        FeatureMatrix matrix = gallery.matrix;
+        if (ROOT_PATH == null || matrix.size() == 0) {
+            return;
+        }
+        try {
+            publishGallery(matrix, IvfIndex.load(new File(ROOT_PATH + File.separator + SAVE_ANN_INDEX_FILE), matrix));
+        } catch (IOException e) {
+            Log.e(TAG, "loadAnnIndex: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 需持有锁调用
+     */
+    private void saveAnnIndex() {
+        Gallery current = gallery;
+        if (current.index == null || ROOT_PATH == null) {
+            return;
+        }
+        try {
+            current.index.save(new File(ROOT_PATH + File.separator + SAVE_ANN_INDEX_FILE), current.matrix);
+        } catch (IOException e) {
+            Log.e(TAG, "saveAnnIndex: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 评估近似最近邻索引在不同nprobe下的recall@1与耗时，耗时较长，不要在主线程调用
+     *
+     * @param queryCount 查询数量
+     * @return 评估报告，索引未建立时返回null
+     */
+    public String evaluateAnnIndex(int queryCount) {
+        Gallery current = gallery;
+        if (current.index == null) {
+            return null;
+        }
+        return current.index.evaluate(current.matrix, queryCount, new int[]{1, 2, 4, 8, 16, 32});
+    }
+
+    /**
+     * 在人脸库中抽样，两两比较纯Java得分与引擎{@link FaceEngine#compareFaceFeature}的得分，
+     * 一致时启用纯Java搜索，需持有锁调用
+     */
+    private void validateJavaKernel(FeatureMatrix matrix) {
+        if (javaKernelEnabled || javaKernelRejected || faceEngine == null) {
+            return;
+        }
+        int size = matrix.size();
+        // 至少需要两个不同的人才能校验
+        if (size < 2) {
+            return;
+        }
+        int count = Math.min(size, KERNEL_VALIDATE_SAMPLES);
+        int step = size / count;
+        FaceFeature feature1 = new FaceFeature();
+        FaceFeature feature2 = new FaceFeature();
+        FaceSimilar faceSimilar = new FaceSimilar();
+        float[] query = new float[FeatureMatrix.FEATURE_DIM];
+        float maxError = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] data1 = matrix.getFeatureData(i * step);
+            feature1.setFeatureData(data1);
+            FeatureMatrix.toVector(data1, query);
+            for (int j = i; j < count; j++) {
+                feature2.setFeatureData(matrix.getFeatureData(j * step));
+                int code;
+                synchronized (compareLock) {
+                    code = faceEngine.compareFaceFeature(feature1, feature2, faceSimilar);
+                }
+                if (code != ErrorInfo.MOK) {
+                    return;
+                }
+                maxError = Math.max(maxError, Math.abs(faceSimilar.getScore() - matrix.score(query, j * step)));
+            }
+        }
+        if (maxError <= KERNEL_VALIDATE_TOLERANCE) {
+            javaKernelEnabled = true;
+            Log.i(TAG, "validateJavaKernel: enabled, max error = " + maxError);
+        } else {
+            javaKernelRejected = true;
+            Log.w(TAG, "validateJavaKernel: rejected, max error = " + maxError);
+        }
+    }
+
+    /**
+     * 在特征库中搜索，读取当前的人脸库快照，可以与其他搜索及注册并发进行
+     *
+     * @param faceFeature 传入特征数据
+     * @return 比对结果，人脸库为空时返回null
      */
     public CompareResult getTopOfFaceLib(FaceFeature faceFeature) {
-        if (faceEngine == null || isProcessing || faceFeature == null || faceRegisterInfoList == null || faceRegisterInfoList.size() == 0) {
+        FaceEngine engine = faceEngine;
+        TieredGallery tiered = tieredGallery;
+        if (tiered != null) {
+            if (engine == null || faceFeature == null || tiered.size() == 0) {
+                return null;
+            }
+            long startTime = System.nanoTime();
+            try {
+                return tiered.search(FeatureMatrix.toVector(faceFeature.getFeatureData(), null));
+            } finally {
+                searchLatency.record(System.nanoTime() - startTime);
+            }
+        }
+        Gallery current = gallery;
+        if ((engine == null && !javaKernelEnabled) || faceFeature == null || current.matrix.size() == 0) {
+            return null;
+        }
+        long startTime = System.nanoTime();
+        try {
+            return searchFaceLib(engine, current.matrix, current.index, current.searcher, faceFeature);
+        } finally {
+            searchLatency.record(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * 只在指定的分区中搜索，耗时与这些分区的人数成正比；未加载的分区在第一次搜索时加载
+     *
+     * @param faceFeature    传入特征数据
+     * @param partitionNames 需要搜索的分区
+     * @return 比对结果，分区都为空时返回null
+     */
+    public CompareResult getTopOfFaceLib(FaceFeature faceFeature, Collection<String> partitionNames) {
+        FaceEngine engine = faceEngine;
+        GalleryPartitions galleryPartitions = partitions;
+        ParallelGallerySearcher searcher = gallery.searcher;
+        if (engine == null || faceFeature == null || partitionNames == null) {
+            return null;
+        }
+        CompareResult best = null;
+        long startTime = System.nanoTime();
+        try {
+            for (String partition : partitionNames) {
+                FeatureMatrix matrix = galleryPartitions == null ? null : galleryPartitions.get(partition);
+                if (matrix == null) {
+                    if (loadPartition(partition) < 0) {
+                        continue;
+                    }
+                    galleryPartitions = partitions;
+                    matrix = galleryPartitions.get(partition);
+                }
+                if (matrix == null || matrix.size() == 0) {
+                    continue;
+                }
+                CompareResult result = searchFaceLib(engine, matrix, null, searcher, faceFeature);
+                if (result != null && (best == null || result.getSimilar() > best.getSimilar())) {
+                    best = result;
+                }
+            }
+            return best;
+        } finally {
+            searchLatency.record(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * @param index    与matrix对应的近似最近邻索引，为null时精确搜索
+     * @param searcher 与matrix一起读取的并行搜索线程池，为null时使用引擎比对
+     */
+    private CompareResult searchFaceLib(FaceEngine engine, FeatureMatrix matrix, IvfIndex index,
+                                        ParallelGallerySearcher searcher, FaceFeature faceFeature) {
+        if (javaKernelEnabled && searcher != null) {
+            float[] query = FeatureMatrix.toVector(faceFeature.getFeatureData(), null);
+            FeatureMatrix.TopK topK;
+            if (annEnabled && index != null) {
+                // 只扫描最接近的若干个簇，簇内候选按完整特征精确打分
+                topK = index.search(matrix, query, annProbeCount, 1);
+            } else {
+                try {
+                    topK = searcher.search(matrix, query, 1);
+                } catch (RejectedExecutionException e) {
+                    // 读取快照后线程池被关闭（unInit），在调用线程中搜索
+                    topK = new FeatureMatrix.TopK(1);
+                    matrix.search(query, topK);
+                }
+            }
+            if (topK.getCount() > 0 && topK.getScore(0) > 0) {
+                return new CompareResult(matrix.getName(topK.getRow(0)), topK.getScore(0));
+            }
+            return null;
+        }
+        if (engine == null) {
             return null;
         }
         FaceFeature tempFaceFeature = new FaceFeature();
         FaceSimilar faceSimilar = new FaceSimilar();
         float maxSimilar = 0;
         int maxSimilarIndex = -1;
-        isProcessing = true;
-        for (int i = 0; i < faceRegisterInfoList.size(); i++) {
-            tempFaceFeature.setFeatureData(faceRegisterInfoList.get(i).getFeatureData());
-            faceEngine.compareFaceFeature(faceFeature, tempFaceFeature, faceSimilar);
-            if (faceSimilar.getScore() > maxSimilar) {
-                maxSimilar = faceSimilar.getScore();
-                maxSimilarIndex = i;
+        synchronized (compareLock) {
+            for (int i = 0; i < matrix.size(); i++) {
+                tempFaceFeature.setFeatureData(matrix.getFeatureData(i));
+                engine.compareFaceFeature(faceFeature, tempFaceFeature, faceSimilar);
+                if (faceSimilar.getScore() > maxSimilar) {
+                    maxSimilar = faceSimilar.getScore();
+                    maxSimilarIndex = i;
+                }
             }
         }
-        isProcessing = false;
         if (maxSimilarIndex != -1) {
-            return new CompareResult(faceRegisterInfoList.get(maxSimilarIndex).getName(), maxSimilar);
+            return new CompareResult(matrix.getName(maxSimilarIndex), maxSimilar);
         }
         return null;
     }
 
+    /**
+     * 搜索的统计信息：人脸库大小、并行线程数及最近搜索耗时的分位数
+     */
+    public String getSearchStats() {
+        Gallery current = gallery;
+        ParallelGallerySearcher searcher = current.searcher;
+        TieredGallery tiered = tieredGallery;
+        if (tiered != null) {
+            return "gallery=" + tiered.size()
+                    + " load=" + lastLoadMillis + "ms"
+                    + " reload=" + reloadCount + "x build " + lastReloadBuildMillis + "ms swap " + lastReloadSwapMicros + "us"
+                    + " " + searchLatency.summary()
+                    + " " + tiered.getStats();
+        }
+        return "gallery=" + current.matrix.size()
+                + " threads=" + (searcher == null ? 0 : searcher.getParallelism())
+                + " javaKernel=" + javaKernelEnabled
+                + " int8=" + quantizedGallery
+                + " load=" + lastLoadMillis + "ms"
+                + " ann=" + (annEnabled && current.index != null ? "nprobe " + annProbeCount : "off")
+                + " reload=" + reloadCount + "x build " + lastReloadBuildMillis + "ms swap " + lastReloadSwapMicros + "us"
+                + " " + searchLatency.summary();
+    }
+
+    /**
+     * 比对两个人脸特征
+     *
+     * @param feature1 人脸特征1
+     * @param feature2 人脸特征2
+     * @return 相似度，引擎未初始化或比对失败时返回0
+     */
+    public float compareFeature(FaceFeature feature1, FaceFeature feature2) {
+        FaceEngine engine = faceEngine;
+        if (engine == null || feature1 == null || feature2 == null) {
+            return 0;
+        }
+        FaceSimilar faceSimilar = new FaceSimilar();
+        int code;
+        synchronized (compareLock) {
+            code = engine.compareFaceFeature(feature1, feature2, faceSimilar);
+        }
+        if (code != ErrorInfo.MOK) {
+            return 0;
+        }
+        return faceSimilar.getScore();
+    }
+
     /**
      * 将图像中需要截取的Rect向外扩张一倍，若扩张一倍会溢出，则扩张到边界，若Rect已溢出，则收缩到边界
      *
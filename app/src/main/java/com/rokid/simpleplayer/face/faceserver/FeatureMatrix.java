@@ -0,0 +1,523 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import com.arcsoft.face.FaceFeature;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * 连续存储的人脸特征矩阵及纯Java的相似度计算
+ * <p>
+ * 人脸库中所有特征按行存放在一个float数组中，搜索时直接计算点积并取top-K，
+ * 不再为每个人脸库条目调用一次JNI的{@code compareFaceFeature}。
+ * 特征数据的格式为{@link #FEATURE_HEADER_SIZE}字节的头部加{@link #FEATURE_DIM}个小端float，
+ * 使用前需要在人脸库上抽样确认得分与引擎的{@code compareFaceFeature}一致
+ * <p>
+ * 对象本身是不可变的快照，{@link #append(byte[], String)}返回新的快照：容量足够时新快照与旧快照共享底层数组，
+ * 新行写在旧快照的size之后，旧快照的读者不受影响，因此任意数量的搜索可以与注册并发进行。
+ * 只允许单个写者基于最新的快照追加
+ * <p>
+ * 量化模式下每行只保存一个float缩放系数和{@link #FEATURE_DIM}个int8分量，打分数组缩小为原来的1/4，
+ * 搜索时先用整数点积粗排，再用原始特征对得分最高的若干候选精确重排。指定了{@link FeatureStore}时原始特征
+ * 直接从存储数据文件的内存映射中读取，堆内只保留记录位置；存储中找不到的行才在堆内保留原始特征。
+ * 新注册的行先在堆内保留原始特征，不用每次注册都重新映射整个数据文件，这样的行超过人脸库的1/4时才重新映射一次，
+ * 把已被映射覆盖的行移出堆内，重新映射的次数随人脸库大小对数增长
+ */
+public class FeatureMatrix {
+    /**
+     * 特征数据头部的字节数
+     */
+    public static final int FEATURE_HEADER_SIZE = 8;
+    /**
+     * 特征向量的维度
+     */
+    public static final int FEATURE_DIM = (FaceFeature.FEATURE_SIZE - FEATURE_HEADER_SIZE) / 4;
+
+    private static final int DEFAULT_CAPACITY = 64;
+    /**
+     * 量化模式下每次搜索精确重排的最少候选数
+     */
+    private static final int RERANK_COUNT = 16;
+    /**
+     * 量化模式下等待重新映射的行数超过该值及人脸库的1/4时重新映射
+     */
+    private static final int MIN_PENDING_REMAP = 64;
+
+    /**
+     * 空的人脸库
+     */
+    public static final FeatureMatrix EMPTY = new FeatureMatrix(new float[0], null, null, new String[0], new byte[0][],
+            null, null, null, 0, 0, 0);
+    /**
+     * 空的量化人脸库，原始特征保留在堆内
+     */
+    public static final FeatureMatrix EMPTY_QUANTIZED = emptyQuantized(null);
+
+    /**
+     * 全精度特征，量化模式下为null
+     */
+    private final float[] data;
+    /**
+     * 量化后的int8分量及每行的缩放系数，非量化模式下为null
+     */
+    private final byte[] codes;
+    private final float[] scales;
+    private final String[] names;
+    /**
+     * 原始特征数据，供引擎比对使用；量化模式下只保存存储中找不到的行
+     */
+    private final byte[][] features;
+    /**
+     * 量化模式下原始特征所在的存储、数据文件的映射及每行的记录位置：-1表示只在堆内，
+     * 小于-1表示在堆内且已写入存储、等待重新映射，记录位置为{@code -2 - position}
+     */
+    private final FeatureStore store;
+    private final ByteBuffer mapped;
+    private final int[] positions;
+    /**
+     * 原始特征保存在堆内的行数
+     */
+    private final int heapCount;
+    /**
+     * 原始特征在堆内、等待重新映射的行数
+     */
+    private final int pendingCount;
+    private final int size;
+
+    private FeatureMatrix(float[] data, byte[] codes, float[] scales, String[] names, byte[][] features,
+                          FeatureStore store, ByteBuffer mapped, int[] positions, int heapCount, int pendingCount, int size) {
+        this.data = data;
+        this.codes = codes;
+        this.scales = scales;
+        this.names = names;
+        this.features = features;
+        this.store = store;
+        this.mapped = mapped;
+        this.positions = positions;
+        this.heapCount = heapCount;
+        this.pendingCount = pendingCount;
+        this.size = size;
+    }
+
+    /**
+     * 空的量化人脸库，原始特征从存储中读取，追加的特征需要先写入存储
+     *
+     * @param store 已打开的特征存储，为null时原始特征保留在堆内
+     */
+    public static FeatureMatrix emptyQuantized(FeatureStore store) {
+        return new FeatureMatrix(null, new byte[0], new float[0], new String[0], new byte[0][],
+                store, null, new int[0], 0, 0, 0);
+    }
+
+    /**
+     * 追加一条特征，返回包含该特征的新快照
+     *
+     * @param featureData 引擎输出的特征数据
+     * @param name        特征对应的名称
+     * @return 新的快照
+     */
+    public FeatureMatrix append(byte[] featureData, String name) {
+        float[] newData = data;
+        byte[] newCodes = codes;
+        float[] newScales = scales;
+        String[] newNames = names;
+        byte[][] newFeatures = features;
+        int[] newPositions = positions;
+        if (size == names.length) {
+            int newCapacity = Math.max(DEFAULT_CAPACITY, names.length * 2);
+            if (isQuantized()) {
+                newCodes = Arrays.copyOf(codes, newCapacity * FEATURE_DIM);
+                newScales = Arrays.copyOf(scales, newCapacity);
+                newPositions = Arrays.copyOf(positions, newCapacity);
+            } else {
+                newData = Arrays.copyOf(data, newCapacity * FEATURE_DIM);
+            }
+            newNames = Arrays.copyOf(names, newCapacity);
+            newFeatures = Arrays.copyOf(features, newCapacity);
+        }
+        int newHeapCount = heapCount;
+        int newPendingCount = pendingCount;
+        if (isQuantized()) {
+            float[] vector = toVector(featureData, null);
+            newScales[size] = quantize(vector, newCodes, size * FEATURE_DIM);
+            long offset = store == null ? -1 : store.getOffset(name);
+            if (offset >= 0 && mapped != null && offset + FeatureStore.RECORD_SIZE <= mapped.capacity()) {
+                newPositions[size] = (int) offset + FeatureStore.RECORD_HEADER_SIZE;
+                newFeatures[size] = null;
+            } else {
+                // 只读映射不能超出文件末尾，新写入的记录要等下次重新映射
+                newPositions[size] = offset >= 0 ? -2 - ((int) offset + FeatureStore.RECORD_HEADER_SIZE) : -1;
+                newFeatures[size] = featureData;
+                newHeapCount++;
+                if (offset >= 0) {
+                    newPendingCount++;
+                }
+            }
+        } else {
+            decode(featureData, newData, size * FEATURE_DIM);
+            newFeatures[size] = featureData;
+        }
+        newNames[size] = name;
+        FeatureMatrix matrix = new FeatureMatrix(newData, newCodes, newScales, newNames, newFeatures,
+                store, mapped, newPositions, newHeapCount, newPendingCount, size + 1);
+        if (newPendingCount > Math.max(MIN_PENDING_REMAP, (size + 1) / 4)) {
+            return matrix.compact();
+        }
+        return matrix;
+    }
+
+    /**
+     * 重新映射存储的数据文件，把已写入存储的堆内行改为从映射中读取，批量加载后调用以释放堆内的原始特征
+     *
+     * @return 新的快照，没有等待重新映射的行或映射失败时返回自身
+     */
+    public FeatureMatrix compact() {
+        if (pendingCount == 0) {
+            return this;
+        }
+        ByteBuffer newMapped = map(store);
+        if (newMapped == null) {
+            return this;
+        }
+        // 记录位置及原始特征数组与旧快照共享，不能修改旧快照范围内的行，复制后再修改
+        int[] newPositions = Arrays.copyOf(positions, positions.length);
+        byte[][] newFeatures = Arrays.copyOf(features, features.length);
+        int newHeapCount = heapCount;
+        int newPendingCount = pendingCount;
+        for (int row = 0; row < size; row++) {
+            int position = -2 - newPositions[row];
+            if (position >= 0 && position - FeatureStore.RECORD_HEADER_SIZE + FeatureStore.RECORD_SIZE <= newMapped.capacity()) {
+                newPositions[row] = position;
+                newFeatures[row] = null;
+                newHeapCount--;
+                newPendingCount--;
+            }
+        }
+        return new FeatureMatrix(data, codes, scales, names, newFeatures,
+                store, newMapped, newPositions, newHeapCount, newPendingCount, size);
+    }
+
+    /**
+     * 映射存储的数据文件，失败时返回null，新行的原始特征保留在堆内
+     */
+    private static ByteBuffer map(FeatureStore store) {
+        try {
+            return store.map().order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 以另一种存储方式重建当前快照，行号保持不变
+     *
+     * @param quantized 是否使用int8量化存储
+     * @return 新的快照，存储方式相同时返回自身
+     */
+    public FeatureMatrix convert(boolean quantized) {
+        return convert(quantized, store);
+    }
+
+    /**
+     * 以另一种存储方式重建当前快照，行号保持不变
+     *
+     * @param quantized 是否使用int8量化存储
+     * @param store     量化模式下原始特征所在的存储，可以为null
+     * @return 新的快照，存储方式相同时返回自身
+     */
+    public FeatureMatrix convert(boolean quantized, FeatureStore store) {
+        if (quantized == isQuantized()) {
+            return this;
+        }
+        FeatureMatrix matrix = quantized ? emptyQuantized(store) : EMPTY;
+        for (int row = 0; row < size; row++) {
+            matrix = matrix.append(getFeatureData(row), names[row]);
+        }
+        return matrix.compact();
+    }
+
+    public boolean isQuantized() {
+        return codes != null;
+    }
+
+    /**
+     * 打分数组与原始特征占用的堆内存（字节），不含对象头及名称，量化模式下包括每行的记录位置，不包括内存映射
+     */
+    public long getMemoryBytes() {
+        if (isQuantized()) {
+            return (long) size * (FEATURE_DIM + 4 + 4) + (long) heapCount * FaceFeature.FEATURE_SIZE;
+        }
+        return (long) size * FEATURE_DIM * 4 + (long) size * FaceFeature.FEATURE_SIZE;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getName(int row) {
+        return names[row];
+    }
+
+    /**
+     * @return 原始特征数据，量化模式下从内存映射读取时每次新建数组
+     */
+    public byte[] getFeatureData(int row) {
+        if (features[row] != null) {
+            return features[row];
+        }
+        byte[] featureData = new byte[FaceFeature.FEATURE_SIZE];
+        ByteBuffer buffer = mapped.duplicate();
+        buffer.position(positions[row]);
+        buffer.get(featureData);
+        return featureData;
+    }
+
+    /**
+     * 将特征数据解码为float向量
+     *
+     * @param featureData 引擎输出的特征数据
+     * @param out         输出数组，为null时新建
+     * @return 特征向量
+     */
+    public static float[] toVector(byte[] featureData, float[] out) {
+        if (out == null || out.length < FEATURE_DIM) {
+            out = new float[FEATURE_DIM];
+        }
+        decode(featureData, out, 0);
+        return out;
+    }
+
+    private static void decode(byte[] featureData, float[] out, int offset) {
+        int p = FEATURE_HEADER_SIZE;
+        for (int i = 0; i < FEATURE_DIM; i++, p += 4) {
+            int bits = (featureData[p] & 0xFF)
+                    | (featureData[p + 1] & 0xFF) << 8
+                    | (featureData[p + 2] & 0xFF) << 16
+                    | (featureData[p + 3] & 0xFF) << 24;
+            out[offset + i] = Float.intBitsToFloat(bits);
+        }
+    }
+
+    /**
+     * 把某一行的特征向量复制到out[offset, offset + FEATURE_DIM)
+     */
+    public void copyRow(int row, float[] out, int offset) {
+        if (!isQuantized()) {
+            System.arraycopy(data, row * FEATURE_DIM, out, offset, FEATURE_DIM);
+            return;
+        }
+        float scale = scales[row];
+        int base = row * FEATURE_DIM;
+        for (int i = 0; i < FEATURE_DIM; i++) {
+            out[offset + i] = codes[base + i] * scale;
+        }
+    }
+
+    /**
+     * 查询向量与某一行的点积，即相似度，量化模式下使用原始特征计算
+     */
+    public float score(float[] query, int row) {
+        if (isQuantized()) {
+            return exactDot(query, row);
+        }
+        return dot(query, data, row * FEATURE_DIM);
+    }
+
+    /**
+     * 量化模式下用原始特征计算点积，原始特征在内存映射或堆内
+     */
+    private float exactDot(float[] query, int row) {
+        int position = positions[row];
+        if (position < 0) {
+            return exactDot(query, features[row]);
+        }
+        ByteBuffer buffer = mapped;
+        float sum = 0;
+        int p = position + FEATURE_HEADER_SIZE;
+        for (int i = 0; i < FEATURE_DIM; i++, p += 4) {
+            sum += query[i] * buffer.getFloat(p);
+        }
+        return sum;
+    }
+
+    /**
+     * 直接从原始特征数据中读取float计算点积，不分配临时数组
+     */
+    private static float exactDot(float[] query, byte[] featureData) {
+        float sum = 0;
+        int p = FEATURE_HEADER_SIZE;
+        for (int i = 0; i < FEATURE_DIM; i++, p += 4) {
+            int bits = (featureData[p] & 0xFF)
+                    | (featureData[p + 1] & 0xFF) << 8
+                    | (featureData[p + 2] & 0xFF) << 16
+                    | (featureData[p + 3] & 0xFF) << 24;
+            sum += query[i] * Float.intBitsToFloat(bits);
+        }
+        return sum;
+    }
+
+    /**
+     * 对称量化：缩放系数为最大绝对值/127
+     *
+     * @return 缩放系数
+     */
+    private static float quantize(float[] vector, byte[] out, int offset) {
+        float maxAbs = 0;
+        for (int i = 0; i < FEATURE_DIM; i++) {
+            maxAbs = Math.max(maxAbs, Math.abs(vector[i]));
+        }
+        if (maxAbs == 0) {
+            Arrays.fill(out, offset, offset + FEATURE_DIM, (byte) 0);
+            return 0;
+        }
+        float inverse = 127 / maxAbs;
+        for (int i = 0; i < FEATURE_DIM; i++) {
+            out[offset + i] = (byte) Math.round(vector[i] * inverse);
+        }
+        return maxAbs / 127;
+    }
+
+    /**
+     * int8点积，最大值256*127*127不会溢出int
+     */
+    private static int dot(byte[] query, byte[] matrix, int offset) {
+        int s0 = 0;
+        int s1 = 0;
+        int s2 = 0;
+        int s3 = 0;
+        int i = 0;
+        for (; i + 3 < FEATURE_DIM; i += 4) {
+            s0 += query[i] * matrix[offset + i];
+            s1 += query[i + 1] * matrix[offset + i + 1];
+            s2 += query[i + 2] * matrix[offset + i + 2];
+            s3 += query[i + 3] * matrix[offset + i + 3];
+        }
+        for (; i < FEATURE_DIM; i++) {
+            s0 += query[i] * matrix[offset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * 展开4路累加，便于JIT生成没有边界检查的紧凑循环
+     */
+    private static float dot(float[] query, float[] matrix, int offset) {
+        float s0 = 0;
+        float s1 = 0;
+        float s2 = 0;
+        float s3 = 0;
+        int i = 0;
+        for (; i + 3 < FEATURE_DIM; i += 4) {
+            s0 += query[i] * matrix[offset + i];
+            s1 += query[i + 1] * matrix[offset + i + 1];
+            s2 += query[i + 2] * matrix[offset + i + 2];
+            s3 += query[i + 3] * matrix[offset + i + 3];
+        }
+        for (; i < FEATURE_DIM; i++) {
+            s0 += query[i] * matrix[offset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * 在[fromRow, toRow)范围内搜索得分最高的K个特征
+     *
+     * @param query   查询向量
+     * @param fromRow 起始行
+     * @param toRow   结束行（不包含）
+     * @param topK    结果，按得分从高到低排列
+     */
+    public void search(float[] query, int fromRow, int toRow, TopK topK) {
+        toRow = Math.min(toRow, size);
+        if (isQuantized()) {
+            searchQuantized(query, fromRow, toRow, topK);
+            return;
+        }
+        float[] matrix = data;
+        for (int row = fromRow; row < toRow; row++) {
+            topK.offer(row, dot(query, matrix, row * FEATURE_DIM));
+        }
+    }
+
+    /**
+     * 整数点积粗排，再用原始特征精确重排候选
+     */
+    private void searchQuantized(float[] query, int fromRow, int toRow, TopK topK) {
+        byte[] queryCodes = new byte[FEATURE_DIM];
+        // 查询的缩放系数对所有行相同，不影响粗排顺序
+        quantize(query, queryCodes, 0);
+        TopK candidates = new TopK(Math.max(RERANK_COUNT, topK.k * 4));
+        byte[] matrix = codes;
+        for (int row = fromRow; row < toRow; row++) {
+            candidates.offer(row, dot(queryCodes, matrix, row * FEATURE_DIM) * scales[row]);
+        }
+        for (int i = 0; i < candidates.count; i++) {
+            int row = candidates.rows[i];
+            topK.offer(row, exactDot(query, row));
+        }
+    }
+
+    public void search(float[] query, TopK topK) {
+        search(query, 0, size, topK);
+    }
+
+    /**
+     * 保存top-K搜索结果，复用以避免每次搜索分配
+     */
+    public static class TopK {
+        private final int k;
+        private final int[] rows;
+        private final float[] scores;
+        private int count;
+
+        public TopK(int k) {
+            this.k = Math.max(1, k);
+            rows = new int[this.k];
+            scores = new float[this.k];
+        }
+
+        public void reset() {
+            count = 0;
+        }
+
+        /**
+         * 插入一个候选，只保留得分最高的K个
+         */
+        public void offer(int row, float score) {
+            if (count == k && score <= scores[k - 1]) {
+                return;
+            }
+            int i = count < k ? count++ : k - 1;
+            while (i > 0 && scores[i - 1] < score) {
+                scores[i] = scores[i - 1];
+                rows[i] = rows[i - 1];
+                i--;
+            }
+            scores[i] = score;
+            rows[i] = row;
+        }
+
+        /**
+         * 合并另一个结果
+         */
+        public void merge(TopK other) {
+            for (int i = 0; i < other.count; i++) {
+                offer(other.rows[i], other.scores[i]);
+            }
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public int getRow(int i) {
+            return rows[i];
+        }
+
+        public float getScore(int i) {
+            return scores[i];
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import android.util.Log;
+
+import com.arcsoft.face.FaceFeature;
+import com.rokid.simpleplayer.face.utils.CountingInputStream;
+import com.rokid.simpleplayer.face.utils.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 单文件追加写的人脸特征存储
+ * <p>
+ * 数据文件由定长记录组成：4字节标记、4字节CRC32校验及{@link FaceFeature#FEATURE_SIZE}字节的特征；
+ * 索引文件按追加顺序记录名称与记录偏移，偏移为-1表示删除（墓碑）。
+ * 启动时只读一次索引文件，再用{@link FileChannel#map}映射数据文件批量读取，不再为每个人打开一个文件
+ */
+public class FeatureStore {
+    private static final String TAG = "FeatureStore";
+    public static final String DATA_FILE_NAME = "features.dat";
+    public static final String INDEX_FILE_NAME = "features.idx";
+
+    private static final int RECORD_LIVE = 0x46454154;
+    private static final int RECORD_DELETED = 0;
+    private static final long TOMBSTONE = -1;
+    /**
+     * 记录头部（标记及校验）的字节数，其后为特征数据
+     */
+    public static final int RECORD_HEADER_SIZE = 8;
+    public static final int RECORD_SIZE = RECORD_HEADER_SIZE + FaceFeature.FEATURE_SIZE;
+
+    /**
+     * 加载时的回调
+     */
+    public interface OnRecordLoadedListener {
+        void onRecordLoaded(String name, byte[] featureData);
+    }
+
+    /**
+     * 遍历索引时的回调
+     */
+    public interface OnEntryListener {
+        void onEntry(String name, long offset);
+    }
+
+    /**
+     * 遍历记录校验值时的回调
+     */
+    public interface OnChecksumListener {
+        void onChecksum(String name, long offset, int checksum);
+    }
+
+    private final File dataFile;
+    private final File indexFile;
+    /**
+     * 有效记录的名称与偏移，保持写入顺序
+     */
+    private final Map<String, Long> offsets = new LinkedHashMap<>();
+    private RandomAccessFile data;
+    private DataOutputStream index;
+    private final CRC32 crc32 = new CRC32();
+    /**
+     * 打开（或清空）时索引文件的长度，之后本对象写入的字节数由{@link #index}统计
+     */
+    private long indexLengthAtOpen;
+    private int corruptCount;
+
+    /**
+     * @param dir 存储目录
+     */
+    public FeatureStore(File dir) {
+        dataFile = new File(dir, DATA_FILE_NAME);
+        indexFile = new File(dir, INDEX_FILE_NAME);
+    }
+
+    /**
+     * 打开存储并读取索引
+     */
+    public synchronized void open() throws IOException {
+        if (data != null) {
+            return;
+        }
+        File dir = dataFile.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("can not create directory " + dir);
+        }
+        data = new RandomAccessFile(dataFile, "rw");
+        long dataLength = data.length() - data.length() % RECORD_SIZE;
+        offsets.clear();
+        if (indexFile.exists()) {
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            DataInputStream in = new DataInputStream(counter);
+            long validLength = 0;
+            try {
+                while (true) {
+                    String name = in.readUTF();
+                    long offset = in.readLong();
+                    validLength = counter.getCount();
+                    if (offset == TOMBSTONE) {
+                        offsets.remove(name);
+                    } else if (offset + RECORD_SIZE <= dataLength) {
+                        // 重新写入的名称移到末尾，与内存人脸库的顺序一致
+                        offsets.remove(name);
+                        offsets.put(name, offset);
+                    }
+                }
+            } catch (EOFException e) {
+                // 读到末尾，或最后一条索引没有写完整
+            } finally {
+                in.close();
+            }
+            // 截掉不完整的一条，否则之后追加的索引都接在残缺的字节后面，下次打开时读不出来
+            long dropped = FileUtils.truncate(indexFile, validLength);
+            if (dropped > 0) {
+                Log.w(TAG, "open: dropped " + dropped + " bytes of incomplete index entry");
+            }
+        }
+        data.setLength(dataLength);
+        indexLengthAtOpen = indexFile.length();
+        index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+    }
+
+    public synchronized boolean isOpen() {
+        return data != null;
+    }
+
+    /**
+     * @return 有效记录数
+     */
+    public synchronized int size() {
+        return offsets.size();
+    }
+
+    public synchronized boolean contains(String name) {
+        return offsets.containsKey(name);
+    }
+
+    /**
+     * 映射数据文件并按写入顺序读取所有有效记录，校验失败的记录被跳过
+     *
+     * @return 读取的记录数
+     */
+    public synchronized int load(OnRecordLoadedListener listener) throws IOException {
+        corruptCount = 0;
+        if (offsets.isEmpty()) {
+            return 0;
+        }
+        MappedByteBuffer buffer = map();
+        int loaded = 0;
+        for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+            int position = (int) (long) entry.getValue();
+            buffer.position(position);
+            int flag = buffer.getInt();
+            int crc = buffer.getInt();
+            byte[] featureData = new byte[FaceFeature.FEATURE_SIZE];
+            buffer.get(featureData);
+            if (flag != RECORD_LIVE || crc != checksum(featureData)) {
+                corruptCount++;
+                Log.w(TAG, "load: corrupt record " + entry.getKey());
+                continue;
+            }
+            listener.onRecordLoaded(entry.getKey(), featureData);
+            loaded++;
+        }
+        return loaded;
+    }
+
+    /**
+     * 按写入顺序遍历有效记录的名称与偏移，不读取数据文件
+     */
+    public synchronized void forEachEntry(OnEntryListener listener) {
+        for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+            listener.onEntry(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 按写入顺序遍历有效记录的名称、偏移及记录头部保存的特征CRC32，只读取记录头部
+     */
+    public synchronized void forEachChecksum(OnChecksumListener listener) throws IOException {
+        if (offsets.isEmpty()) {
+            return;
+        }
+        MappedByteBuffer buffer = map();
+        for (Map.Entry<String, Long> entry : offsets.entrySet()) {
+            long offset = entry.getValue();
+            listener.onChecksum(entry.getKey(), offset, buffer.getInt((int) offset + 4));
+        }
+    }
+
+    /**
+     * @return 记录的偏移，不存在时返回-1
+     */
+    public synchronized long getOffset(String name) {
+        Long offset = offsets.get(name);
+        return offset == null ? -1 : offset;
+    }
+
+    /**
+     * 按名称读取一条特征
+     *
+     * @return 特征数据，不存在或校验失败时返回null
+     */
+    public synchronized byte[] read(String name) throws IOException {
+        Long offset = offsets.get(name);
+        if (offset == null) {
+            return null;
+        }
+        data.seek(offset);
+        int flag = data.readInt();
+        int crc = data.readInt();
+        byte[] featureData = new byte[FaceFeature.FEATURE_SIZE];
+        data.readFully(featureData);
+        if (flag != RECORD_LIVE || crc != checksum(featureData)) {
+            Log.w(TAG, "read: corrupt record " + name);
+            return null;
+        }
+        return featureData;
+    }
+
+    /**
+     * 只读映射整个数据文件，之后追加的记录需要重新映射才能读到
+     */
+    public synchronized MappedByteBuffer map() throws IOException {
+        FileChannel channel = data.getChannel();
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    /**
+     * 索引文件是否被其他对象或进程修改过（追加、替换或删除），修改后需要重新打开才能读到
+     */
+    public synchronized boolean isModifiedExternally() {
+        return data != null && indexFile.length() != indexLengthAtOpen + index.size();
+    }
+
+    /**
+     * 最近一次加载时校验失败的记录数
+     */
+    public synchronized int getCorruptCount() {
+        return corruptCount;
+    }
+
+    /**
+     * 追加一条特征，同名的旧记录被删除
+     */
+    public synchronized void append(String name, byte[] featureData) throws IOException {
+        if (featureData.length != FaceFeature.FEATURE_SIZE) {
+            throw new IllegalArgumentException("feature size must be " + FaceFeature.FEATURE_SIZE);
+        }
+        Long old = offsets.get(name);
+        if (old != null) {
+            markDeleted(old);
+        }
+        long offset = data.length();
+        byte[] record = new byte[RECORD_SIZE];
+        putInt(record, 0, RECORD_LIVE);
+        putInt(record, 4, checksum(featureData));
+        System.arraycopy(featureData, 0, record, RECORD_HEADER_SIZE, featureData.length);
+        data.seek(offset);
+        data.write(record);
+        // 先写数据再写索引，中途崩溃时索引不会指向不完整的记录
+        index.writeUTF(name);
+        index.writeLong(offset);
+        index.flush();
+        offsets.remove(name);
+        offsets.put(name, offset);
+    }
+
+    /**
+     * 删除一条特征：数据记录标记为删除，并在索引中追加墓碑
+     *
+     * @return 是否存在该名称
+     */
+    public synchronized boolean delete(String name) throws IOException {
+        Long offset = offsets.remove(name);
+        if (offset == null) {
+            return false;
+        }
+        markDeleted(offset);
+        index.writeUTF(name);
+        index.writeLong(TOMBSTONE);
+        index.flush();
+        return true;
+    }
+
+    /**
+     * 清空所有记录
+     * <p>
+     * 不能截断数据文件：之前{@link #map()}得到的映射（量化人脸库、冷数据层）可能仍在被读取，
+     * 访问截断后的页会收到SIGBUS。改为写入一对新的空文件再重命名替换，旧的映射继续指向旧文件，
+     * 旧文件在映射都释放后才被回收。先替换数据文件，中途崩溃时旧索引的偏移都超出数据文件长度而被忽略
+     *
+     * @return 清空前的有效记录数
+     */
+    public synchronized int clear() throws IOException {
+        int count = offsets.size();
+        offsets.clear();
+        index.close();
+        data.close();
+        try {
+            replaceWithEmpty(dataFile);
+            replaceWithEmpty(indexFile);
+        } finally {
+            data = new RandomAccessFile(dataFile, "rw");
+            index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+            indexLengthAtOpen = indexFile.length();
+        }
+        return count;
+    }
+
+    private static void replaceWithEmpty(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        new FileOutputStream(tmp, false).close();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("rename " + tmp + " failed");
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            if (index != null) {
+                index.close();
+            }
+            if (data != null) {
+                data.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "close: " + e.getMessage());
+        }
+        index = null;
+        data = null;
+        offsets.clear();
+    }
+
+    /**
+     * 旧目录中是否还有可以迁移的特征文件
+     */
+    public static boolean hasLegacyFiles(File legacyDir) {
+        File[] files = legacyDir.listFiles();
+        if (files == null) {
+            return false;
+        }
+        for (File file : files) {
+            if (isLegacyFeatureFile(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isLegacyFeatureFile(File file) {
+        return file.isFile() && file.length() == FaceFeature.FEATURE_SIZE;
+    }
+
+    /**
+     * 从每人一个文件的旧目录迁移，迁移成功的文件被删除；无法迁移的文件（长度不对或是目录）移到
+     * 同级的“目录名.failed”目录中保留，之后删除旧目录，不会每次加载都重新迁移
+     *
+     * @param legacyDir 旧的特征目录
+     * @return 迁移的记录数
+     */
+    public synchronized int migrateFrom(File legacyDir) throws IOException {
+        File[] files = legacyDir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        int migrated = 0;
+        byte[] featureData = new byte[FaceFeature.FEATURE_SIZE];
+        for (File file : files) {
+            if (!isLegacyFeatureFile(file)) {
+                continue;
+            }
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readFully(featureData);
+            } finally {
+                in.close();
+            }
+            append(file.getName(), featureData);
+            migrated++;
+        }
+        File failedDir = new File(legacyDir.getParentFile(), legacyDir.getName() + ".failed");
+        for (File file : files) {
+            if (isLegacyFeatureFile(file)) {
+                if (offsets.containsKey(file.getName())) {
+                    file.delete();
+                }
+            } else if ((failedDir.isDirectory() || failedDir.mkdirs()) && !file.renameTo(new File(failedDir, file.getName()))) {
+                Log.w(TAG, "migrateFrom: can not move " + file + " to " + failedDir);
+            }
+        }
+        if (!legacyDir.delete()) {
+            Log.w(TAG, "migrateFrom: can not delete " + legacyDir);
+        }
+        return migrated;
+    }
+
+    private void markDeleted(long offset) throws IOException {
+        data.seek(offset);
+        data.writeInt(RECORD_DELETED);
+    }
+
+    private int checksum(byte[] featureData) {
+        crc32.reset();
+        crc32.update(featureData, 0, featureData.length);
+        return (int) crc32.getValue();
+    }
+
+    private static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+}
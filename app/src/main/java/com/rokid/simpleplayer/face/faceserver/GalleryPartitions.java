@@ -0,0 +1,289 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import android.util.Log;
+
+import com.rokid.simpleplayer.face.utils.CountingInputStream;
+import com.rokid.simpleplayer.face.utils.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 人脸库分区（分组/标签）
+ * <p>
+ * 注册时给每个人打上一个分区，分区记录追加写入{@link #FILE_NAME}，分区为空字符串表示取消分区。
+ * 每个分区有独立的{@link FeatureMatrix}，只在指定分区内搜索时耗时与分区大小成正比，与整个人脸库的大小无关；
+ * 分区可以单独加载和卸载，加载时按偏移从{@link FeatureStore}读取该分区的特征。
+ * 已加载的分区发布为不可变的快照，搜索不需要加锁，修改由单个写者串行完成
+ */
+public class GalleryPartitions {
+    private static final String TAG = "GalleryPartitions";
+    public static final String FILE_NAME = "partitions.dat";
+
+    private final File file;
+    private final FeatureStore store;
+    private final boolean quantized;
+    /**
+     * 名字与分区，保持打标签的顺序
+     */
+    private final Map<String, String> partitionOfName = new LinkedHashMap<>();
+    private volatile Map<String, FeatureMatrix> loaded = Collections.emptyMap();
+    private DataOutputStream out;
+
+    /**
+     * @param dir       分区文件所在的目录
+     * @param store     已打开的特征存储
+     * @param quantized 分区是否使用int8量化存储
+     */
+    public GalleryPartitions(File dir, FeatureStore store, boolean quantized) {
+        this.file = new File(dir, FILE_NAME);
+        this.store = store;
+        this.quantized = quantized;
+    }
+
+    /**
+     * 读取分区记录，已不在特征存储中的名字被忽略，末尾没有写完整的记录被截掉
+     */
+    public synchronized void open() throws IOException {
+        if (out != null) {
+            return;
+        }
+        partitionOfName.clear();
+        if (file.exists()) {
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+            DataInputStream in = new DataInputStream(counter);
+            long validLength = 0;
+            try {
+                while (true) {
+                    String name = in.readUTF();
+                    String partition = in.readUTF();
+                    validLength = counter.getCount();
+                    partitionOfName.remove(name);
+                    if (!partition.isEmpty()) {
+                        partitionOfName.put(name, partition);
+                    }
+                }
+            } catch (EOFException e) {
+                // 读到末尾，或最后一条记录没有写完整
+            } finally {
+                in.close();
+            }
+            // 截掉不完整的一条，否则之后追加的记录都接在残缺的字节后面
+            long dropped = FileUtils.truncate(file, validLength);
+            if (dropped > 0) {
+                Log.w(TAG, "open: dropped " + dropped + " bytes of incomplete record");
+            }
+        }
+        partitionOfName.keySet().retainAll(namesInStore());
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    public synchronized void close() {
+        try {
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "close: " + e.getMessage());
+        }
+        out = null;
+        loaded = Collections.emptyMap();
+    }
+
+    /**
+     * 给一个人打上分区，特征需已写入特征存储；新分区已加载时同步加入，分区不变时替换已加载分区中的特征
+     *
+     * @param name      名字
+     * @param partition 分区，为null或空字符串时取消分区
+     */
+    public synchronized void tag(String name, String partition) throws IOException {
+        String newPartition = partition == null ? "" : partition;
+        String oldPartition = partitionOfName.get(name);
+        if (newPartition.equals(oldPartition == null ? "" : oldPartition)) {
+            refresh(name);
+            return;
+        }
+        out.writeUTF(name);
+        out.writeUTF(newPartition);
+        out.flush();
+        partitionOfName.remove(name);
+        Map<String, FeatureMatrix> matrices = new HashMap<>(loaded);
+        if (oldPartition != null && matrices.containsKey(oldPartition)) {
+            matrices.put(oldPartition, without(matrices.get(oldPartition), Collections.singleton(name)));
+        }
+        if (!newPartition.isEmpty()) {
+            partitionOfName.put(name, newPartition);
+            FeatureMatrix matrix = matrices.get(newPartition);
+            byte[] featureData = matrix == null ? null : store.read(name);
+            if (featureData != null) {
+                matrices.put(newPartition, matrix.append(featureData, name));
+            }
+        }
+        loaded = matrices;
+    }
+
+    /**
+     * 重新注册（特征已更新）后调用，这个人所在的分区已加载时用特征存储中的新特征替换原来的行
+     */
+    public synchronized void refresh(String name) throws IOException {
+        String partition = partitionOfName.get(name);
+        FeatureMatrix matrix = partition == null ? null : loaded.get(partition);
+        if (matrix == null) {
+            return;
+        }
+        FeatureMatrix updated = without(matrix, Collections.singleton(name));
+        byte[] featureData = store.read(name);
+        if (featureData != null) {
+            updated = updated.append(featureData, name);
+        }
+        Map<String, FeatureMatrix> matrices = new HashMap<>(loaded);
+        matrices.put(partition, updated);
+        loaded = matrices;
+    }
+
+    /**
+     * 从人脸库删除若干个人后调用，删除记录写入分区文件
+     */
+    public synchronized void remove(Collection<String> names) throws IOException {
+        Map<String, FeatureMatrix> matrices = new HashMap<>(loaded);
+        for (String name : names) {
+            String partition = partitionOfName.remove(name);
+            if (partition == null) {
+                continue;
+            }
+            out.writeUTF(name);
+            out.writeUTF("");
+            FeatureMatrix matrix = matrices.get(partition);
+            if (matrix != null) {
+                matrices.put(partition, without(matrix, Collections.singleton(name)));
+            }
+        }
+        out.flush();
+        loaded = matrices;
+    }
+
+    /**
+     * 清空所有分区
+     */
+    public synchronized void clear() throws IOException {
+        partitionOfName.clear();
+        loaded = Collections.emptyMap();
+        if (out != null) {
+            out.close();
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, false)));
+    }
+
+    /**
+     * 加载一个分区，已加载时直接返回
+     *
+     * @return 分区的人数
+     */
+    public synchronized int load(String partition) throws IOException {
+        FeatureMatrix matrix = loaded.get(partition);
+        if (matrix != null) {
+            return matrix.size();
+        }
+        long startTime = System.currentTimeMillis();
+        matrix = quantized ? FeatureMatrix.emptyQuantized(store) : FeatureMatrix.EMPTY;
+        for (Map.Entry<String, String> entry : partitionOfName.entrySet()) {
+            if (!entry.getValue().equals(partition)) {
+                continue;
+            }
+            byte[] featureData = store.read(entry.getKey());
+            if (featureData != null) {
+                matrix = matrix.append(featureData, entry.getKey());
+            }
+        }
+        matrix = matrix.compact();
+        Map<String, FeatureMatrix> matrices = new HashMap<>(loaded);
+        matrices.put(partition, matrix);
+        loaded = matrices;
+        Log.i(TAG, "load: partition " + partition + " of " + matrix.size() + " features in " + (System.currentTimeMillis() - startTime) + "ms");
+        return matrix.size();
+    }
+
+    /**
+     * 卸载一个分区，释放其特征占用的内存
+     */
+    public synchronized void unload(String partition) {
+        if (!loaded.containsKey(partition)) {
+            return;
+        }
+        Map<String, FeatureMatrix> matrices = new HashMap<>(loaded);
+        matrices.remove(partition);
+        loaded = matrices;
+    }
+
+    /**
+     * @return 已加载的分区，未加载时返回null
+     */
+    public FeatureMatrix get(String partition) {
+        return loaded.get(partition);
+    }
+
+    public synchronized String getPartition(String name) {
+        return partitionOfName.get(name);
+    }
+
+    /**
+     * @return 所有分区及其人数
+     */
+    public synchronized Map<String, Integer> getPartitionSizes() {
+        Map<String, Integer> sizes = new HashMap<>();
+        for (String partition : partitionOfName.values()) {
+            Integer size = sizes.get(partition);
+            sizes.put(partition, size == null ? 1 : size + 1);
+        }
+        return sizes;
+    }
+
+    /**
+     * 分区统计：分区数、已加载的分区及其人数与内存
+     */
+    public String getStats() {
+        Map<String, FeatureMatrix> matrices = loaded;
+        StringBuilder builder = new StringBuilder("partitions=").append(getPartitionSizes().size()).append(" loaded{");
+        for (Map.Entry<String, FeatureMatrix> entry : matrices.entrySet()) {
+            builder.append(' ').append(entry.getKey())
+                    .append('=').append(entry.getValue().size())
+                    .append('/').append(entry.getValue().getMemoryBytes()).append('B');
+        }
+        return builder.append(" }").toString();
+    }
+
+    private List<String> namesInStore() {
+        final List<String> names = new ArrayList<>();
+        store.forEachEntry(new FeatureStore.OnEntryListener() {
+            @Override
+            public void onEntry(String name, long offset) {
+                names.add(name);
+            }
+        });
+        return names;
+    }
+
+    private FeatureMatrix without(FeatureMatrix old, Collection<String> names) {
+        FeatureMatrix matrix = quantized ? FeatureMatrix.emptyQuantized(store) : FeatureMatrix.EMPTY;
+        for (int row = 0; row < old.size(); row++) {
+            if (!names.contains(old.getName(row))) {
+                matrix = matrix.append(old.getFeatureData(row), old.getName(row));
+            }
+        }
+        return matrix.compact();
+    }
+}
@@ -0,0 +1,332 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.Log;
+
+import com.arcsoft.face.FaceEngine;
+import com.arcsoft.imageutil.ArcSoftImageFormat;
+import com.arcsoft.imageutil.ArcSoftImageUtil;
+import com.arcsoft.imageutil.ArcSoftImageUtilError;
+import com.arcsoft.imageutil.ArcSoftRotateDegree;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 注册头像的异步写入
+ * <p>
+ * 注册线程只截取人脸区域（一次小的内存复制），旋转、转换为Bitmap、缩放及JPEG压缩都在单独的写入线程中进行，
+ * 不占用人脸库的锁，特征写入存储后即可被搜索到，不必等头像写完。队列有界，写入跟不上时注册线程等待；
+ * 写入线程复用旋转缓冲区及Bitmap，尺寸不变时不再为每张头像分配内存
+ */
+public class HeadImageWriter {
+    private static final String TAG = "HeadImageWriter";
+
+    /**
+     * 截取的人脸区域，尚未旋转
+     */
+    public static class Crop {
+        final byte[] data;
+        final int width;
+        final int height;
+        final int orient;
+        final ArcSoftImageFormat format;
+
+        Crop(byte[] data, int width, int height, int orient, ArcSoftImageFormat format) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.orient = orient;
+            this.format = format;
+        }
+    }
+
+    private static class Task {
+        final File file;
+        final Crop crop;
+
+        Task(File file, Crop crop) {
+            this.file = file;
+            this.crop = crop;
+        }
+    }
+
+    private static final Task END = new Task(null, null);
+
+    private final int maxSide;
+    private final int quality;
+    private final BlockingQueue<Task> queue;
+    private final Thread thread;
+    private final Object flushLock = new Object();
+    private int pendingCount;
+
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong writeNanos = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+
+    // 以下只在写入线程中使用
+    private byte[] rotateBuffer;
+    private Bitmap bitmap;
+    private Bitmap scaledBitmap;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect srcRect = new Rect();
+    private final Rect dstRect = new Rect();
+
+    private HeadImageWriter(Builder builder) {
+        maxSide = builder.maxSide;
+        quality = builder.quality > 0 ? builder.quality : 90;
+        queue = new ArrayBlockingQueue<>(builder.queueCapacity > 0 ? builder.queueCapacity : 16);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "FaceHeadImageWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 截取人脸区域，在注册线程中调用，返回的数据不再引用原图
+     *
+     * @param imageData 原图数据
+     * @param width     原图宽度
+     * @param height    原图高度
+     * @param cropRect  截取区域，四边需为4的倍数
+     * @param orient    人脸角度
+     * @param format    图像格式
+     * @return 截取结果，截取失败时返回null
+     */
+    public static Crop crop(byte[] imageData, int width, int height, Rect cropRect, int orient, ArcSoftImageFormat format) {
+        byte[] headImageData = ArcSoftImageUtil.createImageData(cropRect.width(), cropRect.height(), format);
+        int cropCode = ArcSoftImageUtil.cropImage(imageData, headImageData, width, height, cropRect, format);
+        if (cropCode != ArcSoftImageUtilError.CODE_SUCCESS) {
+            Log.e(TAG, "crop: crop image failed, code is " + cropCode);
+            return null;
+        }
+        return new Crop(headImageData, cropRect.width(), cropRect.height(), orient, format);
+    }
+
+    /**
+     * 提交一张头像，队列满时阻塞，不要持有人脸库的锁调用
+     *
+     * @param file 保存的文件
+     * @param crop {@link #crop}的结果
+     */
+    public void submit(File file, Crop crop) {
+        synchronized (flushLock) {
+            pendingCount++;
+        }
+        long startTime = System.nanoTime();
+        try {
+            queue.put(new Task(file, crop));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            onTaskDone();
+        }
+        blockedNanos.addAndGet(System.nanoTime() - startTime);
+    }
+
+    /**
+     * 等待已提交的头像全部写完，删除头像文件前调用，避免之后又被写出
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            while (pendingCount > 0) {
+                try {
+                    flushLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 写完已提交的头像后结束写入线程
+     */
+    public void shutdown() {
+        try {
+            queue.put(END);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 写入统计：写入及失败数量、平均每张耗时、注册线程因队列满等待的总时间
+     */
+    public String getStats() {
+        long written = writtenCount.get();
+        return "headImage written=" + written
+                + " failed=" + failedCount.get()
+                + " queued=" + queue.size()
+                + " avg=" + (written == 0 ? 0 : writeNanos.get() / written / 1000) + "us"
+                + " blocked=" + blockedNanos.get() / 1000000 + "ms"
+                + " maxSide=" + maxSide + " quality=" + quality;
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                Task task = queue.take();
+                if (task == END) {
+                    break;
+                }
+                long startTime = System.nanoTime();
+                try {
+                    write(task);
+                    writtenCount.incrementAndGet();
+                } catch (IOException | RuntimeException e) {
+                    failedCount.incrementAndGet();
+                    Log.e(TAG, "write " + task.file.getName() + ": " + e.getMessage());
+                }
+                writeNanos.addAndGet(System.nanoTime() - startTime);
+                onTaskDone();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            if (scaledBitmap != null) {
+                scaledBitmap.recycle();
+            }
+        }
+    }
+
+    private void onTaskDone() {
+        synchronized (flushLock) {
+            pendingCount--;
+            flushLock.notifyAll();
+        }
+    }
+
+    private void write(Task task) throws IOException {
+        Crop crop = task.crop;
+        ArcSoftRotateDegree rotateDegree;
+        switch (crop.orient) {
+            case FaceEngine.ASF_OC_90:
+                rotateDegree = ArcSoftRotateDegree.DEGREE_270;
+                break;
+            case FaceEngine.ASF_OC_180:
+                rotateDegree = ArcSoftRotateDegree.DEGREE_180;
+                break;
+            case FaceEngine.ASF_OC_270:
+                rotateDegree = ArcSoftRotateDegree.DEGREE_90;
+                break;
+            case FaceEngine.ASF_OC_0:
+            default:
+                rotateDegree = null;
+                break;
+        }
+        byte[] imageData = crop.data;
+        int width = crop.width;
+        int height = crop.height;
+        if (rotateDegree != null) {
+            if (rotateBuffer == null || rotateBuffer.length != crop.data.length) {
+                rotateBuffer = new byte[crop.data.length];
+            }
+            int rotateCode = ArcSoftImageUtil.rotateImage(crop.data, rotateBuffer, crop.width, crop.height, rotateDegree, crop.format);
+            if (rotateCode != ArcSoftImageUtilError.CODE_SUCCESS) {
+                throw new RuntimeException("rotate image failed, code is " + rotateCode);
+            }
+            imageData = rotateBuffer;
+            // 90度或270度的情况，需要宽高互换
+            if (rotateDegree != ArcSoftRotateDegree.DEGREE_180) {
+                width = crop.height;
+                height = crop.width;
+            }
+        }
+        bitmap = obtainBitmap(bitmap, width, height);
+        if (ArcSoftImageUtil.imageDataToBitmap(imageData, bitmap, crop.format) != ArcSoftImageUtilError.CODE_SUCCESS) {
+            throw new RuntimeException("failed to transform image data to bitmap");
+        }
+        Bitmap output = bitmap;
+        int longSide = Math.max(width, height);
+        if (maxSide > 0 && longSide > maxSide) {
+            int scaledWidth = Math.max(1, width * maxSide / longSide);
+            int scaledHeight = Math.max(1, height * maxSide / longSide);
+            scaledBitmap = obtainBitmap(scaledBitmap, scaledWidth, scaledHeight);
+            srcRect.set(0, 0, width, height);
+            dstRect.set(0, 0, scaledWidth, scaledHeight);
+            new Canvas(scaledBitmap).drawBitmap(bitmap, srcRect, dstRect, paint);
+            output = scaledBitmap;
+        }
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(task.file));
+        try {
+            if (!output.compress(Bitmap.CompressFormat.JPEG, quality, out)) {
+                throw new IOException("compress failed");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 复用已有的Bitmap，容量不够时重新分配
+     */
+    private static Bitmap obtainBitmap(Bitmap reusable, int width, int height) {
+        if (reusable != null && reusable.getWidth() == width && reusable.getHeight() == height) {
+            return reusable;
+        }
+        if (reusable != null && reusable.getAllocationByteCount() >= width * height * 2) {
+            reusable.reconfigure(width, height, Bitmap.Config.RGB_565);
+            return reusable;
+        }
+        if (reusable != null) {
+            reusable.recycle();
+        }
+        return Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+    }
+
+    public static final class Builder {
+        private int maxSide;
+        private int quality;
+        private int queueCapacity;
+
+        public Builder() {
+        }
+
+        /**
+         * 头像长边的最大值，超过时缩小，0表示不缩放
+         */
+        public Builder maxSide(int val) {
+            maxSide = val;
+            return this;
+        }
+
+        /**
+         * JPEG质量
+         */
+        public Builder quality(int val) {
+            quality = val;
+            return this;
+        }
+
+        /**
+         * 等待写入的头像数量上限
+         */
+        public Builder queueCapacity(int val) {
+            queueCapacity = val;
+            return this;
+        }
+
+        public HeadImageWriter build() {
+            return new HeadImageWriter(this);
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 倒排文件（IVF）近似最近邻索引
+ * <p>
+ * 用k-means把人脸库特征聚成若干簇，搜索时只扫描与查询最接近的nprobe个簇，
+ * 簇内的候选使用{@link FeatureMatrix}中的完整特征精确打分。nprobe越大召回越高、耗时越长
+ */
+public class IvfIndex {
+    private static final int FILE_MAGIC = 0x49564631;
+    private static final int DIM = FeatureMatrix.FEATURE_DIM;
+    /**
+     * 训练时每个簇采样的特征数
+     */
+    private static final int TRAIN_SAMPLES_PER_LIST = 32;
+    private static final int TRAIN_ITERATIONS = 8;
+
+    private final int listCount;
+    private final float[] centroids;
+    /**
+     * 每个簇包含的行号
+     */
+    private final int[][] lists;
+    private final int[] listSizes;
+    private int indexedRows;
+    private final int trainedRows;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private IvfIndex(float[] centroids, int listCount, int trainedRows) {
+        this.centroids = centroids;
+        this.listCount = listCount;
+        this.trainedRows = trainedRows;
+        lists = new int[listCount][];
+        listSizes = new int[listCount];
+        for (int i = 0; i < listCount; i++) {
+            lists[i] = new int[16];
+        }
+    }
+
+    /**
+     * 在人脸库快照上训练k-means并建立索引
+     *
+     * @param matrix    人脸库快照
+     * @param listCount 簇的数量，一般取人脸库大小的平方根
+     * @return 索引，人脸库小于簇数量时返回null
+     */
+    public static IvfIndex train(FeatureMatrix matrix, int listCount) {
+        int size = matrix.size();
+        if (listCount <= 0 || size < listCount) {
+            return null;
+        }
+        Random random = new Random(size);
+        int sampleCount = Math.min(size, listCount * TRAIN_SAMPLES_PER_LIST);
+        int[] samples = sampleRows(size, sampleCount, random);
+        float[] centroids = new float[listCount * DIM];
+        float[] vector = new float[DIM];
+        // 以随机样本初始化簇中心
+        for (int c = 0; c < listCount; c++) {
+            matrix.copyRow(samples[c], centroids, c * DIM);
+        }
+        float[] sums = new float[listCount * DIM];
+        int[] counts = new int[listCount];
+        for (int iteration = 0; iteration < TRAIN_ITERATIONS; iteration++) {
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            for (int sample : samples) {
+                matrix.copyRow(sample, vector, 0);
+                int c = nearestCentroid(centroids, listCount, vector);
+                counts[c]++;
+                for (int d = 0; d < DIM; d++) {
+                    sums[c * DIM + d] += vector[d];
+                }
+            }
+            for (int c = 0; c < listCount; c++) {
+                if (counts[c] == 0) {
+                    // 空簇重新随机取一个样本
+                    matrix.copyRow(samples[random.nextInt(sampleCount)], centroids, c * DIM);
+                    continue;
+                }
+                normalize(sums, c * DIM, centroids);
+            }
+        }
+        IvfIndex index = new IvfIndex(centroids, listCount, size);
+        index.addRange(matrix, 0, size);
+        return index;
+    }
+
+    /**
+     * 把人脸库中[fromRow, toRow)的特征加入索引，行号需连续递增
+     */
+    public void addRange(FeatureMatrix matrix, int fromRow, int toRow) {
+        float[] vector = new float[DIM];
+        lock.writeLock().lock();
+        try {
+            for (int row = Math.max(fromRow, indexedRows); row < toRow; row++) {
+                matrix.copyRow(row, vector, 0);
+                addToList(nearestCentroid(centroids, listCount, vector), row);
+                indexedRows = row + 1;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addToList(int list, int row) {
+        if (listSizes[list] == lists[list].length) {
+            lists[list] = Arrays.copyOf(lists[list], lists[list].length * 2);
+        }
+        lists[list][listSizes[list]++] = row;
+    }
+
+    public int getIndexedRows() {
+        lock.readLock().lock();
+        try {
+            return indexedRows;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 训练时的人脸库大小，人脸库增长较多后应重新训练
+     */
+    public int getTrainedRows() {
+        return trainedRows;
+    }
+
+    public int getListCount() {
+        return listCount;
+    }
+
+    /**
+     * 与向量最接近的若干个簇
+     *
+     * @param vector 向量
+     * @param count  簇的数量
+     * @return 簇的编号，按距离从近到远排列
+     */
+    public int[] nearestLists(float[] vector, int count) {
+        FeatureMatrix.TopK probes = new FeatureMatrix.TopK(Math.max(1, Math.min(count, listCount)));
+        for (int c = 0; c < listCount; c++) {
+            probes.offer(c, dot(vector, centroids, c * DIM));
+        }
+        int[] lists = new int[probes.getCount()];
+        for (int i = 0; i < lists.length; i++) {
+            lists[i] = probes.getRow(i);
+        }
+        return lists;
+    }
+
+    /**
+     * 近似搜索
+     *
+     * @param matrix     人脸库快照，超出快照范围的行会被忽略
+     * @param query      查询向量
+     * @param probeCount 扫描的簇数量
+     * @param k          结果数量
+     * @return 按得分从高到低排列的结果
+     */
+    public FeatureMatrix.TopK search(FeatureMatrix matrix, float[] query, int probeCount, int k) {
+        int[] probes = nearestLists(query, probeCount);
+        FeatureMatrix.TopK topK = new FeatureMatrix.TopK(k);
+        int size = matrix.size();
+        lock.readLock().lock();
+        try {
+            for (int list : probes) {
+                int[] rows = lists[list];
+                int count = listSizes[list];
+                for (int i = 0; i < count; i++) {
+                    int row = rows[i];
+                    if (row < size) {
+                        topK.offer(row, matrix.score(query, row));
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return topK;
+    }
+
+    /**
+     * 评估不同nprobe下的recall@1与平均耗时，查询为人脸库中随机特征加上噪声
+     *
+     * @param matrix      人脸库快照
+     * @param queryCount  查询数量
+     * @param probeCounts 需要评估的nprobe
+     * @return 评估报告
+     */
+    public String evaluate(FeatureMatrix matrix, int queryCount, int[] probeCounts) {
+        int size = matrix.size();
+        if (size == 0 || queryCount <= 0) {
+            return "empty gallery";
+        }
+        Random random = new Random(queryCount);
+        float[][] queries = new float[queryCount][DIM];
+        int[] exactTop1 = new int[queryCount];
+        long exactNanos = 0;
+        for (int q = 0; q < queryCount; q++) {
+            matrix.copyRow(random.nextInt(size), queries[q], 0);
+            for (int d = 0; d < DIM; d++) {
+                queries[q][d] += (float) random.nextGaussian() * 0.5F / (float) Math.sqrt(DIM);
+            }
+            normalize(queries[q], 0, queries[q]);
+            FeatureMatrix.TopK topK = new FeatureMatrix.TopK(1);
+            long start = System.nanoTime();
+            matrix.search(queries[q], topK);
+            exactNanos += System.nanoTime() - start;
+            exactTop1[q] = topK.getRow(0);
+        }
+        StringBuilder report = new StringBuilder();
+        report.append("gallery=").append(size).append(" lists=").append(listCount)
+                .append(" exact=").append(exactNanos / queryCount / 1000).append("us");
+        for (int probeCount : probeCounts) {
+            int hit = 0;
+            long nanos = 0;
+            for (int q = 0; q < queryCount; q++) {
+                long start = System.nanoTime();
+                FeatureMatrix.TopK topK = search(matrix, queries[q], probeCount, 1);
+                nanos += System.nanoTime() - start;
+                if (topK.getCount() > 0 && topK.getRow(0) == exactTop1[q]) {
+                    hit++;
+                }
+            }
+            report.append(" | nprobe=").append(probeCount)
+                    .append(" recall@1=").append(hit / (float) queryCount)
+                    .append(" ").append(nanos / queryCount / 1000).append("us");
+        }
+        return report.toString();
+    }
+
+    /**
+     * 保存簇中心及每个簇包含的人脸名称
+     */
+    public void save(File file, FeatureMatrix matrix) throws IOException {
+        lock.readLock().lock();
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(DIM);
+                out.writeInt(listCount);
+                out.writeInt(trainedRows);
+                for (float value : centroids) {
+                    out.writeFloat(value);
+                }
+                for (int list = 0; list < listCount; list++) {
+                    int count = 0;
+                    for (int i = 0; i < listSizes[list]; i++) {
+                        if (lists[list][i] < matrix.size()) {
+                            count++;
+                        }
+                    }
+                    out.writeInt(count);
+                    for (int i = 0; i < listSizes[list]; i++) {
+                        if (lists[list][i] < matrix.size()) {
+                            out.writeUTF(matrix.getName(lists[list][i]));
+                        }
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 加载索引，文件中没有的特征重新分配到最近的簇
+     *
+     * @param file   索引文件
+     * @param matrix 当前人脸库快照
+     * @return 索引，文件不存在或格式不符时返回null
+     */
+    public static IvfIndex load(File file, FeatureMatrix matrix) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != DIM) {
+                return null;
+            }
+            int listCount = in.readInt();
+            int trainedRows = in.readInt();
+            float[] centroids = new float[listCount * DIM];
+            for (int i = 0; i < centroids.length; i++) {
+                centroids[i] = in.readFloat();
+            }
+            Map<String, Integer> rowOfName = new HashMap<>(matrix.size() * 2);
+            for (int row = 0; row < matrix.size(); row++) {
+                rowOfName.put(matrix.getName(row), row);
+            }
+            int[] listOfRow = new int[matrix.size()];
+            Arrays.fill(listOfRow, -1);
+            for (int list = 0; list < listCount; list++) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    Integer row = rowOfName.get(in.readUTF());
+                    if (row != null) {
+                        listOfRow[row] = list;
+                    }
+                }
+            }
+            IvfIndex index = new IvfIndex(centroids, listCount, trainedRows);
+            float[] vector = new float[DIM];
+            for (int row = 0; row < listOfRow.length; row++) {
+                int list = listOfRow[row];
+                if (list < 0) {
+                    matrix.copyRow(row, vector, 0);
+                    list = nearestCentroid(centroids, listCount, vector);
+                }
+                index.addToList(list, row);
+            }
+            index.indexedRows = listOfRow.length;
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int[] sampleRows(int size, int count, Random random) {
+        int[] rows = new int[size];
+        for (int i = 0; i < size; i++) {
+            rows[i] = i;
+        }
+        for (int i = 0; i < count; i++) {
+            int j = i + random.nextInt(size - i);
+            int tmp = rows[i];
+            rows[i] = rows[j];
+            rows[j] = tmp;
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    private static int nearestCentroid(float[] centroids, int listCount, float[] vector) {
+        int best = 0;
+        float bestScore = -Float.MAX_VALUE;
+        for (int c = 0; c < listCount; c++) {
+            float score = dot(vector, centroids, c * DIM);
+            if (score > bestScore) {
+                bestScore = score;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    private static float dot(float[] vector, float[] matrix, int offset) {
+        float sum = 0;
+        for (int d = 0; d < DIM; d++) {
+            sum += vector[d] * matrix[offset + d];
+        }
+        return sum;
+    }
+
+    /**
+     * 把src[offset, offset+DIM)归一化后写入dst的相同位置
+     */
+    private static void normalize(float[] src, int offset, float[] dst) {
+        float norm = 0;
+        for (int d = 0; d < DIM; d++) {
+            norm += src[offset + d] * src[offset + d];
+        }
+        float scale = norm > 0 ? (float) (1 / Math.sqrt(norm)) : 0;
+        for (int d = 0; d < DIM; d++) {
+            dst[offset + d] = src[offset + d] * scale;
+        }
+    }
+}
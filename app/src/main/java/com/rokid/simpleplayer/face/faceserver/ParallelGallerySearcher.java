@@ -0,0 +1,104 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 人脸库分片并行搜索
+ * <p>
+ * 人脸库较大时按缓存大小切成若干分片，用ForkJoin线程池并行扫描并合并top-K；
+ * 人脸库小于阈值时直接在调用线程中搜索，避免任务拆分的开销
+ */
+public class ParallelGallerySearcher {
+    /**
+     * 每个分片的行数，256行约占256KB，与常见的L2缓存大小相当
+     */
+    public static final int DEFAULT_SHARD_ROWS = 256;
+    /**
+     * 人脸库小于该行数时单线程搜索
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 4096;
+
+    private final ForkJoinPool pool;
+    private final int shardRows;
+    private final int parallelThreshold;
+
+    public ParallelGallerySearcher(int parallelism) {
+        this(parallelism, DEFAULT_SHARD_ROWS, DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * @param parallelism       并行线程数
+     * @param shardRows         每个分片的行数
+     * @param parallelThreshold 人脸库小于该行数时单线程搜索
+     */
+    public ParallelGallerySearcher(int parallelism, int shardRows, int parallelThreshold) {
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+        this.shardRows = Math.max(1, shardRows);
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * 搜索人脸库中得分最高的K个特征
+     *
+     * @param matrix 人脸库快照
+     * @param query  查询向量
+     * @param k      结果数量
+     * @return 按得分从高到低排列的结果
+     */
+    public FeatureMatrix.TopK search(FeatureMatrix matrix, float[] query, int k) {
+        int size = matrix.size();
+        if (size < parallelThreshold || pool.getParallelism() <= 1) {
+            FeatureMatrix.TopK topK = new FeatureMatrix.TopK(k);
+            matrix.search(query, 0, size, topK);
+            return topK;
+        }
+        return pool.invoke(new ShardTask(matrix, query, k, 0, size));
+    }
+
+    /**
+     * 不再接受新的搜索，之后的{@link #search}抛出{@link java.util.concurrent.RejectedExecutionException}。
+     * 正在进行的搜索继续完成，不能用shutdownNow取消，否则调用线程会收到CancellationException
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private class ShardTask extends RecursiveTask<FeatureMatrix.TopK> {
+        private final FeatureMatrix matrix;
+        private final float[] query;
+        private final int k;
+        private final int fromRow;
+        private final int toRow;
+
+        ShardTask(FeatureMatrix matrix, float[] query, int k, int fromRow, int toRow) {
+            this.matrix = matrix;
+            this.query = query;
+            this.k = k;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected FeatureMatrix.TopK compute() {
+            if (toRow - fromRow <= shardRows) {
+                FeatureMatrix.TopK topK = new FeatureMatrix.TopK(k);
+                matrix.search(query, fromRow, toRow, topK);
+                return topK;
+            }
+            // 按分片边界对半拆分
+            int shards = (toRow - fromRow + shardRows - 1) / shardRows;
+            int middle = fromRow + (shards / 2) * shardRows;
+            ShardTask left = new ShardTask(matrix, query, k, fromRow, middle);
+            ShardTask right = new ShardTask(matrix, query, k, middle, toRow);
+            left.fork();
+            FeatureMatrix.TopK result = right.compute();
+            result.merge(left.join());
+            return result;
+        }
+    }
+}
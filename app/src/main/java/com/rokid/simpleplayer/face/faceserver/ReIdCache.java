@@ -0,0 +1,239 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import android.graphics.Rect;
+
+import com.arcsoft.face.FaceFeature;
+
+/**
+ * 最近识别成功人脸的短期重识别缓存
+ * <p>
+ * 检测器丢失人脸一帧后会分配新的trackId，新的trackId先与最近识别的K个人比对，
+ * 特征足够相似，或人脸框与刚离开的人脸重叠且特征较相似时直接复用身份，未命中时才搜索完整的人脸库
+ */
+public class ReIdCache {
+    /**
+     * 与刚离开的人脸框重叠度（IoU）达到该值时，使用较低的相似度阈值
+     */
+    private static final float MIN_PROXIMITY_IOU = 0.3F;
+
+    private final int capacity;
+    private final long ttlMillis;
+    private final float similarThreshold;
+    private final float proximitySimilarThreshold;
+
+    private final FaceFeature[] features;
+    private final String[] identities;
+    private final Rect[] boxes;
+    private final long[] lastSeen;
+    private int size;
+
+    private long lookupCount;
+    private long hitCount;
+
+    /**
+     * 每个线程复用的比对候选，避免每次查找分配数组
+     */
+    private final ThreadLocal<Candidates> threadCandidates = new ThreadLocal<Candidates>() {
+        @Override
+        protected Candidates initialValue() {
+            return new Candidates(capacity);
+        }
+    };
+
+    /**
+     * @param capacity                  缓存的人数
+     * @param ttlMillis                 离开超过该时长的人不再参与比对
+     * @param similarThreshold          仅比对特征时的识别阈值
+     * @param proximitySimilarThreshold 人脸框重叠时的识别阈值
+     */
+    public ReIdCache(int capacity, long ttlMillis, float similarThreshold, float proximitySimilarThreshold) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must > 0");
+        }
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        this.similarThreshold = similarThreshold;
+        this.proximitySimilarThreshold = proximitySimilarThreshold;
+        features = new FaceFeature[capacity];
+        identities = new String[capacity];
+        boxes = new Rect[capacity];
+        lastSeen = new long[capacity];
+        for (int i = 0; i < capacity; i++) {
+            boxes[i] = new Rect();
+        }
+    }
+
+    /**
+     * 在缓存中查找人脸
+     * <p>
+     * 只在锁内复制未过期的条目，逐个比对特征在锁外进行，不阻塞其他线程的put和touch
+     *
+     * @param faceFeature 新人脸的特征
+     * @param box         新人脸的人脸框，可以为null
+     * @param now         当前时间（ms），与{@link #put}使用相同的时间基准
+     * @return 命中时返回比对结果，{@link CompareResult#isReIdentified()}为true，否则返回null
+     */
+    public CompareResult match(FaceFeature faceFeature, Rect box, long now) {
+        if (faceFeature == null) {
+            return null;
+        }
+        Candidates candidates = threadCandidates.get();
+        int count = 0;
+        synchronized (this) {
+            lookupCount++;
+            for (int i = 0; i < size; i++) {
+                if (!isAlive(i, now)) {
+                    continue;
+                }
+                candidates.features[count] = features[i];
+                candidates.identities[count] = identities[i];
+                candidates.nearby[count] = box != null && iou(box, boxes[i]) >= MIN_PROXIMITY_IOU;
+                count++;
+            }
+        }
+        int bestIndex = -1;
+        float bestSimilar = 0;
+        for (int i = 0; i < count; i++) {
+            float similar = FaceServer.getInstance().compareFeature(faceFeature, candidates.features[i]);
+            boolean accepted = similar > similarThreshold
+                    || (similar > proximitySimilarThreshold && candidates.nearby[i]);
+            if (accepted && similar > bestSimilar) {
+                bestSimilar = similar;
+                bestIndex = i;
+            }
+        }
+        String identity = bestIndex < 0 ? null : candidates.identities[bestIndex];
+        for (int i = 0; i < count; i++) {
+            candidates.features[i] = null;
+            candidates.identities[i] = null;
+        }
+        if (identity == null) {
+            return null;
+        }
+        synchronized (this) {
+            // 比对期间该条目可能已被替换或清空
+            int index = indexOf(identity);
+            if (index < 0) {
+                return null;
+            }
+            hitCount++;
+            lastSeen[index] = now;
+            if (box != null) {
+                boxes[index].set(box);
+            }
+        }
+        CompareResult result = new CompareResult(identity, bestSimilar);
+        result.setReIdentified(true);
+        return result;
+    }
+
+    /**
+     * 记录一次识别成功的结果，已存在的人更新特征，缓存满时替换最久未出现的人
+     */
+    public synchronized void put(String identity, FaceFeature faceFeature, Rect box, long now) {
+        if (identity == null || faceFeature == null) {
+            return;
+        }
+        int index = indexOf(identity);
+        if (index < 0) {
+            if (size < capacity) {
+                index = size++;
+            } else {
+                index = 0;
+                for (int i = 1; i < size; i++) {
+                    if (lastSeen[i] < lastSeen[index]) {
+                        index = i;
+                    }
+                }
+            }
+            identities[index] = identity;
+        }
+        // 总是换成新的对象，锁外正在比对的旧特征不会被修改
+        features[index] = new FaceFeature(faceFeature);
+        lastSeen[index] = now;
+        if (box != null) {
+            boxes[index].set(box);
+        } else {
+            boxes[index].setEmpty();
+        }
+    }
+
+    /**
+     * 人脸离开时更新最后出现的人脸框和时间
+     */
+    public synchronized void touch(String identity, Rect box, long now) {
+        int index = indexOf(identity);
+        if (index < 0) {
+            return;
+        }
+        lastSeen[index] = now;
+        if (box != null) {
+            boxes[index].set(box);
+        }
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < size; i++) {
+            features[i] = null;
+            identities[i] = null;
+        }
+        size = 0;
+    }
+
+    public synchronized long getLookupCount() {
+        return lookupCount;
+    }
+
+    /**
+     * 命中的次数，即省下的人脸库搜索次数
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized float getHitRate() {
+        return lookupCount == 0 ? 0 : hitCount / (float) lookupCount;
+    }
+
+    private boolean isAlive(int index, long now) {
+        long elapsed = now - lastSeen[index];
+        return elapsed >= 0 && elapsed <= ttlMillis;
+    }
+
+    private int indexOf(String identity) {
+        if (identity == null) {
+            return -1;
+        }
+        for (int i = 0; i < size; i++) {
+            if (identity.equals(identities[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static float iou(Rect a, Rect b) {
+        int left = Math.max(a.left, b.left);
+        int top = Math.max(a.top, b.top);
+        int right = Math.min(a.right, b.right);
+        int bottom = Math.min(a.bottom, b.bottom);
+        if (right <= left || bottom <= top) {
+            return 0;
+        }
+        float intersection = (float) (right - left) * (bottom - top);
+        float union = (float) a.width() * a.height() + (float) b.width() * b.height() - intersection;
+        return union <= 0 ? 0 : intersection / union;
+    }
+
+    private static final class Candidates {
+        final FaceFeature[] features;
+        final String[] identities;
+        final boolean[] nearby;
+
+        Candidates(int capacity) {
+            features = new FaceFeature[capacity];
+            identities = new String[capacity];
+            nearby = new boolean[capacity];
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 批量注册的清单，记录每张注册图的路径、大小、修改时间、内容哈希及注册得到的名字
+ * <p>
+ * 再次批量注册时大小和修改时间都没变的图片直接跳过，不读取内容；只有元数据变化的图片才计算哈希，
+ * 内容没变的只更新元数据，内容变了的先删除旧的人再重新注册，目录中已删除的图片对应的人从人脸库中删除
+ */
+public class RegisterManifest {
+    private static final String TAG = "RegisterManifest";
+    public static final String FILE_NAME = "manifest.dat";
+    private static final int FILE_MAGIC = 0x4D414E31;
+
+    /**
+     * 清单中的一条记录
+     */
+    public static class Entry {
+        public final String path;
+        public final long size;
+        public final long lastModified;
+        public final String hash;
+        public final String featureId;
+
+        Entry(String path, long size, long lastModified, String hash, String featureId) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.featureId = featureId;
+        }
+    }
+
+    /**
+     * 目录与清单的差异
+     */
+    public static class Diff {
+        /**
+         * 需要注册的图片，包括新增的和内容变化的
+         */
+        public final List<File> toRegister = new ArrayList<>();
+        /**
+         * 需要从人脸库删除的名字，包括已删除的和内容变化的图片原来注册的名字
+         */
+        public final List<String> toRemove = new ArrayList<>();
+        public int unchangedCount;
+        public int changedCount;
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<>();
+    /**
+     * diff时计算过的哈希，注册成功后写入清单时复用
+     */
+    private final Map<String, String> pendingHashes = new HashMap<>();
+
+    private RegisterManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 读取清单，文件不存在或损坏时返回空清单
+     */
+    public static RegisterManifest load(File file) {
+        RegisterManifest manifest = new RegisterManifest(file);
+        if (!file.exists()) {
+            return manifest;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FILE_MAGIC) {
+                    return manifest;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    Entry entry = new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readUTF(), in.readUTF());
+                    manifest.entries.put(entry.path, entry);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            Log.w(TAG, "load: truncated manifest, " + manifest.entries.size() + " entries kept");
+        } catch (IOException e) {
+            Log.e(TAG, "load: " + e.getMessage());
+        }
+        return manifest;
+    }
+
+    /**
+     * 先写临时文件再重命名，保存中途退出不会损坏原清单
+     */
+    public synchronized void save() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeUTF(entry.path);
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                out.writeUTF(entry.hash);
+                out.writeUTF(entry.featureId);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("rename " + tmp + " failed");
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * 对比目录中的图片与清单，已删除图片的记录会从清单中移除
+     *
+     * @param files 目录中当前的所有注册图
+     * @return 差异
+     */
+    public synchronized Diff diff(File[] files) {
+        Diff diff = new Diff();
+        Set<String> present = new HashSet<>();
+        pendingHashes.clear();
+        for (File image : files) {
+            String path = image.getAbsolutePath();
+            present.add(path);
+            Entry entry = entries.get(path);
+            if (entry == null) {
+                diff.toRegister.add(image);
+                continue;
+            }
+            if (entry.size == image.length() && entry.lastModified == image.lastModified()) {
+                diff.unchangedCount++;
+                continue;
+            }
+            String hash = hash(image);
+            if (hash != null && hash.equals(entry.hash)) {
+                // 只是修改时间变化，内容没变
+                entries.put(path, new Entry(path, image.length(), image.lastModified(), hash, entry.featureId));
+                diff.unchangedCount++;
+                continue;
+            }
+            pendingHashes.put(path, hash);
+            diff.toRemove.add(entry.featureId);
+            diff.toRegister.add(image);
+            diff.changedCount++;
+            entries.remove(path);
+        }
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            if (!present.contains(entry.path)) {
+                diff.toRemove.add(entry.featureId);
+                iterator.remove();
+            }
+        }
+        return diff;
+    }
+
+    /**
+     * 记录一张注册成功的图片
+     *
+     * @param image     注册图
+     * @param featureId 注册得到的名字
+     */
+    public synchronized void put(File image, String featureId) {
+        String path = image.getAbsolutePath();
+        String hash = pendingHashes.remove(path);
+        if (hash == null) {
+            hash = hash(image);
+        }
+        entries.put(path, new Entry(path, image.length(), image.lastModified(), hash == null ? "" : hash, featureId));
+    }
+
+    /**
+     * SHA-1内容哈希
+     *
+     * @return 十六进制字符串，读取失败时返回null
+     */
+    static String hash(File image) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            InputStream in = new FileInputStream(image);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest.digest()) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.e(TAG, "hash: " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import android.util.Log;
+
+import com.arcsoft.face.FaceFeature;
+import com.rokid.simpleplayer.face.utils.LatencyRecorder;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 有内存预算的分层人脸库
+ * <p>
+ * 经常匹配成功的人放在堆内的热层（{@link FeatureMatrix}），其余的人直接在{@link FeatureStore}数据文件的内存映射上扫描（冷层）。
+ * 每{@link #REBALANCE_INTERVAL}次搜索按匹配次数重新选择热层，匹配次数每次减半，使长期不出现的人逐渐降回冷层。
+ * 重新分层在后台线程中构建新的热层，完成后替换状态快照，不占用搜索线程。
+ * 搜索读取不可变的状态快照，追加与重新分层由单个写者串行完成
+ */
+public class TieredGallery {
+    private static final String TAG = "TieredGallery";
+    private static final int REBALANCE_INTERVAL = 256;
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final int PAGE_SIZE = 4096;
+    /**
+     * 冷层中特征向量相对记录起始位置的偏移
+     */
+    private static final int VECTOR_OFFSET = FeatureStore.RECORD_HEADER_SIZE + FeatureMatrix.FEATURE_HEADER_SIZE;
+    private static final int DIM = FeatureMatrix.FEATURE_DIM;
+    /**
+     * 所有实例共用的重新分层线程，人脸库替换后旧实例不需要关闭
+     */
+    private static final ExecutorService REBALANCE_EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TieredGallery-rebalance");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final FeatureStore store;
+    private final int hotCapacity;
+    private final float matchThreshold;
+    private volatile State state;
+
+    private final AtomicLong searchCount = new AtomicLong();
+    /**
+     * 已提交、尚未完成的重新分层，期间再达到间隔时不重复提交
+     */
+    private final AtomicBoolean rebalancePending = new AtomicBoolean();
+    private final Runnable rebalanceTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                rebalance();
+            } finally {
+                rebalancePending.set(false);
+            }
+        }
+    };
+    private final LatencyRecorder hotLatency = new LatencyRecorder(1024);
+    private final LatencyRecorder coldLatency = new LatencyRecorder(1024);
+    private long promotionCount;
+    private long demotionCount;
+    private final long[] openPageFaults;
+
+    /**
+     * 人脸库状态的快照，数组容量足够时追加不复制，与{@link FeatureMatrix}相同只允许单个写者
+     */
+    private static class State {
+        final ByteBuffer cold;
+        final long[] offsets;
+        final String[] names;
+        final AtomicIntegerArray hits;
+        final int size;
+        final FeatureMatrix hot;
+        /**
+         * 热层的行对应的人脸库行号
+         */
+        final int[] hotRows;
+        final boolean[] isHot;
+
+        State(ByteBuffer cold, long[] offsets, String[] names, AtomicIntegerArray hits, int size,
+              FeatureMatrix hot, int[] hotRows, boolean[] isHot) {
+            this.cold = cold;
+            this.offsets = offsets;
+            this.names = names;
+            this.hits = hits;
+            this.size = size;
+            this.hot = hot;
+            this.hotRows = hotRows;
+            this.isHot = isHot;
+        }
+    }
+
+    /**
+     * @param store             已打开的特征存储
+     * @param memoryBudgetBytes 热层可使用的堆内存
+     * @param matchThreshold    搜索结果达到该相似度才计为一次匹配
+     */
+    public TieredGallery(FeatureStore store, long memoryBudgetBytes, float matchThreshold) throws IOException {
+        this.store = store;
+        this.hotCapacity = (int) Math.min(Integer.MAX_VALUE,
+                memoryBudgetBytes / (DIM * 4 + FaceFeature.FEATURE_SIZE));
+        this.matchThreshold = matchThreshold;
+        final int count = store.size();
+        int capacity = Math.max(DEFAULT_CAPACITY, count);
+        final long[] offsets = new long[capacity];
+        final String[] names = new String[capacity];
+        final int[] index = {0};
+        store.forEachEntry(new FeatureStore.OnEntryListener() {
+            @Override
+            public void onEntry(String name, long offset) {
+                if (index[0] < offsets.length) {
+                    names[index[0]] = name;
+                    offsets[index[0]] = offset;
+                    index[0]++;
+                }
+            }
+        });
+        state = new State(mapStore(), offsets, names, new AtomicIntegerArray(capacity), index[0],
+                FeatureMatrix.EMPTY, new int[0], new boolean[capacity]);
+        openPageFaults = readPageFaults();
+    }
+
+    private ByteBuffer mapStore() throws IOException {
+        MappedByteBuffer buffer = store.map();
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public int size() {
+        return state.size;
+    }
+
+    public int getHotCapacity() {
+        return hotCapacity;
+    }
+
+    /**
+     * 取冷层前若干条特征组成的矩阵，用于校验纯Java相似度
+     */
+    public FeatureMatrix sample(int count) {
+        State s = state;
+        FeatureMatrix matrix = FeatureMatrix.EMPTY;
+        for (int row = 0; row < Math.min(count, s.size); row++) {
+            matrix = matrix.append(readFeature(s, row), s.names[row]);
+        }
+        return matrix;
+    }
+
+    /**
+     * 特征已追加到存储后调用，新的人放在冷层
+     */
+    public synchronized void append(String name) throws IOException {
+        long offset = store.getOffset(name);
+        if (offset < 0) {
+            return;
+        }
+        State s = state;
+        long[] offsets = s.offsets;
+        String[] names = s.names;
+        AtomicIntegerArray hits = s.hits;
+        boolean[] isHot = s.isHot;
+        if (s.size == offsets.length) {
+            int newCapacity = offsets.length * 2;
+            offsets = Arrays.copyOf(offsets, newCapacity);
+            names = Arrays.copyOf(names, newCapacity);
+            isHot = Arrays.copyOf(isHot, newCapacity);
+            AtomicIntegerArray newHits = new AtomicIntegerArray(newCapacity);
+            for (int i = 0; i < s.size; i++) {
+                newHits.set(i, hits.get(i));
+            }
+            hits = newHits;
+        }
+        offsets[s.size] = offset;
+        names[s.size] = name;
+        ByteBuffer cold = offset + FeatureStore.RECORD_SIZE > s.cold.capacity() ? mapStore() : s.cold;
+        state = new State(cold, offsets, names, hits, s.size + 1, s.hot, s.hotRows, isHot);
+    }
+
+    /**
+     * 搜索相似度最高的人
+     *
+     * @param query 查询向量
+     * @return 搜索结果，人脸库为空时返回null
+     */
+    public CompareResult search(float[] query) {
+        State s = state;
+        int bestRow = -1;
+        float bestScore = -Float.MAX_VALUE;
+
+        long startTime = System.nanoTime();
+        FeatureMatrix.TopK topK = new FeatureMatrix.TopK(1);
+        s.hot.search(query, topK);
+        if (topK.getCount() > 0) {
+            bestRow = s.hotRows[topK.getRow(0)];
+            bestScore = topK.getScore(0);
+        }
+        long hotEndTime = System.nanoTime();
+        hotLatency.record(hotEndTime - startTime);
+
+        ByteBuffer cold = s.cold;
+        for (int row = 0; row < s.size; row++) {
+            if (s.isHot[row]) {
+                continue;
+            }
+            float score = coldDot(query, cold, (int) s.offsets[row] + VECTOR_OFFSET);
+            if (score > bestScore) {
+                bestScore = score;
+                bestRow = row;
+            }
+        }
+        coldLatency.record(System.nanoTime() - hotEndTime);
+
+        if (bestRow >= 0 && bestScore >= matchThreshold) {
+            s.hits.incrementAndGet(bestRow);
+        }
+        if (searchCount.incrementAndGet() % REBALANCE_INTERVAL == 0 && rebalancePending.compareAndSet(false, true)) {
+            REBALANCE_EXECUTOR.execute(rebalanceTask);
+        }
+        if (bestRow < 0 || bestScore <= 0) {
+            return null;
+        }
+        return new CompareResult(s.names[bestRow], bestScore);
+    }
+
+    private static float coldDot(float[] query, ByteBuffer cold, int position) {
+        float s0 = 0;
+        float s1 = 0;
+        for (int i = 0; i < DIM; i += 2, position += 8) {
+            s0 += query[i] * cold.getFloat(position);
+            s1 += query[i + 1] * cold.getFloat(position + 4);
+        }
+        return s0 + s1;
+    }
+
+    /**
+     * 按匹配次数重新选择热层，之后所有人的匹配次数减半
+     */
+    public synchronized void rebalance() {
+        State s = state;
+        int candidateCount = 0;
+        long[] candidates = new long[Math.min(s.size, Math.max(16, hotCapacity * 2))];
+        for (int row = 0; row < s.size; row++) {
+            int hit = s.hits.get(row);
+            if (hit <= 0) {
+                continue;
+            }
+            if (candidateCount == candidates.length) {
+                candidates = Arrays.copyOf(candidates, candidates.length * 2);
+            }
+            // 高32位为匹配次数，排序后次数多的在末尾
+            candidates[candidateCount++] = ((long) hit << 32) | row;
+            s.hits.set(row, hit >> 1);
+        }
+        Arrays.sort(candidates, 0, candidateCount);
+        int hotCount = Math.min(hotCapacity, candidateCount);
+        int[] hotRows = new int[hotCount];
+        boolean[] isHot = new boolean[s.isHot.length];
+        FeatureMatrix hot = FeatureMatrix.EMPTY;
+        int promoted = 0;
+        for (int i = 0; i < hotCount; i++) {
+            int row = (int) candidates[candidateCount - 1 - i];
+            hotRows[i] = row;
+            isHot[row] = true;
+            if (!s.isHot[row]) {
+                promoted++;
+            }
+            hot = hot.append(readFeature(s, row), s.names[row]);
+        }
+        int demoted = s.hotRows.length - (hotCount - promoted);
+        promotionCount += promoted;
+        demotionCount += demoted;
+        state = new State(s.cold, s.offsets, s.names, s.hits, s.size, hot, hotRows, isHot);
+        if (promoted > 0 || demoted > 0) {
+            Log.d(TAG, "rebalance: hot " + hotCount + ", promoted " + promoted + ", demoted " + demoted);
+        }
+    }
+
+    private static byte[] readFeature(State s, int row) {
+        byte[] featureData = new byte[FaceFeature.FEATURE_SIZE];
+        ByteBuffer cold = s.cold.duplicate();
+        cold.position((int) s.offsets[row] + FeatureStore.RECORD_HEADER_SIZE);
+        cold.get(featureData);
+        return featureData;
+    }
+
+    /**
+     * 分层统计：各层大小与内存、进程常驻内存、升降级次数、各层搜索耗时及打开以来的缺页次数
+     */
+    public synchronized String getStats() {
+        State s = state;
+        long[] faults = readPageFaults();
+        return "tiered hot=" + s.hotRows.length + "/" + hotCapacity
+                + " cold=" + (s.size - s.hotRows.length)
+                + " hotBytes=" + s.hot.getMemoryBytes()
+                + " mapped=" + s.cold.capacity()
+                + " rss=" + readResidentBytes()
+                + " promoted=" + promotionCount + " demoted=" + demotionCount
+                + " hot{" + hotLatency.summary() + "}"
+                + " cold{" + coldLatency.summary() + "}"
+                + " faults minor=" + (faults[0] - openPageFaults[0]) + " major=" + (faults[1] - openPageFaults[1]);
+    }
+
+    /**
+     * 从/proc/self/stat读取进程的缺页次数
+     *
+     * @return {minflt, majflt}，读取失败时为0
+     */
+    private static long[] readPageFaults() {
+        long[] faults = new long[2];
+        String line = readFirstLine("/proc/self/stat");
+        if (line == null) {
+            return faults;
+        }
+        // 进程名可能包含空格，从最后一个')'之后开始解析，第1项为第3个字段state
+        String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+        try {
+            faults[0] = Long.parseLong(fields[7]);
+            faults[1] = Long.parseLong(fields[9]);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "readPageFaults: " + e.getMessage());
+        }
+        return faults;
+    }
+
+    /**
+     * 从/proc/self/statm读取进程的常驻内存
+     */
+    private static long readResidentBytes() {
+        String line = readFirstLine("/proc/self/statm");
+        if (line == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(line.split(" ")[1]) * PAGE_SIZE;
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private static String readFirstLine(String path) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(path));
+            try {
+                return reader.readLine();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import android.graphics.Rect;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.arcsoft.face.FaceFeature;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 每个视频一个的人脸特征旁路文件，保存每个人脸（trackId）质量最好的一个特征
+ * <p>
+ * 提交特征提取时记录帧时间戳、人脸框及最佳帧评分，提取成功后与该人脸已有的特征比较评分，保留较好的一个；
+ * 人脸离开或视频结束时写入一条定长记录。人脸库变化后只需读取这个文件重新搜索人脸库，
+ * 不需要重新解码视频及检测人脸。提交与提取回调可能在不同的线程中，方法都加锁
+ */
+public class TrackFeatureSidecar {
+    private static final String TAG = "TrackFeatureSidecar";
+    public static final String EXTENSION = ".tracks";
+    public static final int MAGIC = 0x54524B46;
+    public static final int VERSION = 1;
+    /**
+     * 记录：trackId、时间戳、人脸框、评分及特征
+     */
+    public static final int RECORD_SIZE = 4 + 8 + 16 + 4 + FaceFeature.FEATURE_SIZE;
+
+    /**
+     * 一个人脸的特征
+     */
+    public static class Record {
+        private final int trackId;
+        private final long pts;
+        private final Rect box;
+        private final float quality;
+        private byte[] featureData;
+        /**
+         * 特征返回前人脸已经离开，返回后直接写入
+         */
+        private boolean left;
+
+        Record(int trackId, long pts, Rect box, float quality, byte[] featureData) {
+            this.trackId = trackId;
+            this.pts = pts;
+            this.box = box;
+            this.quality = quality;
+            this.featureData = featureData;
+        }
+
+        public int getTrackId() {
+            return trackId;
+        }
+
+        /**
+         * @return 提交特征提取时的帧时间戳（ms）
+         */
+        public long getPts() {
+            return pts;
+        }
+
+        public Rect getBox() {
+            return box;
+        }
+
+        /**
+         * @return 最佳帧评分
+         */
+        public float getQuality() {
+            return quality;
+        }
+
+        public byte[] getFeatureData() {
+            return featureData;
+        }
+    }
+
+    /**
+     * 已提交、尚未返回特征的人脸
+     */
+    private final SparseArray<Record> pending = new SparseArray<>();
+    /**
+     * 每个人脸目前最好的特征
+     */
+    private final SparseArray<Record> best = new SparseArray<>();
+    private DataOutputStream out;
+
+    private int writtenCount;
+    private int offeredCount;
+    private int replacedCount;
+
+    /**
+     * 开始一个视频，之前的视频先结束
+     *
+     * @param dir       输出目录
+     * @param videoName 视频名，作为输出文件名
+     */
+    public synchronized void open(File dir, String videoName) throws IOException {
+        close();
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, videoName + EXTENSION)), 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writtenCount = 0;
+        offeredCount = 0;
+        replacedCount = 0;
+    }
+
+    /**
+     * 提交特征提取时调用
+     *
+     * @param trackId 人脸trackId
+     * @param pts     帧时间戳（ms）
+     * @param box     人脸框
+     * @param quality 最佳帧评分
+     */
+    public synchronized void prepare(int trackId, long pts, Rect box, float quality) {
+        if (out == null) {
+            return;
+        }
+        pending.put(trackId, new Record(trackId, pts, box == null ? new Rect() : new Rect(box), quality, null));
+    }
+
+    /**
+     * 特征提取成功时调用，评分不低于已有的特征时替换
+     */
+    public synchronized void offer(int trackId, byte[] featureData) {
+        Record record = pending.get(trackId);
+        if (record == null) {
+            return;
+        }
+        pending.remove(trackId);
+        offeredCount++;
+        Record current = best.get(trackId);
+        if (current != null) {
+            if (record.quality < current.quality) {
+                return;
+            }
+            replacedCount++;
+        }
+        record.featureData = featureData.clone();
+        if (record.left) {
+            best.remove(trackId);
+            write(record);
+        } else {
+            best.put(trackId, record);
+        }
+    }
+
+    /**
+     * 人脸离开时写入它的特征，正在提取的特征返回后再比较写入
+     */
+    public synchronized void flush(int trackId) {
+        Record inFlight = pending.get(trackId);
+        Record record = best.get(trackId);
+        if (inFlight != null && (record == null || inFlight.quality >= record.quality)) {
+            inFlight.left = true;
+            return;
+        }
+        pending.remove(trackId);
+        if (record == null) {
+            return;
+        }
+        best.remove(trackId);
+        write(record);
+    }
+
+    /**
+     * 写入所有人脸的特征并关闭文件
+     */
+    public synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        for (int i = 0; i < best.size(); i++) {
+            write(best.valueAt(i));
+        }
+        best.clear();
+        pending.clear();
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close: " + e.getMessage());
+        }
+        out = null;
+    }
+
+    /**
+     * 统计：写入的人脸数、提取成功的特征数、被更好的特征替换的次数
+     */
+    public synchronized String getStats() {
+        return "tracks=" + writtenCount
+                + " offered=" + offeredCount
+                + " replaced=" + replacedCount
+                + " bytes=" + (8 + (long) writtenCount * RECORD_SIZE);
+    }
+
+    /**
+     * 读取旁路文件中的所有记录，最后一条不完整时忽略
+     */
+    public static List<Record> read(File file) throws IOException {
+        List<Record> records = new ArrayList<>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unsupported sidecar " + file);
+            }
+            while (true) {
+                int trackId = in.readInt();
+                long pts = in.readLong();
+                Rect box = new Rect(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                float quality = in.readFloat();
+                byte[] featureData = new byte[FaceFeature.FEATURE_SIZE];
+                in.readFully(featureData);
+                records.add(new Record(trackId, pts, box, quality, featureData));
+            }
+        } catch (EOFException e) {
+            // 读到末尾，或最后一条记录没有写完整
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    private void write(Record record) {
+        try {
+            out.writeInt(record.trackId);
+            out.writeLong(record.pts);
+            out.writeInt(record.box.left);
+            out.writeInt(record.box.top);
+            out.writeInt(record.box.right);
+            out.writeInt(record.box.bottom);
+            out.writeFloat(record.quality);
+            out.write(record.featureData);
+            writtenCount++;
+        } catch (IOException e) {
+            Log.e(TAG, "write: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import android.util.Log;
+
+import com.arcsoft.face.FaceFeature;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 未识别访客的在线聚类
+ * <p>
+ * 人脸库中搜索不到的特征按顺序聚类（leader聚类）：与最近的簇中心相似度达到阈值时并入该簇并更新中心，否则新建一个簇，
+ * 每个簇有一个跨追踪、跨视频不变的访客ID。簇较多时用{@link IvfIndex}在各簇的首个特征上查找候选簇，再用簇中心精确打分。
+ * 簇在某个人脸库版本下经过完整搜索确认不在人脸库中后，同一版本下再次出现的该访客可以直接返回访客ID，不再搜索人脸库；
+ * 出现次数多的簇可以导出为注册候选
+ */
+public class VisitorClusterer {
+    private static final String TAG = "VisitorClusterer";
+    public static final String FILE_NAME = "visitors.dat";
+    private static final int FILE_MAGIC = 0x56495331;
+    private static final int DIM = FeatureMatrix.FEATURE_DIM;
+    /**
+     * 簇的数量达到该值时使用近似最近邻查找候选簇
+     */
+    private static final int ANN_MIN_CLUSTERS = 1024;
+    private static final int ANN_RETRAIN_GROWTH = 4;
+    private static final int ANN_PROBE_COUNT = 16;
+    private static final int ANN_CANDIDATES = 8;
+
+    /**
+     * 一个访客簇
+     */
+    public static class Visitor {
+        public final String id;
+        /**
+         * 成员特征之和，与其长度的比值即为归一化的簇中心
+         */
+        final float[] sum;
+        float norm;
+        /**
+         * 首个特征，用于近似最近邻查找
+         */
+        final byte[] seed;
+        /**
+         * 与簇中心最相似的成员，作为注册候选的特征
+         */
+        byte[] representative;
+        float representativeScore;
+        int featureCount;
+        int sightingCount;
+        long firstSeen;
+        long lastSeen;
+        /**
+         * 最近一次经过完整搜索确认时的人脸库版本
+         */
+        int verifiedVersion;
+
+        Visitor(String id, byte[] seed) {
+            this.id = id;
+            this.seed = seed;
+            this.sum = new float[DIM];
+            this.representative = seed;
+        }
+
+        public int getFeatureCount() {
+            return featureCount;
+        }
+
+        public int getSightingCount() {
+            return sightingCount;
+        }
+
+        public long getFirstSeen() {
+            return firstSeen;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        public byte[] getRepresentative() {
+            return representative;
+        }
+
+        float score(float[] query) {
+            if (norm <= 0) {
+                return 0;
+            }
+            float dot = 0;
+            for (int i = 0; i < DIM; i++) {
+                dot += query[i] * sum[i];
+            }
+            return dot / norm;
+        }
+
+        void add(float[] vector) {
+            double squares = 0;
+            for (int i = 0; i < DIM; i++) {
+                sum[i] += vector[i];
+                squares += sum[i] * sum[i];
+            }
+            norm = (float) Math.sqrt(squares);
+            featureCount++;
+        }
+    }
+
+    private final File file;
+    private final float joinThreshold;
+    private final float matchThreshold;
+    private final List<Visitor> visitors = new ArrayList<>();
+    private int nextId = 1;
+    /**
+     * 各簇首个特征组成的矩阵，行号即簇在{@link #visitors}中的下标
+     */
+    private FeatureMatrix seeds = FeatureMatrix.EMPTY;
+    private IvfIndex seedIndex;
+
+    private long assignCount;
+    private long matchCount;
+    private long shortCircuitCount;
+
+    /**
+     * @param file           保存的文件
+     * @param joinThreshold  与簇中心相似度达到该值时并入该簇
+     * @param matchThreshold 与已确认的簇中心相似度达到该值时不再搜索人脸库
+     */
+    public VisitorClusterer(File file, float joinThreshold, float matchThreshold) {
+        this.file = file;
+        this.joinThreshold = joinThreshold;
+        this.matchThreshold = matchThreshold;
+    }
+
+    /**
+     * 查找已确认不在当前人脸库中的访客
+     *
+     * @param featureData    特征数据
+     * @param newSighting    是否是一次新的出现（新的追踪）
+     * @param galleryVersion 当前的人脸库版本
+     * @return 访客ID，没有时返回null，需要搜索人脸库
+     */
+    public synchronized String match(byte[] featureData, boolean newSighting, int galleryVersion) {
+        matchCount++;
+        float[] query = FeatureMatrix.toVector(featureData, null);
+        int best = nearest(query);
+        if (best < 0) {
+            return null;
+        }
+        Visitor visitor = visitors.get(best);
+        if (visitor.verifiedVersion != galleryVersion || visitor.score(query) < matchThreshold) {
+            return null;
+        }
+        visitor.lastSeen = System.currentTimeMillis();
+        if (newSighting) {
+            visitor.sightingCount++;
+        }
+        shortCircuitCount++;
+        return visitor.id;
+    }
+
+    /**
+     * 把人脸库中搜索不到的特征并入最近的簇或新建一个簇
+     *
+     * @param featureData    特征数据
+     * @param newSighting    是否是一次新的出现（新的追踪），同一追踪的重试只更新簇中心
+     * @param galleryVersion 完整搜索时的人脸库版本
+     * @return 访客ID
+     */
+    public synchronized String assign(byte[] featureData, boolean newSighting, int galleryVersion) {
+        assignCount++;
+        float[] vector = FeatureMatrix.toVector(featureData, null);
+        int best = nearest(vector);
+        Visitor visitor;
+        float score = best < 0 ? 0 : visitors.get(best).score(vector);
+        if (best >= 0 && score >= joinThreshold) {
+            visitor = visitors.get(best);
+        } else {
+            visitor = new Visitor(String.format(Locale.US, "V%06d", nextId++), featureData.clone());
+            visitor.firstSeen = System.currentTimeMillis();
+            addSeed(visitor);
+            // 首个特征与中心的相似度未知，之后并入的更接近中心的成员会替换它
+            score = 0;
+        }
+        visitor.add(vector);
+        if (score > visitor.representativeScore) {
+            visitor.representative = featureData.clone();
+            visitor.representativeScore = score;
+        }
+        if (newSighting) {
+            visitor.sightingCount++;
+        }
+        visitor.lastSeen = System.currentTimeMillis();
+        visitor.verifiedVersion = galleryVersion;
+        return visitor.id;
+    }
+
+    /**
+     * 删除一个簇，例如已注册到人脸库的访客。近似最近邻的行号与簇下标对应，删除后重建
+     */
+    public synchronized boolean remove(String id) {
+        for (int i = 0; i < visitors.size(); i++) {
+            if (visitors.get(i).id.equals(id)) {
+                visitors.remove(i);
+                rebuildSeeds();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return visitors.size();
+    }
+
+    /**
+     * @param minSightings 最少出现次数
+     * @return 出现次数达到要求的簇，按出现次数从多到少排序
+     */
+    public synchronized List<Visitor> getCandidates(int minSightings) {
+        List<Visitor> candidates = new ArrayList<>();
+        for (Visitor visitor : visitors) {
+            if (visitor.sightingCount >= minSightings) {
+                candidates.add(visitor);
+            }
+        }
+        Collections.sort(candidates, new Comparator<Visitor>() {
+            @Override
+            public int compare(Visitor a, Visitor b) {
+                return b.sightingCount - a.sightingCount;
+            }
+        });
+        return candidates;
+    }
+
+    /**
+     * 导出注册候选：每个候选的代表特征保存为“访客ID.feature”，可用{@link FaceServer#registerFeature}注册，
+     * 另写一份列表candidates.txt，每行为访客ID、出现次数、特征数量、首次及最近出现时间
+     *
+     * @return 导出的数量
+     */
+    public int exportCandidates(File dir, int minSightings) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("can not create directory " + dir);
+        }
+        List<Visitor> candidates = getCandidates(minSightings);
+        FileWriter writer = new FileWriter(new File(dir, "candidates.txt"));
+        try {
+            for (Visitor visitor : candidates) {
+                FileOutputStream out = new FileOutputStream(new File(dir, visitor.id + ".feature"));
+                try {
+                    out.write(visitor.representative);
+                } finally {
+                    out.close();
+                }
+                writer.write(visitor.id + "\t" + visitor.sightingCount + "\t" + visitor.featureCount
+                        + "\t" + visitor.firstSeen + "\t" + visitor.lastSeen + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        return candidates.size();
+    }
+
+    /**
+     * 读取保存的簇，文件不存在或损坏时从空开始
+     */
+    public synchronized void load() {
+        visitors.clear();
+        nextId = 1;
+        if (file.exists()) {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                try {
+                    if (in.readInt() == FILE_MAGIC) {
+                        nextId = in.readInt();
+                        int count = in.readInt();
+                        for (int i = 0; i < count; i++) {
+                            Visitor visitor = new Visitor(in.readUTF(), readFeature(in));
+                            visitor.representative = readFeature(in);
+                            visitor.representativeScore = in.readFloat();
+                            visitor.featureCount = in.readInt();
+                            visitor.sightingCount = in.readInt();
+                            visitor.firstSeen = in.readLong();
+                            visitor.lastSeen = in.readLong();
+                            double squares = 0;
+                            for (int d = 0; d < DIM; d++) {
+                                visitor.sum[d] = in.readFloat();
+                                squares += visitor.sum[d] * visitor.sum[d];
+                            }
+                            visitor.norm = (float) Math.sqrt(squares);
+                            // 人脸库可能已经变化，需要重新确认
+                            visitor.verifiedVersion = -1;
+                            visitors.add(visitor);
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "load: " + e.getMessage() + ", " + visitors.size() + " visitors kept");
+            }
+        }
+        rebuildSeeds();
+    }
+
+    /**
+     * 先写临时文件再重命名
+     */
+    public synchronized void save() throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("can not create directory " + dir);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(nextId);
+            out.writeInt(visitors.size());
+            for (Visitor visitor : visitors) {
+                out.writeUTF(visitor.id);
+                out.write(visitor.seed);
+                out.write(visitor.representative);
+                out.writeFloat(visitor.representativeScore);
+                out.writeInt(visitor.featureCount);
+                out.writeInt(visitor.sightingCount);
+                out.writeLong(visitor.firstSeen);
+                out.writeLong(visitor.lastSeen);
+                for (int d = 0; d < DIM; d++) {
+                    out.writeFloat(visitor.sum[d]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("rename " + tmp + " failed");
+        }
+    }
+
+    /**
+     * 统计：簇数量、聚类及查找次数、省去的人脸库搜索次数
+     */
+    public synchronized String getStats() {
+        return "visitors=" + visitors.size()
+                + " assigned=" + assignCount
+                + " lookups=" + matchCount
+                + " shortCircuit=" + shortCircuitCount
+                + " ann=" + (seedIndex == null ? "off" : seedIndex.getListCount() + " lists");
+    }
+
+    /**
+     * @return 簇中心与query最相似的簇下标，没有簇时返回-1
+     */
+    private int nearest(float[] query) {
+        int best = -1;
+        float bestScore = -Float.MAX_VALUE;
+        if (seedIndex != null) {
+            FeatureMatrix.TopK topK = seedIndex.search(seeds, query, ANN_PROBE_COUNT, ANN_CANDIDATES);
+            for (int i = 0; i < topK.getCount(); i++) {
+                int row = topK.getRow(i);
+                float score = visitors.get(row).score(query);
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = row;
+                }
+            }
+            return best;
+        }
+        for (int i = 0; i < visitors.size(); i++) {
+            float score = visitors.get(i).score(query);
+            if (score > bestScore) {
+                bestScore = score;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private void addSeed(Visitor visitor) {
+        visitors.add(visitor);
+        seeds = seeds.append(visitor.seed, visitor.id);
+        if (seedIndex != null) {
+            seedIndex.addRange(seeds, seeds.size() - 1, seeds.size());
+        }
+        if (seeds.size() >= ANN_MIN_CLUSTERS
+                && (seedIndex == null || seeds.size() >= seedIndex.getTrainedRows() * ANN_RETRAIN_GROWTH)) {
+            trainSeedIndex();
+        }
+    }
+
+    private void rebuildSeeds() {
+        FeatureMatrix matrix = FeatureMatrix.EMPTY;
+        for (Visitor visitor : visitors) {
+            matrix = matrix.append(visitor.seed, visitor.id);
+        }
+        seeds = matrix;
+        seedIndex = null;
+        if (seeds.size() >= ANN_MIN_CLUSTERS) {
+            trainSeedIndex();
+        }
+    }
+
+    private void trainSeedIndex() {
+        long startTime = System.currentTimeMillis();
+        seedIndex = IvfIndex.train(seeds, (int) Math.sqrt(seeds.size()));
+        Log.i(TAG, "trainSeedIndex: " + seeds.size() + " visitors, cost " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    private static byte[] readFeature(DataInputStream in) throws IOException {
+        byte[] featureData = new byte[FaceFeature.FEATURE_SIZE];
+        in.readFully(featureData);
+        return featureData;
+    }
+}
@@ -0,0 +1,468 @@
+package com.rokid.simpleplayer.face.utils;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 识别结果的出现区间索引，用于查询“某人在哪些视频的哪些时间出现过”
+ * <p>
+ * 数据文件{@link #DATA_FILE_NAME}由定长记录组成：身份编号、视频编号、起止时间戳、帧数及最高相似度；
+ * 字典文件{@link #DICT_FILE_NAME}按追加顺序记录身份名与视频名，编号即在各自类型中的序号。
+ * 两个文件末尾没有写完整的记录在打开时截掉，再继续追加。
+ * 同一个视频重新分析时分配新的视频编号，旧编号的记录在查询时被忽略。
+ * 启动时只读一次字典及数据文件，在内存中按身份及视频建立记录序号的倒排表（每条记录8字节），
+ * 查询时按倒排表从映射的数据文件读取记录，耗时与结果数量成正比，与已分析的视频数量无关。
+ * 分析过程中每结束一个区间追加一条记录
+ */
+public class AppearanceIndex {
+    private static final String TAG = "AppearanceIndex";
+    public static final String DATA_FILE_NAME = "appearances.dat";
+    public static final String DICT_FILE_NAME = "appearances.dict";
+
+    private static final int KIND_IDENTITY = 1;
+    private static final int KIND_VIDEO = 2;
+    /**
+     * 记录：身份编号、视频编号、起始及结束时间戳、帧数、最高相似度
+     */
+    public static final int RECORD_SIZE = 4 + 4 + 8 + 8 + 4 + 4;
+
+    /**
+     * 一个身份在一个视频中的一段出现时间
+     */
+    public static class Appearance {
+        private final String identity;
+        private final String video;
+        private long startMillis;
+        private long endMillis;
+        private int frameCount;
+        private float bestScore;
+
+        Appearance(String identity, String video, long startMillis, long endMillis, int frameCount, float bestScore) {
+            this.identity = identity;
+            this.video = video;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.frameCount = frameCount;
+            this.bestScore = bestScore;
+        }
+
+        public String getIdentity() {
+            return identity;
+        }
+
+        public String getVideo() {
+            return video;
+        }
+
+        /**
+         * @return 视频内的开始时间（ms）
+         */
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        /**
+         * @return 视频内的结束时间（ms）
+         */
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        public int getFrameCount() {
+            return frameCount;
+        }
+
+        public float getBestScore() {
+            return bestScore;
+        }
+
+        @Override
+        public String toString() {
+            return identity + " " + video + " [" + startMillis + ", " + endMillis + "] frames=" + frameCount + " best=" + bestScore;
+        }
+    }
+
+    /**
+     * 记录序号的倒排表
+     */
+    private static class Postings {
+        int[] rows = new int[4];
+        int size;
+
+        void add(int row) {
+            if (size == rows.length) {
+                int[] newRows = new int[rows.length * 2];
+                System.arraycopy(rows, 0, newRows, 0, size);
+                rows = newRows;
+            }
+            rows[size++] = row;
+        }
+    }
+
+    private final File dataFile;
+    private final File dictFile;
+    private final long mergeGapMillis;
+
+    private final List<String> identityNames = new ArrayList<>();
+    private final Map<String, Integer> identityIds = new HashMap<>();
+    private final List<String> videoNames = new ArrayList<>();
+    /**
+     * 视频名与最近一次分析的视频编号
+     */
+    private final Map<String, Integer> latestVideoIds = new HashMap<>();
+    private final List<Postings> identityPostings = new ArrayList<>();
+    private final List<Postings> videoPostings = new ArrayList<>();
+
+    private RandomAccessFile data;
+    private DataOutputStream dict;
+    private MappedByteBuffer mapped;
+    private int mappedCount;
+    private int recordCount;
+    private int currentVideoId = -1;
+    private final byte[] record = new byte[RECORD_SIZE];
+
+    private long queryCount;
+    private long queryNanos;
+
+    /**
+     * @param dir            索引目录
+     * @param mergeGapMillis 查询时同一视频中间隔不超过这个时长（ms）的区间合并为一段
+     */
+    public AppearanceIndex(File dir, long mergeGapMillis) {
+        dataFile = new File(dir, DATA_FILE_NAME);
+        dictFile = new File(dir, DICT_FILE_NAME);
+        this.mergeGapMillis = mergeGapMillis;
+    }
+
+    /**
+     * 打开索引，读取字典并建立倒排表
+     */
+    public synchronized void open() throws IOException {
+        if (data != null) {
+            return;
+        }
+        File dir = dataFile.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("can not create directory " + dir);
+        }
+        long startTime = System.currentTimeMillis();
+        readDict();
+        data = new RandomAccessFile(dataFile, "rw");
+        data.setLength(data.length() - data.length() % RECORD_SIZE);
+        int count = (int) (data.length() / RECORD_SIZE);
+        MappedByteBuffer buffer = map();
+        for (int row = 0; row < count; row++) {
+            int identityId = buffer.getInt(row * RECORD_SIZE);
+            int videoId = buffer.getInt(row * RECORD_SIZE + 4);
+            // 字典没有写完整时，引用它的记录被忽略
+            if (identityId < identityNames.size() && videoId < videoNames.size()) {
+                identityPostings.get(identityId).add(row);
+                videoPostings.get(videoId).add(row);
+            }
+        }
+        recordCount = count;
+        dict = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dictFile, true)));
+        Log.i(TAG, "open: " + count + " records, " + identityNames.size() + " identities, "
+                + latestVideoIds.size() + " videos in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    public synchronized boolean isOpen() {
+        return data != null;
+    }
+
+    public synchronized void close() {
+        try {
+            if (dict != null) {
+                dict.close();
+            }
+            if (data != null) {
+                data.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "close: " + e.getMessage());
+        }
+        dict = null;
+        data = null;
+        mapped = null;
+        mappedCount = 0;
+        currentVideoId = -1;
+    }
+
+    /**
+     * @return 是否已有这个视频的记录
+     */
+    public synchronized boolean containsVideo(String video) {
+        return latestVideoIds.containsKey(video);
+    }
+
+    /**
+     * 开始分析一个视频，之前分析同名视频的记录不再被查询到
+     *
+     * @param video 视频名
+     */
+    public synchronized void beginVideo(String video) throws IOException {
+        writeDict(KIND_VIDEO, video);
+        currentVideoId = videoNames.size();
+        videoNames.add(video);
+        videoPostings.add(new Postings());
+        latestVideoIds.put(video, currentVideoId);
+    }
+
+    /**
+     * 追加当前视频的一段出现区间
+     *
+     * @param identity    身份（人名或访客ID）
+     * @param startMillis 开始时间（ms）
+     * @param endMillis   结束时间（ms）
+     * @param frameCount  出现的帧数
+     * @param bestScore   最高相似度
+     */
+    public synchronized void add(String identity, long startMillis, long endMillis, int frameCount, float bestScore) throws IOException {
+        if (currentVideoId < 0) {
+            throw new IllegalStateException("beginVideo must be called first");
+        }
+        Integer identityId = identityIds.get(identity);
+        if (identityId == null) {
+            writeDict(KIND_IDENTITY, identity);
+            identityId = identityNames.size();
+            identityNames.add(identity);
+            identityIds.put(identity, identityId);
+            identityPostings.add(new Postings());
+        }
+        putInt(record, 0, identityId);
+        putInt(record, 4, currentVideoId);
+        putLong(record, 8, startMillis);
+        putLong(record, 16, endMillis);
+        putInt(record, 24, frameCount);
+        putInt(record, 28, Float.floatToIntBits(bestScore));
+        data.seek((long) recordCount * RECORD_SIZE);
+        data.write(record);
+        identityPostings.get(identityId).add(recordCount);
+        videoPostings.get(currentVideoId).add(recordCount);
+        recordCount++;
+    }
+
+    /**
+     * 查询一个身份在所有视频中的出现时间
+     *
+     * @return 按视频名及开始时间排序
+     */
+    public List<Appearance> query(String identity) throws IOException {
+        return query(identity, null, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * 查询一个身份在指定视频、指定时间范围内的出现时间
+     *
+     * @param identity    身份
+     * @param video       视频名，为null时查询所有视频
+     * @param fromMillis  时间范围的开始（ms），与之有重叠的区间都会返回
+     * @param toMillis    时间范围的结束（ms）
+     * @return 按视频名及开始时间排序，同一视频中相邻的区间已合并
+     */
+    public synchronized List<Appearance> query(String identity, String video, long fromMillis, long toMillis) throws IOException {
+        long startTime = System.nanoTime();
+        List<Appearance> result = new ArrayList<>();
+        Integer identityId = identityIds.get(identity);
+        Integer videoId = video == null ? null : latestVideoIds.get(video);
+        if (identityId == null || (video != null && videoId == null)) {
+            return result;
+        }
+        // 指定视频时从较短的倒排表读取
+        Postings identityRows = identityPostings.get(identityId);
+        Postings rows = videoId != null && videoPostings.get(videoId).size < identityRows.size
+                ? videoPostings.get(videoId) : identityRows;
+        MappedByteBuffer buffer = mapped();
+        for (int k = 0; k < rows.size; k++) {
+            int position = rows.rows[k] * RECORD_SIZE;
+            int rowIdentity = buffer.getInt(position);
+            int rowVideo = buffer.getInt(position + 4);
+            if (rowIdentity != identityId || (videoId != null && rowVideo != videoId)) {
+                continue;
+            }
+            String rowVideoName = videoNames.get(rowVideo);
+            if (latestVideoIds.get(rowVideoName) != rowVideo) {
+                continue;
+            }
+            long start = buffer.getLong(position + 8);
+            long end = buffer.getLong(position + 16);
+            if (end < fromMillis || start > toMillis) {
+                continue;
+            }
+            result.add(new Appearance(identity, rowVideoName, start, end,
+                    buffer.getInt(position + 24), Float.intBitsToFloat(buffer.getInt(position + 28))));
+        }
+        result = merge(result);
+        queryCount++;
+        queryNanos += System.nanoTime() - startTime;
+        return result;
+    }
+
+    /**
+     * @return 出现过这个身份的视频
+     */
+    public synchronized List<String> getVideos(String identity) throws IOException {
+        List<String> videos = new ArrayList<>();
+        for (Appearance appearance : query(identity)) {
+            if (videos.isEmpty() || !videos.get(videos.size() - 1).equals(appearance.video)) {
+                videos.add(appearance.video);
+            }
+        }
+        return videos;
+    }
+
+    /**
+     * @return 一个视频中出现过的身份，按首次出现的顺序
+     */
+    public synchronized List<String> getIdentities(String video) throws IOException {
+        List<String> identities = new ArrayList<>();
+        Integer videoId = latestVideoIds.get(video);
+        if (videoId == null) {
+            return identities;
+        }
+        Postings rows = videoPostings.get(videoId);
+        MappedByteBuffer buffer = mapped();
+        boolean[] seen = new boolean[identityNames.size()];
+        for (int k = 0; k < rows.size; k++) {
+            int identityId = buffer.getInt(rows.rows[k] * RECORD_SIZE);
+            if (!seen[identityId]) {
+                seen[identityId] = true;
+                identities.add(identityNames.get(identityId));
+            }
+        }
+        return identities;
+    }
+
+    /**
+     * 统计：记录数、身份数、视频数、平均查询耗时
+     */
+    public synchronized String getStats() {
+        return "records=" + recordCount
+                + " identities=" + identityNames.size()
+                + " videos=" + latestVideoIds.size()
+                + " memory=" + (long) recordCount * 8 + "B"
+                + " queries=" + queryCount
+                + " avgQuery=" + (queryCount == 0 ? 0 : queryNanos / queryCount / 1000) + "us";
+    }
+
+    /**
+     * 同一视频中重叠或间隔很短的区间合并为一段
+     */
+    private List<Appearance> merge(List<Appearance> appearances) {
+        Collections.sort(appearances, new Comparator<Appearance>() {
+            @Override
+            public int compare(Appearance o1, Appearance o2) {
+                int c = o1.video.compareTo(o2.video);
+                return c != 0 ? c : Long.compare(o1.startMillis, o2.startMillis);
+            }
+        });
+        List<Appearance> merged = new ArrayList<>(appearances.size());
+        Appearance last = null;
+        for (Appearance appearance : appearances) {
+            if (last != null && last.video.equals(appearance.video) && appearance.startMillis <= last.endMillis + mergeGapMillis) {
+                last.endMillis = Math.max(last.endMillis, appearance.endMillis);
+                last.frameCount += appearance.frameCount;
+                last.bestScore = Math.max(last.bestScore, appearance.bestScore);
+                continue;
+            }
+            merged.add(appearance);
+            last = appearance;
+        }
+        return merged;
+    }
+
+    private void readDict() throws IOException {
+        identityNames.clear();
+        identityIds.clear();
+        videoNames.clear();
+        latestVideoIds.clear();
+        identityPostings.clear();
+        videoPostings.clear();
+        if (!dictFile.exists()) {
+            return;
+        }
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(dictFile)));
+        DataInputStream in = new DataInputStream(counter);
+        long validLength = 0;
+        try {
+            while (true) {
+                int kind = in.readByte();
+                String value = in.readUTF();
+                validLength = counter.getCount();
+                if (kind == KIND_IDENTITY) {
+                    identityIds.put(value, identityNames.size());
+                    identityNames.add(value);
+                    identityPostings.add(new Postings());
+                } else if (kind == KIND_VIDEO) {
+                    latestVideoIds.put(value, videoNames.size());
+                    videoNames.add(value);
+                    videoPostings.add(new Postings());
+                }
+            }
+        } catch (EOFException e) {
+            // 读到末尾，或最后一条没有写完整
+        } finally {
+            in.close();
+        }
+        // 截掉不完整的一条，否则之后追加的记录接在残缺的字节后面，下次打开时全部读不出来
+        long dropped = FileUtils.truncate(dictFile, validLength);
+        if (dropped > 0) {
+            Log.w(TAG, "readDict: dropped " + dropped + " bytes of incomplete entry");
+        }
+    }
+
+    /**
+     * 字典先于引用它的记录写入并刷新
+     */
+    private void writeDict(int kind, String value) throws IOException {
+        dict.writeByte(kind);
+        dict.writeUTF(value);
+        dict.flush();
+    }
+
+    /**
+     * 映射的数据文件，有新追加的记录时重新映射
+     */
+    private MappedByteBuffer mapped() throws IOException {
+        if (mapped == null || mappedCount < recordCount) {
+            mapped = map();
+            mappedCount = recordCount;
+        }
+        return mapped;
+    }
+
+    private MappedByteBuffer map() throws IOException {
+        FileChannel channel = data.getChannel();
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    private static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+
+    private static void putLong(byte[] out, int offset, long value) {
+        putInt(out, offset, (int) (value >>> 32));
+        putInt(out, offset + 4, (int) value);
+    }
+}
@@ -0,0 +1,322 @@
+package com.rokid.simpleplayer.face.utils;
+
+import android.graphics.Rect;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.arcsoft.face.FaceEngine;
+import com.arcsoft.face.FaceInfo;
+
+/**
+ * 最佳帧选择器：对每个trackId在一个短窗口内的若干帧进行质量打分，
+ * 只把得分最高的一帧提交给特征提取，避免对模糊、过小、偏转的人脸反复提取失败
+ */
+public class BestShotSelector {
+    /**
+     * 默认评估窗口大小（帧数）
+     */
+    private static final int DEFAULT_WINDOW_SIZE = 5;
+    /**
+     * 达到该分数时不再等待窗口结束，直接提交
+     */
+    private static final float DEFAULT_EARLY_SUBMIT_SCORE = 0.85F;
+    /**
+     * 人脸短边达到该尺寸时，尺寸得分为满分
+     */
+    private static final int GOOD_FACE_SIZE = 112;
+    /**
+     * 拉普拉斯方差的归一化系数，方差等于该值时清晰度得分为0.5
+     */
+    private static final float SHARPNESS_HALF_SCORE_VARIANCE = 120F;
+    /**
+     * 计算清晰度时每条边最多的采样点数，控制每个人脸的计算量
+     */
+    private static final int SHARPNESS_MAX_SAMPLES_PER_SIDE = 64;
+
+    private final int windowSize;
+    private final float earlySubmitScore;
+
+    private final SparseArray<Candidate> candidates = new SparseArray<>();
+    /**
+     * 每个人脸提交特征提取的次数
+     */
+    private final SparseIntArray attempts = new SparseIntArray();
+
+    /**
+     * 评估过的帧数
+     */
+    private long evaluatedCount;
+    /**
+     * 提交特征提取的次数
+     */
+    private long submittedCount;
+    /**
+     * 提交过特征提取的人脸数
+     */
+    private long trackCount;
+    private long failedCount;
+    private long firstAttemptCount;
+    private long firstAttemptSucceededCount;
+
+    public BestShotSelector() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_EARLY_SUBMIT_SCORE);
+    }
+
+    public BestShotSelector(int windowSize, float earlySubmitScore) {
+        this.windowSize = windowSize > 0 ? windowSize : DEFAULT_WINDOW_SIZE;
+        this.earlySubmitScore = earlySubmitScore;
+    }
+
+    /**
+     * 输入一帧中某个人脸，若窗口已满或质量足够好，返回该窗口内的最佳候选
+     *
+     * @param trackId  人脸trackId
+     * @param nv21     NV21图像数据
+     * @param width    图像宽度
+     * @param height   图像高度
+     * @param faceInfo 人脸信息
+     * @return 需要提交特征提取的候选，未就绪时返回null
+     */
+    public synchronized Candidate offer(int trackId, byte[] nv21, int width, int height, FaceInfo faceInfo) {
+        if (nv21 == null || faceInfo == null || faceInfo.getRect() == null) {
+            return null;
+        }
+        evaluatedCount++;
+        Candidate candidate = candidates.get(trackId);
+        if (candidate == null) {
+            candidate = new Candidate(trackId);
+            candidates.put(trackId, candidate);
+        }
+        float score = score(nv21, width, height, faceInfo);
+        candidate.frameCount++;
+        if (score > candidate.score) {
+            candidate.keep(nv21, width, height, faceInfo, score);
+        }
+        if (candidate.frameCount >= windowSize || candidate.score >= earlySubmitScore) {
+            candidates.remove(trackId);
+            if (candidate.imageData == null) {
+                return null;
+            }
+            submittedCount++;
+            int attempt = attempts.get(trackId) + 1;
+            attempts.put(trackId, attempt);
+            if (attempt == 1) {
+                trackCount++;
+            }
+            return candidate;
+        }
+        return null;
+    }
+
+    /**
+     * 移除已经离开的人脸
+     *
+     * @param trackId 人脸trackId
+     */
+    public synchronized void remove(int trackId) {
+        candidates.remove(trackId);
+        attempts.delete(trackId);
+    }
+
+    public synchronized void clear() {
+        candidates.clear();
+        attempts.clear();
+    }
+
+    /**
+     * 特征提取完成时调用，统计提取失败次数及每个人脸第一次提取的成功率
+     *
+     * @param trackId 人脸trackId
+     * @param success 是否提取成功
+     */
+    public synchronized void onExtracted(int trackId, boolean success) {
+        if (!success) {
+            failedCount++;
+        }
+        if (attempts.get(trackId) == 1) {
+            firstAttemptCount++;
+            if (success) {
+                firstAttemptSucceededCount++;
+            }
+        }
+    }
+
+    public synchronized long getEvaluatedCount() {
+        return evaluatedCount;
+    }
+
+    public synchronized long getSubmittedCount() {
+        return submittedCount;
+    }
+
+    public synchronized long getTrackCount() {
+        return trackCount;
+    }
+
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * 第一次提取特征就成功的人脸比例。窗口大小为1时等同于原来直接提交第一帧，
+     * 与之比较即为最佳帧选择的效果：成功率提高、失败重试减少
+     */
+    public synchronized float getFirstAttemptSuccessRate() {
+        return firstAttemptCount == 0 ? 0 : firstAttemptSucceededCount / (float) firstAttemptCount;
+    }
+
+    /**
+     * 统计：评估帧数、人脸数、提交次数、平均每个人脸的提交次数、提取失败次数及第一次提取的成功率
+     */
+    public synchronized String getStats() {
+        return "evaluated=" + evaluatedCount
+                + " tracks=" + trackCount
+                + " submitted=" + submittedCount
+                + " perTrack=" + (trackCount == 0 ? 0 : submittedCount / (float) trackCount)
+                + " failed=" + failedCount
+                + " firstAttemptSuccess=" + getFirstAttemptSuccessRate();
+    }
+
+    /**
+     * 综合人脸尺寸、角度和清晰度打分，取值范围[0, 1]
+     */
+    static float score(byte[] nv21, int width, int height, FaceInfo faceInfo) {
+        Rect rect = faceInfo.getRect();
+        int left = Math.max(rect.left, 1);
+        int top = Math.max(rect.top, 1);
+        int right = Math.min(rect.right, width - 1);
+        int bottom = Math.min(rect.bottom, height - 1);
+        if (right - left < 3 || bottom - top < 3) {
+            return 0;
+        }
+        float sizeScore = Math.min(1F, Math.min(right - left, bottom - top) / (float) GOOD_FACE_SIZE);
+        float poseScore = poseScore(faceInfo.getOrient());
+        float sharpnessScore = sharpnessScore(nv21, width, left, top, right, bottom);
+        return sizeScore * poseScore * sharpnessScore;
+    }
+
+    /**
+     * FaceInfo中只有人脸的平面旋转角度，正向人脸得分最高，斜向的人脸提取特征时最容易低置信度
+     */
+    private static float poseScore(int orient) {
+        switch (orient) {
+            case FaceEngine.ASF_OC_0:
+                return 1F;
+            case FaceEngine.ASF_OC_90:
+            case FaceEngine.ASF_OC_180:
+            case FaceEngine.ASF_OC_270:
+                return 0.8F;
+            default:
+                return 0.6F;
+        }
+    }
+
+    /**
+     * 在Y分量上计算人脸区域的拉普拉斯方差，并归一化到[0, 1)
+     */
+    private static float sharpnessScore(byte[] nv21, int width, int left, int top, int right, int bottom) {
+        int stepX = Math.max(1, (right - left) / SHARPNESS_MAX_SAMPLES_PER_SIDE);
+        int stepY = Math.max(1, (bottom - top) / SHARPNESS_MAX_SAMPLES_PER_SIDE);
+        long sum = 0;
+        long sumSquare = 0;
+        int count = 0;
+        for (int y = top; y < bottom; y += stepY) {
+            int row = y * width;
+            for (int x = left; x < right; x += stepX) {
+                int center = nv21[row + x] & 0xFF;
+                int laplacian = (nv21[row + x - 1] & 0xFF) + (nv21[row + x + 1] & 0xFF)
+                        + (nv21[row - width + x] & 0xFF) + (nv21[row + width + x] & 0xFF) - 4 * center;
+                sum += laplacian;
+                sumSquare += laplacian * laplacian;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        float mean = sum / (float) count;
+        float variance = sumSquare / (float) count - mean * mean;
+        return variance / (variance + SHARPNESS_HALF_SCORE_VARIANCE);
+    }
+
+    /**
+     * 某个trackId当前窗口内的最佳帧，只保存人脸周围的NV21裁剪区域，避免拷贝整帧
+     */
+    public static class Candidate {
+        private final int trackId;
+        private byte[] imageData;
+        private int width;
+        private int height;
+        private FaceInfo faceInfo;
+        private float score = -1;
+        private int frameCount;
+
+        private Candidate(int trackId) {
+            this.trackId = trackId;
+        }
+
+        private void keep(byte[] nv21, int frameWidth, int frameHeight, FaceInfo srcFaceInfo, float score) {
+            Rect rect = srcFaceInfo.getRect();
+            int padding = rect.height() / 2;
+            // NV21裁剪要求起点为偶数，宽度为4的倍数，高度为偶数
+            int left = Math.max(0, rect.left - padding) & ~3;
+            int top = Math.max(0, rect.top - padding) & ~1;
+            int right = Math.min(frameWidth, rect.right + padding);
+            int bottom = Math.min(frameHeight, rect.bottom + padding);
+            int cropWidth = (right - left) & ~3;
+            int cropHeight = (bottom - top) & ~1;
+            if (cropWidth <= 0 || cropHeight <= 0) {
+                return;
+            }
+            int size = cropWidth * cropHeight * 3 / 2;
+            if (imageData == null || imageData.length != size) {
+                imageData = new byte[size];
+            }
+            for (int y = 0; y < cropHeight; y++) {
+                System.arraycopy(nv21, (top + y) * frameWidth + left, imageData, y * cropWidth, cropWidth);
+            }
+            int srcUvOffset = frameWidth * frameHeight;
+            int dstUvOffset = cropWidth * cropHeight;
+            for (int y = 0; y < cropHeight / 2; y++) {
+                System.arraycopy(nv21, srcUvOffset + (top / 2 + y) * frameWidth + left,
+                        imageData, dstUvOffset + y * cropWidth, cropWidth);
+            }
+            Rect cropFaceRect = new Rect(rect);
+            cropFaceRect.offset(-left, -top);
+            cropFaceRect.intersect(0, 0, cropWidth, cropHeight);
+            faceInfo = new FaceInfo(cropFaceRect, srcFaceInfo.getOrient());
+            faceInfo.setFaceId(srcFaceInfo.getFaceId());
+            width = cropWidth;
+            height = cropHeight;
+            this.score = score;
+        }
+
+        public int getTrackId() {
+            return trackId;
+        }
+
+        public byte[] getImageData() {
+            return imageData;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public FaceInfo getFaceInfo() {
+            return faceInfo;
+        }
+
+        public float getScore() {
+            return score;
+        }
+
+        public int getFrameCount() {
+            return frameCount;
+        }
+    }
+}
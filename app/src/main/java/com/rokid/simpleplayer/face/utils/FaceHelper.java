@@ -12,9 +12,7 @@ import com.rokid.simpleplayer.face.model.FacePreviewInfo;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -82,13 +80,17 @@ public class FaceHelper {
     private int currentMaxFaceId = 0;
 
     //    private List<Integer> formerTrackIdList = new ArrayList<>();
-    private List<Integer> currentTrackIdList = new ArrayList<>();
+    private int[] currentTrackIds = new int[16];
     //    private List<FaceInfo> formerFaceInfoList = new ArrayList<>();
     private List<FacePreviewInfo> facePreviewInfoList = new ArrayList<>();
     /**
-     * 用于存储人脸对应的姓名，KEY为trackId，VALUE为name
+     * 人脸追踪状态表，存储人脸对应的姓名、识别状态等
      */
-    private ConcurrentHashMap<Integer, String> nameMap = new ConcurrentHashMap<>();
+    private TrackStateTable trackStateTable;
+    /**
+     * 人脸离开时的回调
+     */
+    private TrackStateTable.OnTrackEvictListener trackEvictListener;
 
     private FaceHelper(Builder builder) {
         ftEngine = builder.ftEngine;
@@ -98,6 +100,8 @@ public class FaceHelper {
         previewHeight = builder.previewHeight;
         frEngine = builder.frEngine;
         flEngine = builder.flEngine;
+        trackStateTable = builder.trackStateTable != null ? builder.trackStateTable : new TrackStateTable();
+        trackEvictListener = builder.trackEvictListener;
         /**
          * fr 线程队列大小
          */
@@ -191,10 +195,7 @@ public class FaceHelper {
             flThreadQueue.clear();
             flThreadQueue = null;
         }
-        if (nameMap != null) {
-            nameMap.clear();
-        }
-        nameMap = null;
+        trackEvictListener = null;
         faceListener = null;
         faceInfoList = null;
     }
@@ -203,9 +204,10 @@ public class FaceHelper {
      * 处理帧数据
      *
      * @param nv21 相机预览回传的NV21数据
+     * @param pts  帧时间戳（ms）
      * @return 实时人脸处理结果，封装添加了一个trackId，trackId的获取依赖于faceId，用于记录人脸序号并保存
      */
-    public List<FacePreviewInfo> onPreviewFrame(byte[] nv21) {
+    public List<FacePreviewInfo> onPreviewFrame(byte[] nv21, long pts) {
         if (faceListener != null) {
             if (ftEngine != null) {
                 faceInfoList.clear();
@@ -220,11 +222,11 @@ public class FaceHelper {
                  * 若需要多人脸搜索，删除此行代码
                  */
 //                TrackUtil.keepMaxFace(faceInfoList);
-                refreshTrackId(faceInfoList);
+                refreshTrackId(faceInfoList, pts);
             }
             facePreviewInfoList.clear();
             for (int i = 0; i < faceInfoList.size(); i++) {
-                facePreviewInfoList.add(new FacePreviewInfo(faceInfoList.get(i), currentTrackIdList.get(i)));
+                facePreviewInfoList.add(new FacePreviewInfo(faceInfoList.get(i), currentTrackIds[i]));
             }
 
             return facePreviewInfoList;
@@ -346,22 +348,29 @@ public class FaceHelper {
 
 
     /**
-     * 刷新trackId
+     * 刷新trackId，同时一次性更新状态表：标记本帧出现的人脸并删除已经离开的人脸
      *
      * @param ftFaceList 传入的人脸列表
+     * @param pts        帧时间戳（ms）
      */
-    private void refreshTrackId(List<FaceInfo> ftFaceList) {
-        currentTrackIdList.clear();
-
-        for (FaceInfo faceInfo : ftFaceList) {
-            currentTrackIdList.add(faceInfo.getFaceId() + trackedFaceCount);
+    private void refreshTrackId(List<FaceInfo> ftFaceList, long pts) {
+        int faceCount = ftFaceList.size();
+        if (currentTrackIds.length < faceCount) {
+            currentTrackIds = new int[Math.max(faceCount, currentTrackIds.length * 2)];
+        }
+        trackStateTable.beginFrame();
+        for (int i = 0; i < faceCount; i++) {
+            FaceInfo faceInfo = ftFaceList.get(i);
+            int trackId = faceInfo.getFaceId() + trackedFaceCount;
+            currentTrackIds[i] = trackId;
+            trackStateTable.touch(trackId, pts, faceInfo.getRect());
         }
-        if (ftFaceList.size() > 0) {
-            currentMaxFaceId = ftFaceList.get(ftFaceList.size() - 1).getFaceId();
+        if (faceCount > 0) {
+            currentMaxFaceId = ftFaceList.get(faceCount - 1).getFaceId();
         }
 
-        //刷新nameMap
-        clearLeftName(currentTrackIdList);
+        //删除已经离开的人脸
+        trackStateTable.evictUnseen(trackEvictListener);
     }
 
     /**
@@ -381,28 +390,15 @@ public class FaceHelper {
      * @param name    trackId对应的人脸
      */
     public void setName(int trackId, String name) {
-        if (nameMap != null) {
-            nameMap.put(trackId, name);
-        }
+        trackStateTable.setName(trackId, name);
     }
 
     public String getName(int trackId) {
-        return nameMap == null ? null : nameMap.get(trackId);
+        return trackStateTable.getName(trackId);
     }
 
-    /**
-     * 清除map中已经离开的人脸
-     *
-     * @param trackIdList 最新的trackIdList
-     */
-    private void clearLeftName(List<Integer> trackIdList) {
-        Enumeration<Integer> keys = nameMap.keys();
-        while (keys.hasMoreElements()) {
-            int value = keys.nextElement();
-            if (!trackIdList.contains(value)) {
-                nameMap.remove(value);
-            }
-        }
+    public TrackStateTable getTrackStateTable() {
+        return trackStateTable;
     }
 
     public static final class Builder {
@@ -415,6 +411,8 @@ public class FaceHelper {
         private int frQueueSize;
         private int flQueueSize;
         private int trackedFaceCount;
+        private TrackStateTable trackStateTable;
+        private TrackStateTable.OnTrackEvictListener trackEvictListener;
 
         public Builder() {
         }
@@ -463,6 +461,16 @@ public class FaceHelper {
             return this;
         }
 
+        public Builder trackStateTable(TrackStateTable val) {
+            trackStateTable = val;
+            return this;
+        }
+
+        public Builder trackEvictListener(TrackStateTable.OnTrackEvictListener val) {
+            trackEvictListener = val;
+            return this;
+        }
+
         public FaceHelper build() {
             return new FaceHelper(this);
         }
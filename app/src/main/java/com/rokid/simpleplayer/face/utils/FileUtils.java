@@ -11,6 +11,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -476,4 +477,24 @@ public class FileUtils {
         });
         return files;
     }
+
+    /**
+     * 把文件截断到指定长度，文件比它短时不做修改
+     *
+     * @param length 保留的字节数，通常是最后一条完整记录的结束位置
+     * @return 截掉的字节数
+     */
+    public static long truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long dropped = raf.length() - length;
+            if (dropped <= 0) {
+                return 0;
+            }
+            raf.setLength(length);
+            return dropped;
+        } finally {
+            raf.close();
+        }
+    }
 }
\ No newline at end of file
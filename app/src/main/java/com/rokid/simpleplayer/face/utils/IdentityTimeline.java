@@ -0,0 +1,685 @@
+package com.rokid.simpleplayer.face.utils;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按事件压缩的身份时间线
+ * <p>
+ * 每帧的识别结果在内存中合并为每个人脸（trackId）的出现区间：起止帧号与时间戳、帧数、最高相似度及中间漏检的帧，
+ * 只在状态变化时写一行事件：人脸出现（+）、识别出身份（=）、离开或身份改变（-）。
+ * 离开事件带有完整的区间，漏检的帧以区间列出，可以按帧号还原逐帧的结果（见{@link Interval#forEachFrame}）。
+ * 视频结束时另写一份按身份汇总的文件，列出每个人的首次、末次出现时间、总帧数、最高相似度及合并后的出现时段。
+ * 人脸库变化后可以用{@link #rewrite}按新的身份重写时间线，不需要重新解码。
+ * 事件很少，直接写入带缓冲的文件；所有方法都在解码线程中调用
+ */
+public class IdentityTimeline {
+    private static final String TAG = "IdentityTimeline";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    public static final String EVENTS_EXTENSION = ".timeline";
+    public static final String SUMMARY_EXTENSION = ".summary.json";
+    /**
+     * 事件类型：人脸出现、识别出身份、离开
+     */
+    public static final char EVENT_ENTER = '+';
+    public static final char EVENT_IDENTIFY = '=';
+    public static final char EVENT_EXIT = '-';
+    /**
+     * 没有身份或没有漏检帧时写入的占位符
+     */
+    private static final String NONE = "-";
+    /**
+     * 事件文件最后一行：总帧数、首帧及末帧时间戳、人脸出现次数
+     */
+    private static final String END_PREFIX = "#end ";
+
+    /**
+     * 逐帧还原时的回调
+     */
+    public interface OnFrameListener {
+        /**
+         * @param frame    帧号
+         * @param pts      时间戳（ms），区间内按帧号线性插值
+         * @param interval 所在的区间
+         */
+        void onFrame(int frame, long pts, Interval interval);
+    }
+
+    /**
+     * 重写时间线时修改区间的身份
+     */
+    public interface Relabeler {
+        /**
+         * 需要修改时调用{@link Interval#relabel}
+         */
+        void relabel(Interval interval);
+    }
+
+    /**
+     * 区间结束时的回调，用于增量写入其他索引
+     */
+    public interface OnIntervalClosedListener {
+        void onIntervalClosed(Interval interval);
+    }
+
+    /**
+     * 一个人脸以同一身份连续出现的区间
+     */
+    public static class Interval {
+        private final int trackId;
+        private String identity;
+        private int identifiedFrame;
+        private int firstFrame;
+        private int lastFrame;
+        private long firstPts;
+        private long lastPts;
+        private int frameCount;
+        private float bestScore;
+        /**
+         * 漏检的帧，每两个元素为一段的起止帧号（含）
+         */
+        private int[] gaps = new int[0];
+        private int gapCount;
+
+        Interval(int trackId, String identity, int frame, long pts) {
+            this.trackId = trackId;
+            this.identity = identity;
+            this.identifiedFrame = identity == null ? -1 : frame;
+            this.firstFrame = frame;
+            this.lastFrame = frame;
+            this.firstPts = pts;
+            this.lastPts = pts;
+            this.frameCount = 1;
+        }
+
+        public int getTrackId() {
+            return trackId;
+        }
+
+        /**
+         * @return 身份（人名或访客ID），一直没有识别出时为null
+         */
+        public String getIdentity() {
+            return identity;
+        }
+
+        /**
+         * @return 识别出身份的帧号，没有识别出时为-1
+         */
+        public int getIdentifiedFrame() {
+            return identifiedFrame;
+        }
+
+        public int getFirstFrame() {
+            return firstFrame;
+        }
+
+        public int getLastFrame() {
+            return lastFrame;
+        }
+
+        public long getFirstPts() {
+            return firstPts;
+        }
+
+        public long getLastPts() {
+            return lastPts;
+        }
+
+        /**
+         * @return 实际出现的帧数，不含漏检的帧
+         */
+        public int getFrameCount() {
+            return frameCount;
+        }
+
+        public float getBestScore() {
+            return bestScore;
+        }
+
+        public int getGapCount() {
+            return gapCount;
+        }
+
+        /**
+         * 修改区间的身份，原来没有身份的区间视为从第一帧起识别出
+         *
+         * @param identity  新的身份，为null表示未识别
+         * @param bestScore 新身份的相似度
+         */
+        public void relabel(String identity, float bestScore) {
+            this.identity = identity;
+            this.bestScore = identity == null ? 0 : bestScore;
+            if (identity == null) {
+                identifiedFrame = -1;
+            } else if (identifiedFrame < 0) {
+                identifiedFrame = firstFrame;
+            }
+        }
+
+        /**
+         * 按帧号顺序回调区间内实际出现的每一帧
+         */
+        public void forEachFrame(OnFrameListener listener) {
+            int gap = 0;
+            for (int frame = firstFrame; frame <= lastFrame; frame++) {
+                if (gap < gapCount && frame == gaps[gap * 2]) {
+                    frame = gaps[gap * 2 + 1];
+                    gap++;
+                    continue;
+                }
+                long pts = lastFrame == firstFrame ? firstPts
+                        : firstPts + (lastPts - firstPts) * (frame - firstFrame) / (lastFrame - firstFrame);
+                listener.onFrame(frame, pts, this);
+            }
+        }
+
+        private void addGap(int from, int to) {
+            if (gapCount * 2 == gaps.length) {
+                int[] newGaps = new int[Math.max(4, gaps.length * 2)];
+                System.arraycopy(gaps, 0, newGaps, 0, gaps.length);
+                gaps = newGaps;
+            }
+            gaps[gapCount * 2] = from;
+            gaps[gapCount * 2 + 1] = to;
+            gapCount++;
+        }
+    }
+
+    /**
+     * 一个身份在整个视频中的汇总
+     */
+    private static class IdentitySummary {
+        long firstPts = Long.MAX_VALUE;
+        long lastPts = Long.MIN_VALUE;
+        int frameCount;
+        int intervalCount;
+        float bestScore;
+        /**
+         * 合并后的出现时段，每两个元素为起止时间戳
+         */
+        final List<long[]> appearances = new ArrayList<>();
+    }
+
+    private final int maxGapFrames;
+    private final long mergeGapMillis;
+    private final OnIntervalClosedListener intervalClosedListener;
+
+    private final SparseArray<Interval> openIntervals = new SparseArray<>();
+    private final Map<String, IdentitySummary> summaries = new LinkedHashMap<>();
+    private final StringBuilder line = new StringBuilder(128);
+    private Writer events;
+    private File summaryFile;
+    private String videoName;
+
+    private int frame = -1;
+    private long framePts;
+    private long videoFirstPts = -1;
+    private long observationCount;
+    private int intervalCount;
+    private int eventCount;
+    private long eventBytes;
+
+    private IdentityTimeline(Builder builder) {
+        maxGapFrames = Math.max(0, builder.maxGapFrames);
+        mergeGapMillis = Math.max(0, builder.mergeGapMillis);
+        intervalClosedListener = builder.intervalClosedListener;
+    }
+
+    /**
+     * 开始一个视频，之前的视频先结束
+     *
+     * @param dir       输出目录
+     * @param videoName 视频名，作为输出文件名
+     */
+    public void open(File dir, String videoName) throws IOException {
+        close();
+        this.videoName = videoName;
+        events = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(dir, videoName + EVENTS_EXTENSION)), UTF_8), 64 * 1024);
+        summaryFile = new File(dir, videoName + SUMMARY_EXTENSION);
+        summaries.clear();
+        frame = -1;
+        videoFirstPts = -1;
+        observationCount = 0;
+        intervalCount = 0;
+        eventCount = 0;
+        eventBytes = 0;
+        writeLine("# " + EVENT_ENTER + " frame pts track identity | " + EVENT_IDENTIFY + " frame pts track identity score | "
+                + EVENT_EXIT + " track identity identifiedFrame firstFrame lastFrame firstPts lastPts frames bestScore gaps");
+    }
+
+    /**
+     * 开始新的一帧，之后调用{@link #onFace}的人脸视为在本帧出现
+     *
+     * @param pts 帧时间戳（ms）
+     */
+    public void beginFrame(long pts) {
+        frame++;
+        framePts = pts;
+        if (videoFirstPts < 0) {
+            videoFirstPts = pts;
+        }
+    }
+
+    /**
+     * 记录本帧的一个人脸
+     *
+     * @param trackId  人脸trackId
+     * @param identity 当前的身份，还没有识别出时为null
+     * @param score    识别身份时的相似度
+     */
+    public void onFace(int trackId, String identity, float score) {
+        if (events == null) {
+            return;
+        }
+        observationCount++;
+        Interval interval = openIntervals.get(trackId);
+        if (interval != null && identity != null && interval.identity != null && !identity.equals(interval.identity)) {
+            // 同一个人脸换了身份，结束原来的区间
+            closeInterval(interval);
+            openIntervals.remove(trackId);
+            interval = null;
+        }
+        if (interval == null) {
+            interval = new Interval(trackId, identity, frame, framePts);
+            openIntervals.put(trackId, interval);
+            writeEnter(frame, framePts, trackId, identity);
+        } else {
+            if (interval.lastFrame < frame - 1) {
+                interval.addGap(interval.lastFrame + 1, frame - 1);
+            }
+            interval.lastFrame = frame;
+            interval.lastPts = framePts;
+            interval.frameCount++;
+            if (interval.identity == null && identity != null) {
+                // 识别前的帧也属于这个身份
+                interval.identity = identity;
+                interval.identifiedFrame = frame;
+                writeIdentify(frame, framePts, trackId, identity, score);
+            }
+        }
+        if (identity != null && score > interval.bestScore) {
+            interval.bestScore = score;
+        }
+    }
+
+    /**
+     * 结束本帧，超过{@link Builder#maxGapFrames}帧没有出现的人脸视为离开
+     */
+    public void endFrame() {
+        for (int i = openIntervals.size() - 1; i >= 0; i--) {
+            Interval interval = openIntervals.valueAt(i);
+            if (interval.lastFrame < frame - maxGapFrames) {
+                closeInterval(interval);
+                openIntervals.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * 结束当前视频：关闭所有区间，写汇总文件
+     */
+    public void close() {
+        if (events == null) {
+            return;
+        }
+        for (int i = 0; i < openIntervals.size(); i++) {
+            closeInterval(openIntervals.valueAt(i));
+        }
+        openIntervals.clear();
+        writeLine(END_PREFIX + (frame + 1) + " " + videoFirstPts + " " + framePts + " " + observationCount);
+        try {
+            events.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close: " + e.getMessage());
+        }
+        events = null;
+        try {
+            writeSummary();
+        } catch (IOException e) {
+            Log.e(TAG, "writeSummary: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 统计：逐帧记录时的行数（人脸出现次数）与实际写入的事件行数
+     */
+    public String getStats() {
+        return "frames=" + (frame + 1)
+                + " observations=" + observationCount
+                + " intervals=" + intervalCount
+                + " events=" + eventCount
+                + " bytes=" + eventBytes
+                + " identities=" + summaries.size();
+    }
+
+    /**
+     * 按新的身份重写一个视频的时间线及汇总文件，区间结束的回调照常调用
+     *
+     * @param dir       时间线所在的目录
+     * @param videoName 视频名
+     * @param relabeler 修改每个区间的身份
+     */
+    public void rewrite(File dir, String videoName, Relabeler relabeler) throws IOException {
+        List<Interval> intervals = new ArrayList<>();
+        long[] end = readEvents(new File(dir, videoName + EVENTS_EXTENSION), intervals);
+        for (Interval interval : intervals) {
+            relabeler.relabel(interval);
+        }
+        open(dir, videoName);
+        // 事件按帧号排序：帧号、类型（出现、识别、离开）、区间下标
+        long[] keys = new long[intervals.size() * 3];
+        int count = 0;
+        for (int k = 0; k < intervals.size(); k++) {
+            Interval interval = intervals.get(k);
+            keys[count++] = eventKey(interval.firstFrame, 0, k);
+            if (interval.identifiedFrame > interval.firstFrame) {
+                keys[count++] = eventKey(interval.identifiedFrame, 1, k);
+            }
+            keys[count++] = eventKey(interval.lastFrame, 2, k);
+        }
+        Arrays.sort(keys, 0, count);
+        for (int k = 0; k < count; k++) {
+            Interval interval = intervals.get((int) (keys[k] & 0xFFFFFFFFL));
+            int type = (int) (keys[k] >>> 32) & 3;
+            if (type == 0) {
+                writeEnter(interval.firstFrame, interval.firstPts, interval.trackId,
+                        interval.identifiedFrame == interval.firstFrame ? interval.identity : null);
+            } else if (type == 1) {
+                long pts = interval.firstPts + (interval.lastPts - interval.firstPts)
+                        * (interval.identifiedFrame - interval.firstFrame) / (interval.lastFrame - interval.firstFrame);
+                writeIdentify(interval.identifiedFrame, pts, interval.trackId, interval.identity, interval.bestScore);
+            } else {
+                closeInterval(interval);
+                observationCount += interval.frameCount;
+                frame = Math.max(frame, interval.lastFrame);
+                framePts = Math.max(framePts, interval.lastPts);
+                videoFirstPts = videoFirstPts < 0 ? interval.firstPts : Math.min(videoFirstPts, interval.firstPts);
+            }
+        }
+        if (end != null) {
+            frame = (int) end[0] - 1;
+            videoFirstPts = end[1];
+            framePts = end[2];
+            observationCount = end[3];
+        }
+        close();
+    }
+
+    /**
+     * 读取事件文件中的所有区间，按离开的顺序排列
+     */
+    public static List<Interval> read(File eventsFile) throws IOException {
+        List<Interval> intervals = new ArrayList<>();
+        readEvents(eventsFile, intervals);
+        return intervals;
+    }
+
+    private static long eventKey(int frame, int type, int index) {
+        return ((long) frame << 34) | ((long) type << 32) | index;
+    }
+
+    /**
+     * 读取事件文件中的区间
+     *
+     * @return 最后一行的总帧数、首帧及末帧时间戳、人脸出现次数，没有写完的文件返回null
+     */
+    private static long[] readEvents(File eventsFile, List<Interval> intervals) throws IOException {
+        long[] end = null;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(eventsFile), UTF_8));
+        try {
+            String text;
+            while ((text = reader.readLine()) != null) {
+                if (text.startsWith(END_PREFIX)) {
+                    String[] fields = text.substring(END_PREFIX.length()).split(" ");
+                    end = new long[]{Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), Long.parseLong(fields[3])};
+                    continue;
+                }
+                if (text.isEmpty() || text.charAt(0) != EVENT_EXIT) {
+                    continue;
+                }
+                String[] fields = text.split(" ");
+                if (fields.length < 11) {
+                    continue;
+                }
+                String identity = NONE.equals(fields[2]) ? null : unescape(fields[2]);
+                Interval interval = new Interval(Integer.parseInt(fields[1]), identity,
+                        Integer.parseInt(fields[4]), Long.parseLong(fields[6]));
+                interval.identifiedFrame = Integer.parseInt(fields[3]);
+                interval.lastFrame = Integer.parseInt(fields[5]);
+                interval.lastPts = Long.parseLong(fields[7]);
+                interval.frameCount = Integer.parseInt(fields[8]);
+                interval.bestScore = Float.parseFloat(fields[9]);
+                if (!NONE.equals(fields[10])) {
+                    for (String gap : fields[10].split(",")) {
+                        int dash = gap.indexOf('~');
+                        interval.addGap(Integer.parseInt(gap.substring(0, dash)), Integer.parseInt(gap.substring(dash + 1)));
+                    }
+                }
+                intervals.add(interval);
+            }
+        } finally {
+            reader.close();
+        }
+        return end;
+    }
+
+    private void writeEnter(int frame, long pts, int trackId, String identity) {
+        line.setLength(0);
+        line.append(EVENT_ENTER).append(' ').append(frame).append(' ').append(pts)
+                .append(' ').append(trackId).append(' ').append(escape(identity));
+        writeLine(line);
+    }
+
+    private void writeIdentify(int frame, long pts, int trackId, String identity, float score) {
+        line.setLength(0);
+        line.append(EVENT_IDENTIFY).append(' ').append(frame).append(' ').append(pts)
+                .append(' ').append(trackId).append(' ').append(escape(identity)).append(' ').append(score);
+        writeLine(line);
+    }
+
+    private void closeInterval(Interval interval) {
+        intervalCount++;
+        line.setLength(0);
+        line.append(EVENT_EXIT).append(' ').append(interval.trackId)
+                .append(' ').append(escape(interval.identity))
+                .append(' ').append(interval.identifiedFrame)
+                .append(' ').append(interval.firstFrame).append(' ').append(interval.lastFrame)
+                .append(' ').append(interval.firstPts).append(' ').append(interval.lastPts)
+                .append(' ').append(interval.frameCount)
+                .append(' ').append(interval.bestScore)
+                .append(' ');
+        if (interval.gapCount == 0) {
+            line.append(NONE);
+        } else {
+            for (int k = 0; k < interval.gapCount; k++) {
+                if (k > 0) {
+                    line.append(',');
+                }
+                line.append(interval.gaps[k * 2]).append('~').append(interval.gaps[k * 2 + 1]);
+            }
+        }
+        writeLine(line);
+        if (interval.identity != null) {
+            summarize(interval);
+        }
+        if (intervalClosedListener != null) {
+            intervalClosedListener.onIntervalClosed(interval);
+        }
+    }
+
+    private void summarize(Interval interval) {
+        IdentitySummary summary = summaries.get(interval.identity);
+        if (summary == null) {
+            summary = new IdentitySummary();
+            summaries.put(interval.identity, summary);
+        }
+        summary.firstPts = Math.min(summary.firstPts, interval.firstPts);
+        summary.lastPts = Math.max(summary.lastPts, interval.lastPts);
+        summary.frameCount += interval.frameCount;
+        summary.intervalCount++;
+        summary.bestScore = Math.max(summary.bestScore, interval.bestScore);
+        // 区间按离开顺序到达，与已有时段重叠或间隔很短时合并
+        long start = interval.firstPts;
+        long end = interval.lastPts;
+        for (int k = summary.appearances.size() - 1; k >= 0; k--) {
+            long[] appearance = summary.appearances.get(k);
+            if (start <= appearance[1] + mergeGapMillis && appearance[0] <= end + mergeGapMillis) {
+                start = Math.min(start, appearance[0]);
+                end = Math.max(end, appearance[1]);
+                summary.appearances.remove(k);
+            }
+        }
+        int k = summary.appearances.size();
+        while (k > 0 && summary.appearances.get(k - 1)[0] > start) {
+            k--;
+        }
+        summary.appearances.add(k, new long[]{start, end});
+    }
+
+    private void writeSummary() throws IOException {
+        StringBuilder builder = new StringBuilder(1024);
+        builder.append("{\"video\":");
+        ResultLogger.appendJsonString(builder, videoName);
+        builder.append(",\"frames\":").append(frame + 1)
+                .append(",\"first_pts\":").append(videoFirstPts)
+                .append(",\"last_pts\":").append(framePts)
+                .append(",\"observations\":").append(observationCount)
+                .append(",\"intervals\":").append(intervalCount)
+                .append(",\"identities\":[");
+        boolean first = true;
+        for (Map.Entry<String, IdentitySummary> entry : summaries.entrySet()) {
+            IdentitySummary summary = entry.getValue();
+            builder.append(first ? "\n" : ",\n");
+            first = false;
+            builder.append("{\"identity\":");
+            ResultLogger.appendJsonString(builder, entry.getKey());
+            builder.append(",\"first_pts\":").append(summary.firstPts)
+                    .append(",\"last_pts\":").append(summary.lastPts)
+                    .append(",\"frames\":").append(summary.frameCount)
+                    .append(",\"intervals\":").append(summary.intervalCount)
+                    .append(",\"best_score\":").append(summary.bestScore)
+                    .append(",\"appearances\":[");
+            for (int k = 0; k < summary.appearances.size(); k++) {
+                long[] appearance = summary.appearances.get(k);
+                builder.append(k > 0 ? "," : "").append('[').append(appearance[0]).append(',').append(appearance[1]).append(']');
+            }
+            builder.append("]}");
+        }
+        builder.append("\n]}\n");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(summaryFile), UTF_8);
+        try {
+            writer.write(builder.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void writeLine(CharSequence text) {
+        if (events == null) {
+            return;
+        }
+        try {
+            events.append(text).append('\n');
+            eventCount++;
+            eventBytes += text.length() + 1;
+        } catch (IOException e) {
+            Log.e(TAG, "writeLine: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 身份中的空白及%转义为%XX，保证按空格切分时字段不错位、按行读取时不被\r或\n断开
+     */
+    static String escape(String identity) {
+        if (identity == null) {
+            return NONE;
+        }
+        StringBuilder builder = null;
+        for (int k = 0; k < identity.length(); k++) {
+            char c = identity.charAt(k);
+            if (c == ' ' || c == '%' || c == '\n' || c == '\r' || c == '\t') {
+                if (builder == null) {
+                    builder = new StringBuilder(identity.length() + 8).append(identity, 0, k);
+                }
+                builder.append('%').append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+            } else if (builder != null) {
+                builder.append(c);
+            }
+        }
+        String escaped = builder == null ? identity : builder.toString();
+        return NONE.equals(escaped) ? "%2d" : escaped;
+    }
+
+    static String unescape(String text) {
+        if (text.indexOf('%') < 0) {
+            return text;
+        }
+        StringBuilder builder = new StringBuilder(text.length());
+        for (int k = 0; k < text.length(); k++) {
+            char c = text.charAt(k);
+            if (c == '%' && k + 2 < text.length()) {
+                builder.append((char) Integer.parseInt(text.substring(k + 1, k + 3), 16));
+                k += 2;
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    public static final class Builder {
+        private int maxGapFrames = 5;
+        private long mergeGapMillis = 1000;
+        private OnIntervalClosedListener intervalClosedListener;
+
+        public Builder() {
+        }
+
+        /**
+         * 人脸连续漏检超过这个帧数视为离开，漏检的帧记录在区间中，不影响逐帧还原
+         */
+        public Builder maxGapFrames(int val) {
+            maxGapFrames = val;
+            return this;
+        }
+
+        /**
+         * 汇总时同一身份的两个区间间隔不超过这个时长（ms）则合并为一个出现时段
+         */
+        public Builder mergeGapMillis(long val) {
+            mergeGapMillis = val;
+            return this;
+        }
+
+        /**
+         * 区间结束时的回调，在解码线程中调用
+         */
+        public Builder intervalClosedListener(OnIntervalClosedListener val) {
+            intervalClosedListener = val;
+            return this;
+        }
+
+        public IdentityTimeline build() {
+            return new IdentityTimeline(this);
+        }
+    }
+}
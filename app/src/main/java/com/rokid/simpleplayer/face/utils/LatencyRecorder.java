@@ -0,0 +1,58 @@
+package com.rokid.simpleplayer.face.utils;
+
+import java.util.Arrays;
+
+/**
+ * 记录最近若干次耗时，用于统计分位数
+ */
+public class LatencyRecorder {
+    private final long[] samples;
+    private int count;
+    private int next;
+
+    /**
+     * @param capacity 保留的最近样本数
+     */
+    public LatencyRecorder(int capacity) {
+        samples = new long[Math.max(1, capacity)];
+    }
+
+    public synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * @param percentile 分位数，取值(0, 100]
+     * @return 对应分位的耗时（ns），没有样本时返回0
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    public synchronized void reset() {
+        count = 0;
+        next = 0;
+    }
+
+    /**
+     * 输出p50/p90/p99，单位us
+     */
+    public String summary() {
+        return "p50=" + getPercentile(50) / 1000 + "us p90=" + getPercentile(90) / 1000
+                + "us p99=" + getPercentile(99) / 1000 + "us (" + getCount() + " samples)";
+    }
+}
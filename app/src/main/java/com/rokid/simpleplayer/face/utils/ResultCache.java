@@ -0,0 +1,258 @@
+package com.rokid.simpleplayer.face.utils;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * 按视频内容寻址的分析结果缓存
+ * <p>
+ * 视频的指纹由文件长度及均匀分布的若干个采样块计算（SHA-1），不读取整个文件；每个指纹一个目录，
+ * 保存分析结果文件及元数据：分析时的人脸库指纹与流水线配置。查询时三者都一致则直接复用结果，
+ * 只有人脸库变化时返回{@link Status#GALLERY_CHANGED}，由调用方决定重新比对还是重新解码。
+ * 元数据最后写入（先写临时文件再改名），写了一半的缓存不会被命中
+ */
+public class ResultCache {
+    private static final String TAG = "ResultCache";
+    private static final String META_FILE_NAME = "meta.properties";
+    private static final String RESULT_FILE_PREFIX = "result";
+    private static final String KEY_GALLERY = "gallery";
+    private static final String KEY_CONFIG = "config";
+    private static final String KEY_VIDEO = "video";
+    private static final String KEY_TIME = "time";
+    /**
+     * 采样块的数量及大小，小于两者乘积的文件整个读取
+     */
+    private static final int SAMPLE_COUNT = 16;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    /**
+     * 查询结果
+     */
+    public enum Status {
+        /**
+         * 没有缓存或配置不同
+         */
+        MISS,
+        /**
+         * 视频、人脸库及配置都没有变化，可以直接复用
+         */
+        HIT,
+        /**
+         * 视频及配置没有变化，人脸库变化了
+         */
+        GALLERY_CHANGED
+    }
+
+    /**
+     * 一个视频的缓存项
+     */
+    public static class Entry {
+        private final String fingerprint;
+        private final Status status;
+        private final File dir;
+
+        Entry(String fingerprint, Status status, File dir) {
+            this.fingerprint = fingerprint;
+            this.status = status;
+            this.dir = dir;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * @return 缓存目录，流水线可以在这里保存其他按视频的中间结果
+         */
+        public File getDir() {
+            return dir;
+        }
+    }
+
+    private final File dir;
+    private final String[] extensions;
+
+    private int hitCount;
+    private int galleryChangedCount;
+    private int missCount;
+    private long fingerprintNanos;
+
+    /**
+     * @param dir        缓存目录
+     * @param extensions 每个视频的结果文件扩展名，结果文件名为视频名加扩展名
+     */
+    public ResultCache(File dir, String... extensions) {
+        this.dir = dir;
+        this.extensions = extensions;
+    }
+
+    /**
+     * 查询一个视频的缓存
+     *
+     * @param video      视频文件
+     * @param galleryKey 当前人脸库的指纹
+     * @param configKey  当前流水线配置
+     */
+    public synchronized Entry lookup(File video, String galleryKey, String configKey) throws IOException {
+        long startTime = System.nanoTime();
+        String fingerprint = fingerprint(video);
+        fingerprintNanos += System.nanoTime() - startTime;
+        File entryDir = new File(dir, fingerprint);
+        Properties meta = readMeta(entryDir);
+        Status status;
+        if (meta == null || !configKey.equals(meta.getProperty(KEY_CONFIG))) {
+            status = Status.MISS;
+            missCount++;
+        } else if (!galleryKey.equals(meta.getProperty(KEY_GALLERY))) {
+            status = Status.GALLERY_CHANGED;
+            galleryChangedCount++;
+        } else {
+            status = Status.HIT;
+            hitCount++;
+        }
+        return new Entry(fingerprint, status, entryDir);
+    }
+
+    /**
+     * 将缓存的结果文件复制到输出目录
+     *
+     * @return 复制的文件数
+     */
+    public synchronized int restore(Entry entry, File outDir, String videoName) {
+        int restored = 0;
+        for (String extension : extensions) {
+            File cached = new File(entry.dir, RESULT_FILE_PREFIX + extension);
+            if (cached.exists() && FileUtils.copyFile(cached, new File(outDir, videoName + extension))) {
+                restored++;
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * 保存一个视频的分析结果，覆盖之前的缓存
+     *
+     * @param entry      分析前{@link #lookup}的结果
+     * @param galleryKey 分析时人脸库的指纹
+     * @param configKey  分析时的流水线配置
+     * @param outDir     结果文件所在的目录
+     * @param videoName  视频名
+     */
+    public synchronized void store(Entry entry, String galleryKey, String configKey, File outDir, String videoName) throws IOException {
+        if (!entry.dir.exists() && !entry.dir.mkdirs()) {
+            throw new IOException("can not create directory " + entry.dir);
+        }
+        File metaFile = new File(entry.dir, META_FILE_NAME);
+        metaFile.delete();
+        for (String extension : extensions) {
+            File result = new File(outDir, videoName + extension);
+            File cached = new File(entry.dir, RESULT_FILE_PREFIX + extension);
+            if (!result.exists()) {
+                cached.delete();
+            } else if (!FileUtils.copyFile(result, cached)) {
+                throw new IOException("copy " + result + " failed");
+            }
+        }
+        Properties meta = new Properties();
+        meta.setProperty(KEY_GALLERY, galleryKey);
+        meta.setProperty(KEY_CONFIG, configKey);
+        meta.setProperty(KEY_VIDEO, videoName);
+        meta.setProperty(KEY_TIME, String.valueOf(System.currentTimeMillis()));
+        File tmpFile = new File(entry.dir, META_FILE_NAME + ".tmp");
+        OutputStream out = new FileOutputStream(tmpFile);
+        try {
+            meta.store(out, null);
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(metaFile)) {
+            throw new IOException("rename " + tmpFile + " failed");
+        }
+    }
+
+    /**
+     * 统计：命中、人脸库变化、未命中的次数及平均计算指纹的耗时
+     */
+    public synchronized String getStats() {
+        int lookups = hitCount + galleryChangedCount + missCount;
+        return "hit=" + hitCount
+                + " galleryChanged=" + galleryChangedCount
+                + " miss=" + missCount
+                + " avgFingerprint=" + (lookups == 0 ? 0 : fingerprintNanos / lookups / 1000000) + "ms";
+    }
+
+    /**
+     * 视频内容的指纹：文件长度及均匀分布的采样块（包含开头和结尾）的SHA-1
+     */
+    public static String fingerprint(File video) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        RandomAccessFile file = new RandomAccessFile(video, "r");
+        try {
+            long length = file.length();
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                digest.update((byte) (length >>> shift));
+            }
+            byte[] buffer = new byte[SAMPLE_SIZE];
+            if (length <= (long) SAMPLE_COUNT * SAMPLE_SIZE) {
+                int read;
+                while ((read = file.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                }
+            } else {
+                long step = (length - SAMPLE_SIZE) / (SAMPLE_COUNT - 1);
+                for (int k = 0; k < SAMPLE_COUNT; k++) {
+                    file.seek(k == SAMPLE_COUNT - 1 ? length - SAMPLE_SIZE : k * step);
+                    file.readFully(buffer);
+                    digest.update(buffer);
+                }
+            }
+        } finally {
+            file.close();
+        }
+        byte[] hash = digest.digest();
+        StringBuilder builder = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    private static Properties readMeta(File entryDir) {
+        File metaFile = new File(entryDir, META_FILE_NAME);
+        if (!metaFile.exists()) {
+            return null;
+        }
+        Properties meta = new Properties();
+        try {
+            InputStream in = new FileInputStream(metaFile);
+            try {
+                meta.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "readMeta: " + e.getMessage());
+            return null;
+        }
+        return meta;
+    }
+}
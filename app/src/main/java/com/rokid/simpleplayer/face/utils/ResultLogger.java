@@ -0,0 +1,392 @@
+package com.rokid.simpleplayer.face.utils;
+
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步批量写入的识别结果日志
+ * <p>
+ * 解码线程（唯一的生产者）把每条结果的基本类型字段及字符串引用写入预分配的环形缓冲区，不加锁、不做I/O、不格式化字符串，
+ * 缓冲区满时丢弃并计数；后台线程定时或在缓冲区过半时批量取出，格式化为JSONL或紧凑的二进制记录后写入带缓冲的输出流。
+ * 每个视频调用一次{@link #open(File)}，结束时调用{@link #close()}写完剩余记录并关闭文件
+ */
+public class ResultLogger {
+    private static final String TAG = "ResultLogger";
+    private static final String THREAD_NAME = "FaceResultLogger";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /**
+     * 二进制日志的文件头
+     */
+    public static final int BINARY_MAGIC = 0x524C4F47;
+    public static final int BINARY_VERSION = 1;
+    /**
+     * 二进制记录的类型：字符串表项及识别结果
+     */
+    public static final int TAG_STRING = 1;
+    public static final int TAG_RECORD = 2;
+
+    /**
+     * 日志格式
+     */
+    public enum Format {
+        /**
+         * 每行一个JSON对象
+         */
+        JSONL(".jsonl"),
+        /**
+         * 字符串只在第一次出现时写入字符串表，之后的记录只写编号
+         */
+        BINARY(".rlog");
+
+        public final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    private final Format format;
+    private final int mask;
+    private final long flushIntervalNanos;
+
+    // 环形缓冲区，按序号取模存放
+    private final long[] timestamps;
+    private final long[] ptsArray;
+    private final int[] trackIds;
+    private final int[] statuses;
+    private final int[] boxes;
+    private final String[] names;
+    private final String[] identities;
+    /**
+     * 下一条写入及下一条读取的序号
+     */
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean writerParked;
+    /**
+     * 保护输出流，写入线程与open/close不会同时消费缓冲区
+     */
+    private final Object ioLock = new Object();
+    private DataOutputStream out;
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private final StringBuilder line = new StringBuilder(256);
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong writtenBytes = new AtomicLong();
+    private long maxBatch;
+
+    private ResultLogger(Builder builder) {
+        format = builder.format == null ? Format.JSONL : builder.format;
+        int capacity = Integer.highestOneBit(Math.max(64, builder.capacity > 0 ? builder.capacity : 8192) - 1) << 1;
+        mask = capacity - 1;
+        flushIntervalNanos = (builder.flushIntervalMillis > 0 ? builder.flushIntervalMillis : 200) * 1000000L;
+        timestamps = new long[capacity];
+        ptsArray = new long[capacity];
+        trackIds = new int[capacity];
+        statuses = new int[capacity];
+        boxes = new int[capacity * 4];
+        names = new String[capacity];
+        identities = new String[capacity];
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, THREAD_NAME);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * 开始写入一个新的日志文件，之前的文件先写完并关闭
+     *
+     * @param file 日志文件
+     */
+    public void open(File file) throws IOException {
+        synchronized (ioLock) {
+            closeLocked();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+            stringIds.clear();
+            if (format == Format.BINARY) {
+                out.writeInt(BINARY_MAGIC);
+                out.writeInt(BINARY_VERSION);
+            }
+        }
+    }
+
+    /**
+     * 写完缓冲区中的记录并关闭当前日志文件
+     */
+    public void close() {
+        synchronized (ioLock) {
+            closeLocked();
+        }
+    }
+
+    /**
+     * 关闭文件并结束写入线程
+     */
+    public void shutdown() {
+        close();
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * 记录一条识别结果，只能在一个线程中调用；缓冲区满时丢弃
+     *
+     * @param timestamp 系统时间（ms）
+     * @param pts       视频帧时间戳
+     * @param trackId   人脸ID
+     * @param status    识别状态
+     * @param box       人脸框，可以为null
+     * @param name      显示的名称
+     * @param identity  识别出的人员或访客ID
+     * @return 是否写入缓冲区
+     */
+    public boolean log(long timestamp, long pts, int trackId, int status, Rect box, String name, String identity) {
+        long h = head.get();
+        if (h - tail.get() > mask) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        int i = (int) (h & mask);
+        timestamps[i] = timestamp;
+        ptsArray[i] = pts;
+        trackIds[i] = trackId;
+        statuses[i] = status;
+        if (box != null) {
+            boxes[i * 4] = box.left;
+            boxes[i * 4 + 1] = box.top;
+            boxes[i * 4 + 2] = box.right;
+            boxes[i * 4 + 3] = box.bottom;
+        } else {
+            boxes[i * 4] = boxes[i * 4 + 1] = boxes[i * 4 + 2] = boxes[i * 4 + 3] = 0;
+        }
+        names[i] = name;
+        identities[i] = identity;
+        head.lazySet(h + 1);
+        if (writerParked && h + 1 - tail.get() > (mask >> 1)) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    /**
+     * 统计：写入的记录数及字节数、丢弃的记录数、单批最多记录数
+     */
+    public String getStats() {
+        return "written=" + writtenCount.get()
+                + " bytes=" + writtenBytes.get()
+                + " dropped=" + droppedCount.get()
+                + " maxBatch=" + maxBatch
+                + " format=" + format;
+    }
+
+    private void writeLoop() {
+        while (running) {
+            writerParked = true;
+            LockSupport.parkNanos(this, flushIntervalNanos);
+            writerParked = false;
+            synchronized (ioLock) {
+                try {
+                    if (drainLocked() > 0 && out != null) {
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "writeLoop: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void closeLocked() {
+        try {
+            drainLocked();
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "close: " + e.getMessage());
+        }
+        out = null;
+    }
+
+    /**
+     * 取出缓冲区中的所有记录写入输出流，没有打开的文件时丢弃，需持有ioLock调用
+     *
+     * @return 取出的记录数
+     */
+    private int drainLocked() throws IOException {
+        long t = tail.get();
+        long h = head.get();
+        int count = (int) (h - t);
+        if (count == 0) {
+            return 0;
+        }
+        int before = out == null ? 0 : out.size();
+        try {
+            for (; t < h; t++) {
+                int i = (int) (t & mask);
+                if (out != null) {
+                    if (format == Format.BINARY) {
+                        writeBinary(i);
+                    } else {
+                        writeJson(i);
+                    }
+                }
+                names[i] = null;
+                identities[i] = null;
+            }
+        } finally {
+            tail.lazySet(h);
+        }
+        if (out != null) {
+            writtenCount.addAndGet(count);
+            writtenBytes.addAndGet(out.size() - before);
+        } else {
+            droppedCount.addAndGet(count);
+        }
+        maxBatch = Math.max(maxBatch, count);
+        return count;
+    }
+
+    private void writeBinary(int i) throws IOException {
+        int nameId = stringId(names[i]);
+        int identityId = stringId(identities[i]);
+        out.writeByte(TAG_RECORD);
+        out.writeLong(timestamps[i]);
+        out.writeLong(ptsArray[i]);
+        out.writeInt(trackIds[i]);
+        out.writeByte(statuses[i]);
+        for (int k = 0; k < 4; k++) {
+            out.writeInt(boxes[i * 4 + k]);
+        }
+        out.writeInt(nameId);
+        out.writeInt(identityId);
+    }
+
+    /**
+     * 字符串在文件中的编号，第一次出现时先写入字符串表，null为-1
+     */
+    private int stringId(String value) throws IOException {
+        if (value == null) {
+            return -1;
+        }
+        Integer id = stringIds.get(value);
+        if (id == null) {
+            id = stringIds.size();
+            stringIds.put(value, id);
+            out.writeByte(TAG_STRING);
+            out.writeInt(id);
+            out.writeUTF(value);
+        }
+        return id;
+    }
+
+    private void writeJson(int i) throws IOException {
+        StringBuilder builder = line;
+        builder.setLength(0);
+        builder.append("{\"ts\":").append(timestamps[i])
+                .append(",\"pts\":").append(ptsArray[i])
+                .append(",\"track\":").append(trackIds[i])
+                .append(",\"status\":").append(statuses[i])
+                .append(",\"box\":[").append(boxes[i * 4]).append(',').append(boxes[i * 4 + 1])
+                .append(',').append(boxes[i * 4 + 2]).append(',').append(boxes[i * 4 + 3]).append(']')
+                .append(",\"name\":");
+        appendJsonString(builder, names[i]);
+        builder.append(",\"identity\":");
+        appendJsonString(builder, identities[i]);
+        builder.append("}\n");
+        out.write(builder.toString().getBytes(UTF_8));
+    }
+
+    static void appendJsonString(StringBuilder builder, String value) {
+        if (value == null) {
+            builder.append("null");
+            return;
+        }
+        builder.append('"');
+        for (int k = 0; k < value.length(); k++) {
+            char c = value.charAt(k);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+                    break;
+            }
+        }
+        builder.append('"');
+    }
+
+    public static final class Builder {
+        private Format format;
+        private int capacity;
+        private long flushIntervalMillis;
+
+        public Builder() {
+        }
+
+        public Builder format(Format val) {
+            format = val;
+            return this;
+        }
+
+        /**
+         * 环形缓冲区的记录数，向上取2的幂
+         */
+        public Builder capacity(int val) {
+            capacity = val;
+            return this;
+        }
+
+        /**
+         * 写入线程批量写入的间隔
+         */
+        public Builder flushIntervalMillis(long val) {
+            flushIntervalMillis = val;
+            return this;
+        }
+
+        public ResultLogger build() {
+            return new ResultLogger(this);
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.rokid.simpleplayer.face.utils;
+
+import java.util.Arrays;
+
+/**
+ * 人脸识别重试的时间轮调度器
+ * <p>
+ * 所有trackId的重试截止时间都挂在同一个时间轮上，由一个线程按tick推进，插入和取消都是O(1)，
+ * 替代每个人脸一个{@code Observable.timer}的做法。重试间隔按次数指数退避，并有上限。
+ * 每个trackId的等待状态及退避次数保存在以trackId为KEY的开放寻址表中，人脸离开时删除，不依赖Android的类
+ */
+public class RetryTimerWheel {
+    private static final String THREAD_NAME = "FaceRetryWheel";
+    private static final int DEFAULT_CAPACITY = 32;
+
+    /**
+     * 重试时间到达时的回调，在时间轮线程中执行
+     */
+    public interface OnRetryListener {
+        void onRetry(int trackId);
+    }
+
+    private static final class Timeout {
+        int trackId;
+        /**
+         * 已经安排过的重试次数，用于计算退避间隔
+         */
+        int attempts;
+        /**
+         * 是否挂在时间轮上等待
+         */
+        boolean pending;
+        int bucket;
+        int remainingRounds;
+        Timeout prev;
+        Timeout next;
+    }
+
+    private final long tickMillis;
+    private final int mask;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final OnRetryListener listener;
+
+    private final Timeout[] buckets;
+    /**
+     * 开放寻址（线性探测）表，KEY为trackId，VALUE为该trackId的Timeout，用于O(1)取消及保存退避次数
+     */
+    private int[] keys = new int[DEFAULT_CAPACITY];
+    private Timeout[] values = new Timeout[DEFAULT_CAPACITY];
+    private int trackCount;
+    private int pendingCount;
+    /**
+     * 回收的Timeout对象，避免频繁分配
+     */
+    private Timeout freeList;
+
+    private int[] expiredTrackIds = new int[16];
+    private long tick;
+    private Thread workerThread;
+    private volatile boolean stopped;
+
+    /**
+     * 单次tick的最长处理耗时（ns），用于观察大量等待任务时的调度开销
+     */
+    private volatile long maxTickCostNanos;
+
+    /**
+     * @param tickMillis      每个tick的时长
+     * @param wheelSize       时间轮的槽数，会向上取整为2的幂
+     * @param baseDelayMillis 第一次重试的间隔
+     * @param maxDelayMillis  重试间隔的上限
+     * @param listener        重试回调
+     */
+    public RetryTimerWheel(long tickMillis, int wheelSize, long baseDelayMillis, long maxDelayMillis, OnRetryListener listener) {
+        if (tickMillis <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("tickMillis and wheelSize must > 0");
+        }
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+        this.tickMillis = tickMillis;
+        this.mask = size - 1;
+        this.buckets = new Timeout[size];
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = Math.max(baseDelayMillis, maxDelayMillis);
+        this.listener = listener;
+    }
+
+    /**
+     * 为trackId安排一次重试，已经在等待的会被重新安排
+     *
+     * @param trackId 人脸trackId
+     * @return 本次的重试间隔（ms）
+     */
+    public synchronized long schedule(int trackId) {
+        if (stopped) {
+            return -1;
+        }
+        startIfNeeded();
+        int i = indexOf(trackId);
+        Timeout timeout;
+        if (i >= 0) {
+            timeout = values[i];
+        } else {
+            timeout = obtain();
+            timeout.trackId = trackId;
+            timeout.attempts = 0;
+            timeout.pending = false;
+            insert(timeout);
+        }
+        if (timeout.pending) {
+            unlink(timeout);
+        } else {
+            timeout.pending = true;
+            pendingCount++;
+        }
+        long delay = backoff(timeout.attempts++);
+        long ticks = Math.max(1, (delay + tickMillis - 1) / tickMillis);
+        timeout.bucket = (int) ((tick + ticks - 1) & mask);
+        timeout.remainingRounds = (int) ((ticks - 1) / buckets.length);
+        link(timeout);
+        return delay;
+    }
+
+    /**
+     * 取消trackId的重试并清除退避次数，人脸离开时调用
+     */
+    public synchronized void cancel(int trackId) {
+        int i = indexOf(trackId);
+        if (i < 0) {
+            return;
+        }
+        Timeout timeout = values[i];
+        removeAt(i);
+        if (timeout.pending) {
+            unlink(timeout);
+            pendingCount--;
+        }
+        recycle(timeout);
+    }
+
+    public synchronized void cancelAll() {
+        Arrays.fill(buckets, null);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                recycle(values[i]);
+                values[i] = null;
+            }
+        }
+        trackCount = 0;
+        pendingCount = 0;
+    }
+
+    /**
+     * @return 等待重试的trackId数量
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * @return 记录了退避次数的trackId数量，包括已经重试过、还没有取消的
+     */
+    public synchronized int getTrackCount() {
+        return trackCount;
+    }
+
+    public long getMaxTickCostNanos() {
+        return maxTickCostNanos;
+    }
+
+    /**
+     * 停止时间轮线程，之后不再接受新的重试
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            stopped = true;
+            thread = workerThread;
+            workerThread = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+        cancelAll();
+    }
+
+    private long backoff(int attempt) {
+        long delay = baseDelayMillis << Math.min(attempt, 20);
+        return delay <= 0 || delay > maxDelayMillis ? maxDelayMillis : delay;
+    }
+
+    private void startIfNeeded() {
+        if (workerThread != null) {
+            return;
+        }
+        workerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWheel();
+            }
+        }, THREAD_NAME);
+        workerThread.setDaemon(true);
+        workerThread.start();
+    }
+
+    private void runWheel() {
+        long startTime = System.nanoTime();
+        long processedTicks = 0;
+        while (!stopped) {
+            long deadline = startTime + (processedTicks + 1) * tickMillis * 1000000L;
+            long sleepMillis = (deadline - System.nanoTime()) / 1000000L;
+            if (sleepMillis > 0) {
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            processedTicks++;
+            int expiredCount = expireCurrentBucket();
+            for (int i = 0; i < expiredCount; i++) {
+                if (listener != null && !stopped) {
+                    listener.onRetry(expiredTrackIds[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * 处理当前tick对应的槽，返回到期的数量，到期的trackId存放在expiredTrackIds中
+     */
+    private synchronized int expireCurrentBucket() {
+        long costStart = System.nanoTime();
+        int expiredCount = 0;
+        int bucket = (int) (tick & mask);
+        Timeout timeout = buckets[bucket];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            } else {
+                if (expiredCount == expiredTrackIds.length) {
+                    int[] grown = new int[expiredCount * 2];
+                    System.arraycopy(expiredTrackIds, 0, grown, 0, expiredCount);
+                    expiredTrackIds = grown;
+                }
+                expiredTrackIds[expiredCount++] = timeout.trackId;
+                // 保留在表中，下次安排时继续退避，直到取消
+                unlink(timeout);
+                timeout.pending = false;
+                pendingCount--;
+            }
+            timeout = next;
+        }
+        tick++;
+        long cost = System.nanoTime() - costStart;
+        if (cost > maxTickCostNanos) {
+            maxTickCostNanos = cost;
+        }
+        return expiredCount;
+    }
+
+    private static int hash(int trackId) {
+        int h = trackId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int indexOf(int trackId) {
+        int tableMask = keys.length - 1;
+        int i = hash(trackId) & tableMask;
+        while (values[i] != null) {
+            if (keys[i] == trackId) {
+                return i;
+            }
+            i = (i + 1) & tableMask;
+        }
+        return -1;
+    }
+
+    private void insert(Timeout timeout) {
+        if ((trackCount + 1) * 2 > keys.length) {
+            int[] oldKeys = keys;
+            Timeout[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new Timeout[oldValues.length * 2];
+            for (int i = 0; i < oldValues.length; i++) {
+                if (oldValues[i] != null) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+        put(timeout.trackId, timeout);
+        trackCount++;
+    }
+
+    private void put(int trackId, Timeout timeout) {
+        int tableMask = keys.length - 1;
+        int i = hash(trackId) & tableMask;
+        while (values[i] != null) {
+            i = (i + 1) & tableMask;
+        }
+        keys[i] = trackId;
+        values[i] = timeout;
+    }
+
+    /**
+     * 删除后把同一探测链上后面的记录前移，保证查找不会提前遇到空位
+     */
+    private void removeAt(int index) {
+        int tableMask = keys.length - 1;
+        int hole = index;
+        int j = index;
+        while (true) {
+            j = (j + 1) & tableMask;
+            if (values[j] == null) {
+                break;
+            }
+            int home = hash(keys[j]) & tableMask;
+            boolean movable = hole <= j ? (home <= hole || home > j) : (home <= hole && home > j);
+            if (movable) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        values[hole] = null;
+        trackCount--;
+    }
+
+    private void link(Timeout timeout) {
+        Timeout head = buckets[timeout.bucket];
+        timeout.prev = null;
+        timeout.next = head;
+        if (head != null) {
+            head.prev = timeout;
+        }
+        buckets[timeout.bucket] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else if (buckets[timeout.bucket] == timeout) {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    private Timeout obtain() {
+        Timeout timeout = freeList;
+        if (timeout == null) {
+            return new Timeout();
+        }
+        freeList = timeout.next;
+        timeout.next = null;
+        return timeout;
+    }
+
+    private void recycle(Timeout timeout) {
+        timeout.prev = null;
+        timeout.next = freeList;
+        freeList = timeout;
+    }
+}
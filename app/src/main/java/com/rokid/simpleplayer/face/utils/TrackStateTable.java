@@ -0,0 +1,380 @@
+package com.rokid.simpleplayer.face.utils;
+
+import android.graphics.Rect;
+
+import java.util.Arrays;
+
+/**
+ * 以int trackId为KEY的人脸追踪状态表，替代多个装箱的ConcurrentHashMap
+ * <p>
+ * 采用开放寻址（线性探测）加并行数组存储识别状态、重试次数、显示名称、最后出现的时间戳、人脸框以及识别到的身份与相似度，
+ * 每帧通过{@link #beginFrame()}、{@link #touch(int, long, Rect)}、{@link #evictUnseen(OnTrackEvictListener)}一次遍历完成更新，
+ * 稳态下不产生任何对象分配
+ */
+public class TrackStateTable {
+    /**
+     * 没有识别状态，对应原来map中取不到值的情况
+     */
+    public static final int STATUS_NONE = -1;
+
+    private static final int DEFAULT_CAPACITY = 32;
+
+    /**
+     * 人脸离开时的回调
+     */
+    public interface OnTrackEvictListener {
+        /**
+         * 在记录删除前回调，回调时不持有状态表的锁，可以查询该trackId的状态，但不能修改状态表
+         *
+         * @param trackId 离开的人脸trackId
+         * @param status  离开时的识别状态
+         */
+        void onTrackEvicted(int trackId, int status);
+    }
+
+    private int[] keys;
+    private boolean[] occupied;
+    private int[] status;
+    private int[] retryCount;
+    private String[] name;
+    private String[] identity;
+    private float[] score;
+    private long[] lastSeenPts;
+    /**
+     * 每个人脸占4个元素：left, top, right, bottom
+     */
+    private int[] lastBox;
+    private int[] seenFrame;
+
+    private int mask;
+    private int size;
+    private int currentFrame;
+    /**
+     * 本帧待删除的trackId及离开时的状态，复用数组，不持锁回调时使用
+     */
+    private int[] evictIds = new int[DEFAULT_CAPACITY];
+    private int[] evictStatus = new int[DEFAULT_CAPACITY];
+
+    public TrackStateTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TrackStateTable(int expectedTracks) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity < expectedTracks * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        occupied = new boolean[capacity];
+        status = new int[capacity];
+        retryCount = new int[capacity];
+        name = new String[capacity];
+        identity = new String[capacity];
+        score = new float[capacity];
+        lastSeenPts = new long[capacity];
+        lastBox = new int[capacity * 4];
+        seenFrame = new int[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private static int hash(int trackId) {
+        int h = trackId * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private int indexOf(int trackId) {
+        int i = hash(trackId) & mask;
+        while (occupied[i]) {
+            if (keys[i] == trackId) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * 开始新的一帧，之后调用{@link #touch(int, long, Rect)}的人脸视为本帧出现
+     */
+    public synchronized void beginFrame() {
+        currentFrame++;
+    }
+
+    /**
+     * 标记人脸在本帧出现，不存在时插入一条空状态的记录
+     *
+     * @param trackId 人脸trackId
+     * @param pts     帧时间戳（ms）
+     * @param box     人脸框，可以为null
+     */
+    public synchronized void touch(int trackId, long pts, Rect box) {
+        int i = indexOf(trackId);
+        if (i < 0) {
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length << 1);
+            }
+            i = hash(trackId) & mask;
+            while (occupied[i]) {
+                i = (i + 1) & mask;
+            }
+            occupied[i] = true;
+            keys[i] = trackId;
+            status[i] = STATUS_NONE;
+            retryCount[i] = 0;
+            name[i] = null;
+            identity[i] = null;
+            score[i] = 0;
+            size++;
+        }
+        lastSeenPts[i] = pts;
+        seenFrame[i] = currentFrame;
+        if (box != null) {
+            int b = i * 4;
+            lastBox[b] = box.left;
+            lastBox[b + 1] = box.top;
+            lastBox[b + 2] = box.right;
+            lastBox[b + 3] = box.bottom;
+        }
+    }
+
+    /**
+     * 批量删除本帧没有出现的人脸
+     * <p>
+     * 先在锁内找出要删除的人脸，释放锁后逐个回调，最后再加锁删除，回调中获取其他锁不会与持有这些锁
+     * 查询状态表的线程死锁。与{@link #beginFrame()}、{@link #touch(int, long, Rect)}在同一个线程中调用
+     *
+     * @param listener 删除回调，可以为null
+     * @return 删除的数量
+     */
+    public int evictUnseen(OnTrackEvictListener listener) {
+        int count = 0;
+        synchronized (this) {
+            for (int i = 0; i < keys.length; i++) {
+                if (occupied[i] && seenFrame[i] != currentFrame) {
+                    if (count == evictIds.length) {
+                        evictIds = Arrays.copyOf(evictIds, count << 1);
+                        evictStatus = Arrays.copyOf(evictStatus, count << 1);
+                    }
+                    evictIds[count] = keys[i];
+                    evictStatus[count] = status[i];
+                    count++;
+                }
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        if (listener != null) {
+            for (int k = 0; k < count; k++) {
+                listener.onTrackEvicted(evictIds[k], evictStatus[k]);
+            }
+        }
+        int evicted = 0;
+        synchronized (this) {
+            for (int k = 0; k < count; k++) {
+                int i = indexOf(evictIds[k]);
+                // 回调期间可能已经清空或重新出现
+                if (i >= 0 && seenFrame[i] != currentFrame) {
+                    removeAt(i);
+                    evicted++;
+                }
+            }
+        }
+        return evicted;
+    }
+
+    public synchronized boolean contains(int trackId) {
+        return indexOf(trackId) >= 0;
+    }
+
+    /**
+     * @return 识别状态，不存在时返回{@link #STATUS_NONE}
+     */
+    public synchronized int getStatus(int trackId) {
+        int i = indexOf(trackId);
+        return i < 0 ? STATUS_NONE : status[i];
+    }
+
+    /**
+     * 设置识别状态，已经离开的人脸不会被重新加入
+     *
+     * @return 人脸是否存在
+     */
+    public synchronized boolean setStatus(int trackId, int value) {
+        int i = indexOf(trackId);
+        if (i < 0) {
+            return false;
+        }
+        status[i] = value;
+        return true;
+    }
+
+    /**
+     * 将重试次数增1回传，人脸不存在时返回0
+     */
+    public synchronized int increaseAndGetRetryCount(int trackId) {
+        int i = indexOf(trackId);
+        return i < 0 ? 0 : ++retryCount[i];
+    }
+
+    public synchronized void resetRetryCount(int trackId) {
+        int i = indexOf(trackId);
+        if (i >= 0) {
+            retryCount[i] = 0;
+        }
+    }
+
+    public synchronized String getName(int trackId) {
+        int i = indexOf(trackId);
+        return i < 0 ? null : name[i];
+    }
+
+    public synchronized boolean setName(int trackId, String value) {
+        int i = indexOf(trackId);
+        if (i < 0) {
+            return false;
+        }
+        name[i] = value;
+        return true;
+    }
+
+    public synchronized String getIdentity(int trackId) {
+        int i = indexOf(trackId);
+        return i < 0 ? null : identity[i];
+    }
+
+    public synchronized boolean setIdentity(int trackId, String value) {
+        int i = indexOf(trackId);
+        if (i < 0) {
+            return false;
+        }
+        identity[i] = value;
+        return true;
+    }
+
+    /**
+     * @return 识别身份时的相似度，不存在时返回0
+     */
+    public synchronized float getScore(int trackId) {
+        int i = indexOf(trackId);
+        return i < 0 ? 0 : score[i];
+    }
+
+    public synchronized boolean setScore(int trackId, float value) {
+        int i = indexOf(trackId);
+        if (i < 0) {
+            return false;
+        }
+        score[i] = value;
+        return true;
+    }
+
+    /**
+     * @return 最后出现的时间戳（ms），不存在时返回-1
+     */
+    public synchronized long getLastSeenPts(int trackId) {
+        int i = indexOf(trackId);
+        return i < 0 ? -1 : lastSeenPts[i];
+    }
+
+    /**
+     * 获取最后一次出现时的人脸框
+     *
+     * @param trackId 人脸trackId
+     * @param out     输出的人脸框
+     * @return 人脸是否存在
+     */
+    public synchronized boolean getLastBox(int trackId, Rect out) {
+        int i = indexOf(trackId);
+        if (i < 0) {
+            return false;
+        }
+        int b = i * 4;
+        out.set(lastBox[b], lastBox[b + 1], lastBox[b + 2], lastBox[b + 3]);
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < keys.length; i++) {
+            occupied[i] = false;
+            name[i] = null;
+            identity[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * 线性探测的反向移位删除，不需要墓碑标记
+     */
+    private void removeAt(int index) {
+        int hole = index;
+        int j = index;
+        while (true) {
+            j = (j + 1) & mask;
+            if (!occupied[j]) {
+                break;
+            }
+            int home = hash(keys[j]) & mask;
+            boolean movable = hole <= j ? (home <= hole || home > j) : (home <= hole && home > j);
+            if (movable) {
+                keys[hole] = keys[j];
+                status[hole] = status[j];
+                retryCount[hole] = retryCount[j];
+                name[hole] = name[j];
+                identity[hole] = identity[j];
+                score[hole] = score[j];
+                lastSeenPts[hole] = lastSeenPts[j];
+                System.arraycopy(lastBox, j * 4, lastBox, hole * 4, 4);
+                seenFrame[hole] = seenFrame[j];
+                hole = j;
+            }
+        }
+        occupied[hole] = false;
+        name[hole] = null;
+        identity[hole] = null;
+        size--;
+    }
+
+    private void resize(int newCapacity) {
+        int[] oldKeys = keys;
+        boolean[] oldOccupied = occupied;
+        int[] oldStatus = status;
+        int[] oldRetryCount = retryCount;
+        String[] oldName = name;
+        String[] oldIdentity = identity;
+        float[] oldScore = score;
+        long[] oldLastSeenPts = lastSeenPts;
+        int[] oldLastBox = lastBox;
+        int[] oldSeenFrame = seenFrame;
+        allocate(newCapacity);
+        for (int k = 0; k < oldKeys.length; k++) {
+            if (!oldOccupied[k]) {
+                continue;
+            }
+            int i = hash(oldKeys[k]) & mask;
+            while (occupied[i]) {
+                i = (i + 1) & mask;
+            }
+            occupied[i] = true;
+            keys[i] = oldKeys[k];
+            status[i] = oldStatus[k];
+            retryCount[i] = oldRetryCount[k];
+            name[i] = oldName[k];
+            identity[i] = oldIdentity[k];
+            score[i] = oldScore[k];
+            lastSeenPts[i] = oldLastSeenPts[k];
+            System.arraycopy(oldLastBox, k * 4, lastBox, i * 4, 4);
+            seenFrame[i] = oldSeenFrame[k];
+            size++;
+        }
+    }
+}
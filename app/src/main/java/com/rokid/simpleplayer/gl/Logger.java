@@ -2,21 +2,211 @@ package com.rokid.simpleplayer.gl;
 
 import android.util.Log;
 
+/**
+ * 日志
+ * <p>
+ * 按级别过滤，低于{@link #setLevel 当前级别}的日志在格式化之前返回；没有参数时不调用String.format。
+ * 解码、检测等每帧执行的循环里使用固定参数个数的重载，避免可变参数数组；参数是基本类型时
+ * 先用{@link #isLoggable}判断，避免装箱。重复出现的日志使用{@link RateLimit}限流
+ */
 public class Logger {
     public static String TAG = "zhf-face";
+    /**
+     * 为false时不输出VERBOSE、DEBUG级别的日志
+     */
     public static boolean DEBUG = true;
 
+    private static volatile int level = Log.DEBUG;
+
+    /**
+     * 设置输出的最低级别
+     *
+     * @param level {@link Log#VERBOSE}到{@link Log#ERROR}
+     */
+    public static void setLevel(int level) {
+        Logger.level = level;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    /**
+     * @param priority 日志级别
+     * @return 该级别的日志是否输出
+     */
+    public static boolean isLoggable(int priority) {
+        return priority >= level && (DEBUG || priority > Log.DEBUG);
+    }
+
+    public static void v(String message) {
+        if (isLoggable(Log.VERBOSE)) {
+            Log.v(TAG, message);
+        }
+    }
+
+    public static void v(String message, Object arg) {
+        if (isLoggable(Log.VERBOSE)) {
+            Log.v(TAG, String.format(message, arg));
+        }
+    }
+
+    public static void v(String message, Object arg1, Object arg2) {
+        if (isLoggable(Log.VERBOSE)) {
+            Log.v(TAG, String.format(message, arg1, arg2));
+        }
+    }
+
+    public static void v(String message, Object... args) {
+        if (isLoggable(Log.VERBOSE)) {
+            Log.v(TAG, format(message, args));
+        }
+    }
+
+    public static void d(String message) {
+        if (isLoggable(Log.DEBUG)) {
+            Log.d(TAG, message);
+        }
+    }
+
+    public static void d(String message, Object arg) {
+        if (isLoggable(Log.DEBUG)) {
+            Log.d(TAG, String.format(message, arg));
+        }
+    }
+
+    public static void d(String message, Object arg1, Object arg2) {
+        if (isLoggable(Log.DEBUG)) {
+            Log.d(TAG, String.format(message, arg1, arg2));
+        }
+    }
+
     public static void d(String message, Object... args) {
-        //f (DEBUG) {
-            Log.d(TAG, String.format(message, args));
-        //}
+        if (isLoggable(Log.DEBUG)) {
+            Log.d(TAG, format(message, args));
+        }
+    }
+
+    public static void i(String message) {
+        if (isLoggable(Log.INFO)) {
+            Log.i(TAG, message);
+        }
+    }
+
+    public static void i(String message, Object... args) {
+        if (isLoggable(Log.INFO)) {
+            Log.i(TAG, format(message, args));
+        }
+    }
+
+    public static void w(String message) {
+        if (isLoggable(Log.WARN)) {
+            Log.w(TAG, message);
+        }
+    }
+
+    public static void w(String message, Object... args) {
+        if (isLoggable(Log.WARN)) {
+            Log.w(TAG, format(message, args));
+        }
+    }
+
+    public static void e(String message) {
+        if (isLoggable(Log.ERROR)) {
+            Log.e(TAG, message);
+        }
     }
 
     public static void e(String message, Object... args) {
-        Log.e(TAG, String.format(message, args));
+        if (isLoggable(Log.ERROR)) {
+            Log.e(TAG, format(message, args));
+        }
     }
 
     public static void e(Throwable t, String message, Object... args) {
-        Log.e(TAG, String.format(message, args), t);
+        if (isLoggable(Log.ERROR)) {
+            Log.e(TAG, format(message, args), t);
+        }
+    }
+
+    /**
+     * 没有参数时原样输出，消息里的%不会被当作格式
+     */
+    private static String format(String message, Object[] args) {
+        return args == null || args.length == 0 ? message : String.format(message, args);
+    }
+
+    /**
+     * 限流的日志，用于每帧都可能出现的日志，间隔内只输出第一条，其余只计数，
+     * 下一次输出时附带期间丢弃的条数。丢弃时不格式化、不分配内存
+     */
+    public static final class RateLimit {
+        private final int priority;
+        private final long intervalNanos;
+        private long lastNanos;
+        private boolean logged;
+        private int suppressed;
+
+        /**
+         * @param priority       日志级别
+         * @param intervalMillis 最短输出间隔（ms）
+         */
+        public RateLimit(int priority, long intervalMillis) {
+            this.priority = priority;
+            this.intervalNanos = intervalMillis * 1000000L;
+        }
+
+        public void log(String message) {
+            int count = acquire();
+            if (count >= 0) {
+                print(message, count);
+            }
+        }
+
+        public void log(String message, Object arg) {
+            int count = acquire();
+            if (count >= 0) {
+                print(String.format(message, arg), count);
+            }
+        }
+
+        public void log(String message, Object arg1, Object arg2) {
+            int count = acquire();
+            if (count >= 0) {
+                print(String.format(message, arg1, arg2), count);
+            }
+        }
+
+        /**
+         * @return 上次输出之后被丢弃的条数（不包括级别过滤掉的）
+         */
+        public synchronized int getSuppressedCount() {
+            return suppressed;
+        }
+
+        /**
+         * @return 可以输出时返回上次输出之后丢弃的条数，否则返回-1
+         */
+        private int acquire() {
+            if (!isLoggable(priority)) {
+                return -1;
+            }
+            long now = System.nanoTime();
+            synchronized (this) {
+                if (logged && now - lastNanos < intervalNanos) {
+                    suppressed++;
+                    return -1;
+                }
+                int count = suppressed;
+                logged = true;
+                lastNanos = now;
+                suppressed = 0;
+                return count;
+            }
+        }
+
+        private void print(String message, int suppressedCount) {
+            Log.println(priority, TAG, suppressedCount > 0 ? message + " (suppressed " + suppressedCount + ")" : message);
+        }
     }
 }
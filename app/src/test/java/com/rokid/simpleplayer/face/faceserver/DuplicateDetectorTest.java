@@ -0,0 +1,102 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DuplicateDetectorTest {
+    @Test
+    public void emptyAndSingleGalleryHaveNoGroups() {
+        assertEquals(0, DuplicateDetector.detect(FeatureMatrix.EMPTY, 0.8f, 2).groups.size());
+        FeatureMatrix one = TestFeatures.randomGallery(FeatureMatrix.EMPTY, 1, new Random(1));
+        DuplicateDetector.Report report = DuplicateDetector.detect(one, 0.8f, 2);
+        assertEquals(0, report.groups.size());
+        assertEquals(1, report.gallerySize);
+    }
+
+    @Test
+    public void groupsNearDuplicatesAndKeepsEarliest() {
+        Random random = new Random(2);
+        FeatureMatrix matrix = TestFeatures.randomGallery(FeatureMatrix.EMPTY, 200, random);
+        matrix = appendNear(matrix, 3, "p3-again", random);
+        matrix = appendNear(matrix, 3, "p3-third", random);
+        matrix = appendNear(matrix, 150, "p150-again", random);
+
+        DuplicateDetector.Report report = DuplicateDetector.detect(matrix, 0.8f, 2);
+
+        assertEquals(2, report.groups.size());
+        assertEquals(3, report.getRemovableCount());
+        DuplicateDetector.Group first = report.groups.get(0);
+        assertEquals("p3", first.keep);
+        assertEquals(Arrays.asList("p3-again", "p3-third"), first.duplicates);
+        assertTrue(first.maxSimilar > 0.8f);
+        assertEquals("p150", report.groups.get(1).keep);
+        assertEquals(Arrays.asList("p3-again", "p3-third", "p150-again"), report.getRemovableNames());
+        // 小人脸库直接两两比较
+        assertEquals((long) matrix.size() * (matrix.size() - 1) / 2, report.comparisons);
+    }
+
+    @Test
+    public void thresholdAboveSimilarityFindsNothing() {
+        Random random = new Random(3);
+        FeatureMatrix matrix = TestFeatures.randomGallery(FeatureMatrix.EMPTY, 100, random);
+        matrix = appendNear(matrix, 10, "p10-again", random);
+
+        assertEquals(0, DuplicateDetector.detect(matrix, 0.999f, 2).groups.size());
+    }
+
+    @Test
+    public void blockedSearchOnLargeGalleryFindsDuplicates() {
+        Random random = new Random(4);
+        FeatureMatrix matrix = TestFeatures.randomGallery(FeatureMatrix.EMPTY, 3000, random);
+        int[] originals = {0, 777, 1500, 2999};
+        for (int row : originals) {
+            matrix = appendNear(matrix, row, "p" + row + "-again", random);
+        }
+
+        DuplicateDetector.Report report = DuplicateDetector.detect(matrix, 0.8f, 4);
+
+        assertEquals(originals.length, report.groups.size());
+        for (int i = 0; i < originals.length; i++) {
+            assertEquals("p" + originals[i], report.groups.get(i).keep);
+            assertEquals(Arrays.asList("p" + originals[i] + "-again"), report.groups.get(i).duplicates);
+        }
+        // 分块后只比较块内的特征
+        long bruteForce = (long) matrix.size() * (matrix.size() - 1) / 2;
+        assertTrue(report.comparisons < bruteForce / 4);
+    }
+
+    @Test
+    public void reRegisteredPersonIsNotADuplicate() {
+        Random random = new Random(5);
+        FeatureMatrix matrix = TestFeatures.randomGallery(FeatureMatrix.EMPTY, 100, random);
+        // 重新注册时旧的行仍在人脸库中
+        matrix = appendNear(matrix, 3, "p3", random);
+
+        DuplicateDetector.Report report = DuplicateDetector.detect(matrix, 0.8f, 2);
+        assertEquals(0, report.groups.size());
+    }
+
+    @Test
+    public void reRegisteredPersonReachedThroughDuplicateIsKept() {
+        Random random = new Random(6);
+        FeatureMatrix matrix = TestFeatures.randomGallery(FeatureMatrix.EMPTY, 100, random);
+        matrix = appendNear(matrix, 3, "p3-twin", random);
+        matrix = appendNear(matrix, 3, "p3", random);
+
+        DuplicateDetector.Report report = DuplicateDetector.detect(matrix, 0.8f, 2);
+        assertEquals(1, report.groups.size());
+        assertEquals("p3", report.groups.get(0).keep);
+        assertEquals(Arrays.asList("p3-twin"), report.getRemovableNames());
+    }
+
+    private static FeatureMatrix appendNear(FeatureMatrix matrix, int row, String name, Random random) {
+        float[] vector = new float[FeatureMatrix.FEATURE_DIM];
+        matrix.copyRow(row, vector, 0);
+        return matrix.append(TestFeatures.encode(TestFeatures.near(vector, 0.3f, random)), name);
+    }
+}
@@ -0,0 +1,179 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import com.arcsoft.face.FaceFeature;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 注册与搜索并发进行：写者通过{@link FaceServer#registerFeature}写入特征存储并发布新的人脸库快照，
+ * 读者同时调用{@link FaceServer#getTopOfFaceLib}，已注册的人总能搜到自己
+ */
+public class FaceServerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Context context = new ContextWrapper(null);
+    private FaceServer server;
+
+    @Before
+    public void setUp() {
+        FaceServer.ROOT_PATH = folder.getRoot().getAbsolutePath();
+        server = FaceServer.getInstance();
+        // 人脸库超过256行后用4个线程分片搜索
+        server.initWithoutEngine(new ParallelGallerySearcher(4, 64, 256));
+    }
+
+    @After
+    public void tearDown() {
+        server.setQuantizedGallery(false);
+        server.unInit();
+        FaceServer.ROOT_PATH = null;
+    }
+
+    @Test
+    public void searchWhileRegistering() throws Exception {
+        hammer(3000);
+        assertEquals(3000, server.getFaceNumber(context));
+    }
+
+    @Test
+    public void quantizedSearchWhileRegistering() throws Exception {
+        // 先打开特征存储，量化人脸库才能从存储的内存映射中读取原始特征
+        assertEquals(0, server.getFaceNumber(context));
+        server.setQuantizedGallery(true);
+        hammer(3000);
+        assertEquals(3000, server.getFaceNumber(context));
+    }
+
+    @Test
+    public void searchWhileUnInit() throws Exception {
+        final int count = 600;
+        final byte[][] features = randomFeatures(count, new Random(1));
+        for (int i = 0; i < count; i++) {
+            assertTrue(server.registerFeature(context, features[i], "p" + i));
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicInteger searches = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int r = 0; r < 4; r++) {
+            final Random random = new Random(r);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // 销毁后人脸库为空，搜索返回null
+                        for (int n = 0; n < 2000 && failure.get() == null; n++) {
+                            int row = random.nextInt(count);
+                            CompareResult result = server.getTopOfFaceLib(new FaceFeature(features[row]));
+                            if (result != null) {
+                                assertEquals("p" + row, result.getUserName());
+                            }
+                            searches.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        while (searches.get() < 200 && failure.get() == null) {
+            Thread.sleep(1);
+        }
+        server.unInit();
+        done.await();
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(4 * 2000, searches.get());
+    }
+
+    /**
+     * 一个写者依次注册count个人，多个读者在已注册的人中随机选取并搜索
+     */
+    private void hammer(final int count) throws Exception {
+        final int readerCount = 4;
+        final byte[][] features = randomFeatures(count, new Random(2));
+        final AtomicInteger registered = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicInteger searches = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(readerCount);
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    for (int i = 0; i < count && failure.get() == null; i++) {
+                        assertTrue(server.registerFeature(context, features[i], "p" + i));
+                        registered.set(i + 1);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        });
+        writer.start();
+        for (int r = 0; r < readerCount; r++) {
+            final Random random = new Random(r);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int n = 0; (writer.isAlive() || n < 500) && failure.get() == null; ) {
+                            int available = registered.get();
+                            if (available == 0) {
+                                continue;
+                            }
+                            int row = random.nextInt(available);
+                            CompareResult result = server.getTopOfFaceLib(new FaceFeature(features[row]));
+                            assertEquals("p" + row, result.getUserName());
+                            assertEquals(1f, result.getSimilar(), 1e-4f);
+                            searches.incrementAndGet();
+                            n++;
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        writer.join();
+        done.await();
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(count, registered.get());
+        assertTrue(searches.get() >= readerCount * 500);
+    }
+
+    private static byte[][] randomFeatures(int count, Random random) {
+        byte[][] features = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            features[i] = TestFeatures.encode(TestFeatures.randomVector(random));
+        }
+        return features;
+    }
+}
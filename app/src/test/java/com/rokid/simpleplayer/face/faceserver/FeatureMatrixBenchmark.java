@@ -0,0 +1,128 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import com.arcsoft.face.FaceFeature;
+
+import java.util.Random;
+
+/**
+ * 人脸库搜索耗时的基准测试，在JVM上直接运行main，不是单元测试
+ * <p>
+ * 对比1k/10k/100k人脸库上的几种搜索方式：
+ * <ul>
+ * <li>perEntry：原来{@code getTopOfFaceLib}的形状，逐条取出每个人的byte[]特征解码打分，
+ * 相当于去掉JNI往返开销后的引擎比对循环；引擎的动态库只能在设备上加载，JNI本身的开销需要在设备上测</li>
+ * <li>matrix：连续float矩阵上的纯Java点积及top-K</li>
+ * <li>int8：量化矩阵粗排加原始特征重排</li>
+ * <li>parallel：{@link ParallelGallerySearcher}按分片并行搜索float矩阵</li>
+ * </ul>
+ * 运行：编译测试源码后 {@code java -cp <classes>:arcsoft_face.jar com.rokid.simpleplayer.face.faceserver.FeatureMatrixBenchmark}
+ */
+public class FeatureMatrixBenchmark {
+    private static final int[] GALLERY_SIZES = {1000, 10000, 100000};
+    private static final int QUERY_COUNT = 64;
+    private static final long WARMUP_NANOS = 2000000000L;
+    private static final long MEASURE_NANOS = 3000000000L;
+
+    /**
+     * 防止JIT消除没有使用的结果
+     */
+    private static volatile float sink;
+
+    private interface Search {
+        float run(float[] query);
+    }
+
+    public static void main(String[] args) {
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        System.out.println("java " + System.getProperty("java.version") + ", " + parallelism + " cpus");
+        ParallelGallerySearcher searcher = new ParallelGallerySearcher(parallelism);
+        try {
+            for (int size : GALLERY_SIZES) {
+                run(size, searcher);
+            }
+        } finally {
+            searcher.shutdown();
+        }
+    }
+
+    private static void run(int size, final ParallelGallerySearcher searcher) {
+        Random random = new Random(size);
+        final byte[][] features = new byte[size][];
+        FeatureMatrix built = FeatureMatrix.EMPTY;
+        for (int i = 0; i < size; i++) {
+            features[i] = TestFeatures.encode(TestFeatures.randomVector(random));
+            built = built.append(features[i], "p" + i);
+        }
+        final FeatureMatrix matrix = built;
+        final FeatureMatrix quantized = matrix.convert(true);
+        final float[][] queries = new float[QUERY_COUNT][];
+        for (int q = 0; q < QUERY_COUNT; q++) {
+            queries[q] = TestFeatures.near(FeatureMatrix.toVector(features[random.nextInt(size)], null), 0.5f, random);
+        }
+
+        System.out.println("gallery=" + size);
+        report("perEntry", queries, new Search() {
+            @Override
+            public float run(float[] query) {
+                float best = 0;
+                float[] row = new float[FeatureMatrix.FEATURE_DIM];
+                for (byte[] featureData : features) {
+                    FaceFeature faceFeature = new FaceFeature();
+                    faceFeature.setFeatureData(featureData);
+                    FeatureMatrix.toVector(faceFeature.getFeatureData(), row);
+                    best = Math.max(best, TestFeatures.dot(query, row));
+                }
+                return best;
+            }
+        });
+        report("matrix", queries, new Search() {
+            @Override
+            public float run(float[] query) {
+                FeatureMatrix.TopK topK = new FeatureMatrix.TopK(1);
+                matrix.search(query, topK);
+                return topK.getScore(0);
+            }
+        });
+        report("int8", queries, new Search() {
+            @Override
+            public float run(float[] query) {
+                FeatureMatrix.TopK topK = new FeatureMatrix.TopK(1);
+                quantized.search(query, topK);
+                return topK.getScore(0);
+            }
+        });
+        report("parallel", queries, new Search() {
+            @Override
+            public float run(float[] query) {
+                return searcher.search(matrix, query, 1).getScore(0);
+            }
+        });
+    }
+
+    /**
+     * 预热后在固定时长内循环搜索，输出平均每次搜索的耗时
+     */
+    private static void report(String name, float[][] queries, Search search) {
+        measure(queries, search, WARMUP_NANOS);
+        double micros = measure(queries, search, MEASURE_NANOS) / 1000.0;
+        System.out.println(String.format("  %-9s %10.1f us/search", name, micros));
+    }
+
+    /**
+     * @return 平均每次搜索的耗时（ns）
+     */
+    private static double measure(float[][] queries, Search search, long durationNanos) {
+        long startTime = System.nanoTime();
+        long endTime = startTime + durationNanos;
+        long count = 0;
+        float result = 0;
+        do {
+            for (float[] query : queries) {
+                result += search.run(query);
+            }
+            count += queries.length;
+        } while (System.nanoTime() < endTime);
+        sink = result;
+        return (System.nanoTime() - startTime) / (double) count;
+    }
+}
@@ -0,0 +1,320 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import com.arcsoft.face.FaceFeature;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FeatureMatrixTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void appendReturnsNewSnapshotAndKeepsOldOne() {
+        Random random = new Random(1);
+        FeatureMatrix one = FeatureMatrix.EMPTY.append(TestFeatures.encode(TestFeatures.randomVector(random)), "a");
+        FeatureMatrix two = one.append(TestFeatures.encode(TestFeatures.randomVector(random)), "b");
+
+        assertEquals(0, FeatureMatrix.EMPTY.size());
+        assertEquals(1, one.size());
+        assertEquals(2, two.size());
+        assertEquals("a", two.getName(0));
+        assertEquals("b", two.getName(1));
+    }
+
+    @Test
+    public void toVectorDecodesLittleEndianFloats() {
+        float[] vector = TestFeatures.randomVector(new Random(2));
+        assertArrayEquals(vector, FeatureMatrix.toVector(TestFeatures.encode(vector), null), 0);
+    }
+
+    @Test
+    public void searchFindsSameFeatureFirst() {
+        Random random = new Random(3);
+        FeatureMatrix matrix = TestFeatures.randomGallery(FeatureMatrix.EMPTY, 300, random);
+        float[] query = new float[FeatureMatrix.FEATURE_DIM];
+        FeatureMatrix.TopK topK = new FeatureMatrix.TopK(5);
+        for (int row = 0; row < matrix.size(); row += 17) {
+            matrix.copyRow(row, query, 0);
+            topK.reset();
+            matrix.search(query, topK);
+            assertEquals(5, topK.getCount());
+            assertEquals(row, topK.getRow(0));
+            assertEquals(1f, topK.getScore(0), 1e-4f);
+            for (int i = 1; i < topK.getCount(); i++) {
+                assertTrue(topK.getScore(i - 1) >= topK.getScore(i));
+            }
+        }
+    }
+
+    @Test
+    public void searchRangeOnlyScoresRowsInRange() {
+        Random random = new Random(4);
+        FeatureMatrix matrix = TestFeatures.randomGallery(FeatureMatrix.EMPTY, 100, random);
+        float[] query = new float[FeatureMatrix.FEATURE_DIM];
+        matrix.copyRow(10, query, 0);
+        FeatureMatrix.TopK topK = new FeatureMatrix.TopK(100);
+        matrix.search(query, 20, 1000, topK);
+
+        assertEquals(80, topK.getCount());
+        for (int i = 0; i < topK.getCount(); i++) {
+            assertTrue(topK.getRow(i) >= 20);
+        }
+    }
+
+    @Test
+    public void topKMergeKeepsBestScores() {
+        FeatureMatrix.TopK a = new FeatureMatrix.TopK(3);
+        FeatureMatrix.TopK b = new FeatureMatrix.TopK(3);
+        a.offer(0, 0.1f);
+        a.offer(1, 0.9f);
+        b.offer(2, 0.5f);
+        b.offer(3, 0.7f);
+        b.offer(4, 0.2f);
+        a.merge(b);
+
+        assertEquals(3, a.getCount());
+        assertEquals(1, a.getRow(0));
+        assertEquals(3, a.getRow(1));
+        assertEquals(2, a.getRow(2));
+    }
+
+    @Test
+    public void quantizedSearchMatchesFullPrecision() {
+        Random random = new Random(5);
+        FeatureMatrix matrix = TestFeatures.randomGallery(FeatureMatrix.EMPTY, 500, random);
+        FeatureMatrix quantized = matrix.convert(true);
+        assertTrue(quantized.isQuantized());
+        assertTrue(quantized.getMemoryBytes() < matrix.getMemoryBytes());
+
+        float[] row = new float[FeatureMatrix.FEATURE_DIM];
+        FeatureMatrix.TopK exact = new FeatureMatrix.TopK(1);
+        FeatureMatrix.TopK approximate = new FeatureMatrix.TopK(1);
+        for (int q = 0; q < 100; q++) {
+            matrix.copyRow(random.nextInt(matrix.size()), row, 0);
+            float[] query = TestFeatures.near(row, 0.5f, random);
+            exact.reset();
+            approximate.reset();
+            matrix.search(query, exact);
+            quantized.search(query, approximate);
+            assertEquals(exact.getRow(0), approximate.getRow(0));
+            // 候选用原始特征重排，得分与全精度一致
+            assertEquals(exact.getScore(0), approximate.getScore(0), 1e-4f);
+        }
+    }
+
+    @Test
+    public void convertKeepsRowsAndFeatureData() {
+        Random random = new Random(6);
+        FeatureMatrix matrix = TestFeatures.randomGallery(FeatureMatrix.EMPTY, 50, random);
+        FeatureMatrix quantized = matrix.convert(true);
+        FeatureMatrix restored = quantized.convert(false);
+
+        assertSame(matrix, matrix.convert(false));
+        for (int row = 0; row < matrix.size(); row++) {
+            assertEquals(matrix.getName(row), restored.getName(row));
+            assertArrayEquals(matrix.getFeatureData(row), quantized.getFeatureData(row));
+            assertArrayEquals(matrix.getFeatureData(row), restored.getFeatureData(row));
+        }
+    }
+
+    @Test
+    public void quantizedReadsOriginalFeaturesFromStore() throws Exception {
+        Random random = new Random(7);
+        FeatureStore store = new FeatureStore(folder.getRoot());
+        store.open();
+        try {
+            FeatureMatrix heap = FeatureMatrix.EMPTY_QUANTIZED;
+            FeatureMatrix mapped = FeatureMatrix.emptyQuantized(store);
+            List<byte[]> features = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                byte[] featureData = TestFeatures.encode(TestFeatures.randomVector(random));
+                features.add(featureData);
+                store.append("p" + i, featureData);
+                heap = heap.append(featureData, "p" + i);
+                mapped = mapped.append(featureData, "p" + i);
+            }
+            // 不在存储中的特征保留在堆内
+            mapped = mapped.append(TestFeatures.encode(TestFeatures.randomVector(random)), "missing");
+
+            assertTrue(mapped.getMemoryBytes() < heap.getMemoryBytes());
+            float[] query = new float[FeatureMatrix.FEATURE_DIM];
+            for (int row = 0; row < features.size(); row++) {
+                assertArrayEquals(features.get(row), mapped.getFeatureData(row));
+                FeatureMatrix.toVector(features.get(row), query);
+                assertEquals(heap.score(query, row), mapped.score(query, row), 0);
+            }
+            assertNotNull(mapped.getFeatureData(100));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void pendingRowsMoveToMappingOnCompact() throws Exception {
+        Random random = new Random(10);
+        FeatureStore store = new FeatureStore(folder.getRoot());
+        store.open();
+        try {
+            FeatureMatrix mapped = FeatureMatrix.emptyQuantized(store);
+            List<byte[]> features = new ArrayList<>();
+            List<FeatureMatrix> snapshots = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                byte[] featureData = TestFeatures.encode(TestFeatures.randomVector(random));
+                features.add(featureData);
+                store.append("p" + i, featureData);
+                mapped = mapped.append(featureData, "p" + i);
+                if (i % 97 == 0) {
+                    snapshots.add(mapped);
+                }
+            }
+            long rowBytes = FeatureMatrix.FEATURE_DIM + 4 + 4;
+            // 等待重新映射的行不超过人脸库的1/4
+            assertTrue(mapped.getMemoryBytes() <= 1000 * rowBytes + 250 * FaceFeature.FEATURE_SIZE);
+            FeatureMatrix compacted = mapped.compact();
+            assertEquals(1000 * rowBytes, compacted.getMemoryBytes());
+            assertSame(compacted, compacted.compact());
+
+            float[] query = new float[FeatureMatrix.FEATURE_DIM];
+            for (int row = 0; row < features.size(); row++) {
+                assertArrayEquals(features.get(row), compacted.getFeatureData(row));
+                FeatureMatrix.toVector(features.get(row), query);
+                assertEquals(mapped.score(query, row), compacted.score(query, row), 0);
+            }
+            // 重新映射不修改旧快照
+            for (FeatureMatrix snapshot : snapshots) {
+                for (int row = 0; row < snapshot.size(); row++) {
+                    assertArrayEquals(features.get(row), snapshot.getFeatureData(row));
+                }
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void clearingStoreKeepsMappedSnapshotReadable() throws Exception {
+        Random random = new Random(9);
+        FeatureStore store = new FeatureStore(folder.getRoot());
+        store.open();
+        try {
+            FeatureMatrix mapped = FeatureMatrix.emptyQuantized(store);
+            List<byte[]> features = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                byte[] featureData = TestFeatures.encode(TestFeatures.randomVector(random));
+                features.add(featureData);
+                store.append("p" + i, featureData);
+                mapped = mapped.append(featureData, "p" + i);
+            }
+            assertEquals(20, store.clear());
+            // 清空后重新注册，新的记录从偏移0开始写入新文件
+            store.append("after", TestFeatures.encode(TestFeatures.randomVector(random)));
+
+            for (int row = 0; row < features.size(); row++) {
+                assertArrayEquals(features.get(row), mapped.getFeatureData(row));
+            }
+            assertEquals(1, store.size());
+            assertEquals(0, store.getOffset("after"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void searchWhileAppending() throws Exception {
+        hammer(FeatureMatrix.EMPTY);
+    }
+
+    @Test
+    public void quantizedSearchWhileAppending() throws Exception {
+        hammer(FeatureMatrix.EMPTY_QUANTIZED);
+    }
+
+    /**
+     * 一个写者持续追加并发布新快照，多个读者同时在各自读到的快照上搜索，
+     * 每次搜索的结果都应只包含快照内的行，且查询自身特征时排在第一位
+     */
+    private void hammer(FeatureMatrix empty) throws Exception {
+        final int appendCount = 3000;
+        final int readerCount = 4;
+        final Random random = new Random(8);
+        final byte[][] features = new byte[appendCount][];
+        for (int i = 0; i < appendCount; i++) {
+            features[i] = TestFeatures.encode(TestFeatures.randomVector(random));
+        }
+        final AtomicReference<FeatureMatrix> snapshot = new AtomicReference<>(empty.append(features[0], "p0"));
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicInteger searches = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(readerCount);
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    FeatureMatrix matrix = snapshot.get();
+                    for (int i = 1; i < appendCount; i++) {
+                        matrix = matrix.append(features[i], "p" + i);
+                        snapshot.set(matrix);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        });
+        writer.start();
+        for (int r = 0; r < readerCount; r++) {
+            final Random readerRandom = new Random(r);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    float[] query = new float[FeatureMatrix.FEATURE_DIM];
+                    FeatureMatrix.TopK topK = new FeatureMatrix.TopK(3);
+                    try {
+                        start.await();
+                        for (int n = 0; (writer.isAlive() || n < 500) && failure.get() == null; n++) {
+                            FeatureMatrix matrix = snapshot.get();
+                            int row = readerRandom.nextInt(matrix.size());
+                            FeatureMatrix.toVector(features[row], query);
+                            topK.reset();
+                            matrix.search(query, topK);
+                            assertEquals(row, topK.getRow(0));
+                            assertEquals("p" + row, matrix.getName(row));
+                            for (int i = 0; i < topK.getCount(); i++) {
+                                assertTrue(topK.getRow(i) < matrix.size());
+                            }
+                            searches.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        writer.join();
+        done.await();
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(appendCount, snapshot.get().size());
+        assertTrue(searches.get() >= readerCount * 500);
+    }
+}
@@ -0,0 +1,118 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IvfIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void trainReturnsNullWhenGalleryIsSmallerThanListCount() {
+        FeatureMatrix matrix = TestFeatures.randomGallery(FeatureMatrix.EMPTY, 5, new Random(1));
+        assertNull(IvfIndex.train(matrix, 10));
+        assertNull(IvfIndex.train(matrix, 0));
+    }
+
+    @Test
+    public void trainIndexesEveryRow() {
+        FeatureMatrix matrix = TestFeatures.randomGallery(FeatureMatrix.EMPTY, 400, new Random(2));
+        IvfIndex index = IvfIndex.train(matrix, 20);
+
+        assertNotNull(index);
+        assertEquals(20, index.getListCount());
+        assertEquals(400, index.getTrainedRows());
+        assertEquals(400, index.getIndexedRows());
+    }
+
+    @Test
+    public void searchFindsSameFeatureWithOneProbe() {
+        FeatureMatrix matrix = TestFeatures.randomGallery(FeatureMatrix.EMPTY, 400, new Random(3));
+        IvfIndex index = IvfIndex.train(matrix, 20);
+        float[] query = new float[FeatureMatrix.FEATURE_DIM];
+        for (int row = 0; row < matrix.size(); row += 7) {
+            matrix.copyRow(row, query, 0);
+            // 特征在离它最近的簇中，只扫描一个簇就能找到
+            FeatureMatrix.TopK topK = index.search(matrix, query, 1, 1);
+            assertEquals(row, topK.getRow(0));
+        }
+    }
+
+    @Test
+    public void searchAllListsMatchesExactSearch() {
+        Random random = new Random(4);
+        FeatureMatrix matrix = TestFeatures.randomGallery(FeatureMatrix.EMPTY, 400, random);
+        IvfIndex index = IvfIndex.train(matrix, 20);
+        float[] row = new float[FeatureMatrix.FEATURE_DIM];
+        FeatureMatrix.TopK exact = new FeatureMatrix.TopK(3);
+        for (int q = 0; q < 50; q++) {
+            matrix.copyRow(random.nextInt(matrix.size()), row, 0);
+            float[] query = TestFeatures.near(row, 0.5f, random);
+            exact.reset();
+            matrix.search(query, exact);
+            FeatureMatrix.TopK approximate = index.search(matrix, query, index.getListCount(), 3);
+            assertEquals(exact.getCount(), approximate.getCount());
+            for (int i = 0; i < exact.getCount(); i++) {
+                assertEquals(exact.getRow(i), approximate.getRow(i));
+            }
+        }
+    }
+
+    @Test
+    public void addRangeIndexesAppendedRows() {
+        Random random = new Random(5);
+        FeatureMatrix matrix = TestFeatures.randomGallery(FeatureMatrix.EMPTY, 300, random);
+        IvfIndex index = IvfIndex.train(matrix, 16);
+        FeatureMatrix grown = matrix;
+        for (int i = 0; i < 50; i++) {
+            grown = grown.append(TestFeatures.encode(TestFeatures.randomVector(random)), "new" + i);
+        }
+        // 旧快照搜索时忽略还不在快照中的行
+        index.addRange(grown, 300, 350);
+        assertEquals(350, index.getIndexedRows());
+        assertEquals(300, index.getTrainedRows());
+
+        float[] query = new float[FeatureMatrix.FEATURE_DIM];
+        for (int row = 300; row < 350; row++) {
+            grown.copyRow(row, query, 0);
+            assertEquals(row, index.search(grown, query, 1, 1).getRow(0));
+            FeatureMatrix.TopK old = index.search(matrix, query, index.getListCount(), 1);
+            assertTrue(old.getRow(0) < matrix.size());
+        }
+    }
+
+    @Test
+    public void saveAndLoadKeepsLists() throws Exception {
+        Random random = new Random(6);
+        FeatureMatrix matrix = TestFeatures.randomGallery(FeatureMatrix.EMPTY, 300, random);
+        IvfIndex index = IvfIndex.train(matrix, 16);
+        File file = folder.newFile("ivf.dat");
+        index.save(file, matrix);
+        // 保存之后注册的特征在加载时分配到最近的簇
+        FeatureMatrix grown = matrix;
+        for (int i = 0; i < 20; i++) {
+            grown = grown.append(TestFeatures.encode(TestFeatures.randomVector(random)), "new" + i);
+        }
+        IvfIndex loaded = IvfIndex.load(file, grown);
+
+        assertNotNull(loaded);
+        assertEquals(16, loaded.getListCount());
+        assertEquals(300, loaded.getTrainedRows());
+        assertEquals(320, loaded.getIndexedRows());
+        float[] query = new float[FeatureMatrix.FEATURE_DIM];
+        for (int row = 0; row < grown.size(); row += 5) {
+            grown.copyRow(row, query, 0);
+            assertEquals(row, loaded.search(grown, query, 1, 1).getRow(0));
+        }
+        assertNull(IvfIndex.load(new File(folder.getRoot(), "missing.dat"), matrix));
+    }
+}
@@ -0,0 +1,80 @@
+package com.rokid.simpleplayer.face.faceserver;
+
+import com.arcsoft.face.FaceFeature;
+
+import java.util.Random;
+
+/**
+ * 测试用的特征数据：随机的单位向量编码为引擎输出的格式
+ */
+final class TestFeatures {
+    private TestFeatures() {
+    }
+
+    /**
+     * @return 随机方向的单位向量
+     */
+    static float[] randomVector(Random random) {
+        float[] vector = new float[FeatureMatrix.FEATURE_DIM];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return normalize(vector);
+    }
+
+    /**
+     * @param noise 噪声相对于向量的大小，0.3左右时与原向量的相似度约为0.95
+     * @return 在原向量上加噪声后重新归一化的向量
+     */
+    static float[] near(float[] vector, float noise, Random random) {
+        float[] result = new float[vector.length];
+        float scale = noise / (float) Math.sqrt(vector.length);
+        for (int i = 0; i < vector.length; i++) {
+            result[i] = vector[i] + (float) random.nextGaussian() * scale;
+        }
+        return normalize(result);
+    }
+
+    static float dot(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    /**
+     * 编码为{@link FeatureMatrix#FEATURE_HEADER_SIZE}字节的头部加小端float
+     */
+    static byte[] encode(float[] vector) {
+        byte[] featureData = new byte[FaceFeature.FEATURE_SIZE];
+        int p = FeatureMatrix.FEATURE_HEADER_SIZE;
+        for (float value : vector) {
+            int bits = Float.floatToIntBits(value);
+            featureData[p++] = (byte) bits;
+            featureData[p++] = (byte) (bits >>> 8);
+            featureData[p++] = (byte) (bits >>> 16);
+            featureData[p++] = (byte) (bits >>> 24);
+        }
+        return featureData;
+    }
+
+    /**
+     * @return 由count个随机特征组成的人脸库，第i行的名字为"p" + i
+     */
+    static FeatureMatrix randomGallery(FeatureMatrix empty, int count, Random random) {
+        FeatureMatrix matrix = empty;
+        for (int i = 0; i < count; i++) {
+            matrix = matrix.append(encode(randomVector(random)), "p" + i);
+        }
+        return matrix;
+    }
+
+    private static float[] normalize(float[] vector) {
+        float norm = (float) Math.sqrt(dot(vector, vector));
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] /= norm;
+        }
+        return vector;
+    }
+}
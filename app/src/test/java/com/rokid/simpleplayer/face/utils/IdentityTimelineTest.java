@@ -0,0 +1,123 @@
+package com.rokid.simpleplayer.face.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IdentityTimelineTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void escapeRoundTrip() {
+        String[] identities = {"Zhang San", "100%", "-", "%2d", "a\tb\nc\rd", "张 三", "VISITOR 12", ""};
+        for (String identity : identities) {
+            String escaped = IdentityTimeline.escape(identity);
+            assertFalse(escaped, escaped.matches(".*[ \\t\\n\\r].*"));
+            assertEquals(identity, IdentityTimeline.unescape(escaped));
+        }
+    }
+
+    @Test
+    public void escapeKeepsPlainIdentity() {
+        assertEquals("alice", IdentityTimeline.escape("alice"));
+        assertEquals("a%20b", IdentityTimeline.escape("a b"));
+        assertEquals("%25", IdentityTimeline.escape("%"));
+    }
+
+    @Test
+    public void escapeDistinguishesDashFromNull() {
+        assertEquals("-", IdentityTimeline.escape(null));
+        assertEquals("%2d", IdentityTimeline.escape("-"));
+    }
+
+    @Test
+    public void readParsesExitEvents() throws Exception {
+        File file = write(
+                "+ 0 0 7 -",
+                "= 3 100 7 Zhang%20San 0.93",
+                "- 7 Zhang%20San 3 0 40 0 1333 38 0.93 10~11",
+                "+ 5 166 9 -",
+                "- 9 - -1 5 20 166 666 12 0.0 8~9,12~13",
+                "#end 41 0 1366 2");
+
+        List<IdentityTimeline.Interval> intervals = IdentityTimeline.read(file);
+
+        assertEquals(2, intervals.size());
+        IdentityTimeline.Interval first = intervals.get(0);
+        assertEquals(7, first.getTrackId());
+        assertEquals("Zhang San", first.getIdentity());
+        assertEquals(3, first.getIdentifiedFrame());
+        assertEquals(0, first.getFirstFrame());
+        assertEquals(40, first.getLastFrame());
+        assertEquals(0, first.getFirstPts());
+        assertEquals(1333, first.getLastPts());
+        assertEquals(38, first.getFrameCount());
+        assertEquals(0.93f, first.getBestScore(), 0);
+        assertEquals(1, first.getGapCount());
+        IdentityTimeline.Interval second = intervals.get(1);
+        assertNull(second.getIdentity());
+        assertEquals(-1, second.getIdentifiedFrame());
+        assertEquals(2, second.getGapCount());
+    }
+
+    @Test
+    public void readSkipsIncompleteLines() throws Exception {
+        File file = write(
+                "- 7 alice 0 0 10 0 333 11 0.9 -",
+                "- 8 bob 0 0",
+                "",
+                "- 9 carol 0 0 10 0 333 11 0.8 -");
+
+        List<IdentityTimeline.Interval> intervals = IdentityTimeline.read(file);
+
+        assertEquals(2, intervals.size());
+        assertEquals("alice", intervals.get(0).getIdentity());
+        assertEquals("carol", intervals.get(1).getIdentity());
+    }
+
+    @Test
+    public void forEachFrameSkipsGaps() throws Exception {
+        File file = write("- 9 - -1 5 20 166 666 12 0.0 8~9,12~13");
+        IdentityTimeline.Interval interval = IdentityTimeline.read(file).get(0);
+        final List<Integer> frames = new ArrayList<>();
+
+        interval.forEachFrame(new IdentityTimeline.OnFrameListener() {
+            @Override
+            public void onFrame(int frame, long pts, IdentityTimeline.Interval interval) {
+                frames.add(frame);
+            }
+        });
+
+        assertEquals(interval.getFrameCount(), frames.size());
+        assertTrue(!frames.contains(8) && !frames.contains(9) && !frames.contains(12) && !frames.contains(13));
+        assertEquals(5, (int) frames.get(0));
+        assertEquals(20, (int) frames.get(frames.size() - 1));
+    }
+
+    private File write(String... lines) throws Exception {
+        File file = folder.newFile("video" + IdentityTimeline.EVENTS_EXTENSION);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,160 @@
+package com.rokid.simpleplayer.face.utils;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RetryTimerWheelTest {
+    private final List<Integer> retried = Collections.synchronizedList(new ArrayList<Integer>());
+    private volatile CountDownLatch retryLatch = new CountDownLatch(0);
+    private RetryTimerWheel wheel;
+
+    @After
+    public void tearDown() {
+        if (wheel != null) {
+            wheel.stop();
+        }
+    }
+
+    private RetryTimerWheel newWheel(long tickMillis, int wheelSize, long baseDelayMillis, long maxDelayMillis) {
+        wheel = new RetryTimerWheel(tickMillis, wheelSize, baseDelayMillis, maxDelayMillis, new RetryTimerWheel.OnRetryListener() {
+            @Override
+            public void onRetry(int trackId) {
+                retried.add(trackId);
+                retryLatch.countDown();
+            }
+        });
+        return wheel;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveTick() {
+        newWheel(0, 8, 100, 1000);
+    }
+
+    @Test
+    public void backoffDoublesUpToMaxAndResetsOnCancel() {
+        newWheel(10, 64, 100, 450);
+
+        assertEquals(100, wheel.schedule(1));
+        assertEquals(200, wheel.schedule(1));
+        assertEquals(400, wheel.schedule(1));
+        assertEquals(450, wheel.schedule(1));
+        assertEquals(450, wheel.schedule(1));
+        // 其他trackId的退避次数独立计算
+        assertEquals(100, wheel.schedule(2));
+        assertEquals(2, wheel.getPendingCount());
+
+        wheel.cancel(1);
+        assertEquals(1, wheel.getPendingCount());
+        assertEquals(100, wheel.schedule(1));
+    }
+
+    @Test
+    public void rescheduleKeepsOnePendingTimeout() {
+        newWheel(10, 64, 1000, 1000);
+        for (int i = 0; i < 10; i++) {
+            wheel.schedule(7);
+        }
+        assertEquals(1, wheel.getPendingCount());
+        assertEquals(1, wheel.getTrackCount());
+    }
+
+    @Test
+    public void firesAfterDelayAndKeepsBackoff() throws Exception {
+        newWheel(5, 16, 20, 1000);
+        retryLatch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(3);
+
+        assertTrue(retryLatch.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(15));
+        assertEquals(Collections.singletonList(3), retried);
+        assertEquals(0, wheel.getPendingCount());
+        // 到期后退避次数保留，直到人脸离开时取消
+        assertEquals(1, wheel.getTrackCount());
+        assertEquals(40, wheel.schedule(3));
+    }
+
+    @Test
+    public void delayLongerThanOneRoundWaitsForRemainingRounds() throws Exception {
+        // 8个槽、每个tick 5ms，一轮40ms，100ms的重试需要转过两轮
+        newWheel(5, 8, 100, 100);
+        retryLatch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(1);
+
+        assertTrue(retryLatch.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+    }
+
+    @Test
+    public void cancelledTracksDoNotFire() throws Exception {
+        newWheel(2, 64, 30, 30);
+        int count = 1000;
+        retryLatch = new CountDownLatch(count / 2);
+        for (int trackId = 0; trackId < count; trackId++) {
+            wheel.schedule(trackId);
+        }
+        for (int trackId = 1; trackId < count; trackId += 2) {
+            wheel.cancel(trackId);
+        }
+        assertEquals(count / 2, wheel.getPendingCount());
+        assertEquals(count / 2, wheel.getTrackCount());
+
+        assertTrue(retryLatch.await(5, TimeUnit.SECONDS));
+        // 再等一段时间，确认取消的没有触发
+        Thread.sleep(60);
+        assertEquals(count / 2, retried.size());
+        for (int trackId : new ArrayList<>(retried)) {
+            assertEquals(0, trackId % 2);
+        }
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    @Test
+    public void tickCostStaysSmallWithThousandsPending() throws Exception {
+        // 1ms一个tick，5000个重试落在同一个槽中同时到期，是单个tick最重的情况
+        newWheel(1, 512, 50, 50);
+        int count = 5000;
+        retryLatch = new CountDownLatch(count);
+        for (int trackId = 0; trackId < count; trackId++) {
+            wheel.schedule(trackId);
+        }
+        assertEquals(count, wheel.getPendingCount());
+
+        assertTrue(retryLatch.await(5, TimeUnit.SECONDS));
+        long maxTickCostNanos = wheel.getMaxTickCostNanos();
+        System.out.println("RetryTimerWheelTest: " + count + " pending, max tick cost "
+                + TimeUnit.NANOSECONDS.toMicros(maxTickCostNanos) + "us");
+        assertTrue(maxTickCostNanos > 0);
+        // 远小于一个识别重试间隔，不会推迟其他重试
+        assertTrue(maxTickCostNanos < TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(0, wheel.getPendingCount());
+        assertEquals(count, wheel.getTrackCount());
+    }
+
+    @Test
+    public void cancelAllAndStop() {
+        newWheel(10, 64, 1000, 1000);
+        for (int trackId = 0; trackId < 100; trackId++) {
+            wheel.schedule(trackId);
+        }
+        wheel.cancelAll();
+        assertEquals(0, wheel.getPendingCount());
+        assertEquals(0, wheel.getTrackCount());
+        assertEquals(1000, wheel.schedule(5));
+
+        wheel.stop();
+        assertEquals(-1, wheel.schedule(6));
+        assertEquals(0, wheel.getPendingCount());
+    }
+}
@@ -0,0 +1,142 @@
+package com.rokid.simpleplayer.face.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 每帧追踪状态更新的基准测试，在JVM上直接运行main，不是单元测试
+ * <p>
+ * 模拟画面中同时有若干人脸、每帧少数人脸离开及进入：
+ * <ul>
+ * <li>boxedMaps：原来的做法，识别状态、重试次数、名称各一个{@code ConcurrentHashMap<Integer, ...>}，
+ * 当前帧的trackId放在{@code List<Integer>}中，清理离开的人脸时逐个{@code contains}</li>
+ * <li>table：{@link TrackStateTable}一次遍历完成更新及批量删除</li>
+ * </ul>
+ * 输出每帧的耗时及每帧分配的字节数（HotSpot的线程分配计数）
+ */
+public class TrackStateTableBenchmark {
+    private static final int[] FACE_COUNTS = {4, 16, 64};
+    private static final int FRAMES = 200000;
+    private static final int ROUNDS = 5;
+
+    private static volatile long sink;
+
+    private interface Frames {
+        long run(int frames, int faceCount);
+    }
+
+    public static void main(String[] args) {
+        System.out.println("java " + System.getProperty("java.version"));
+        for (int faceCount : FACE_COUNTS) {
+            System.out.println("faces=" + faceCount);
+            report("boxedMaps", faceCount, new Frames() {
+                @Override
+                public long run(int frames, int faceCount) {
+                    return boxedMaps(frames, faceCount);
+                }
+            });
+            report("table", faceCount, new Frames() {
+                @Override
+                public long run(int frames, int faceCount) {
+                    return table(frames, faceCount);
+                }
+            });
+        }
+    }
+
+    /**
+     * 第frame帧画面中的trackId：每帧有一个人脸离开、一个新的人脸进入
+     */
+    private static int trackId(int frame, int slot, int faceCount) {
+        return frame - slot + faceCount;
+    }
+
+    private static long boxedMaps(int frames, int faceCount) {
+        Map<Integer, Integer> statusMap = new ConcurrentHashMap<>();
+        Map<Integer, Integer> retryMap = new ConcurrentHashMap<>();
+        ConcurrentHashMap<Integer, String> nameMap = new ConcurrentHashMap<>();
+        List<Integer> currentTrackIdList = new ArrayList<>();
+        long checksum = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            currentTrackIdList.clear();
+            for (int slot = 0; slot < faceCount; slot++) {
+                int trackId = trackId(frame, slot, faceCount);
+                currentTrackIdList.add(trackId);
+                if (statusMap.get(trackId) == null) {
+                    statusMap.put(trackId, 0);
+                    retryMap.put(trackId, 0);
+                    nameMap.put(trackId, "VISITOR");
+                }
+                checksum += statusMap.get(trackId);
+            }
+            // clearLeftFace / clearLeftName：逐个检查是否还在当前帧中
+            Enumeration<Integer> keys = nameMap.keys();
+            while (keys.hasMoreElements()) {
+                Integer key = keys.nextElement();
+                if (!currentTrackIdList.contains(key)) {
+                    nameMap.remove(key);
+                }
+            }
+            Iterator<Integer> iterator = statusMap.keySet().iterator();
+            while (iterator.hasNext()) {
+                Integer key = iterator.next();
+                if (!currentTrackIdList.contains(key)) {
+                    iterator.remove();
+                    retryMap.remove(key);
+                }
+            }
+        }
+        return checksum + statusMap.size();
+    }
+
+    private static long table(int frames, int faceCount) {
+        TrackStateTable table = new TrackStateTable(faceCount);
+        long checksum = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            table.beginFrame();
+            for (int slot = 0; slot < faceCount; slot++) {
+                int trackId = trackId(frame, slot, faceCount);
+                table.touch(trackId, frame, null);
+                if (table.getStatus(trackId) == TrackStateTable.STATUS_NONE) {
+                    table.setStatus(trackId, 0);
+                    table.setName(trackId, "VISITOR");
+                }
+                checksum += table.getStatus(trackId);
+            }
+            table.evictUnseen(null);
+        }
+        return checksum + table.size();
+    }
+
+    private static void report(String name, int faceCount, Frames frames) {
+        // 预热
+        sink = frames.run(FRAMES, faceCount);
+        long bestNanos = Long.MAX_VALUE;
+        long allocated = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long startBytes = allocatedBytes();
+            long startTime = System.nanoTime();
+            sink = frames.run(FRAMES, faceCount);
+            bestNanos = Math.min(bestNanos, System.nanoTime() - startTime);
+            allocated = allocatedBytes() - startBytes;
+        }
+        System.out.println(String.format("  %-9s %8.1f ns/frame %8.1f B/frame",
+                name, bestNanos / (double) FRAMES, allocated / (double) FRAMES));
+    }
+
+    /**
+     * 当前线程已分配的字节数，不支持时返回0
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
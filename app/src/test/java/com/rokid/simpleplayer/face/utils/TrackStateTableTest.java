@@ -0,0 +1,206 @@
+package com.rokid.simpleplayer.face.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 人脸框依赖{@link android.graphics.Rect}，JVM单元测试中只传null，不测试人脸框
+ */
+public class TrackStateTableTest {
+    @Test
+    public void insertedTracksKeepTheirState() {
+        TrackStateTable table = new TrackStateTable();
+        table.beginFrame();
+        // 超过默认容量，触发扩容
+        for (int trackId = 0; trackId < 200; trackId++) {
+            table.touch(trackId, trackId * 10L, null);
+            assertTrue(table.setStatus(trackId, trackId % 4));
+            assertTrue(table.setName(trackId, "n" + trackId));
+            assertTrue(table.setIdentity(trackId, "id" + trackId));
+            assertTrue(table.setScore(trackId, trackId / 1000f));
+        }
+        assertEquals(200, table.size());
+        for (int trackId = 0; trackId < 200; trackId++) {
+            assertTrue(table.contains(trackId));
+            assertEquals(trackId % 4, table.getStatus(trackId));
+            assertEquals("n" + trackId, table.getName(trackId));
+            assertEquals("id" + trackId, table.getIdentity(trackId));
+            assertEquals(trackId / 1000f, table.getScore(trackId), 0);
+            assertEquals(trackId * 10L, table.getLastSeenPts(trackId));
+        }
+    }
+
+    @Test
+    public void missingTrackHasDefaultsAndIsNotInserted() {
+        TrackStateTable table = new TrackStateTable();
+        assertFalse(table.setStatus(7, 1));
+        assertFalse(table.setName(7, "n"));
+        assertEquals(TrackStateTable.STATUS_NONE, table.getStatus(7));
+        assertNull(table.getName(7));
+        assertEquals(-1, table.getLastSeenPts(7));
+        assertEquals(0, table.increaseAndGetRetryCount(7));
+        assertEquals(0, table.size());
+
+        table.beginFrame();
+        table.touch(7, 1, null);
+        assertEquals(TrackStateTable.STATUS_NONE, table.getStatus(7));
+        assertEquals(1, table.increaseAndGetRetryCount(7));
+        assertEquals(2, table.increaseAndGetRetryCount(7));
+        table.resetRetryCount(7);
+        assertEquals(1, table.increaseAndGetRetryCount(7));
+    }
+
+    @Test
+    public void removingFromCollisionChainKeepsLaterEntriesReachable() {
+        TrackStateTable table = new TrackStateTable();
+        // 默认容量32下落在同一个槽位的trackId，删除链中间的一个后，后面的要反向移位才能被找到
+        List<Integer> chain = sameHomeSlot(4, 31);
+        table.beginFrame();
+        for (int trackId : chain) {
+            table.touch(trackId, 0, null);
+            table.setName(trackId, "n" + trackId);
+        }
+        table.beginFrame();
+        table.touch(chain.get(0), 1, null);
+        table.touch(chain.get(2), 1, null);
+        table.touch(chain.get(3), 1, null);
+        assertEquals(1, table.evictUnseen(null));
+
+        assertFalse(table.contains(chain.get(1)));
+        for (int k : new int[]{0, 2, 3}) {
+            assertTrue(table.contains(chain.get(k)));
+            assertEquals("n" + chain.get(k), table.getName(chain.get(k)));
+        }
+        // 删除后再插入不会出现重复的记录
+        table.beginFrame();
+        table.touch(chain.get(3), 2, null);
+        table.touch(chain.get(1), 2, null);
+        assertEquals(4, table.size());
+        table.evictUnseen(null);
+        assertEquals(2, table.size());
+        assertNull(table.getName(chain.get(1)));
+        assertEquals("n" + chain.get(3), table.getName(chain.get(3)));
+    }
+
+    @Test
+    public void evictUnseenReportsStatusBeforeRemoving() {
+        final TrackStateTable table = new TrackStateTable();
+        table.beginFrame();
+        for (int trackId = 1; trackId <= 5; trackId++) {
+            table.touch(trackId, 0, null);
+            table.setStatus(trackId, trackId * 10);
+            table.setIdentity(trackId, "id" + trackId);
+        }
+        table.beginFrame();
+        table.touch(2, 1, null);
+        table.touch(4, 1, null);
+        final Map<Integer, Integer> evicted = new HashMap<>();
+        final Map<Integer, String> identities = new HashMap<>();
+        int count = table.evictUnseen(new TrackStateTable.OnTrackEvictListener() {
+            @Override
+            public void onTrackEvicted(int trackId, int status) {
+                evicted.put(trackId, status);
+                // 回调时记录还在，可以查询
+                identities.put(trackId, table.getIdentity(trackId));
+            }
+        });
+
+        assertEquals(3, count);
+        assertEquals(3, evicted.size());
+        for (int trackId : new int[]{1, 3, 5}) {
+            assertEquals(trackId * 10, (int) evicted.get(trackId));
+            assertEquals("id" + trackId, identities.get(trackId));
+            assertFalse(table.contains(trackId));
+        }
+        assertEquals(2, table.size());
+        assertEquals(0, table.evictUnseen(null));
+    }
+
+    @Test
+    public void matchesHashMapOverRandomFrames() {
+        Random random = new Random(1);
+        TrackStateTable table = new TrackStateTable(4);
+        Map<Integer, Integer> expected = new HashMap<>();
+        Set<Integer> present = new HashSet<>();
+        for (int frame = 0; frame < 5000; frame++) {
+            table.beginFrame();
+            // 大部分人脸留在画面中，少数离开，偶尔进入新的人脸
+            Set<Integer> next = new HashSet<>();
+            for (int trackId : present) {
+                if (random.nextInt(10) != 0) {
+                    next.add(trackId);
+                }
+            }
+            int arrivals = random.nextInt(4);
+            for (int k = 0; k < arrivals; k++) {
+                next.add(random.nextInt(200));
+            }
+            for (int trackId : next) {
+                table.touch(trackId, frame, null);
+                if (!expected.containsKey(trackId)) {
+                    expected.put(trackId, TrackStateTable.STATUS_NONE);
+                }
+                if (random.nextInt(5) == 0) {
+                    int status = random.nextInt(4);
+                    table.setStatus(trackId, status);
+                    expected.put(trackId, status);
+                }
+            }
+            expected.keySet().retainAll(next);
+            table.evictUnseen(null);
+            present = next;
+
+            assertEquals(expected.size(), table.size());
+            for (int trackId = 0; trackId < 200; trackId++) {
+                Integer status = expected.get(trackId);
+                assertEquals(status != null, table.contains(trackId));
+                assertEquals(status == null ? TrackStateTable.STATUS_NONE : status, table.getStatus(trackId));
+            }
+        }
+    }
+
+    @Test
+    public void clearRemovesEverything() {
+        TrackStateTable table = new TrackStateTable();
+        table.beginFrame();
+        for (int trackId = 0; trackId < 10; trackId++) {
+            table.touch(trackId, 0, null);
+        }
+        table.clear();
+        assertEquals(0, table.size());
+        for (int trackId = 0; trackId < 10; trackId++) {
+            assertFalse(table.contains(trackId));
+        }
+    }
+
+    /**
+     * @return count个在给定掩码下散列到同一个槽位的trackId
+     */
+    private static List<Integer> sameHomeSlot(int count, int mask) {
+        List<Integer> result = new ArrayList<>();
+        int home = -1;
+        for (int trackId = 0; result.size() < count; trackId++) {
+            int h = trackId * 0x9E3779B9;
+            int slot = (h ^ (h >>> 16)) & mask;
+            if (home < 0) {
+                home = slot;
+            }
+            if (slot == home) {
+                result.add(trackId);
+            }
+        }
+        return result;
+    }
+}